@@ -16,30 +16,40 @@
 package com.google.calendar.interoperability.connectorplugin;
 
 import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.bool;
+import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.integer;
 import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.string;
 import static com.google.calendar.interoperability.connectorplugin.base.Tuple.of;
 
 import com.google.calendar.interoperability.connectorplugin.base.CommandHandler;
 import com.google.calendar.interoperability.connectorplugin.base.Configurable;
+import com.google.calendar.interoperability.connectorplugin.base.DeadlineSink;
+import com.google.calendar.interoperability.connectorplugin.base.FairSink;
 import com.google.calendar.interoperability.connectorplugin.base.GarbageCollector;
 import com.google.calendar.interoperability.connectorplugin.base.GwFileIo;
 import com.google.calendar.interoperability.connectorplugin.base.GwIo;
 import com.google.calendar.interoperability.connectorplugin.base.InputScanner;
+import com.google.calendar.interoperability.connectorplugin.base.LaneRouter;
 import com.google.calendar.interoperability.connectorplugin.base.NullSink;
 import com.google.calendar.interoperability.connectorplugin.base.Parser;
+import com.google.calendar.interoperability.connectorplugin.base.ProbeRouter;
 import com.google.calendar.interoperability.connectorplugin.base.PasswordLoader;
 import com.google.calendar.interoperability.connectorplugin.base.ShellUtility;
+import com.google.calendar.interoperability.connectorplugin.base.SelfTestable;
 import com.google.calendar.interoperability.connectorplugin.base.PasswordLoader.EncryptionStrategy;
+import com.google.calendar.interoperability.connectorplugin.base.MessageArchiver;
 import com.google.calendar.interoperability.connectorplugin.base.Responder;
 import com.google.calendar.interoperability.connectorplugin.base.SimpleSink;
 import com.google.calendar.interoperability.connectorplugin.base.SimpleStage;
 import com.google.calendar.interoperability.connectorplugin.base.Sink;
 import com.google.calendar.interoperability.connectorplugin.base.Stage;
+import com.google.calendar.interoperability.connectorplugin.base.TrafficCapture;
+import com.google.calendar.interoperability.connectorplugin.base.messages.AdminCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.DeferredResponse;
 import com.google.calendar.interoperability.connectorplugin.base.messages.GwCommand;
 import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
 import com.google.calendar.interoperability.connectorplugin.impl.google.GDataConnector;
+import com.google.calendar.interoperability.connectorplugin.impl.googlev3.GoogleV3Connector;
 import com.google.calendar.interoperability.connectorplugin.impl.mock.MockInfrastructure;
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 
 import java.io.File;
@@ -59,7 +69,7 @@ public class Main extends Configurable implements Runnable {
   
   InputScanner scanner;
   MockInfrastructure mockInfratsructure;
-  GDataConnector realInfrastructure;
+  SelfTestable realInfrastructure;
   GwIo io;
   String baseDirectory;
   
@@ -70,8 +80,14 @@ public class Main extends Configurable implements Runnable {
     this.registerParameter("logFile", string, "");
     this.registerParameter("verboseLogging", bool, "false");
     this.registerParameter("logMessages", bool, "true");
+    this.registerParameter("archiveMessages", bool, "true");
     this.registerParameter("httpProxy", string, "<NONE>");
     this.registerParameter("httpsProxy", string, "<NONE>");
+    this.registerParameter("captureFile", string, "");
+    this.registerParameter("lazyParsing", bool, "true");
+    this.registerParameter("executionThreads", integer, "20");
+    this.registerParameter("adminThreads", integer, "2");
+    this.registerParameter("maxConcurrentPerRequestor", integer, "10");
   }
   
   /**
@@ -114,6 +130,55 @@ public class Main extends Configurable implements Runnable {
     System.setProperty(portProp, setting[1]);
   }
   
+  /**
+   * Opens the traffic capture if the configuration asks for one. The
+   * capture is completed when the virtual machine shuts down.
+   * @return the capture or null if traffic should not be captured
+   */
+  private TrafficCapture createCapture() throws IOException {
+    final String captureFile = getString("captureFile").trim();
+    if (captureFile.length() == 0) {
+      return null;
+    }
+    LOGGER.log(Level.INFO, "Capturing incoming traffic to " + captureFile);
+    final TrafficCapture capture = new TrafficCapture(new File(captureFile));
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        try {
+          capture.close();
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Could not complete traffic capture", e);
+        }
+      }
+    });
+    return capture;
+  }
+  
+  /**
+   * Creates the responder. If messages are logged into an archive, the
+   * archive is completed when the virtual machine shuts down.
+   */
+  private Responder createResponder() {
+    if (!getBoolean("logMessages") || !getBoolean("archiveMessages")) {
+      return new Responder(io, getBoolean("logMessages"));
+    }
+    LOGGER.log(Level.INFO, "Archiving processed messages");
+    final MessageArchiver archiver = new MessageArchiver(io);
+    archiver.start();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        try {
+          archiver.close();
+        } catch (InterruptedException e) {
+          LOGGER.log(Level.WARNING, "Could not complete message archive", e);
+        }
+      }
+    });
+    return new Responder(io, archiver);
+  }
+  
   /**
    * Initializes this object from the main thread
    */
@@ -150,29 +215,55 @@ public class Main extends Configurable implements Runnable {
     
     // Build Stage 1 (message parsing)
     LOGGER.log(Level.INFO, "Building stage 1...");
-    Sink<GwCommand> messageInSink = new SimpleSink<GwCommand>(); 
-    Function<String, GwCommand> parser = new Parser(io);
+    Sink<GwResponse> responseSink = new SimpleSink<GwResponse>();
+    Sink<GwCommand> messageInSink = new FairSink(responseSink,
+        getInteger("maxConcurrentPerRequestor").intValue());
+    Sink<GwCommand> adminSink = new DeadlineSink(responseSink);
+    LaneRouter<GwCommand> lanes = new LaneRouter<GwCommand>(messageInSink);
+    if (getInteger("adminThreads") > 0) {
+      lanes.addLane(AdminCommand.class, adminSink);
+    }
+    CommandHandler handler = new CommandHandler();
+    Parser parser = new Parser(io, createCapture(),
+        getBoolean("lazyParsing") ? handler : null);
+    parser.setRetainHeaders(getBoolean("logMessages"));
     Stage<String, GwCommand> stage1 = new SimpleStage<String, GwCommand>(
-        filenameSink, messageInSink, parser, 10, "messageParsing");
+        filenameSink, new ProbeRouter(handler, lanes, responseSink),
+        parser, 10, "messageParsing");
     
     // Build Stage 2 (message handling)
     LOGGER.log(Level.INFO, "Building stage 2...");
-    Sink<GwResponse> responseSink = new SimpleSink<GwResponse>();
-    CommandHandler handler = new CommandHandler();
     final String connector = getString("connector").toUpperCase().trim();
     if (connector.equals("MOCK")) {
       mockInfratsructure = new MockInfrastructure(handler);
     } else if (connector.equals("GOOGLE")) {
-      realInfrastructure = new GDataConnector(handler);
+      realInfrastructure = new GDataConnector(handler, responseSink);
+    } else if (connector.equals("GOOGLEV3")) {
+      realInfrastructure = new GoogleV3Connector(handler, responseSink);
     }
+    
+    // Searches answered asynchronously leave a placeholder behind
+    LaneRouter<GwResponse> executionOut = 
+      new LaneRouter<GwResponse>(responseSink);
+    executionOut.addLane(DeferredResponse.class, new NullSink<GwResponse>());
     Stage<GwCommand, GwResponse> stage2 = 
       new SimpleStage<GwCommand, GwResponse>(
-        messageInSink, responseSink, handler, 100, "messageExecution");
+        messageInSink, executionOut, handler, 
+        getInteger("executionThreads").intValue(), "messageExecution");
+    
+    // Directory requests page through all users and take a while; they
+    // get their own queue and threads so searches never wait behind them
+    if (getInteger("adminThreads") > 0) {
+      Stage<GwCommand, GwResponse> adminStage = 
+        new SimpleStage<GwCommand, GwResponse>(
+          adminSink, executionOut, handler, 
+          getInteger("adminThreads").intValue(), "adminExecution");
+    }
     
     // Build Stage 3 (message feedback)
     LOGGER.log(Level.INFO, "Building stage 3...");
     Sink<GwCommand> cleanupSink = new SimpleSink<GwCommand>();
-    Responder responder = new Responder(io, getBoolean("logMessages"));
+    Responder responder = createResponder();
     Stage<GwResponse, GwCommand> stage3 = 
       new SimpleStage<GwResponse, GwCommand>(
         responseSink, cleanupSink, responder, 10, "responseCreation");
@@ -194,6 +285,11 @@ public class Main extends Configurable implements Runnable {
       // Construct whatever is required within this object
       setUp();
       
+      // The self-test shares setUp(), so the cache file is loaded here
+      if (realInfrastructure instanceof GDataConnector) {
+        ((GDataConnector) realInfrastructure).loadCache();
+      }
+      
       // Start scanning the incoming directory
       LOGGER.log(Level.INFO, "Starting to scan");
       scanner.scanForever();
@@ -0,0 +1,196 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin;
+
+import static com.google.calendar.interoperability.connectorplugin.base.GwIo.FOLDER.HEADERS_IN;
+
+import com.google.calendar.interoperability.connectorplugin.base.TrafficCapture;
+import com.google.calendar.interoperability.connectorplugin.base.TrafficCapture.CapturedHeader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Program that feeds a traffic capture (see general.captureFile) back into
+ * a connector instance, either at the original pace or faster. The
+ * connector is started in-process with the given configuration, which
+ * should point to the mock connector or to a stubbed GData backend.
+ *
+ * Usage: TrafficReplay <config file> <capture file> [speed]
+ * where speed is a factor such as 1 (default) or 10, or "max" to feed
+ * all headers without any delay.
+ */
+public class TrafficReplay {
+
+  // How long to wait for the connector to process the replayed traffic
+  private static final long DRAIN_TIMEOUT_IN_MILLIS = 600000;
+
+  private final File inFolder;
+  private final double speed;
+  private int sequence;
+
+  /**
+   * Constructor
+   * @param baseDirectory the base directory of the connector instance
+   * @param speed the factor to speed up the replay with; 0 or less stands
+   *   for "as fast as possible"
+   */
+  TrafficReplay(File baseDirectory, double speed) {
+    this.inFolder = new File(baseDirectory, HEADERS_IN.getNameInGroupWise());
+    this.speed = speed;
+  }
+
+  /**
+   * Parses the speed argument. Visible for testing.
+   * @return the speed factor, 0 for "max"
+   */
+  static double parseSpeed(String speed) {
+    if ("max".equalsIgnoreCase(speed.trim())) {
+      return 0;
+    }
+    final double result = Double.parseDouble(speed);
+    if (result <= 0) {
+      throw new IllegalArgumentException("Speed must be positive: " + speed);
+    }
+    return result;
+  }
+
+  /**
+   * Writes a header into the incoming folder. The header is written to a
+   * temporary file first, so the connector never picks up a partial file.
+   */
+  private void feed(CapturedHeader header) throws IOException {
+    File target = new File(inFolder, header.getName());
+    while (target.exists()) {
+      target = new File(inFolder, "r" + (sequence++) + "_" + header.getName());
+    }
+    final File temp = new File(inFolder, target.getName() + ".tmp");
+    OutputStream out = new FileOutputStream(temp);
+    try {
+      out.write(header.getContent());
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(target)) {
+      throw new IOException("Could not create " + target);
+    }
+  }
+
+  /**
+   * Replays a capture in the pace given by the arrival times and the speed
+   * @return the amount of headers that were fed into the connector
+   */
+  int replay(TrafficCapture.Reader reader)
+      throws IOException, InterruptedException {
+    int count = 0;
+    long firstArrival = 0;
+    final long start = System.currentTimeMillis();
+    for (CapturedHeader header = reader.next(); header != null;
+        header = reader.next()) {
+      if (count == 0) {
+        firstArrival = header.getArrivalUtc();
+      }
+      if (speed > 0) {
+        final long due = start +
+            (long) ((header.getArrivalUtc() - firstArrival) / speed);
+        final long wait = due - System.currentTimeMillis();
+        if (wait > 0) {
+          Thread.sleep(wait);
+        }
+      }
+      feed(header);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Waits until the connector has cleaned up all replayed headers
+   * @return true if the incoming folder was drained in time
+   */
+  boolean awaitDrain(long timeoutInMillis) throws InterruptedException {
+    final long until = System.currentTimeMillis() + timeoutInMillis;
+    while (System.currentTimeMillis() < until) {
+
+      // If the folder cannot be listed (e.g. it is locked), it may still
+      // hold headers, so try again until the timeout
+      final File[] files = inFolder.listFiles();
+      boolean empty = (files != null);
+      for (int i = 0; empty && i < files.length; i++) {
+        if (files[i].isFile() && HEADERS_IN.verify(files[i].getName())) {
+          empty = false;
+        }
+      }
+      if (empty) {
+        return true;
+      }
+      Thread.sleep(100);
+    }
+    return false;
+  }
+
+  public static void main(String[] args) {
+    if (args.length < 2) {
+      System.out.println(
+          "Usage: TrafficReplay <config file> <capture file> [speed|max]");
+      System.exit(1);
+    }
+    try {
+      final double speed = parseSpeed((args.length > 2) ? args[2] : "1");
+
+      // Start the connector instance
+      Main.setGlobalConfig(args[0], false);
+      Main connector = new Main();
+      final File base = new File(connector.getString("baseDirectory"));
+      Thread connectorThread = new Thread(connector);
+      connectorThread.setDaemon(true);
+      connectorThread.start();
+
+      // Feed the capture
+      TrafficReplay replay = new TrafficReplay(base, speed);
+      TrafficCapture.Reader reader = TrafficCapture.open(new File(args[1]));
+      final long start = System.currentTimeMillis();
+      final int count;
+      try {
+        count = replay.replay(reader);
+      } finally {
+        reader.close();
+      }
+      final long fed = System.currentTimeMillis();
+      System.out.println(String.format(
+          "Replayed %s headers in %s seconds", count, (fed - start) / 1000.0));
+
+      // Wait for the connector to process everything
+      if (!replay.awaitDrain(DRAIN_TIMEOUT_IN_MILLIS)) {
+        System.out.println("Connector did not process all headers in time");
+        System.exit(2);
+      }
+      final long drained = System.currentTimeMillis();
+      System.out.println(String.format(
+          "All headers processed %s seconds after the last one was fed " +
+          "(%s headers per second overall)",
+          (drained - fed) / 1000.0,
+          count * 1000.0 / Math.max(1, drained - start)));
+      System.exit(0);
+
+    } catch (Throwable t) {
+      t.printStackTrace();
+      System.exit(3);
+    }
+  }
+}
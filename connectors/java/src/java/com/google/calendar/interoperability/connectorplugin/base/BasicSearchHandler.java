@@ -20,7 +20,6 @@ import com.google.calendar.interoperability.connectorplugin.base.messages.ProbeR
 import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
 import com.google.calendar.interoperability.connectorplugin.base.messages.VoidResponse;
 import com.google.calendar.interoperability.connectorplugin.base.messages.util.Address;
-import com.google.calendar.interoperability.connectorplugin.base.messages.util.AddressList;
 import com.google.common.base.Function;
 
 import java.util.Iterator;
@@ -39,45 +38,51 @@ public abstract class BasicSearchHandler
   protected abstract GwResponse handleSearch(
       SearchCommand command, Address requestor, Address searchFor);
   
-  public final GwResponse apply(SearchCommand searchCommand) {
-    // Make sure that basic data fields are set
+  /**
+   * Checks that the fields needed to answer a search are set
+   * @return a description of the first missing field, or null if the
+   *   command is complete
+   */
+  public static String findMissingField(SearchCommand searchCommand) {
     if (searchCommand.getMsgId() == null) {
-      logger.log(Level.WARNING, "Could not get message id");
-      return VoidResponse.invalid(searchCommand);
+      return "message id";
     }
     if (searchCommand.getBeginTime() == null) {
-      logger.log(Level.WARNING, "Could not get getBeginTime");
-      return VoidResponse.invalid(searchCommand);
+      return "getBeginTime";
     }
     if (searchCommand.getEndTime() == null) {
-      logger.log(Level.WARNING, "Could not get getEndTime");
-      return VoidResponse.invalid(searchCommand);
+      return "getEndTime";
     }
     if (searchCommand.getFrom() == null) {
-      logger.log(Level.WARNING, "Could not get getFrom");
-      return VoidResponse.invalid(searchCommand);
+      return "getFrom";
     }
     if (searchCommand.getTo() == null) {
-      logger.log(Level.WARNING, "Could not get getTo");
-      return VoidResponse.invalid(searchCommand);
+      return "getTo";
     }
-    
-    Address fromAddress = searchCommand.getFrom();
-    AddressList to = searchCommand.getTo();
-    Iterator<Address> iterator = to.getAddresses().iterator();
+    Iterator<Address> iterator = 
+      searchCommand.getTo().getAddresses().iterator();
     if (!iterator.hasNext()){
-      logger.log(Level.WARNING, "Could not get any toAddress ");
-      return VoidResponse.invalid(searchCommand);
+      return "any toAddress ";
+    }
+    if (iterator.next() == null) {
+      return "toAddress";
     }
-    Address toAddress = iterator.next();
-    if (toAddress == null) {
-      logger.log(Level.WARNING, "Could not get toAddress");
+    return null;
+  }
+  
+  public final GwResponse apply(SearchCommand searchCommand) {
+    // Make sure that basic data fields are set
+    final String missingField = findMissingField(searchCommand);
+    if (missingField != null) {
+      logger.log(Level.WARNING, "Could not get " + missingField);
       return VoidResponse.invalid(searchCommand);
     }
     
+    Address fromAddress = searchCommand.getFrom();
+    Address toAddress = searchCommand.getTo().getAddresses().iterator().next();
+    
     // Case: F/B probe
-    if (searchCommand.getHeaderContent().toUpperCase()
-        .indexOf("FB-PROBE") >= 0) {
+    if (searchCommand.isProbe()) {
       return new ProbeResponse(searchCommand);
     }
     
@@ -21,8 +21,11 @@ import com.google.calendar.interoperability.connectorplugin.base.messages.Unknow
 import com.google.calendar.interoperability.connectorplugin.base.messages.VoidResponse;
 import com.google.common.base.Function;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Extensible base command for handling GwCommands
@@ -32,6 +35,7 @@ public class CommandHandler implements Function<GwCommand, GwResponse> {
   private Map<
       Class<? extends GwCommand>, 
       Function<GwCommand, GwResponse>> handlers;  
+  private Map<Class<? extends GwCommand>, Set<String>> requiredFields;
   
   /**
    * Constructor. Registers a default handler for unknown commands
@@ -40,6 +44,7 @@ public class CommandHandler implements Function<GwCommand, GwResponse> {
     handlers =
       new HashMap<Class<? extends GwCommand>, 
       Function<GwCommand, GwResponse>>();    
+    requiredFields = new HashMap<Class<? extends GwCommand>, Set<String>>();
   }
 
   /**
@@ -51,6 +56,42 @@ public class CommandHandler implements Function<GwCommand, GwResponse> {
   public<T extends GwCommand> void registerSubhandler(
       Class<T> handledClass, Function<T, GwResponse> handler) {
     handlers.put(handledClass, (Function<GwCommand, GwResponse>) handler);
+    requiredFields.remove(handledClass);
+  }
+
+  /**
+   * Registers a handler for a particular command class that only looks at
+   * some of the fields of a command. The parser can use this to skip all
+   * other fields.
+   * @param handledClass the exact class that the handler is for
+   * @param fields the keys of the header fields that the handler needs
+   *   (such as "MSG-ID" or "BEGIN-TIME")
+   */
+  public<T extends GwCommand> void registerSubhandler(
+      Class<T> handledClass, Function<T, GwResponse> handler,
+      String... fields) {
+    registerSubhandler(handledClass, handler);
+    final Set<String> keys = new HashSet<String>();
+    for (String field : fields) {
+      keys.add(field.toUpperCase());
+    }
+    requiredFields.put(handledClass, Collections.unmodifiableSet(keys));
+  }
+  
+  /**
+   * @return true if a handler is registered for exactly this class
+   */
+  public boolean isHandled(Class<? extends GwCommand> commandClass) {
+    return handlers.containsKey(commandClass);
+  }
+  
+  /**
+   * @return the keys of the header fields needed to handle a command of
+   *   this class, or null if all fields may be needed
+   */
+  public Set<String> getRequiredFields(
+      Class<? extends GwCommand> commandClass) {
+    return requiredFields.get(commandClass);
   }
   
   public GwResponse apply(GwCommand from) {
@@ -0,0 +1,213 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base;
+
+import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.integer;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.AdminCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.VoidResponse;
+import com.google.common.base.Nullable;
+
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A sink for commands that sheds the ones nobody waits for anymore.
+ * GroupWise gives up on a search after a while; a command that has been
+ * waiting longer than the deadline for its type is not handed out for
+ * execution, but answered right away with a VoidResponse (which still
+ * gets it logged and its header cleaned up). While the backlog is longer
+ * than a threshold, the newest commands are handed out first, since those
+ * are the ones that can still be answered in time.
+ */
+public class DeadlineSink extends Configurable implements Sink<GwCommand> {
+
+  private static final Logger LOGGER =
+    Logger.getLogger(DeadlineSink.class.getName());
+
+  private final Sink<GwResponse> responses;
+  private final BlockingDeque<GwCommand> queue =
+    new LinkedBlockingDeque<GwCommand>();
+  private int penaltyInMilliseconds = 5000;
+
+  // Statistics
+  private final AtomicLong shed = new AtomicLong();
+  private final AtomicLong newestFirst = new AtomicLong();
+
+  /**
+   * Constructor
+   * @param responses the sink that the responses to shed commands are put
+   *   into
+   */
+  public DeadlineSink(Sink<GwResponse> responses) {
+    super("deadline");
+    registerParameter("searchInSeconds", integer, "300");
+    registerParameter("adminInSeconds", integer, "0");
+    registerParameter("otherInSeconds", integer, "0");
+    registerParameter("newestFirstBacklog", integer, "500");
+    this.responses = responses;
+  }
+
+  /**
+   * @return the deadline for a command in milliseconds after its arrival,
+   *   0 for none
+   */
+  long getDeadlineInMillis(GwCommand command) {
+    final String key;
+    if (command instanceof SearchCommand) {
+      key = "searchInSeconds";
+    } else if (command instanceof AdminCommand) {
+      key = "adminInSeconds";
+    } else {
+      key = "otherInSeconds";
+    }
+    return getInteger(key) * 1000;
+  }
+
+  /**
+   * Current time; visible for testing
+   */
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  public void accept(GwCommand command) {
+    put(command);
+  }
+  
+  /**
+   * Stores a command until it is taken. Subclasses can change the order
+   * in which commands are handed out by overriding put, take and size.
+   */
+  protected void put(GwCommand command) {
+    try {
+      queue.put(command);
+    } catch (InterruptedException e) {
+      throw new AssertionError
+          ("LinkedBlockingDeque should have a non-blocking put");
+    }
+  }
+  
+  /**
+   * Takes a command, blocking until one is available
+   * @param newest whether to take the newest rather than the oldest one
+   */
+  protected GwCommand take(boolean newest) throws InterruptedException {
+    return newest ? queue.takeLast() : queue.takeFirst();
+  }
+
+  /**
+   * Hands out the oldest command, or the newest one if the backlog is
+   * long. Expired commands are answered on the way; the others get their
+   * deadline set, so work done for them later on can check it again.
+   * Blocks until a command is available.
+   */
+  public GwCommand checkOut() {
+    try {
+      while (true) {
+        final boolean newest = size() > getInteger("newestFirstBacklog");
+        final GwCommand command = take(newest);
+        if (newest) {
+          newestFirst.incrementAndGet();
+        }
+        final long deadline = getDeadlineInMillis(command);
+        command.setDeadline(
+            (deadline > 0) ? command.getArrivalTime() + deadline : 0);
+        if (deadline > 0 && now() - command.getArrivalTime() > deadline) {
+          shed.incrementAndGet();
+          LOGGER.log(Level.FINE, "Deadline expired for " +
+              command.getHeaderName());
+          expired(command);
+          responses.accept(new VoidResponse(
+              command, "deadline expired before processing", "expired"));
+          continue;
+        }
+        return command;
+      }
+    } catch (InterruptedException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Re-enqueues the failed command at the end of the queue after a
+   * penalty, like SimpleSink does
+   */
+  public void reportFailure(final GwCommand processedObject,
+      @Nullable Throwable t) {
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(penaltyInMilliseconds);
+        } catch (InterruptedException e) {
+
+          // No special handling required if we get interrupted
+        }
+        accept(processedObject);
+      }
+    }.start();
+  }
+
+  public void reportSuccess(GwCommand processedObject) {
+    // Do nothing
+  }
+
+  /**
+   * Sets the time in milliseconds that this sink waits before putting a
+   * failed command back into the queue. Default is five seconds.
+   */
+  public void setPenaltyInMilliseconds(int penaltyInMilliseconds) {
+    this.penaltyInMilliseconds = penaltyInMilliseconds;
+  }
+
+  /**
+   * @return the number of commands answered without processing because
+   *   their deadline had expired
+   */
+  public long getShedCount() {
+    return shed.get();
+  }
+
+  /**
+   * @return the number of commands handed out newest-first because of a
+   *   long backlog
+   */
+  public long getNewestFirstCount() {
+    return newestFirst.get();
+  }
+
+  /**
+   * Called for every command that is answered because its deadline has
+   * expired, after it has been taken
+   */
+  protected void expired(GwCommand command) {
+    // Nothing to do here
+  }
+  
+  /**
+   * @return the number of commands waiting
+   */
+  public int size() {
+    return queue.size();
+  }
+}
@@ -0,0 +1,31 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base;
+
+/**
+ * A processing result that only stands in for work going on elsewhere.
+ * The stage that produced it reports the processed object to its incoming
+ * sink once the work is done rather than right away, so the sink still
+ * counts the object as being processed until then.
+ */
+public interface Deferred {
+
+  /**
+   * Registers the callback to run once the work is done. Runs it right
+   * away if the work is done already.
+   */
+  public void whenDone(Runnable callback);
+}
@@ -0,0 +1,225 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.Address;
+import com.google.common.base.Nullable;
+import com.google.common.base.Preconditions;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A deadline sink that shares the execution threads fairly between the
+ * users sending requests. Every requestor (the From address of a command)
+ * has a queue of its own, and the queues take turns in round-robin order,
+ * so a client flooding the gateway with searches only slows down itself.
+ * In addition, a requestor never has more than a fixed number of commands
+ * in execution at the same time.
+ */
+public class FairSink extends DeadlineSink {
+
+  /**
+   * The commands of one requestor
+   */
+  private static class Requestor {
+    final LinkedList<GwCommand> queue = new LinkedList<GwCommand>();
+    int inExecution;
+  }
+
+  private final int maxInExecution;
+  private final Lock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final Map<String, Requestor> requestors =
+    new HashMap<String, Requestor>();
+
+  // Requestors with waiting commands, in the order they take turns
+  private final LinkedList<Requestor> turns = new LinkedList<Requestor>();
+  private int size;
+
+  // Statistics
+  private final AtomicLong capped = new AtomicLong();
+
+  /**
+   * Constructor
+   * @param responses the sink that the responses to shed commands are put
+   *   into
+   * @param maxInExecution the number of commands a single requestor may
+   *   have in execution at the same time
+   */
+  public FairSink(Sink<GwResponse> responses, int maxInExecution) {
+    super(responses);
+    Preconditions.checkArgument(maxInExecution > 0);
+    this.maxInExecution = maxInExecution;
+  }
+
+  /**
+   * @return the key of the requestor of a command
+   */
+  static String getRequestorKey(GwCommand command) {
+    final Address from = command.getFrom();
+    if (from == null) {
+      return "";
+    }
+    return from.getWPD() + "." + from.getWPPO() + "." + from.getWPU();
+  }
+
+  @Override
+  protected void put(GwCommand command) {
+    final String key = getRequestorKey(command);
+    lock.lock();
+    try {
+      Requestor requestor = requestors.get(key);
+      if (requestor == null) {
+        requestor = new Requestor();
+        requestors.put(key, requestor);
+      }
+      if (requestor.queue.isEmpty()) {
+        turns.addLast(requestor);
+      }
+      requestor.queue.addLast(command);
+      size++;
+      changed.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes a command of the next requestor in turn that may execute another
+   * one
+   */
+  @Override
+  protected GwCommand take(boolean newest) throws InterruptedException {
+    lock.lock();
+    try {
+      while (true) {
+        int skipped = 0;
+        for (int i = turns.size(); i > 0; i--) {
+          final Requestor requestor = turns.removeFirst();
+          if (requestor.inExecution >= maxInExecution) {
+            skipped++;
+            turns.addLast(requestor);
+            continue;
+          }
+
+          // Skips only count once another requestor's command passes them,
+          // not on every rescan while all requestors are capped
+          capped.addAndGet(skipped);
+          final GwCommand command = newest ?
+              requestor.queue.removeLast() : requestor.queue.removeFirst();
+          size--;
+          requestor.inExecution++;
+          if (!requestor.queue.isEmpty()) {
+            turns.addLast(requestor);
+          }
+          return command;
+        }
+        changed.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Marks a command as no longer in execution
+   */
+  private void done(GwCommand command) {
+    final String key = getRequestorKey(command);
+    lock.lock();
+    try {
+      final Requestor requestor = requestors.get(key);
+      if (requestor == null) {
+        return;
+      }
+      requestor.inExecution--;
+      if (requestor.inExecution <= 0 && requestor.queue.isEmpty()) {
+        requestors.remove(key);
+      }
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  protected void expired(GwCommand command) {
+    done(command);
+  }
+
+  @Override
+  public void reportSuccess(GwCommand processedObject) {
+    done(processedObject);
+    super.reportSuccess(processedObject);
+  }
+
+  @Override
+  public void reportFailure(GwCommand processedObject, @Nullable Throwable t) {
+    done(processedObject);
+    super.reportFailure(processedObject, t);
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of requestors with commands waiting or in execution
+   */
+  public int getRequestorCount() {
+    lock.lock();
+    try {
+      return requestors.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of commands a requestor has in execution
+   */
+  public int getInExecution(String requestorKey) {
+    lock.lock();
+    try {
+      final Requestor requestor = requestors.get(requestorKey);
+      return (requestor == null) ? 0 : requestor.inExecution;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return how often a requestor had to let a command of another one
+   *   pass because it had the maximum number of commands in execution
+   */
+  public long getCappedCount() {
+    return capped.get();
+  }
+}
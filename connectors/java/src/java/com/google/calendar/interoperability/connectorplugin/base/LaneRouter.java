@@ -0,0 +1,80 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base;
+
+import com.google.common.base.Nullable;
+import com.google.common.base.Preconditions;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Distributes objects over several sinks ("lanes") by their exact class.
+ * Every lane is meant to be worked on by a stage of its own, so slow
+ * kinds of work get their own queue and threads and cannot hold up the
+ * others. Objects of classes without a lane go to the default lane, which
+ * is also the sink this router checks out from.
+ */
+public class LaneRouter<T> implements Sink<T> {
+
+  private final Sink<T> defaultLane;
+  private final Map<Class<?>, Sink<T>> lanes =
+    new HashMap<Class<?>, Sink<T>>();
+
+  /**
+   * Constructor
+   * @param defaultLane the sink for everything that has no lane of its own
+   */
+  public LaneRouter(Sink<T> defaultLane) {
+    Preconditions.checkNotNull(defaultLane);
+    this.defaultLane = defaultLane;
+  }
+
+  /**
+   * Adds a lane. Must be called before objects are accepted.
+   * @param laneClass the exact class of the objects for this lane. Sub-
+   *   and superclass relationships have no effect
+   * @param lane the sink for these objects
+   */
+  public void addLane(Class<? extends T> laneClass, Sink<T> lane) {
+    Preconditions.checkNotNull(lane);
+    lanes.put(laneClass, lane);
+  }
+
+  /**
+   * @return the lane objects of this class go to
+   */
+  public Sink<T> getLane(Class<?> objectClass) {
+    final Sink<T> lane = lanes.get(objectClass);
+    return (lane == null) ? defaultLane : lane;
+  }
+
+  public void accept(T t) {
+    getLane(t.getClass()).accept(t);
+  }
+
+  public T checkOut() {
+    return defaultLane.checkOut();
+  }
+
+  public void reportFailure(T processedObject, @Nullable Throwable t) {
+    defaultLane.reportFailure(processedObject, t);
+  }
+
+  public void reportSuccess(T processedObject) {
+    defaultLane.reportSuccess(processedObject);
+  }
+}
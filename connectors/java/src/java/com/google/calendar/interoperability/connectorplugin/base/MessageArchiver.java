@@ -0,0 +1,284 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base;
+
+import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.integer;
+import static com.google.calendar.interoperability.connectorplugin.base.GwIo.FOLDER.LOG;
+
+import com.google.common.base.Preconditions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archives the log entries of processed messages in the background.
+ * Instead of writing one file per message, entries are collected in
+ * gzip-compressed segments that are written into the LOG folder once they
+ * reach a certain size or age. Entries wait in a bounded queue; if the
+ * queue is full, an entry is written as a single file right away (the way
+ * it used to be), so nothing is lost and callers never block.
+ *
+ * A segment decompresses to a text file in which every entry is preceded
+ * by a line "=== <log file name> ===".
+ */
+public class MessageArchiver extends Configurable implements Runnable {
+
+  private static final Logger LOGGER =
+    Logger.getLogger(MessageArchiver.class.getName());
+
+  private static final String SEGMENT_DATE_FORMAT = "yyyyMMdd-HHmmss";
+
+  /**
+   * A log entry waiting to be archived
+   */
+  private static class Entry {
+    final String name;
+    final byte[] content;
+
+    Entry(String name, byte[] content) {
+      this.name = name;
+      this.content = content;
+    }
+  }
+
+  // Marks the end of the queue when closing
+  private static final Entry END = new Entry("", new byte[0]);
+
+  private final GwIo io;
+  private final BlockingQueue<Entry> queue;
+  private final long maxSegmentSize;
+  private final long maxSegmentAgeInMillis;
+  private Thread worker;
+  private volatile boolean closed;
+
+  // The segment currently being written (only used by the worker)
+  private ByteArrayOutputStream segmentBytes;
+  private GZIPOutputStream segment;
+  private long segmentSize;
+  private long segmentStart;
+  private int segmentSequence;
+
+  // Statistics
+  private volatile long archivedEntries;
+  private final AtomicLong directEntries = new AtomicLong();
+  private volatile long writtenSegments;
+
+  /**
+   * Constructor, reads its settings from the "archive" section of the
+   * configuration
+   */
+  public MessageArchiver(GwIo io) {
+    this(io, null);
+  }
+
+  /**
+   * Constructor. Visible for testing.
+   * @param config local configuration to use instead of the global one,
+   *   may be null
+   */
+  MessageArchiver(GwIo io, Properties config) {
+    super("archive");
+    Preconditions.checkNotNull(io);
+    registerParameter("queueSize", integer, "1000");
+    registerParameter("segmentSizeInKb", integer, "4096");
+    registerParameter("segmentAgeInSeconds", integer, "300");
+    if (config != null) {
+      setLocalConfig(config);
+    }
+    this.io = io;
+    this.queue = new ArrayBlockingQueue<Entry>(
+        Math.max(1, getInteger("queueSize").intValue()));
+    this.maxSegmentSize = getInteger("segmentSizeInKb") * 1024;
+    this.maxSegmentAgeInMillis = getInteger("segmentAgeInSeconds") * 1000;
+  }
+
+  /**
+   * Starts the background thread writing the segments
+   */
+  public synchronized void start() {
+    Preconditions.checkState(worker == null, "Already started");
+    worker = new Thread(this, "messageArchiver");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Archives a log entry. Never blocks on the archive; if the buffer is
+   * full or the archiver has been closed, the entry is written directly as
+   * a single file.
+   * @param name the file name the entry would have as a single file
+   * @param content the log entry
+   */
+  public void archive(String name, byte[] content) {
+    Preconditions.checkNotNull(name);
+    Preconditions.checkNotNull(content);
+    final Entry entry = new Entry(name, content);
+    if (!closed && queue.offer(entry)) {
+
+      // If close() came in between, the entry may sit behind the end marker
+      // where nobody drains it; whoever removes it first writes it
+      if (!closed || !queue.remove(entry)) {
+        return;
+      }
+    }
+    LOGGER.log(Level.FINE, "Archive buffer full or closed, writing " + name);
+    directEntries.incrementAndGet();
+    if (!io.store(LOG, name, content)) {
+      LOGGER.log(Level.WARNING, "Could not write log entry " + name);
+    }
+  }
+
+  /**
+   * Writes everything that is buffered and stops the background thread.
+   * Entries archived afterwards are written as single files.
+   */
+  public void close() throws InterruptedException {
+    closed = true;
+    final Thread thread;
+    synchronized (this) {
+      thread = worker;
+    }
+    if (thread == null) {
+
+      // Never started: archive whatever is queued in this thread
+      drain();
+      return;
+    }
+    queue.put(END);
+    thread.join();
+  }
+
+  public long getArchivedEntries() {
+    return archivedEntries;
+  }
+
+  /**
+   * @return the amount of entries that were written as single files
+   *   because the buffer was full or the archiver closed
+   */
+  public long getDirectEntries() {
+    return directEntries.get();
+  }
+
+  public long getWrittenSegments() {
+    return writtenSegments;
+  }
+
+  public void run() {
+    try {
+      while (true) {
+
+        // Without an open segment there is nothing to rotate, so wait for
+        // the next entry however long it takes
+        final Entry entry = (segment == null) ? queue.take() :
+          queue.poll(timeToRotation(), TimeUnit.MILLISECONDS);
+        if (entry == END) {
+          break;
+        }
+        if (entry != null) {
+          append(entry);
+        }
+        if (segment != null && (segmentSize >= maxSegmentSize ||
+            System.currentTimeMillis() - segmentStart >=
+              maxSegmentAgeInMillis)) {
+          completeSegment();
+        }
+      }
+    } catch (InterruptedException e) {
+      LOGGER.log(Level.WARNING, "Archiver interrupted", e);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Archiver died", e);
+    } finally {
+      drain();
+    }
+  }
+
+  /**
+   * Archives all queued entries and completes the current segment
+   */
+  private void drain() {
+    for (Entry entry = queue.poll(); entry != null; entry = queue.poll()) {
+      if (entry != END) {
+        append(entry);
+      }
+    }
+    if (segment != null) {
+      completeSegment();
+    }
+  }
+
+  private long timeToRotation() {
+    return Math.max(1,
+        segmentStart + maxSegmentAgeInMillis - System.currentTimeMillis());
+  }
+
+  private void append(Entry entry) {
+    try {
+      if (segment == null) {
+        segmentBytes = new ByteArrayOutputStream();
+        segment = new GZIPOutputStream(segmentBytes);
+        segmentSize = 0;
+        segmentStart = System.currentTimeMillis();
+      }
+      final byte[] header =
+        ("=== " + entry.name + " ===\r\n").getBytes("US-ASCII");
+      segment.write(header);
+      segment.write(entry.content);
+      segment.write('\r');
+      segment.write('\n');
+      segmentSize += header.length + entry.content.length + 2;
+      archivedEntries++;
+    } catch (IOException e) {
+
+      // Cannot happen with an in-memory stream
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void completeSegment() {
+    final byte[] compressed;
+    try {
+      segment.close();
+      compressed = segmentBytes.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      segment = null;
+      segmentBytes = null;
+    }
+    final String prefix = "archive_" +
+      new SimpleDateFormat(SEGMENT_DATE_FORMAT).format(new Date(segmentStart));
+    for (int attempt = 0; attempt < 100; attempt++) {
+      final String name = prefix + "_" + (segmentSequence++) + ".gz";
+      if (io.store(LOG, name, compressed)) {
+        writtenSegments++;
+        LOGGER.log(Level.FINE, "Wrote archive segment " + name);
+        return;
+      }
+    }
+    LOGGER.log(Level.SEVERE, "Could not write archive segment " + prefix);
+  }
+}
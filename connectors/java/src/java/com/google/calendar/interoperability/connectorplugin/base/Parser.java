@@ -29,6 +29,7 @@ import com.google.calendar.interoperability.connectorplugin.base.messages.util.D
 import com.google.calendar.interoperability.connectorplugin.base.messages.util.FileDescriptor;
 import com.google.calendar.interoperability.connectorplugin.base.messages.util.FileDescriptorList;
 import com.google.calendar.interoperability.connectorplugin.base.messages.GwCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
 import com.google.calendar.interoperability.connectorplugin.base.messages.MailCommand;
 import com.google.calendar.interoperability.connectorplugin.base.messages.NoteCommand;
 import com.google.calendar.interoperability.connectorplugin.base.messages.util.NovellDate;
@@ -40,9 +41,11 @@ import com.google.calendar.interoperability.connectorplugin.base.messages.TaskCo
 import com.google.calendar.interoperability.connectorplugin.base.messages.UnknownCommand;
 
 import com.google.common.base.Function;
+import com.google.common.base.Nullable;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,6 +55,9 @@ import java.util.logging.Logger;
 public class Parser implements Function<String, GwCommand>{
   
   private GwIo io;
+  private TrafficCapture capture;
+  private CommandHandler handler;
+  private boolean retainHeaders = true;
   private static final Logger LOGGER = Logger.getLogger(Parser.class.getName());
   
   private static final String WHITE_SPACES = " \r\n\t\u3000\u00A0\u2007\u202F";
@@ -80,6 +86,9 @@ public class Parser implements Function<String, GwCommand>{
   private class ParserState {
     private int currentLine = 0;
     String [] lines;
+    
+    // Keys of the fields to parse, null for all of them
+    private Set<String> requiredFields;
 
     public String getNextLine() throws IOException {
       if (lines == null) {
@@ -457,6 +466,32 @@ public class Parser implements Function<String, GwCommand>{
       }    
     }
     
+    /**
+     * @return the key of a header line in upper case, such as "MSG-ID" for
+     *   "Msg-ID= 1234;"
+     */
+    private String getKey(String capsLine) {
+      int end = capsLine.indexOf('=');
+      if (end < 0) {
+        end = capsLine.length();
+      }
+      final int semicolon = capsLine.indexOf(';');
+      if (semicolon >= 0 && semicolon < end) {
+        end = semicolon;
+      }
+      return capsLine.substring(0, end).trim();
+    }
+    
+    /**
+     * Skips the indented lines following a field that is not parsed
+     */
+    private void skipContinuation() {
+      while (currentLine < lines.length && lines[currentLine].length() > 0 &&
+          WHITE_SPACES.indexOf(lines[currentLine].charAt(0)) >= 0) {
+        currentLine++;
+      }
+    }
+    
     private void parse(GwCommand command) throws IOException {
       while (true) {
         String curLine = "";
@@ -481,6 +516,14 @@ public class Parser implements Function<String, GwCommand>{
           LOGGER.log(Level.FINE, "Got end! " + curCapsLine);
           return;
         }
+        
+        // Not needed by the handler of this command?
+        if (requiredFields != null &&
+            !requiredFields.contains(getKey(curCapsLine))) {
+          skipContinuation();
+          continue;
+        }
+        
         if (curCapsLine.startsWith("BUSY-FOR")) {
           command.setBusyFor(getStringValue(curLine)); 
           continue;
@@ -689,6 +732,18 @@ public class Parser implements Function<String, GwCommand>{
         String asText) {
 
       GwCommand command = createCommand(fileName, asText);
+      if (command instanceof SearchCommand) {
+        command.setProbe(GwCommand.containsProbeMarker(asText));
+      }
+      if (handler != null) {
+        
+        // Commands without a handler only get answered as unsupported, so
+        // there is no need to look at their fields
+        if (!handler.isHandled(command.getClass())) {
+          return command;
+        }
+        requiredFields = handler.getRequiredFields(command.getClass());
+      }
       try {
         parse(command);
         return command;
@@ -702,7 +757,42 @@ public class Parser implements Function<String, GwCommand>{
   }
   
   public Parser(GwIo io) {
+    this(io, null);
+  }
+  
+  /**
+   * Constructor
+   * @param io the I/O layer to fetch headers from
+   * @param capture if set, every fetched header gets archived together
+   *   with its arrival time
+   */
+  public Parser(GwIo io, @Nullable TrafficCapture capture) {
+    this(io, capture, null);
+  }
+  
+  /**
+   * Constructor for a parser that only parses what the command handler
+   * needs: commands that the handler does not support are only classified,
+   * and for the others only the fields the handler registered are parsed.
+   * @param io the I/O layer to fetch headers from
+   * @param capture if set, every fetched header gets archived together
+   *   with its arrival time
+   * @param handler if set, the handler the commands will be passed to
+   */
+  public Parser(GwIo io, @Nullable TrafficCapture capture,
+      @Nullable CommandHandler handler) {
     this.io = io;
+    this.capture = capture;
+    this.handler = handler;
+  }
+
+  /**
+   * Sets whether parsed commands keep their raw header (default). Without
+   * it, a queued command only holds its parsed fields; only turn this off
+   * if messages are not logged.
+   */
+  public void setRetainHeaders(boolean retainHeaders) {
+    this.retainHeaders = retainHeaders;
   }
 
   public GwCommand apply(final String fileName) {
@@ -718,12 +808,30 @@ public class Parser implements Function<String, GwCommand>{
       throw new NullPointerException("Cannot load header file: " + fileName);
     }
     
-    // Convert to text
-    final String asText = new String(downloadedHeader); 
+    // Archive the header if we are capturing traffic
+    if (capture != null) {
+      try {
+        capture.record(fileName, System.currentTimeMillis(), downloadedHeader);
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Could not capture header " + fileName, e);
+      }
+    }
+    
+    // Convert to text, in the same charset as GwCommand.getHeaderContent
+    final String asText = new String(downloadedHeader, GwResponse.CHARSET);
     ParserState state = new ParserState();
     state.lines =  asText.split("\n");
       //List<KeyValue> keyValues = getKeyValues();
-    return state.getCommand(fileName, asText);
+    final GwCommand command = state.getCommand(fileName, asText);
+    command.setHeaderBytes(downloadedHeader);
+    
+    // Keep a single copy of the header, and only if it will be logged
+    if (retainHeaders) {
+      command.releaseHeaderText();
+    } else {
+      command.releaseHeader();
+    }
+    return command;
   }
 
 }
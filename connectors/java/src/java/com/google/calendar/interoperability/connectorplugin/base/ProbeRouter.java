@@ -0,0 +1,83 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.ProbeResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
+import com.google.common.base.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sits between the parser and the command handler and answers free/busy
+ * probes right away: a complete probe is turned into a ProbeResponse and
+ * put into the response sink, so it never waits for a thread of the
+ * message execution stage. All other commands are passed on to the
+ * command sink, which this sink also checks out from.
+ */
+public class ProbeRouter implements Sink<GwCommand> {
+
+  private final CommandHandler handler;
+  private final Sink<GwCommand> commands;
+  private final Sink<GwResponse> responses;
+  private final AtomicLong probes = new AtomicLong();
+
+  /**
+   * Constructor
+   * @param handler the command handler; probes are only answered here if
+   *   it handles searches at all
+   * @param commands the sink for commands that need to be executed
+   * @param responses the sink for the responses to probes
+   */
+  public ProbeRouter(CommandHandler handler, Sink<GwCommand> commands,
+      Sink<GwResponse> responses) {
+    this.handler = handler;
+    this.commands = commands;
+    this.responses = responses;
+  }
+
+  public void accept(GwCommand command) {
+    if (command instanceof SearchCommand && command.isProbe() &&
+        handler.isHandled(SearchCommand.class) &&
+        BasicSearchHandler.findMissingField((SearchCommand) command) == null) {
+      probes.incrementAndGet();
+      responses.accept(new ProbeResponse(command));
+    } else {
+      commands.accept(command);
+    }
+  }
+
+  public GwCommand checkOut() {
+    return commands.checkOut();
+  }
+
+  public void reportFailure(GwCommand processedObject, @Nullable Throwable t) {
+    commands.reportFailure(processedObject, t);
+  }
+
+  public void reportSuccess(GwCommand processedObject) {
+    commands.reportSuccess(processedObject);
+  }
+
+  /**
+   * @return the number of probes answered so far
+   */
+  public long getProbeCount() {
+    return probes.get();
+  }
+}
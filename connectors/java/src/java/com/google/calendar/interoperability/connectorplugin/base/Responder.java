@@ -30,27 +30,42 @@ public class Responder implements Function<GwResponse, GwCommand>{
   
   private GwIo io;
   private boolean log;
+  private MessageArchiver archiver;
   
+  /**
+   * Constructor
+   * @param log if true, every message is logged as a single file
+   */
   public Responder(GwIo io, boolean log) {
     this.io = io;
     this.log = log;
   }
+  
+  /**
+   * Constructor for a responder that hands the log of every message to
+   * an archiver instead of writing it right away
+   */
+  public Responder(GwIo io, MessageArchiver archiver) {
+    this.io = io;
+    this.log = true;
+    this.archiver = archiver;
+  }
 
   public GwCommand apply(GwResponse from) {
     
     // Need to respond?
-    final String respondToClient = from.renderResponse();
+    final byte[] respondToClient = from.getResponseBytes();
     if (respondToClient != null) {
-      if (!io.store(HEADERS_OUT, from.suggestFilename(), 
-          respondToClient.getBytes())) {
+      if (!io.store(HEADERS_OUT, from.suggestFilename(), respondToClient)) {
         throw new RuntimeException("Could not write response, I/O problem?");
       }
     }
     
     // Need to log ?
-    if (log) {
-      io.store(LOG, from.suggestLogFilename(),
-          from.renderLog().getBytes());
+    if (archiver != null) {
+      archiver.archive(from.suggestLogFilename(), from.renderLogBytes());
+    } else if (log) {
+      io.store(LOG, from.suggestLogFilename(), from.renderLogBytes());
     }
     
     // Done :-)
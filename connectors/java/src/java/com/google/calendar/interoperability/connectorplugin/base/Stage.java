@@ -83,8 +83,9 @@ public abstract class Stage<S, T> {
     // Process the element and enqueue the result
     boolean ok = false;
     Throwable problem = null;
+    T processingResult = null;
     try {
-      T processingResult = processor.apply(processThis);
+      processingResult = processor.apply(processThis);
       outQueue.accept(processingResult);
       ok = true;
     } catch (Throwable t) {
@@ -92,17 +93,31 @@ public abstract class Stage<S, T> {
       problem = t;
     }
     
-    // Notify the incoming sink
+    // Notify the incoming sink, once the work is done if it goes on
+    // elsewhere
+    if (ok && processingResult instanceof Deferred) {
+      final S processed = processThis;
+      ((Deferred) processingResult).whenDone(new Runnable() {
+        public void run() {
+          report(processed, true, null);
+        }
+      });
+    } else {
+      report(processThis, ok, problem);
+    }
+    return true;     
+  }
+  
+  private void report(S processed, boolean ok, Throwable problem) {
     try {
       if (ok) {
-        inQueue.reportSuccess(processThis);
+        inQueue.reportSuccess(processed);
       } else {
-        inQueue.reportFailure(processThis, problem);
+        inQueue.reportFailure(processed, problem);
       }
     } catch (Throwable t) {
       LOGGER.log(Level.WARNING, "Could not notify incoming sink", t);
     }
-    return true;     
   }
 
 }
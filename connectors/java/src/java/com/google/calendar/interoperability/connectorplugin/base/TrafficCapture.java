@@ -0,0 +1,256 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archives incoming headers together with their arrival time in an
+ * append-only, gzip-compressed capture file. The capture can be fed back
+ * into a connector instance later on (see TrafficReplay) in order to
+ * reproduce real-world load.
+ *
+ * Records are grouped into gzip members of at most "recordsPerMember"
+ * entries; every member is completed before the next one is started, so
+ * a crash of the service only loses the records of the current member.
+ * Re-opening an existing capture file appends to it.
+ */
+public class TrafficCapture {
+
+  // Every record starts with this marker (helps to detect corrupt files)
+  private static final int MAGIC = 0x47574350;
+
+  private final OutputStream file;
+  private final int recordsPerMember;
+  private DataOutputStream out;
+  private int recordsInMember;
+
+  /**
+   * A single header as it was captured
+   */
+  public static class CapturedHeader {
+
+    private final String name;
+    private final long arrivalUtc;
+    private final byte[] content;
+
+    public CapturedHeader(String name, long arrivalUtc, byte[] content) {
+      this.name = name;
+      this.arrivalUtc = arrivalUtc;
+      this.content = content;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getArrivalUtc() {
+      return arrivalUtc;
+    }
+
+    public byte[] getContent() {
+      return content;
+    }
+  }
+
+  /**
+   * Reads a capture file record by record (without loading all of it
+   * into memory)
+   */
+  public static class Reader {
+
+    private final InputStream raw;
+
+    // Null for an empty capture, which has no gzip header to read
+    private final DataInputStream in;
+
+    public Reader(InputStream capture) throws IOException {
+      Preconditions.checkNotNull(capture);
+      final PushbackInputStream pushback = new PushbackInputStream(capture);
+      final int first = pushback.read();
+      raw = pushback;
+      if (first < 0) {
+        in = null;
+      } else {
+        pushback.unread(first);
+        in = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(pushback)));
+      }
+    }
+
+    /**
+     * @return the next header in the capture, null if the end of the
+     *   capture has been reached
+     * @throws IOException if the capture is corrupt or cannot be read
+     */
+    public CapturedHeader next() throws IOException {
+      if (in == null) {
+        return null;
+      }
+      final int magic;
+      try {
+        magic = in.readInt();
+      } catch (EOFException e) {
+        return null;
+      }
+      if (magic != MAGIC) {
+        throw new IOException("Corrupt capture file");
+      }
+      final long arrival = in.readLong();
+      final String name = in.readUTF();
+      final byte[] content = new byte[in.readInt()];
+      in.readFully(content);
+      return new CapturedHeader(name, arrival, content);
+    }
+
+    public void close() throws IOException {
+      if (in != null) {
+        in.close();
+      } else {
+        raw.close();
+      }
+    }
+  }
+
+  /**
+   * Constructor. Opens the capture file for appending.
+   * @param captureFile the file to write to (will be created if necessary)
+   * @param recordsPerMember the amount of records after which a gzip
+   *   member gets completed and flushed to disk
+   */
+  public TrafficCapture(File captureFile, int recordsPerMember)
+      throws IOException {
+    Preconditions.checkNotNull(captureFile);
+    if (recordsPerMember < 1) {
+      throw new IllegalArgumentException("recordsPerMember < 1");
+    }
+    File parent = captureFile.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.exists()) {
+      parent.mkdirs();
+    }
+    this.file = new FileOutputStream(captureFile, true);
+    this.recordsPerMember = recordsPerMember;
+  }
+
+  public TrafficCapture(File captureFile) throws IOException {
+    this(captureFile, 100);
+  }
+
+  /**
+   * Appends a header to the capture
+   * @param headerName the file name of the header in API_IN
+   * @param arrivalUtc the time the header was picked up
+   * @param content the raw header
+   */
+  public synchronized void record(
+      String headerName, long arrivalUtc, byte[] content)
+      throws IOException {
+    Preconditions.checkNotNull(headerName);
+    Preconditions.checkNotNull(content);
+    if (out == null) {
+      out = new DataOutputStream(new BufferedOutputStream(
+          new GZIPOutputStream(new NonClosingStream(file))));
+      recordsInMember = 0;
+    }
+    out.writeInt(MAGIC);
+    out.writeLong(arrivalUtc);
+    out.writeUTF(headerName);
+    out.writeInt(content.length);
+    out.write(content);
+    if (++recordsInMember >= recordsPerMember) {
+      completeMember();
+    }
+  }
+
+  /**
+   * Completes the current gzip member (if any) and writes it to disk
+   */
+  public synchronized void flush() throws IOException {
+    completeMember();
+  }
+
+  /**
+   * Flushes all pending records and closes the capture file
+   */
+  public synchronized void close() throws IOException {
+    completeMember();
+    file.close();
+  }
+
+  private void completeMember() throws IOException {
+    if (out == null) {
+      return;
+    }
+    out.close();
+    file.flush();
+    out = null;
+  }
+
+  /**
+   * Opens a capture file for reading
+   */
+  public static Reader open(File captureFile) throws IOException {
+    return new Reader(new FileInputStream(captureFile));
+  }
+
+  /**
+   * Wrapper that keeps closing a gzip member from closing the underlying
+   * capture file
+   */
+  private static class NonClosingStream extends OutputStream {
+
+    private final OutputStream delegate;
+
+    NonClosingStream(OutputStream delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      delegate.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      delegate.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
@@ -21,6 +21,11 @@ package com.google.calendar.interoperability.connectorplugin.base.messages;
  */
 public final class AdminCommand extends GwCommand {
 
+  /**
+   * The header fields needed to answer a directory request
+   */
+  public static final String[] DIRECTORY_FIELDS = {"-GET-DIRECTORY-"};
+
   public AdminCommand(String headerName, String headerContent) {
     super(headerName, headerContent);
   }
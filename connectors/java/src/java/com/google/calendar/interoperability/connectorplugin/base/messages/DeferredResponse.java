@@ -0,0 +1,71 @@
+/* Copyright (c) 2007 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */ 
+
+package com.google.calendar.interoperability.connectorplugin.base.messages;
+
+import com.google.calendar.interoperability.connectorplugin.base.Deferred;
+import com.google.common.base.Preconditions;
+
+/**
+ * Stands in for a response that a handler completes asynchronously: the
+ * real response is put into the response sink later, by whoever finishes
+ * the work, who then calls done(). Until then, the command counts as
+ * being in execution. A deferred response itself is never rendered and
+ * should be discarded on its way out of the handling stage.
+ */
+public class DeferredResponse extends GwResponse implements Deferred {
+
+  private Runnable callback;
+  private boolean done;
+
+  /**
+   * Constructor
+   * @param originalCommand the command the real response will be for
+   */
+  public DeferredResponse(GwCommand originalCommand) {
+    super(originalCommand);
+  }
+
+  public void whenDone(Runnable callback) {
+    Preconditions.checkNotNull(callback);
+    synchronized (this) {
+      Preconditions.checkState(this.callback == null, "Callback already set");
+      if (!done) {
+        this.callback = callback;
+        return;
+      }
+    }
+    callback.run();
+  }
+
+  /**
+   * Marks the work as done, after the real response has been put into
+   * the response sink. Runs the registered callback, if any.
+   */
+  public void done() {
+    final Runnable toRun;
+    synchronized (this) {
+      if (done) {
+        return;
+      }
+      done = true;
+      toRun = callback;
+      callback = null;
+    }
+    if (toRun != null) {
+      toRun.run();
+    }
+  }
+}
@@ -15,11 +15,11 @@
 
 package com.google.calendar.interoperability.connectorplugin.base.messages;
 
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.NovellDate;
+
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
-import java.util.List;
 
 /**
  * Response for free-busy requests.
@@ -52,52 +52,49 @@ public class FreeBusyResponse extends TemplateResponse {
     "    Start-Time= %s; \r\n" +
     "    End-Time= %s; %s\r\n";
   
-  private static class Timeslot {
-    private static final String DATE_FORMAT = "dd/MM/yy HH:mm";
-    
-    private long start;
-    private long end;
-    
-    public Timeslot(long start, long end) {
-      super();
-      this.start = start;
-      this.end = end;
-    }
-    
-    private String render(final long time) {
-      SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
-      return format.format(new Date(time));
-    }
-    
-    public String getStart() {
-      return render(start);
-    }
-    
-    public String getEnd() {
-      return render(end);
-    }
-  }
+  private static final String DATE_FORMAT = "dd/MM/yy HH:mm";
 
-  private List<Timeslot> timeslots;
+  private final BusyIntervals timeslots;
   
   public FreeBusyResponse(GwCommand originalCommand) {
     super(originalCommand, MESSAGE_TEMPLATE);
-    timeslots = new ArrayList<Timeslot>();
+    timeslots = new BusyIntervals();
   }
   
+  /**
+   * Adds a busy time. An end before the start is treated as the start.
+   */
   public void addTimeslot(long start, long end) {
-    timeslots.add(new Timeslot(start, end));
+    timeslots.add(start, Math.max(start, end));
+  }
+  
+  /**
+   * Adds a list of busy times
+   */
+  public void addTimeslots(BusyIntervals intervals) {
+    timeslots.addAll(intervals);
   }
   
+  /**
+   * Renders the busy times, merged and restricted to the Begin-Time and
+   * End-Time of the request (if given)
+   */
   public String renderTimes() {
-    StringBuffer sb = new StringBuffer();
-    for (Iterator<Timeslot> it = timeslots.iterator(); it.hasNext(); ) {
-      Timeslot slot = it.next();
+    timeslots.normalize();
+    final NovellDate begin = getOriginalCommand().getBeginTime();
+    final NovellDate end = getOriginalCommand().getEndTime();
+    if (begin != null && end != null &&
+        begin.getTimeInUtc() <= end.getTimeInUtc()) {
+      timeslots.clip(begin.getTimeInUtc(), end.getTimeInUtc());
+    }
+    final SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+    final StringBuilder sb = new StringBuilder(64 * timeslots.size());
+    for (int i = 0; i < timeslots.size(); i++) {
       sb.append(String.format(
           SLOT, 
-          slot.getStart(), 
-          slot.getEnd(),
-          it.hasNext() ? ", " : ""));
+          format.format(new Date(timeslots.getStart(i))), 
+          format.format(new Date(timeslots.getEnd(i))),
+          (i + 1 < timeslots.size()) ? ", " : ""));
     }
     return sb.toString();
   }
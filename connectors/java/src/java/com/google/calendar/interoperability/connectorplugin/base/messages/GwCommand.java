@@ -37,53 +37,30 @@ import java.util.List;
  */
 public abstract class GwCommand {
   
-  // variable names correspond to the novell documentation
-  AddressList allTo = null;
-  AddressList allToCC = null;
-  FileDescriptorList attachFile = null;
-  NovellDate beginTime = null;
-  String busyFor = null;
-  BusyReport busyReport = null;
-  String callAction = null;
-  String callerCompany = null;
-  String callerName = null;
-  String callerPhone = null;
-  NovellDate dateSent = null;
-  NovellDate distributeDate = null;
-  List<DsExternalPostOffice> dsExternalPostOffice = null;
-  List<DsGroup> dsGroup = null;
-  List<DsResource> dsResource = null;
-  List<DsUser> dsUser = null;
-  NovellDate endTime = null;
-  String folderName = null;
-  Address from = null;
-  String fromText = null;
-  boolean getDirectory = false;
-  String headerChar = "T50";
-  String location = null;
-  String msgAction = null;
-  String msgChar = null;
-  String msgFile = null;
-  String msgId = null;
-  String msgPriority = null;
-  String msgType = null;
-  String msgView = null;
-  String origMsgId = null;
-  NovellDate respondBy = null;
-  String security = null;
-  String sendOptions = null;
-  String setStatus = null;
-  StatusReport statusReport = null;
-  String statusRequest = null;
-  String subject = null;
-  Character taskCategory = null;
-  Integer taskPriority = null;
-  AddressList to = null;
-  AddressList toBC = null;
-  AddressList toCC = null;
-  String toCCText = null;
-  String toText = null;
-  String wpcApi = null;
+  /**
+   * The fields of a header, named as in the novell documentation. A command
+   * usually has only a few of them set, so the values are kept as
+   * field/value pairs in a small array rather than in one member each.
+   */
+  private enum Field {
+    ALL_TO, ALL_TO_CC, ATTACH_FILE, BEGIN_TIME, BUSY_FOR, BUSY_REPORT,
+    CALL_ACTION, CALLER_COMPANY, CALLER_NAME, CALLER_PHONE, DATE_SENT,
+    DISTRIBUTE_DATE, DS_EXTERNAL_POST_OFFICE, DS_GROUP, DS_RESOURCE, DS_USER,
+    END_TIME, FOLDER_NAME, FROM, FROM_TEXT, HEADER_CHAR, LOCATION, MSG_ACTION,
+    MSG_CHAR, MSG_FILE, MSG_ID, MSG_PRIORITY, MSG_TYPE, MSG_VIEW, ORIG_MSG_ID,
+    RESPOND_BY, SECURITY, SEND_OPTIONS, SET_STATUS, STATUS_REPORT,
+    STATUS_REQUEST, SUBJECT, TASK_CATEGORY, TASK_PRIORITY, TO, TO_BC, TO_CC,
+    TO_CC_TEXT, TO_TEXT, WPC_API
+  }
+  
+  // Stands for a value explicitly set to null where the field has a default
+  private static final Object NULL = new Object();
+  
+  private static final String DEFAULT_HEADER_CHAR = "T50";
+  
+  // field0, value0, field1, value1, ...; unused slots at the end are null
+  private Object[] values;
+  private boolean getDirectory = false;
   
   public enum MessageType {
     SEARCH("Busy search request"),
@@ -114,6 +91,15 @@ public abstract class GwCommand {
 
   private final String headerName;
   private String headerContent;
+  private byte[] headerBytes;
+  private Boolean probe;
+  private long arrivalTime = System.currentTimeMillis();
+  private long deadline;
+  
+  /**
+   * Marks the free/busy probes that Exchange sends to check the connection
+   */
+  public static final String PROBE_MARKER = "FB-PROBE";
   
   public GwCommand(String headerName, String headerContent) {
     super();
@@ -125,13 +111,187 @@ public abstract class GwCommand {
     return headerName;
   }
 
+  /**
+   * @return the time (Utc) this command was read from GroupWise
+   */
+  public long getArrivalTime() {
+    return arrivalTime;
+  }
+  
+  public void setArrivalTime(long arrivalTime) {
+    this.arrivalTime = arrivalTime;
+  }
+  
+  /**
+   * @return the time (Utc) after which nobody waits for the answer to this
+   *   command anymore, 0 for none. Set when the command is handed out for
+   *   execution.
+   */
+  public long getDeadline() {
+    return deadline;
+  }
+  
+  public void setDeadline(long deadline) {
+    this.deadline = deadline;
+  }
+
+  /**
+   * @return the header text. If the text has been released, it is decoded
+   *   from the raw header (null if that is gone as well).
+   */
   public String getHeaderContent() {
+    if (headerContent == null && headerBytes != null) {
+      return new String(headerBytes, GwResponse.CHARSET);
+    }
     return headerContent;
   }
   
   
   public void setHeaderContent(String content) {
     this.headerContent = content;
+    this.headerBytes = null;
+    this.probe = null;
+  }
+  
+  /**
+   * @return true if this is a free/busy probe, i.e. the header contains
+   *   PROBE_MARKER (in any case). Unless the parser has already set the
+   *   flag, the header is searched on the first call.
+   */
+  public boolean isProbe() {
+    if (probe == null) {
+      probe = containsProbeMarker(headerContent);
+    }
+    return probe;
+  }
+  
+  public void setProbe(boolean probe) {
+    this.probe = probe;
+  }
+  
+  /**
+   * Searches a header for PROBE_MARKER, ignoring case, without making an
+   * upper case copy of it
+   */
+  public static boolean containsProbeMarker(String header) {
+    if (header == null) {
+      return false;
+    }
+    
+    // Only look at the places where the dash of the marker could be
+    final int dash = PROBE_MARKER.indexOf('-');
+    final int length = PROBE_MARKER.length();
+    for (int i = header.indexOf('-', dash); i >= 0;
+        i = header.indexOf('-', i + 1)) {
+      if (header.regionMatches(true, i - dash, PROBE_MARKER, 0, length)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * @return the header exactly as it was read from GroupWise, or the
+   *   header content encoded in GwResponse.CHARSET if the raw header is not
+   *   known. The array is shared and must not be modified.
+   */
+  public byte[] getHeaderBytes() {
+    if (headerBytes == null && headerContent != null) {
+      headerBytes = headerContent.getBytes(GwResponse.CHARSET);
+    }
+    return headerBytes;
+  }
+  
+  /**
+   * Remembers the header as it was read from GroupWise. The array must
+   * not be modified afterwards.
+   */
+  public void setHeaderBytes(byte[] headerBytes) {
+    this.headerBytes = headerBytes;
+  }
+  
+  /**
+   * Drops the header text if the raw header is known, so only one copy of
+   * the header is kept while the command is queued
+   */
+  public void releaseHeaderText() {
+    if (headerBytes != null) {
+      headerContent = null;
+    }
+  }
+  
+  /**
+   * Drops the header altogether, for commands whose header will not be
+   * needed for logging. The probe flag is determined before.
+   */
+  public void releaseHeader() {
+    isProbe();
+    headerContent = null;
+    headerBytes = null;
+  }
+
+  private boolean has(Field field) {
+    return indexOf(field) >= 0;
+  }
+  
+  private Object get(Field field) {
+    final int i = indexOf(field);
+    if (i < 0 || values[i + 1] == NULL) {
+      return null;
+    }
+    return values[i + 1];
+  }
+  
+  private int indexOf(Field field) {
+    if (values != null) {
+      for (int i = 0; i < values.length && values[i] != null; i += 2) {
+        if (values[i] == field) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+  
+  /**
+   * Sets a field; setting a field to null removes it
+   */
+  private void set(Field field, Object value) {
+    final int i = indexOf(field);
+    if (value == null) {
+      if (i >= 0) {
+        
+        // Move the last pair into the gap
+        int last = values.length - 2;
+        while (values[last] == null) {
+          last -= 2;
+        }
+        values[i] = values[last];
+        values[i + 1] = values[last + 1];
+        values[last] = null;
+        values[last + 1] = null;
+      }
+      return;
+    }
+    if (i >= 0) {
+      values[i + 1] = value;
+      return;
+    }
+    int free = 0;
+    if (values == null) {
+      values = new Object[8];
+    } else {
+      while (free < values.length && values[free] != null) {
+        free += 2;
+      }
+      if (free == values.length) {
+        final Object[] grown = new Object[values.length * 2];
+        System.arraycopy(values, 0, grown, 0, values.length);
+        values = grown;
+      }
+    }
+    values[free] = field;
+    values[free + 1] = value;
   }
 
   public String getWpc_api() {
@@ -151,156 +311,160 @@ public abstract class GwCommand {
   }
 
   public AddressList getAllTo() {
-    return allTo;
+    return (AddressList) get(Field.ALL_TO);
   }
 
   public void setAllTo(AddressList allTo) {
-    this.allTo = allTo;
+    set(Field.ALL_TO, allTo);
   }
 
   public AddressList getAllToCC() {
-    return allToCC;
+    return (AddressList) get(Field.ALL_TO_CC);
   }
 
   public void setAllToCC(AddressList allToCC) {
-    this.allToCC = allToCC;
+    set(Field.ALL_TO_CC, allToCC);
   }
 
   public FileDescriptorList getAttachFile() {
-    return attachFile;
+    return (FileDescriptorList) get(Field.ATTACH_FILE);
   }
 
   public void setAttachFile(FileDescriptorList attachFile) {
-    this.attachFile = attachFile;
+    set(Field.ATTACH_FILE, attachFile);
   }
 
   public NovellDate getBeginTime() {
-    return beginTime;
+    return (NovellDate) get(Field.BEGIN_TIME);
   }
 
   public void setBeginTime(NovellDate beginTime) {
-    this.beginTime = beginTime;
+    set(Field.BEGIN_TIME, beginTime);
   }
 
   public String getBusyFor() {
-    return busyFor;
+    return (String) get(Field.BUSY_FOR);
   }
 
   public void setBusyFor(String busyFor) {
-    this.busyFor = busyFor;
+    set(Field.BUSY_FOR, busyFor);
   }
 
   public BusyReport getBusyReport() {
-    return busyReport;
+    return (BusyReport) get(Field.BUSY_REPORT);
   }
 
   public void setBusyReport(BusyReport busyReport) {
-    this.busyReport = busyReport;
+    set(Field.BUSY_REPORT, busyReport);
   }
 
   public String getCallAction() {
-    return callAction;
+    return (String) get(Field.CALL_ACTION);
   }
 
   public void setCallAction(String callAction) {
-    this.callAction = callAction;
+    set(Field.CALL_ACTION, callAction);
   }
 
   public String getCallerCompany() {
-    return callerCompany;
+    return (String) get(Field.CALLER_COMPANY);
   }
 
   public void setCallerCompany(String callerCompany) {
-    this.callerCompany = callerCompany;
+    set(Field.CALLER_COMPANY, callerCompany);
   }
 
   public String getCallerName() {
-    return callerName;
+    return (String) get(Field.CALLER_NAME);
   }
 
   public void setCallerName(String callerName) {
-    this.callerName = callerName;
+    set(Field.CALLER_NAME, callerName);
   }
 
   public String getCallerPhone() {
-    return callerPhone;
+    return (String) get(Field.CALLER_PHONE);
   }
 
   public void setCallerPhone(String callerPhone) {
-    this.callerPhone = callerPhone;
+    set(Field.CALLER_PHONE, callerPhone);
   }
 
   public NovellDate getDateSent() {
-    return dateSent;
+    return (NovellDate) get(Field.DATE_SENT);
   }
 
   public void setDateSent(NovellDate dateSent) {
-    this.dateSent = dateSent;
+    set(Field.DATE_SENT, dateSent);
   }
 
   public NovellDate getDistributeDate() {
-    return distributeDate;
+    return (NovellDate) get(Field.DISTRIBUTE_DATE);
   }
 
   public void setDistributeDate(NovellDate distributeDate) {
-    this.distributeDate = distributeDate;
+    set(Field.DISTRIBUTE_DATE, distributeDate);
   }
 
+  @SuppressWarnings("unchecked")
   public List<DsExternalPostOffice> getDsExternalPostOffice() {
-    return dsExternalPostOffice;
+    return (List<DsExternalPostOffice>) get(Field.DS_EXTERNAL_POST_OFFICE);
   }
 
   public void setDsExternalPostOffice(
       List<DsExternalPostOffice> dsExternalPostOffice) {
-    this.dsExternalPostOffice = dsExternalPostOffice;
+    set(Field.DS_EXTERNAL_POST_OFFICE, dsExternalPostOffice);
   }
 
+  @SuppressWarnings("unchecked")
   public List<DsGroup> getDsGroup() {
-    return dsGroup;
+    return (List<DsGroup>) get(Field.DS_GROUP);
   }
 
   public void setDsGroup(List<DsGroup> dsGroup) {
-    this.dsGroup = dsGroup;
+    set(Field.DS_GROUP, dsGroup);
   }
 
+  @SuppressWarnings("unchecked")
   public List<DsResource> getDsResource() {
-    return dsResource;
+    return (List<DsResource>) get(Field.DS_RESOURCE);
   }
 
   public void setDsResource(List<DsResource> dsResource) {
-    this.dsResource = dsResource;
+    set(Field.DS_RESOURCE, dsResource);
   }
 
+  @SuppressWarnings("unchecked")
   public List<DsUser> getDsUser() {
-    return dsUser;
+    return (List<DsUser>) get(Field.DS_USER);
   }
 
   public void setDsUser(List<DsUser> dsUser) {
-    this.dsUser = dsUser;
+    set(Field.DS_USER, dsUser);
   }
 
   public String getFolderName() {
-    return folderName;
+    return (String) get(Field.FOLDER_NAME);
   }
 
   public void setFolderName(String folderName) {
-    this.folderName = folderName;
+    set(Field.FOLDER_NAME, folderName);
   }
 
   public Address getFrom() {
-    return from;
+    return (Address) get(Field.FROM);
   }
 
   public void setFrom(Address from) {
-    this.from = from;
+    set(Field.FROM, from);
   }
 
   public String getFromText() {
-    return fromText;
+    return (String) get(Field.FROM_TEXT);
   }
 
   public void setFromText(String fromText) {
-    this.fromText = fromText;
+    set(Field.FROM_TEXT, fromText);
   }
 
   public boolean getGetDirectory() {
@@ -312,211 +476,212 @@ public abstract class GwCommand {
   }
 
   public String getHeaderChar() {
-    return headerChar;
+    return has(Field.HEADER_CHAR) ?
+        (String) get(Field.HEADER_CHAR) : DEFAULT_HEADER_CHAR;
   }
 
   public void setHeaderChar(String headerChar) {
-    this.headerChar = headerChar;
+    set(Field.HEADER_CHAR, (headerChar == null) ? NULL : headerChar);
   }
 
   public String getLocation() {
-    return location;
+    return (String) get(Field.LOCATION);
   }
 
   public void setLocation(String location) {
-    this.location = location;
+    set(Field.LOCATION, location);
   }
 
   public String getMsgAction() {
-    return msgAction;
+    return (String) get(Field.MSG_ACTION);
   }
 
   public void setMsgAction(String msgAction) {
-    this.msgAction = msgAction;
+    set(Field.MSG_ACTION, msgAction);
   }
 
   public String getMsgChar() {
-    return msgChar;
+    return (String) get(Field.MSG_CHAR);
   }
 
   public void setMsgChar(String msgChar) {
-    this.msgChar = msgChar;
+    set(Field.MSG_CHAR, msgChar);
   }
 
   public String getMsgFile() {
-    return msgFile;
+    return (String) get(Field.MSG_FILE);
   }
 
   public void setMsgFile(String msgFile) {
-    this.msgFile = msgFile;
+    set(Field.MSG_FILE, msgFile);
   }
 
   public String getMsgId() {
-    return msgId;
+    return (String) get(Field.MSG_ID);
   }
 
   public void setMsgId(String msgId) {
-    this.msgId = msgId;
+    set(Field.MSG_ID, msgId);
   }
 
   public String getMsgPriority() {
-    return msgPriority;
+    return (String) get(Field.MSG_PRIORITY);
   }
 
   public void setMsgPriority(String msgPriority) {
-    this.msgPriority = msgPriority;
+    set(Field.MSG_PRIORITY, msgPriority);
   }
 
   public String getMsgType() {
-    return msgType;
+    return (String) get(Field.MSG_TYPE);
   }
 
   public void setMsgType(String msgType) {
-    this.msgType = msgType;
+    set(Field.MSG_TYPE, msgType);
   }
 
   public String getMsgView() {
-    return msgView;
+    return (String) get(Field.MSG_VIEW);
   }
 
   public void setMsgView(String msgView) {
-    this.msgView = msgView;
+    set(Field.MSG_VIEW, msgView);
   }
 
   public String getOrigMsgId() {
-    return origMsgId;
+    return (String) get(Field.ORIG_MSG_ID);
   }
 
   public void setOrigMsgId(String origMsgId) {
-    this.origMsgId = origMsgId;
+    set(Field.ORIG_MSG_ID, origMsgId);
   }
 
   public NovellDate getRespondBy() {
-    return respondBy;
+    return (NovellDate) get(Field.RESPOND_BY);
   }
 
   public void setRespondBy(NovellDate respondBy) {
-    this.respondBy = respondBy;
+    set(Field.RESPOND_BY, respondBy);
   }
 
   public String getSecurity() {
-    return security;
+    return (String) get(Field.SECURITY);
   }
 
   public void setSecurity(String security) {
-    this.security = security;
+    set(Field.SECURITY, security);
   }
 
   public String getSendOptions() {
-    return sendOptions;
+    return (String) get(Field.SEND_OPTIONS);
   }
 
   public void setSendOptions(String sendOptions) {
-    this.sendOptions = sendOptions;
+    set(Field.SEND_OPTIONS, sendOptions);
   }
 
   public String getSetStatus() {
-    return setStatus;
+    return (String) get(Field.SET_STATUS);
   }
 
   public void setSetStatus(String setStatus) {
-    this.setStatus = setStatus;
+    set(Field.SET_STATUS, setStatus);
   }
 
   public StatusReport getStatusReport() {
-    return statusReport;
+    return (StatusReport) get(Field.STATUS_REPORT);
   }
 
   public void setStatusReport(StatusReport statusReport) {
-    this.statusReport = statusReport;
+    set(Field.STATUS_REPORT, statusReport);
   }
 
   public String getStatusRequest() {
-    return statusRequest;
+    return (String) get(Field.STATUS_REQUEST);
   }
 
   public void setStatusRequest(String statusRequest) {
-    this.statusRequest = statusRequest;
+    set(Field.STATUS_REQUEST, statusRequest);
   }
 
   public String getSubject() {
-    return subject;
+    return (String) get(Field.SUBJECT);
   }
 
   public void setSubject(String subject) {
-    this.subject = subject;
+    set(Field.SUBJECT, subject);
   }
 
   public Character getTaskCategory() {
-    return taskCategory;
+    return (Character) get(Field.TASK_CATEGORY);
   }
 
   public void setTaskCategory(Character taskCategory) {
-    this.taskCategory = taskCategory;
+    set(Field.TASK_CATEGORY, taskCategory);
   }
 
   public Integer getTaskPriority() {
-    return taskPriority;
+    return (Integer) get(Field.TASK_PRIORITY);
   }
 
   public void setTaskPriority(Integer taskPriority) {
-    this.taskPriority = taskPriority;
+    set(Field.TASK_PRIORITY, taskPriority);
   }
 
   public AddressList getTo() {
-    return to;
+    return (AddressList) get(Field.TO);
   }
 
   public void setTo(AddressList to) {
-    this.to = to;
+    set(Field.TO, to);
   }
 
   public AddressList getToBC() {
-    return toBC;
+    return (AddressList) get(Field.TO_BC);
   }
 
   public void setToBC(AddressList toBC) {
-    this.toBC = toBC;
+    set(Field.TO_BC, toBC);
   }
 
   public AddressList getToCC() {
-    return toCC;
+    return (AddressList) get(Field.TO_CC);
   }
 
   public void setToCC(AddressList toCC) {
-    this.toCC = toCC;
+    set(Field.TO_CC, toCC);
   }
 
   public String getToCCText() {
-    return toCCText;
+    return (String) get(Field.TO_CC_TEXT);
   }
 
   public void setToCCText(String toCCText) {
-    this.toCCText = toCCText;
+    set(Field.TO_CC_TEXT, toCCText);
   }
 
   public String getToText() {
-    return toText;
+    return (String) get(Field.TO_TEXT);
   }
 
   public void setToText(String toText) {
-    this.toText = toText;
+    set(Field.TO_TEXT, toText);
   }
 
   public String getWpcApi() {
-    return wpcApi;
+    return (String) get(Field.WPC_API);
   }
 
   public void setWpcApi(String wpcApi) {
-    this.wpcApi = wpcApi;
+    set(Field.WPC_API, wpcApi);
   }
 
   public NovellDate getEndTime() {
-    return endTime;
+    return (NovellDate) get(Field.END_TIME);
   }
 
   public void setEndTime(NovellDate endTime) {
-    this.endTime = endTime;
+    set(Field.END_TIME, endTime);
   }
 }
  
@@ -17,12 +17,18 @@ package com.google.calendar.interoperability.connectorplugin.base.messages;
 
 import com.google.common.base.Preconditions;
 
+import java.nio.charset.Charset;
+
 /**
  * General superclass for responses to an incoming GwCommand.
  */
 public class GwResponse {
   
-  private static final char[] ESCAPE_THESE = {'\\', ',', ';'};
+  /**
+   * The charset responses are written in (the Windows codepage that
+   * "Header-Char= T50" stands for)
+   */
+  public static final Charset CHARSET = Charset.forName("windows-1252");
   
   private static final String REGULAR_RESPONSE =
     "INCOMING COMMAND:%n" +
@@ -40,8 +46,19 @@ public class GwResponse {
     "(NO RESPONSE TO GROUPWISE)%n" +
     "==========================%n";
   
+  private static final byte[] NULL = "null".getBytes(CHARSET);
+  
+  private static final byte[][] REGULAR_LOG = 
+    compileLogTemplate(REGULAR_RESPONSE);
+  
+  private static final byte[][] EMPTY_LOG = compileLogTemplate(EMPTY_RESPONSE);
+  
   private GwCommand originalCommand;
   
+  // The rendered response, once getResponseBytes() has been called
+  private byte[] responseBytes;
+  private boolean rendered;
+  
   public GwResponse(GwCommand originalCommand) {
     Preconditions.checkNotNull(originalCommand);
     this.originalCommand = originalCommand;
@@ -60,6 +77,33 @@ public class GwResponse {
     return null;
   }
   
+  /**
+   * Renders the response in a format that GroupWise understands, encoded
+   * in CHARSET. Default behavior is to encode the result of
+   * renderResponse().
+   * @return the rendered response or null if no response to 
+   *   GroupWise is required
+   */
+  public byte[] renderResponseBytes() {
+    final String response = renderResponse();
+    return (response == null) ? null : response.getBytes(CHARSET);
+  }
+  
+  /**
+   * Renders the response once and returns the same result on every
+   * subsequent call, so the response sent to GroupWise and the one that
+   * gets logged are identical and the template is only evaluated once.
+   * @return the rendered response (see renderResponseBytes). The array is
+   *   shared and must not be modified.
+   */
+  public final synchronized byte[] getResponseBytes() {
+    if (!rendered) {
+      responseBytes = renderResponseBytes();
+      rendered = true;
+    }
+    return responseBytes;
+  }
+  
   /**
    * Suggests a filename for the rendered response. Default behavior is
    * to use the header name of the original command 
@@ -73,13 +117,70 @@ public class GwResponse {
    * the original command)
    */
   public String renderLog() {
-    final String resp = renderResponse();
+    final byte[] resp = getResponseBytes();
     return 
       (resp == null) ?
       String.format(EMPTY_RESPONSE, originalCommand.getHeaderContent()) :
       String.format(REGULAR_RESPONSE, 
                     originalCommand.getHeaderContent(), 
-                    resp);
+                    new String(resp, CHARSET));
+  }
+  
+  /**
+   * Renders the log entry for this response: the same as renderLog(), but
+   * built from the original header bytes and the memoized response
+   * without any intermediate text
+   */
+  public byte[] renderLogBytes() {
+    final byte[] resp = getResponseBytes();
+    return 
+      (resp == null) ?
+      fillLogTemplate(EMPTY_LOG, originalCommand.getHeaderBytes()) :
+      fillLogTemplate(REGULAR_LOG, originalCommand.getHeaderBytes(), resp);
+  }
+  
+  /**
+   * Tool-method, splits a log template at its %s placeholders into
+   * encoded pieces (resolving %n)
+   */
+  protected static byte[][] compileLogTemplate(String template) {
+    final String[] pieces = template.split("%s", -1);
+    final byte[][] result = new byte[pieces.length][];
+    for (int i = 0; i < pieces.length; i++) {
+      result[i] = String.format(pieces[i]).getBytes(CHARSET);
+    }
+    return result;
+  }
+  
+  /**
+   * Tool-method, fills the placeholders of a compiled log template (null
+   * values are rendered as "null", like String.format does)
+   */
+  protected static byte[] fillLogTemplate(byte[][] template, byte[]... values) {
+    Preconditions.checkArgument(values.length == template.length - 1);
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] == null) {
+        values[i] = NULL;
+      }
+    }
+    int length = 0;
+    for (byte[] piece : template) {
+      length += piece.length;
+    }
+    for (byte[] value : values) {
+      length += value.length;
+    }
+    final byte[] result = new byte[length];
+    int position = 0;
+    for (int i = 0; i < template.length; i++) {
+      System.arraycopy(template[i], 0, result, position, template[i].length);
+      position += template[i].length;
+      if (i < values.length) {
+        System.arraycopy(values[i], 0, result, position, values[i].length);
+        position += values[i].length;
+      }
+    }
+    return result;
   }
   
   /**
@@ -92,27 +193,26 @@ public class GwResponse {
   }
 
   /**
-   * Tool-method escapes a string for GroupWise
+   * Tool-method escapes a string for GroupWise: backslashes, commas and
+   * semicolons get a backslash prepended
    */
   protected String escape(final String toEscape) {
-    String result = toEscape;
-    
-    // Regex-replace seems to not always the way we need it to, so we
-    // do the replacement manually
-    for (char c : ESCAPE_THESE) {
-      StringBuilder sb = new StringBuilder(result);
-      String toSearch = String.valueOf(c);
-      for (int i = sb.indexOf(toSearch, 0); i >= 0 && i < sb.length(); 
-          i = sb.indexOf(toSearch, i)) {
-        sb.insert(i, '\\');
-        i += 2;
+    StringBuilder sb = null;
+    final int length = toEscape.length();
+    for (int i = 0; i < length; i++) {
+      final char c = toEscape.charAt(i);
+      if (c == '\\' || c == ',' || c == ';') {
+        if (sb == null) {
+          sb = new StringBuilder(length + 16);
+          sb.append(toEscape, 0, i);
+        }
+        sb.append('\\');
+      }
+      if (sb != null) {
+        sb.append(c);
       }
-      result = sb.toString();
     }
-    
-    // Done :-)
-    return result;    
+    return (sb == null) ? toEscape : sb.toString();
   }
 
 }
- 
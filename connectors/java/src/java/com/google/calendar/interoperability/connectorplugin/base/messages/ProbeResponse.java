@@ -17,13 +17,15 @@ package com.google.calendar.interoperability.connectorplugin.base.messages;
 
 import com.google.calendar.interoperability.connectorplugin.base.messages.util.NovellDate;
 
+import java.util.regex.Pattern;
+
 /**
  * Responds to a Free/Busy probe from Exchange
  */
 public class ProbeResponse extends TemplateResponse {
 
-  public ProbeResponse(GwCommand originalCommand) {
-    super(originalCommand,
+  // Constant templates are compiled once and then shared by all probes
+  private static final String TEMPLATE =
         "WPC-API= 1.2; \r\n" +
         "Header-Char= T50; \r\n" +
         "Msg-Type= SEARCH; \r\n" +
@@ -41,42 +43,50 @@ public class ProbeResponse extends TemplateResponse {
         "Status-Request= None; \r\n" +
         "Begin-Time= $(getBeginTime); \r\n" +
         "End-Time= $(getEndTime); \r\n" +
-        "-END-\r\n"
-        );
-    }
+        "-END-\r\n";
   
-  public String renderFrom() {
-    return replace(
+  private static final String FROM_TEMPLATE =
         "    WPD= ${getWPD}; \r\n" +
         "    WPPO= ${getWPPO}; \r\n" +
-        "    WPU= ${getWPU}; ; \r\n",
-        getOriginalCommand().getTo().getAddresses().iterator().next());
-  }
+        "    WPU= ${getWPU}; ; \r\n";
   
-  public String renderTo() {
-    return replace(
+  private static final String TO_TEMPLATE =
         "    WPD= ${getWPD}; \r\n" +
         "    WPPO= ${getWPPO}; \r\n" +
         "    WPU= ${getWPU}; \r\n" +
         "    WPPONUM= 1; \r\n" +
         "    WPUNUM= 1; \r\n" +
-        "    CDBA= ${getCDBA}; ; \r\n",
-        getOriginalCommand().getFrom());
-  }
+        "    CDBA= ${getCDBA}; ; \r\n";
   
-  public String renderAllto() {
-    return replace(
+  private static final String ALLTO_TEMPLATE =
         "    WPD= ${getWPD}; \r\n" +
         "    WPPO= ${getWPPO}; \r\n" +
         "    WPU= ${getWPU}; \r\n" +
         "    WPPONUM= 1; \r\n" +
-        "    WPUNUM= 1; ; \r\n",
-        getOriginalCommand().getFrom());
+        "    WPUNUM= 1; ; \r\n";
+  
+  private static final Pattern PROBE_SUFFIX = Pattern.compile("\\.FB-PROBE");
+
+  public ProbeResponse(GwCommand originalCommand) {
+    super(originalCommand, TEMPLATE);
+  }
+  
+  public String renderFrom() {
+    return replace(FROM_TEMPLATE,
+        getOriginalCommand().getTo().getAddresses().iterator().next());
+  }
+  
+  public String renderTo() {
+    return replace(TO_TEMPLATE, getOriginalCommand().getFrom());
+  }
+  
+  public String renderAllto() {
+    return replace(ALLTO_TEMPLATE, getOriginalCommand().getFrom());
   }
   
   public String renderToText() {
-    return getOriginalCommand().getFrom().getCDBA()
-      .replaceAll("\\.FB-PROBE", "(FB-PROBE)");
+    return PROBE_SUFFIX.matcher(getOriginalCommand().getFrom().getCDBA())
+      .replaceAll("(FB-PROBE)");
   }
   
   public String renderFromText() {
@@ -0,0 +1,122 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base.messages;
+
+/**
+ * A growable byte buffer that responses are rendered into, encoding text
+ * in GwResponse.CHARSET on the way. Every thread has one buffer it can
+ * reuse for all the responses it renders, so rendering a response only
+ * allocates the final byte array.
+ */
+final class ResponseBuffer {
+
+  private static final int INITIAL_CAPACITY = 4096;
+
+  // Buffers grown beyond this size are not kept for reuse
+  private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+
+  private static final ThreadLocal<ResponseBuffer> BUFFERS =
+    new ThreadLocal<ResponseBuffer>() {
+      @Override
+      protected ResponseBuffer initialValue() {
+        return new ResponseBuffer();
+      }
+    };
+
+  private byte[] bytes = new byte[INITIAL_CAPACITY];
+  private int length;
+  private boolean inUse;
+
+  /**
+   * Gets the buffer of the current thread, or a fresh one if that buffer
+   * is in use already (rendering a response while rendering another one).
+   * Every buffer obtained must be given back through release().
+   */
+  static ResponseBuffer obtain() {
+    ResponseBuffer buffer = BUFFERS.get();
+    if (buffer.inUse) {
+      buffer = new ResponseBuffer();
+    }
+    buffer.inUse = true;
+    buffer.length = 0;
+    return buffer;
+  }
+
+  /**
+   * Gives the buffer back for reuse
+   */
+  void release() {
+    inUse = false;
+    if (bytes.length > MAX_RETAINED_CAPACITY) {
+      bytes = new byte[INITIAL_CAPACITY];
+    }
+  }
+
+  private void ensureCapacity(int additional) {
+    if (length + additional > bytes.length) {
+      final byte[] grown =
+        new byte[Math.max(bytes.length * 2, length + additional)];
+      System.arraycopy(bytes, 0, grown, 0, length);
+      bytes = grown;
+    }
+  }
+
+  /**
+   * Appends bytes that are already encoded
+   */
+  ResponseBuffer append(byte[] encoded) {
+    ensureCapacity(encoded.length);
+    System.arraycopy(encoded, 0, bytes, length, encoded.length);
+    length += encoded.length;
+    return this;
+  }
+
+  /**
+   * Appends text, encoding it in GwResponse.CHARSET. ASCII characters are
+   * copied over directly; the rest of a string containing anything else
+   * goes through the charset.
+   */
+  ResponseBuffer append(String text) {
+    final int size = text.length();
+    ensureCapacity(size);
+    for (int i = 0; i < size; i++) {
+      final char c = text.charAt(i);
+      if (c >= 0x80) {
+        return append(text.substring(i).getBytes(GwResponse.CHARSET));
+      }
+      bytes[length++] = (byte) c;
+    }
+    return this;
+  }
+
+  int length() {
+    return length;
+  }
+
+  /**
+   * @return a copy of the content
+   */
+  byte[] toByteArray() {
+    final byte[] result = new byte[length];
+    System.arraycopy(bytes, 0, result, 0, length);
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return new String(bytes, 0, length, GwResponse.CHARSET);
+  }
+}
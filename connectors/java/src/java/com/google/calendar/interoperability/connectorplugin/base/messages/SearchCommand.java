@@ -21,6 +21,13 @@ package com.google.calendar.interoperability.connectorplugin.base.messages;
  */
 public final class SearchCommand extends GwCommand {
 
+  /**
+   * The header fields needed to answer a free/busy search (the probe
+   * check looks at the raw header instead)
+   */
+  public static final String[] SEARCH_FIELDS =
+    {"MSG-ID", "BEGIN-TIME", "END-TIME", "FROM", "TO"};
+
   public SearchCommand(String headerName, String headerContent) {
     super(headerName, headerContent);
   }
@@ -17,6 +17,10 @@ package com.google.calendar.interoperability.connectorplugin.base.messages;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -33,6 +37,10 @@ import java.util.regex.Pattern;
  *   the string with its result
  *   
  *   This class should be subclassed to have the template hard-coded.
+ *   
+ * Templates are parsed only once into a list of literal and placeholder
+ * segments and cached. Values inserted for a placeholder are not scanned
+ * for placeholders again.
  */
 abstract class TemplateResponse extends GwResponse {
   
@@ -45,6 +53,116 @@ abstract class TemplateResponse extends GwResponse {
   //Visible for unit tests only
   static final String PATTERN_ONCOMMAND = "\\$\\([^\\$\\{\\}]*\\)";
   
+  private static final Pattern ONTHIS = Pattern.compile(PATTERN_ONTHIS);
+  
+  private static final Pattern BOTH = 
+    Pattern.compile(PATTERN_ONTHIS + "|" + PATTERN_ONCOMMAND);
+  
+  // Templates are usually constants, so there are only a few of them;
+  // beyond this size, templates are compiled but no longer cached
+  private static final int MAX_CACHED_TEMPLATES = 256;
+  
+  private static final ConcurrentMap<String, CompiledTemplate> 
+      FULL_TEMPLATES = new ConcurrentHashMap<String, CompiledTemplate>();
+  
+  private static final ConcurrentMap<String, CompiledTemplate> 
+      ONTHIS_TEMPLATES = new ConcurrentHashMap<String, CompiledTemplate>();
+  
+  /**
+   * A piece of a template: either literal text or a placeholder for the
+   * result of a method call
+   */
+  private static final class Segment {
+    
+    final String text;
+    final byte[] encoded;
+    final String methodName;
+    final boolean onCommand;
+    
+    // The method last looked up for this segment
+    private volatile Method method;
+    
+    Segment(String text) {
+      this.text = text;
+      this.encoded = text.getBytes(CHARSET);
+      this.methodName = null;
+      this.onCommand = false;
+    }
+    
+    Segment(String methodName, boolean onCommand) {
+      this.text = null;
+      this.encoded = null;
+      this.methodName = methodName;
+      this.onCommand = onCommand;
+    }
+    
+    String evaluate(Object object) throws 
+        NoSuchMethodException, 
+        IllegalAccessException, 
+        InvocationTargetException {
+      Method m = method;
+      if (m == null || !m.getDeclaringClass().isInstance(object)) {
+        m = object.getClass().getMethod(methodName, new Class[0]);
+        method = m;
+      }
+      return String.valueOf(m.invoke(object));
+    }
+  }
+  
+  /**
+   * A template, parsed into segments
+   */
+  private static final class CompiledTemplate {
+    
+    final Segment[] segments;
+    
+    CompiledTemplate(String template, Pattern pattern) {
+      List<Segment> result = new ArrayList<Segment>();
+      int position = 0;
+      for (Matcher m = pattern.matcher(template); m.find(); ) {
+        if (m.start() > position) {
+          result.add(new Segment(template.substring(position, m.start())));
+        }
+        result.add(new Segment(
+            template.substring(m.start() + 2, m.end() - 1),
+            template.charAt(m.start() + 1) == '('));
+        position = m.end();
+      }
+      if (position < template.length()) {
+        result.add(new Segment(template.substring(position)));
+      }
+      segments = result.toArray(new Segment[result.size()]);
+    }
+    
+    void render(Object onThis, Object onCommand, StringBuilder out) throws 
+        NoSuchMethodException, 
+        IllegalAccessException, 
+        InvocationTargetException {
+      for (Segment segment : segments) {
+        if (segment.methodName == null) {
+          out.append(segment.text);
+        } else {
+          out.append(
+              segment.evaluate(segment.onCommand ? onCommand : onThis));
+        }
+      }
+    }
+    
+    void render(Object onThis, Object onCommand, ResponseBuffer out) throws 
+        NoSuchMethodException, 
+        IllegalAccessException, 
+        InvocationTargetException {
+      for (Segment segment : segments) {
+        if (segment.methodName == null) {
+          out.append(segment.encoded);
+        } else {
+          out.append(
+              segment.evaluate(segment.onCommand ? onCommand : onThis));
+        }
+      }
+    }
+  }
+  
   private final String template;
   
   public TemplateResponse(GwCommand originalCommand, String template) {
@@ -52,26 +170,28 @@ abstract class TemplateResponse extends GwResponse {
     this.template = template;
   }
   
+  private static CompiledTemplate compile(String template, 
+      ConcurrentMap<String, CompiledTemplate> cache, Pattern pattern) {
+    CompiledTemplate result = cache.get(template);
+    if (result == null) {
+      result = new CompiledTemplate(template, pattern);
+      if (cache.size() < MAX_CACHED_TEMPLATES) {
+        cache.putIfAbsent(template, result);
+      }
+    }
+    return result;
+  }
+  
   //Visible for unit tests only
   String replace(final String original, String pattern, Object object) 
     throws 
       NoSuchMethodException, 
       IllegalAccessException, 
       InvocationTargetException {
-    Pattern regex = Pattern.compile(pattern);
-    String replaceHere = original;
-    for (
-        Matcher m = regex.matcher(replaceHere); 
-        m.find(); 
-        m = regex.matcher(replaceHere)) {
-      final String start = replaceHere.substring(0, m.start());
-      final String end = replaceHere.substring(m.end());
-      final String methodName = replaceHere.substring(m.start() + 2, m.end() - 1);
-      final Method method = 
-        object.getClass().getMethod(methodName, new Class[0]);
-      replaceHere = start + String.valueOf(method.invoke(object)) + end;
-    }
-    return replaceHere;
+    final StringBuilder result = new StringBuilder(original.length() + 64);
+    new CompiledTemplate(original, Pattern.compile(pattern))
+        .render(object, object, result);
+    return result.toString();
   }
   
   /**
@@ -80,7 +200,11 @@ abstract class TemplateResponse extends GwResponse {
   protected String replace(String templateString, Object parameterObject) 
       throws RuntimeException {
     try {
-      return replace(templateString, PATTERN_ONTHIS, parameterObject);
+      final StringBuilder result = 
+        new StringBuilder(templateString.length() + 64);
+      compile(templateString, ONTHIS_TEMPLATES, ONTHIS)
+          .render(parameterObject, null, result);
+      return result.toString();
     } catch (NoSuchMethodException e) {
       throw new IllegalArgumentException(e);
     } catch (IllegalAccessException e) {
@@ -92,24 +216,35 @@ abstract class TemplateResponse extends GwResponse {
   
   @Override
   public String renderResponse() {
-    String result = template;
-    Exception ex = null;
+    final StringBuilder result = new StringBuilder(template.length() + 256);
     try {
-      result = replace(result, PATTERN_ONTHIS, this);
-      result = replace(result, PATTERN_ONCOMMAND, getOriginalCommand());
-    } catch (NoSuchMethodException e) {
-      ex = e;
-    } catch (IllegalAccessException e) {
-      ex = e;
-    } catch (InvocationTargetException e) {
-      ex = e;
+      compile(template, FULL_TEMPLATES, BOTH)
+          .render(this, getOriginalCommand(), result);
+      return result.toString();
+    } catch (Exception e) {
+      return templateFailed(e);
     }
-    if (ex != null) {
-      LOG.log(Level.SEVERE, "Illegal template definition", ex);
-      return null;
+  }
+  
+  @Override
+  public byte[] renderResponseBytes() {
+    final ResponseBuffer buffer = ResponseBuffer.obtain();
+    try {
+      compile(template, FULL_TEMPLATES, BOTH)
+          .render(this, getOriginalCommand(), buffer);
+      return buffer.toByteArray();
+    } catch (Exception e) {
+      return templateFailed(e);
+    } finally {
+      buffer.release();
     }
-    return result;
   }
   
+  private <T> T templateFailed(Exception e) {
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+    LOG.log(Level.SEVERE, "Illegal template definition", e);
+    return null;
+  }
 }
- 
@@ -32,6 +32,8 @@ public class VoidResponse extends GwResponse {
     "==========================%n" +
     "%s%n";
   
+  private static final byte[][] EMPTY_LOG = compileLogTemplate(EMPTY_RESPONSE);
+  
   private String reason;
   private String prepend;
 
@@ -66,6 +68,12 @@ public class VoidResponse extends GwResponse {
         EMPTY_RESPONSE, getOriginalCommand().getHeaderContent(), reason);
   }
   
+  @Override
+  public byte[] renderLogBytes() {
+    return fillLogTemplate(EMPTY_LOG, 
+        getOriginalCommand().getHeaderBytes(), reason.getBytes(CHARSET));
+  }
+  
   @Override
   public String suggestLogFilename() {
     return prepend + "_" + getOriginalCommand().getHeaderName();
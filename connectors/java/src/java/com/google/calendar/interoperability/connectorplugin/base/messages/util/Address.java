@@ -16,7 +16,8 @@
 package com.google.calendar.interoperability.connectorplugin.base.messages.util;
 
 /**
- * A Novell groupwise address
+ * A Novell groupwise address. Domain and post office names repeat across
+ * messages and are shared through the StringPool.
  */
 public final class Address {
 
@@ -33,8 +34,8 @@ public final class Address {
       String wPU, 
       String cDBA,
       String badFormattedName) {
-    this.wPD = wPD;
-    this.wPPO = wPPO;
+    this.wPD = StringPool.share(wPD);
+    this.wPPO = StringPool.share(wPPO);
     this.wPU = wPU;
     this.cDBA = cDBA;
     
@@ -47,9 +48,9 @@ public final class Address {
 
   public void addPair(String key, String value) {
     if ("WPD".equalsIgnoreCase(key)) {
-      wPD = value;
+      wPD = StringPool.share(value);
     } else if ("WPPO".equalsIgnoreCase(key)) {
-      wPPO = value;
+      wPPO = StringPool.share(value);
     } else if ("WPU".equalsIgnoreCase(key)) {
       wPU = value;
     } else if ("CDBA".equalsIgnoreCase(key)) {
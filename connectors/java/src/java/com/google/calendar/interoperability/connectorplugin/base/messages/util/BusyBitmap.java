@@ -0,0 +1,249 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.base.messages.util;
+
+/**
+ * Busy times at a fixed granularity: one bit per time slot, set if any
+ * part of the slot is busy, stored in a long array. At 15 minutes, a day
+ * takes 96 bits, one and a half longs (FreeBusyCache therefore keeps days
+ * in pairs of three longs), so the availability of thousands of users over
+ * several weeks fits into a few megabytes. Bitmaps with the same layout can
+ * combined and checked with bitwise operations, and converted back into
+ * BusyIntervals.
+ */
+public class BusyBitmap {
+
+  private final long startUtc;
+  private final long granularity;
+  private final int slots;
+  private final long[] words;
+
+  /**
+   * Constructor for an empty (free) bitmap
+   * @param startUtc the beginning of the first slot
+   * @param spanInMillis the time covered, a multiple of the granularity
+   * @param granularityInMillis the length of a slot
+   */
+  public BusyBitmap(long startUtc, long spanInMillis, long granularityInMillis) {
+    this(startUtc, granularityInMillis,
+        checkSlots(spanInMillis, granularityInMillis), null);
+  }
+
+  /**
+   * Constructor for a bitmap on top of existing bits
+   * @param words the bits (slot i is bit i % 64 of word i / 64), null or
+   *   shorter than needed for free slots; used as is, not copied
+   */
+  public BusyBitmap(
+      long startUtc, long granularityInMillis, int slots, long[] words) {
+    if (granularityInMillis <= 0 || slots < 0) {
+      throw new IllegalArgumentException("Invalid layout");
+    }
+    this.startUtc = startUtc;
+    this.granularity = granularityInMillis;
+    this.slots = slots;
+    this.words = (words != null && words.length >= wordsFor(slots)) ?
+        words : grow(words, wordsFor(slots));
+  }
+
+  private static int checkSlots(long span, long granularity) {
+    if (granularity <= 0 || span < 0 || span % granularity != 0) {
+      throw new IllegalArgumentException(
+          "Span must be a multiple of the granularity");
+    }
+    return (int) (span / granularity);
+  }
+
+  private static int wordsFor(int slots) {
+    return (slots + 63) / 64;
+  }
+
+  private static long[] grow(long[] words, int length) {
+    final long[] result = new long[length];
+    if (words != null) {
+      System.arraycopy(words, 0, result, 0, words.length);
+    }
+    return result;
+  }
+
+  public long getStart() {
+    return startUtc;
+  }
+
+  public long getGranularity() {
+    return granularity;
+  }
+
+  public int getSlotCount() {
+    return slots;
+  }
+
+  /**
+   * @return the bits; changes to the bitmap write through
+   */
+  public long[] getWords() {
+    return words;
+  }
+
+  /**
+   * Marks the slots touched by an interval as busy. The end is taken as
+   * the first free moment (as in Google's event times) unless the interval
+   * is empty; parts outside of the bitmap are ignored.
+   */
+  public void set(long fromUtc, long untilUtc) {
+    if (untilUtc < fromUtc) {
+      throw new IllegalArgumentException("startTime > endTime");
+    }
+    final long last = Math.max(untilUtc - 1, fromUtc);
+    if (last < startUtc || fromUtc >= startUtc + slots * granularity) {
+      return;
+    }
+    final int first = (int) ((Math.max(fromUtc, startUtc) - startUtc)
+        / granularity);
+    final int end = (int) Math.min(slots - 1, (last - startUtc) / granularity);
+    for (int slot = first; slot <= end; slot++) {
+      words[slot >> 6] |= 1L << slot;
+    }
+  }
+
+  /**
+   * Marks the slots touched by a list of intervals as busy
+   */
+  public void setAll(BusyIntervals intervals) {
+    for (int i = 0; i < intervals.size(); i++) {
+      set(intervals.getStart(i), intervals.getEnd(i));
+    }
+  }
+
+  public boolean isBusy(int slot) {
+    if (slot < 0 || slot >= slots) {
+      throw new IndexOutOfBoundsException("" + slot);
+    }
+    return (words[slot >> 6] & (1L << slot)) != 0;
+  }
+
+  /**
+   * @return whether no slot is busy
+   */
+  public boolean isEmpty() {
+    for (long word : words) {
+      if (word != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether a time range is free: no slot it touches is busy
+   */
+  public boolean isFree(long fromUtc, long untilUtc) {
+    final BusyBitmap range = new BusyBitmap(startUtc, granularity, slots, null);
+    range.set(fromUtc, untilUtc);
+    for (int i = 0; i < words.length; i++) {
+      if ((words[i] & range.words[i]) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the busy slots of another bitmap with the same layout
+   */
+  public void or(BusyBitmap other) {
+    if (other.startUtc != startUtc || other.granularity != granularity ||
+        other.slots != slots) {
+      throw new IllegalArgumentException("Different layout");
+    }
+    for (int i = 0; i < words.length; i++) {
+      words[i] |= other.words[i];
+    }
+  }
+
+  /**
+   * Appends the busy slots to a list of intervals, one interval per run of
+   * busy slots, from the beginning of its first slot to the end of its
+   * last one
+   */
+  public void addTo(BusyIntervals intervals) {
+    addRuns(intervals, 0, slots);
+  }
+
+  /**
+   * Appends the busy slots touched by a time range to a list of intervals,
+   * like addTo(BusyIntervals), but cut at the first and last of these
+   * slots. The end is taken as the first free moment, as in set().
+   */
+  public void addTo(BusyIntervals intervals, long fromUtc, long untilUtc) {
+    if (untilUtc < fromUtc) {
+      throw new IllegalArgumentException("startTime > endTime");
+    }
+    final long last = Math.max(untilUtc - 1, fromUtc);
+    if (last < startUtc || fromUtc >= startUtc + slots * granularity) {
+      return;
+    }
+    final int first = (int) ((Math.max(fromUtc, startUtc) - startUtc)
+        / granularity);
+    final int end = (int) Math.min(slots - 1, (last - startUtc) / granularity);
+    addRuns(intervals, first, end + 1);
+  }
+
+  /**
+   * Appends the runs of busy slots between two slots (the first one
+   * included, the last one not)
+   */
+  private void addRuns(BusyIntervals intervals, int fromSlot, int toSlot) {
+    int slot = nextBusy(fromSlot);
+    while (slot < toSlot) {
+      int end = slot + 1;
+      while (end < toSlot && isBusy(end)) {
+        end++;
+      }
+      intervals.add(startUtc + slot * granularity,
+          startUtc + end * granularity);
+      slot = nextBusy(end);
+    }
+  }
+
+  /**
+   * @return the busy slots as intervals
+   */
+  public BusyIntervals toIntervals() {
+    final BusyIntervals result = new BusyIntervals();
+    addTo(result);
+    return result;
+  }
+
+  /**
+   * @return the first busy slot from a given one on, slots if there is none
+   */
+  private int nextBusy(int from) {
+    int index = from >> 6;
+    if (index >= words.length) {
+      return slots;
+    }
+    long word = words[index] & (-1L << from);
+    while (word == 0) {
+      if (++index == words.length) {
+        return slots;
+      }
+      word = words[index];
+    }
+    return Math.min(slots, index * 64 + Long.numberOfTrailingZeros(word));
+  }
+}
@@ -0,0 +1,182 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base.messages.util;
+
+/**
+ * A compact list of busy intervals, stored as pairs of Utc times in a
+ * single long array. Both ends of an interval are inclusive. The list can
+ * be normalized (sorted by start time, overlapping and adjacent intervals
+ * merged) and clipped to a time window.
+ */
+public class BusyIntervals {
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  // start0, end0, start1, end1, ...
+  private long[] times;
+  private int size;
+
+  public BusyIntervals() {
+    times = new long[2 * INITIAL_CAPACITY];
+  }
+
+  /**
+   * Adds an interval
+   * @exception IllegalArgumentException if end is before start
+   */
+  public void add(long startUtc, long endUtc) {
+    if (endUtc < startUtc) {
+      throw new IllegalArgumentException("startTime > endTime");
+    }
+    if (2 * size == times.length) {
+      final long[] grown = new long[2 * times.length];
+      System.arraycopy(times, 0, grown, 0, times.length);
+      times = grown;
+    }
+    times[2 * size] = startUtc;
+    times[2 * size + 1] = endUtc;
+    size++;
+  }
+
+  /**
+   * Adds all intervals of another list
+   */
+  public void addAll(BusyIntervals other) {
+    for (int i = 0; i < other.size; i++) {
+      add(other.getStart(i), other.getEnd(i));
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public long getStart(int index) {
+    checkIndex(index);
+    return times[2 * index];
+  }
+
+  public long getEnd(int index) {
+    checkIndex(index);
+    return times[2 * index + 1];
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("" + index);
+    }
+  }
+
+  /**
+   * Sorts the intervals by start time and merges intervals that overlap or
+   * touch (an interval starting one millisecond after the previous one
+   * ends counts as touching, since ends are inclusive).
+   */
+  public void normalize() {
+    if (!isSorted()) {
+      sort();
+    }
+    int last = -1;
+    for (int i = 0; i < size; i++) {
+      final long start = times[2 * i];
+      final long end = times[2 * i + 1];
+      if (last >= 0 && start - 1 <= times[2 * last + 1]) {
+        if (end > times[2 * last + 1]) {
+          times[2 * last + 1] = end;
+        }
+      } else {
+        last++;
+        times[2 * last] = start;
+        times[2 * last + 1] = end;
+      }
+    }
+    size = last + 1;
+  }
+
+  /**
+   * Removes everything outside of a time window (bounds inclusive) and
+   * shortens intervals reaching over its borders
+   */
+  public void clip(long fromUtc, long untilUtc) {
+    if (untilUtc < fromUtc) {
+      throw new IllegalArgumentException("fromUtc > untilUtc");
+    }
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      final long start = times[2 * i];
+      final long end = times[2 * i + 1];
+      if (end < fromUtc || start > untilUtc) {
+        continue;
+      }
+      times[2 * kept] = Math.max(start, fromUtc);
+      times[2 * kept + 1] = Math.min(end, untilUtc);
+      kept++;
+    }
+    size = kept;
+  }
+
+  private boolean isSorted() {
+    for (int i = 1; i < size; i++) {
+      if (times[2 * i] < times[2 * i - 2]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sorts the pairs by start time (heap sort, in place)
+   */
+  private void sort() {
+    for (int i = size / 2 - 1; i >= 0; i--) {
+      siftDown(i, size);
+    }
+    for (int end = size - 1; end > 0; end--) {
+      swap(0, end);
+      siftDown(0, end);
+    }
+  }
+
+  private void siftDown(int node, int length) {
+    while (true) {
+      int child = 2 * node + 1;
+      if (child >= length) {
+        return;
+      }
+      if (child + 1 < length && times[2 * child + 2] > times[2 * child]) {
+        child++;
+      }
+      if (times[2 * node] >= times[2 * child]) {
+        return;
+      }
+      swap(node, child);
+      node = child;
+    }
+  }
+
+  private void swap(int i, int j) {
+    long tmp = times[2 * i];
+    times[2 * i] = times[2 * j];
+    times[2 * j] = tmp;
+    tmp = times[2 * i + 1];
+    times[2 * i + 1] = times[2 * j + 1];
+    times[2 * j + 1] = tmp;
+  }
+}
@@ -15,11 +15,8 @@
 
 package com.google.calendar.interoperability.connectorplugin.base.messages.util;
 
-import com.google.calendar.interoperability.connectorplugin.base.Tuple;
-
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 
 /**
  * A Novell groupwise Busy-Report data structure containing a list of
@@ -27,40 +24,45 @@ import java.util.List;
  */
 public class BusyReport {
 
-  List<Tuple<NovellDate>> busyTimes;
+  private static final String FORMAT = "dd/MM/yy HH:mm";
+  
+  BusyIntervals busyTimes;
   
   public BusyReport() {
-    busyTimes = new ArrayList<Tuple<NovellDate>>();
+    busyTimes = new BusyIntervals();
   }
   
+  /**
+   * Adds a busy time. An end before the start (e.g. a date that failed
+   * to parse) is treated as the start.
+   */
   public void add(NovellDate start, NovellDate end) {
-    busyTimes.add(Tuple.of(start, end));
+    busyTimes.add(start.getTimeInUtc(),
+        Math.max(start.getTimeInUtc(), end.getTimeInUtc()));
+  }
+  
+  /**
+   * @return the reported busy times, in the order they were reported
+   */
+  public BusyIntervals getIntervals() {
+    return busyTimes;
   }
   
   @Override
   public String toString() {
-    String str = "BUSY-REPORT=";
-    
-
-    Iterator<Tuple<NovellDate>> iterator = busyTimes.iterator();
-    if (!iterator.hasNext()) {
-      return str + "\n" + "    ;";
+    if (busyTimes.isEmpty()) {
+      return "BUSY-REPORT=\n    ;";
     }
-    
-    Tuple<NovellDate> pair = iterator.next();
-    str = str + "\n" +
-      "    " + pair.first.toString() + ";\n" +
-      "    " + pair.second.toString() + ";";
-    
-    while (iterator.hasNext()) {
-      pair = iterator.next();
-      
-      str = str + ",\n" +
-        "    " + pair.first.toString() + ";" + "\n" +
-        "    " + pair.second.toString() + ";";
- 
+    final SimpleDateFormat format = new SimpleDateFormat(FORMAT);
+    final StringBuilder sb = new StringBuilder("BUSY-REPORT=");
+    for (int i = 0; i < busyTimes.size(); i++) {
+      sb.append((i == 0) ? "\n" : ",\n")
+        .append("    ")
+        .append(format.format(new Date(busyTimes.getStart(i))))
+        .append(";\n    ")
+        .append(format.format(new Date(busyTimes.getEnd(i))))
+        .append(';');
     }
-    
-    return str;
+    return sb.toString();
   }
 }
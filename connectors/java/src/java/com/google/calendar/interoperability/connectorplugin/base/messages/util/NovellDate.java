@@ -18,6 +18,7 @@ package com.google.calendar.interoperability.connectorplugin.base.messages.util;
 
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Date;
 import java.util.GregorianCalendar;
 
 /**
@@ -38,20 +39,24 @@ public class NovellDate {
   
   private static final String FORMAT = "dd/MM/yy HH:mm"; 
   
-  private Calendar calendar; 
+  // Only the point in time is kept; a Calendar is many times larger and
+  // only needed while parsing
+  private long timeInUtc;
   private float offsetHours;
   private float offsetMins;
   
   public NovellDate() {
-    calendar = new GregorianCalendar();
+    timeInUtc = System.currentTimeMillis();
     offsetHours = 0;
     offsetMins = 0;
   }
   
   public boolean set(final String dateToSet) {
     String novellDate = dateToSet.trim();
+    final Calendar calendar = new GregorianCalendar();
     calendar.set(0, 0, 0, 0, 0, 0);
     calendar.set(Calendar.MILLISECOND, 0);
+    timeInUtc = calendar.getTimeInMillis();
     
     String []parts = novellDate.split(" ");
     if (parts.length < 2) {
@@ -93,6 +98,7 @@ public class NovellDate {
     }
     
     calendar.set(year, month - 1, date, hourOfDay, minute);
+    timeInUtc = calendar.getTimeInMillis();
     return true;
   }
   
@@ -102,7 +108,7 @@ public class NovellDate {
    */
   @Override
   public String toString() {
-    return new SimpleDateFormat(FORMAT).format(calendar.getTime());
+    return new SimpleDateFormat(FORMAT).format(new Date(timeInUtc));
   }
 
   // Should not be used at the moment
@@ -116,10 +122,10 @@ public class NovellDate {
   }
  
   public long getTimeInUtc() {
-    return calendar.getTimeInMillis();
+    return timeInUtc;
   }
  
   public void setTimeInUtc(long time) {
-    calendar.setTimeInMillis(time);
+    timeInUtc = time;
   }
 }
@@ -0,0 +1,56 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base.messages.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shares equal strings that occur in many messages, such as domain and
+ * post office names, so that queued commands reference a single copy.
+ * Unlike String.intern(), the pool lives on the regular heap and stops
+ * growing at a fixed size, so odd input cannot fill it up.
+ */
+public final class StringPool {
+
+  private static final int MAX_SIZE = 4096;
+
+  private static final ConcurrentMap<String, String> POOL =
+    new ConcurrentHashMap<String, String>();
+
+  private StringPool() {
+    // Utility class
+  }
+
+  /**
+   * @return a pooled string equal to the given one, or the string itself
+   *   if it is null or the pool is full
+   */
+  public static String share(String s) {
+    if (s == null) {
+      return null;
+    }
+    final String pooled = POOL.get(s);
+    if (pooled != null) {
+      return pooled;
+    }
+    if (POOL.size() >= MAX_SIZE) {
+      return s;
+    }
+    final String previous = POOL.putIfAbsent(s, s);
+    return (previous == null) ? s : previous;
+  }
+}
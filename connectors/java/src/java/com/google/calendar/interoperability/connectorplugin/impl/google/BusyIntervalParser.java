@@ -0,0 +1,103 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+import com.google.gdata.data.DateTime;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the busy times out of a free/busy feed page with a streaming
+ * parser. Only the gd:when elements are looked at; everything else in the
+ * feed is skipped without building any objects for it.
+ */
+class BusyIntervalParser {
+
+  static final String ATOM_NAMESPACE = "http://www.w3.org/2005/Atom";
+  static final String GD_NAMESPACE = "http://schemas.google.com/g/2005";
+
+  private static final XMLInputFactory FACTORY = createFactory();
+
+  private static XMLInputFactory createFactory() {
+    final XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    factory.setProperty(
+        XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    return factory;
+  }
+
+  private BusyIntervalParser() {
+    // Utility class
+  }
+
+  /**
+   * Parses a feed page
+   * @param in the feed, which is not closed
+   * @param intervals the intervals to add the busy times to
+   * @return the number of entries on the page
+   * @exception XMLStreamException if the page is not well-formed or a
+   *   time cannot be parsed
+   */
+  static int parse(InputStream in, BusyIntervals intervals)
+      throws XMLStreamException {
+    final XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+    int entries = 0;
+    try {
+      while (reader.hasNext()) {
+        if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+          continue;
+        }
+        final String name = reader.getLocalName();
+        final String namespace = reader.getNamespaceURI();
+        if ("entry".equals(name) && ATOM_NAMESPACE.equals(namespace)) {
+          entries++;
+        } else if ("when".equals(name) && GD_NAMESPACE.equals(namespace)) {
+          addWhen(reader, intervals);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return entries;
+  }
+
+  private static void addWhen(XMLStreamReader reader, BusyIntervals intervals)
+      throws XMLStreamException {
+    final String start = reader.getAttributeValue(null, "startTime");
+    final String end = reader.getAttributeValue(null, "endTime");
+    if (start == null) {
+      throw new XMLStreamException("gd:when without startTime", 
+          reader.getLocation());
+    }
+    try {
+      final DateTime startTime = DateTime.parseDateTimeChoice(start);
+      final DateTime endTime = 
+        (end == null) ? null : DateTime.parseDateTimeChoice(end);
+      final long from = SearchHandler.renderFrom(startTime);
+      intervals.add(
+          from, Math.max(from, SearchHandler.renderUntil(startTime, endTime)));
+    } catch (NumberFormatException e) {
+      throw new XMLStreamException("Invalid time in gd:when: " + start + 
+          ", " + end, reader.getLocation());
+    }
+  }
+}
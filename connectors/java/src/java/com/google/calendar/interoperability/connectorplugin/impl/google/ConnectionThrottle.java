@@ -17,6 +17,7 @@ package com.google.calendar.interoperability.connectorplugin.impl.google;
 import static com.google.calendar.interoperability.connectorplugin.base.Tuple.of;
 
 import com.google.calendar.interoperability.connectorplugin.base.Tuple;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import java.util.List;
@@ -33,11 +34,11 @@ import java.util.logging.Logger;
  * If the amount of errors increase, the timeouts will get rewound with
  * a higher value.
  */
-class ConnectionThrottle {
+public class ConnectionThrottle {
   
   // List of Tuples <x,y>. If x or more consecutive requests fail,
-  // wait for about y seconds (+/- randomTime) before retrying anything
-  private static final List<Tuple<Integer>> escalationScale = 
+  // wait for about y milliseconds (+/- randomTime) before retrying anything
+  static final List<Tuple<Integer>> DEFAULT_ESCALATION_SCALE = 
     Lists.immutableList(
         of(1, 10), of(2, 20), of(3, 40), of(4, 80), of(5, 160),
         of(6, 320), of(7, 640), of(8, 1280), of(9, 2560), of(10, 5120),
@@ -46,6 +47,26 @@ class ConnectionThrottle {
   private static final Logger LOGGER = 
     Logger.getLogger(ConnectionThrottle.class.getName());
 
+  // The escalation scale in use, ordered by the amount of errors
+  private final List<Tuple<Integer>> escalationScale;
+  
+  /**
+   * Constructor, uses the default escalation scale
+   */
+  public ConnectionThrottle() {
+    this(DEFAULT_ESCALATION_SCALE);
+  }
+  
+  /**
+   * Constructor
+   * @param escalationScale a non-empty list of Tuples <x,y> ordered by x:
+   *   if x or more consecutive requests fail, wait for about y milliseconds
+   *   before retrying anything
+   */
+  ConnectionThrottle(List<Tuple<Integer>> escalationScale) {
+    Preconditions.checkArgument(!escalationScale.isEmpty());
+    this.escalationScale = escalationScale;
+  }
   
   /**
    * A delayed object that can stay in a queue as long as we need to.
@@ -113,6 +134,14 @@ class ConnectionThrottle {
     return System.currentTimeMillis();
   }
   
+  /**
+   * Gets a random number between 0 and 1 for the deviation of the retries.
+   * Will be overwritten for simulations.
+   */
+  double nextRandom() {
+    return Math.random();
+  }
+  
   /**
    * Gets the delay in milliseconds that should be applied to a blocker
    * that gets put into the queue (depending on the currently recorded
@@ -161,6 +190,54 @@ class ConnectionThrottle {
     }
   }
   
+  /**
+   * Changes the maximum amount of requests permitted per second while the
+   * throttle is in use. Unlike setMaxRequestsPerSecond, the timers in the
+   * queue are kept: a higher maximum adds timers that are available right
+   * away, a lower one lets surplus timers run out without replacing them.
+   */
+  public synchronized void adjustMaxRequestsPerSecond(int max) {
+    if (queue == null) {
+      setMaxRequestsPerSecond(max);
+      return;
+    }
+    final int oldTarget = getTargetQueueSize();
+    this.maxRequestsPerSecond = max;
+    final long timeout = getTime();
+    for (int i = oldTarget; i < getTargetQueueSize(); i++) {
+      queue.add(new Timer(timeout));
+    }
+  }
+  
+  /**
+   * @return the maximum amount of requests permitted per second
+   */
+  public synchronized int getMaxRequestsPerSecond() {
+    return maxRequestsPerSecond;
+  }
+  
+  /**
+   * Checks whether requests could be made right now without slowing down
+   * anybody: there have been no errors recently and more than half of the
+   * permitted requests per second are available. Background work should
+   * only be done while this is the case.
+   */
+  public synchronized boolean hasSpareCapacity() {
+    if (queue == null) {
+      return true;
+    }
+    if (numErrors > 0) {
+      return false;
+    }
+    int available = 0;
+    for (Timer timer : queue) {
+      if (timer.getDelay(TimeUnit.MILLISECONDS) == 0) {
+        available++;
+      }
+    }
+    return available > maxRequestsPerSecond / 2;
+  }
+  
   /** 
    * using the internal queue, make sure that the overall amount of requests
    * is properly throttled
@@ -198,7 +275,7 @@ class ConnectionThrottle {
     }
     final int delay = getDelayInMillis();
     final int randomDeviation = (int)
-        (delay * maxRandomTimeDeviationInPercent * (0.5 - Math.random()) / 50);
+        (delay * maxRandomTimeDeviationInPercent * (0.5 - nextRandom()) / 50);
     queue.add(new Timer(getTime() + delay + randomDeviation));
   }
   
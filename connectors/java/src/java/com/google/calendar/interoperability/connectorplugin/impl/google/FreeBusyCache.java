@@ -0,0 +1,782 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyBitmap;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+import com.google.common.base.Nullable;
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches busy times per user and (UTC) calendar day, so that searches for
+ * overlapping time ranges can share what was fetched before. A day's busy
+ * times are fresh for a limited time only. When a search touches days that
+ * are missing or stale, only the range from the first to the last of them
+ * needs to be fetched; the rest is assembled from the cached days.
+ *
+ * The days of a user are kept in arrays indexed by day: when each was
+ * fetched and, with a granularity, the busy slots of all of them in one
+ * contiguous bitmap (a long array, day after day), which answers the
+ * lookups of whole ranges directly. Every slot that is busy at all counts
+ * as busy as a whole. This takes a fraction of the memory of the exact
+ * intervals, at the cost of rounding the busy times outwards. Without a
+ * granularity, each day's exact intervals are kept instead.
+ *
+ * If a file is given, every day stored is also appended to it, and the
+ * fresh days in it are read back on construction, so a restart does not
+ * begin with an empty cache. Once the file holds more outdated than fresh
+ * records, it is compacted: rewritten with the fresh records only. The
+ * file is written under a lock of its own, from records taken out of the
+ * cache beforehand, so searches never wait for the disk.
+ */
+class FreeBusyCache {
+
+  private static final Logger LOGGER =
+    Logger.getLogger(FreeBusyCache.class.getName());
+
+  static final long DAY = 24 * 3600000L;
+
+  // Identifies the file format
+  private static final int MAGIC = 0x46424331;
+
+  // No compaction before this many days were stored since the last one
+  private static final int MIN_COMPACTION_RECORDS = 1000;
+
+  // The fetch time of a day that is not cached
+  private static final long NEVER = Long.MIN_VALUE;
+
+  /**
+   * The cached days of one user, from firstDay on: when each was fetched
+   * (NEVER if it is not cached), and the busy times either as one bitmap
+   * of all the days' slots or as each day's intervals. The number of days
+   * is a multiple of dayAlignment, so that they fill whole words of the
+   * bitmap and days can be added and dropped word by word.
+   */
+  private class Timeline {
+    long firstDay;
+    long[] fetched = new long[0];
+    long[] bits = new long[0];
+    BusyIntervals[] intervals = new BusyIntervals[0];
+
+    /**
+     * @return whether all days from first to last (inclusive) are fresh
+     */
+    boolean isFresh(long first, long last, long now) {
+      if (first < firstDay || last >= firstDay + fetched.length) {
+        return false;
+      }
+      for (int i = (int) (first - firstDay); i <= last - firstDay; i++) {
+        if (!FreeBusyCache.this.isFresh(fetched[i], now)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return the bits of all days as a bitmap; changes write through
+     */
+    BusyBitmap getBitmap() {
+      return new BusyBitmap(firstDay * DAY, granularity,
+          fetched.length * slotsPerDay, bits);
+    }
+
+    /**
+     * Appends the busy times of a time range to a list of intervals. All
+     * days the range touches must be cached.
+     */
+    void addIntervals(long fromUtc, long untilUtc, BusyIntervals target) {
+      if (granularity > 0) {
+        getBitmap().addTo(target, fromUtc, untilUtc + 1);
+        return;
+      }
+      for (long day = dayOf(fromUtc); day <= dayOf(untilUtc); day++) {
+        target.addAll(intervals[(int) (day - firstDay)]);
+      }
+    }
+
+    /**
+     * Stores the busy times of a day
+     * @param slice the busy times, within the day
+     * @return whether the day was not cached before
+     */
+    boolean store(long day, BusyIntervals slice, long fetchedUtc) {
+      cover(day, day);
+      final int index = (int) (day - firstDay);
+      final boolean added = (fetched[index] == NEVER);
+      fetched[index] = fetchedUtc;
+      if (granularity > 0) {
+        clearSlots(bits, index * slotsPerDay, (index + 1) * slotsPerDay);
+        getBitmap().setAll(slice);
+      } else {
+        intervals[index] = slice;
+      }
+      return added;
+    }
+
+    /**
+     * Forgets the days that are not fresh anymore and shrinks the arrays
+     * to the remaining ones
+     * @return the number of days forgotten
+     */
+    int dropStale(long now) {
+      int dropped = 0;
+      long first = Long.MAX_VALUE;
+      long last = Long.MIN_VALUE;
+      for (int i = 0; i < fetched.length; i++) {
+        if (fetched[i] == NEVER) {
+          continue;
+        }
+        if (FreeBusyCache.this.isFresh(fetched[i], now)) {
+          first = Math.min(first, firstDay + i);
+          last = firstDay + i;
+          continue;
+        }
+        fetched[i] = NEVER;
+        if (granularity > 0) {
+          clearSlots(bits, i * slotsPerDay, (i + 1) * slotsPerDay);
+        } else {
+          intervals[i] = null;
+        }
+        dropped++;
+      }
+      if (first > last) {
+        resize(firstDay, 0);
+      } else {
+        resize(alignDown(first), (int) (alignDown(last) + dayAlignment -
+            alignDown(first)));
+      }
+      return dropped;
+    }
+
+    /**
+     * Grows the arrays to include the days from first to last
+     */
+    void cover(long first, long last) {
+      final long start = alignDown(first);
+      final long end = alignDown(last) + dayAlignment;
+      if (fetched.length == 0) {
+        resize(start, (int) (end - start));
+      } else if (start < firstDay || end > firstDay + fetched.length) {
+        final long newStart = Math.min(start, firstDay);
+        resize(newStart, (int) (Math.max(end, firstDay + fetched.length) -
+            newStart));
+      }
+    }
+
+    /**
+     * Moves the days into arrays for the given days (aligned); days
+     * outside of them are dropped
+     */
+    private void resize(long start, int days) {
+      if (start == firstDay && days == fetched.length) {
+        return;
+      }
+      final long[] newFetched = new long[days];
+      Arrays.fill(newFetched, NEVER);
+      final long[] newBits = new long[days * slotsPerDay / 64];
+      final BusyIntervals[] newIntervals =
+        new BusyIntervals[(granularity > 0) ? 0 : days];
+
+      // Copy the days that both cover
+      final long from = Math.max(start, firstDay);
+      final long until = Math.min(start + days, firstDay + fetched.length);
+      if (from < until) {
+        final int source = (int) (from - firstDay);
+        final int target = (int) (from - start);
+        final int count = (int) (until - from);
+        System.arraycopy(fetched, source, newFetched, target, count);
+        if (granularity > 0) {
+          System.arraycopy(bits, source * slotsPerDay / 64, newBits,
+              target * slotsPerDay / 64, count * slotsPerDay / 64);
+        } else {
+          System.arraycopy(intervals, source, newIntervals, target, count);
+        }
+      }
+      fetched = newFetched;
+      bits = newBits;
+      intervals = newIntervals;
+      firstDay = start;
+    }
+  }
+
+  /**
+   * A day of a user, to be written to the file
+   */
+  private static class Record {
+    final String user;
+    final long day;
+    final long fetched;
+    final BusyIntervals intervals;
+
+    Record(String user, long day, long fetched, BusyIntervals intervals) {
+      this.user = user;
+      this.day = day;
+      this.fetched = fetched;
+      this.intervals = intervals;
+    }
+  }
+
+  private final long ttlInMillis;
+  private final long granularity;
+  private final File file;
+
+  // Slots per day (with a granularity), and by how many days the arrays of
+  // a user grow and shrink: enough days to fill whole words of slots
+  private final int slotsPerDay;
+  private final int dayAlignment;
+
+  private final Map<String, Timeline> users = new HashMap<String, Timeline>();
+  private int dayCount;
+
+  // Days stored since the last compaction, including those still there
+  private int records;
+
+  // Days not written to the file yet, and whether it is due for compaction
+  private List<Record> pending = new ArrayList<Record>();
+  private boolean compactionDue;
+
+  // Held while writing the file, never together with the cache's lock
+  private final ReentrantLock writer = new ReentrantLock();
+  private volatile DataOutputStream log;
+
+  // Statistics
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong partialHits = new AtomicLong();
+
+  /**
+   * Constructor
+   * @param ttlInMillis how long fetched busy times are used
+   * @param file the file to keep the cache in, null to keep it in memory
+   *   only. The fresh days in it are loaded right away.
+   */
+  FreeBusyCache(long ttlInMillis, @Nullable File file) {
+    this(ttlInMillis, 0, file);
+  }
+
+  /**
+   * Constructor
+   * @param ttlInMillis how long fetched busy times are used
+   * @param granularityInMillis the slot length if days are kept as
+   *   bitmaps, 0 to keep the exact intervals. Must divide a day.
+   * @param file the file to keep the cache in, null to keep it in memory
+   *   only. The fresh days in it are loaded right away.
+   */
+  FreeBusyCache(
+      long ttlInMillis, long granularityInMillis, @Nullable File file) {
+    Preconditions.checkArgument(ttlInMillis > 0);
+    Preconditions.checkArgument(granularityInMillis == 0 ||
+        (granularityInMillis > 0 && DAY % granularityInMillis == 0));
+    this.ttlInMillis = ttlInMillis;
+    this.granularity = granularityInMillis;
+    this.file = file;
+    if (granularity > 0) {
+      slotsPerDay = (int) (DAY / granularity);
+      dayAlignment = 64 / Integer.lowestOneBit(slotsPerDay | 64);
+    } else {
+      slotsPerDay = 0;
+      dayAlignment = 1;
+    }
+    if (file != null) {
+      if (file.exists()) {
+        load();
+      }
+      compact();
+      LOGGER.log(Level.INFO, "Free/busy cache " + file + " holds " +
+          getDayCount() + " days");
+    }
+  }
+
+  /**
+   * Gets the current system time. Will be overwritten for unit tests.
+   */
+  long getTime() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * @return the number of the day a time falls into
+   */
+  static long dayOf(long utc) {
+    return (utc >= 0) ? utc / DAY : (utc + 1) / DAY - 1;
+  }
+
+  /**
+   * @return the first millisecond of the day a time falls into
+   */
+  static long dayStart(long utc) {
+    return dayOf(utc) * DAY;
+  }
+
+  /**
+   * @return the last millisecond of the day a time falls into
+   */
+  static long dayEnd(long utc) {
+    return dayStart(utc) + DAY - 1;
+  }
+
+  /**
+   * Gets the busy times of a user in a time range, if all days it touches
+   * are cached and fresh. Counts as a hit or miss in the statistics.
+   * @return the busy times within the range, or null
+   */
+  BusyIntervals get(String user, long fromUtc, long untilUtc) {
+    return get(user, fromUtc, untilUtc, true);
+  }
+
+  /**
+   * Gets the busy times of a user in a time range, if all days it touches
+   * are cached and fresh
+   * @param count whether this is the search's lookup, which counts as a
+   *   hit or miss in the statistics, rather than a later one (after the
+   *   missing days were fetched, say)
+   * @return the busy times within the range, or null
+   */
+  synchronized BusyIntervals get(
+      String user, long fromUtc, long untilUtc, boolean count) {
+    Preconditions.checkArgument(fromUtc <= untilUtc);
+    final Timeline timeline = users.get(user);
+    if (timeline == null ||
+        !timeline.isFresh(dayOf(fromUtc), dayOf(untilUtc), getTime())) {
+      if (count) {
+        misses.incrementAndGet();
+      }
+      return null;
+    }
+    if (count) {
+      hits.incrementAndGet();
+    }
+    final BusyIntervals result = new BusyIntervals();
+    timeline.addIntervals(fromUtc, untilUtc, result);
+    result.normalize();
+    result.clip(fromUtc, untilUtc);
+    return result;
+  }
+
+  /**
+   * Finds the days of a time range that need to be fetched
+   * @return the first millisecond of the first day and the last
+   *   millisecond of the last day that are missing or stale, or null if
+   *   all days are fresh
+   */
+  synchronized long[] findMissing(String user, long fromUtc, long untilUtc) {
+    final long[] result = findMissing(user, fromUtc, untilUtc, 0);
+    if (result != null && (result[0] > dayStart(fromUtc) ||
+        result[1] < dayEnd(untilUtc))) {
+      partialHits.incrementAndGet();
+    }
+    return result;
+  }
+
+  /**
+   * Finds the days of a time range that need to be fetched soon
+   * @param marginInMillis days that will be stale within this time count
+   *   as stale already
+   * @return the first millisecond of the first day and the last
+   *   millisecond of the last day that are missing or (about to be) stale,
+   *   or null if all days are fresh
+   */
+  synchronized long[] findMissing(
+      String user, long fromUtc, long untilUtc, long marginInMillis) {
+    Preconditions.checkArgument(fromUtc <= untilUtc);
+    final Timeline timeline = users.get(user);
+    final long now = getTime() + marginInMillis;
+    long first = Long.MAX_VALUE;
+    long last = Long.MIN_VALUE;
+    for (long day = dayOf(fromUtc); day <= dayOf(untilUtc); day++) {
+      if (timeline == null || !timeline.isFresh(day, day, now)) {
+        first = Math.min(first, day);
+        last = day;
+      }
+    }
+    if (first > last) {
+      return null;
+    }
+    return new long[] {first * DAY, (last + 1) * DAY - 1};
+  }
+
+  private boolean isFresh(long fetched, long now) {
+    return fetched != NEVER && now - fetched < ttlInMillis;
+  }
+
+  /**
+   * @return the first day of the aligned block of days a day falls into
+   */
+  private long alignDown(long day) {
+    return day - ((day % dayAlignment) + dayAlignment) % dayAlignment;
+  }
+
+  /**
+   * Marks slots as free
+   * @param fromSlot the first slot
+   * @param toSlot the slot after the last one
+   */
+  private static void clearSlots(long[] words, int fromSlot, int toSlot) {
+    int slot = fromSlot;
+    while (slot < toSlot) {
+      final int bit = slot & 63;
+      final int count = Math.min(64 - bit, toSlot - slot);
+      final long mask = (count == 64) ? -1L : ((1L << count) - 1) << bit;
+      words[slot >> 6] &= ~mask;
+      slot += count;
+    }
+  }
+
+  /**
+   * Stores the busy times of a user. Only the days lying completely
+   * within the range are stored.
+   * @param intervals all busy times within the range
+   */
+  void put(
+      String user, long fromUtc, long untilUtc, BusyIntervals intervals) {
+    Preconditions.checkNotNull(user);
+    final long now = getTime();
+    final long first = dayOf(fromUtc - 1) + 1;
+    final long last = dayOf(untilUtc + 1) - 1;
+    synchronized (this) {
+      if (first <= last) {
+        getTimeline(user).cover(first, last);
+      }
+      for (long day = first; day <= last; day++) {
+        final BusyIntervals slice = slice(intervals, day);
+        store(user, day, slice, now);
+        if (file != null) {
+          pending.add(new Record(user, day, now, slice));
+        }
+        records++;
+      }
+      if (records > Math.max(MIN_COMPACTION_RECORDS, 2 * dayCount)) {
+        compactionDue = true;
+      }
+    }
+    write();
+  }
+
+  /**
+   * Writes the pending days to the file, and compacts it if it is due.
+   * If another thread is writing already, it is left to that one, which
+   * looks for more work before it is done.
+   */
+  private void write() {
+    while (hasWork() && writer.tryLock()) {
+      try {
+        final List<Record> batch;
+        final boolean compaction;
+        synchronized (this) {
+          batch = pending;
+          pending = new ArrayList<Record>();
+          compaction = compactionDue;
+        }
+        if (compaction) {
+          rewrite();
+        } else {
+          append(batch);
+        }
+      } finally {
+        writer.unlock();
+      }
+    }
+  }
+
+  private synchronized boolean hasWork() {
+    return compactionDue || !pending.isEmpty();
+  }
+
+  /**
+   * Cuts the busy times of one day out of a list. Intervals just touching
+   * the beginning of the day belong to the day before; intervals reaching
+   * into the next day end at its first millisecond, so that the slices of
+   * consecutive days merge into the original intervals again.
+   */
+  private static BusyIntervals slice(BusyIntervals intervals, long day) {
+    final long start = day * DAY;
+    final long next = start + DAY;
+    final BusyIntervals result = new BusyIntervals();
+    for (int i = 0; i < intervals.size(); i++) {
+      final long from = intervals.getStart(i);
+      final long until = intervals.getEnd(i);
+      if (from < next && (until > start || from >= start)) {
+        result.add(Math.max(from, start), Math.min(until, next));
+      }
+    }
+    return result;
+  }
+
+  private Timeline getTimeline(String user) {
+    Timeline timeline = users.get(user);
+    if (timeline == null) {
+      timeline = new Timeline();
+      users.put(user, timeline);
+    }
+    return timeline;
+  }
+
+  private void store(
+      String user, long day, BusyIntervals slice, long fetched) {
+    if (getTimeline(user).store(day, slice, fetched)) {
+      dayCount++;
+    }
+  }
+
+  /**
+   * @return the number of days stored (fresh or not)
+   */
+  synchronized int getDayCount() {
+    return dayCount;
+  }
+
+  /**
+   * @return whether the cache is written to a file
+   */
+  boolean isPersistent() {
+    return log != null;
+  }
+
+  long getHitCount() {
+    return hits.get();
+  }
+
+  long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of ranges of which only a part had to be fetched
+   */
+  long getPartialHitCount() {
+    return partialHits.get();
+  }
+
+  /**
+   * Loads the fresh days from the file
+   */
+  private synchronized void load() {
+    final long now = getTime();
+    int records = 0;
+    try {
+      final DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != MAGIC) {
+          LOGGER.log(Level.WARNING, "Ignoring unknown cache file " + file);
+          return;
+        }
+        while (true) {
+          final String user;
+          try {
+            user = in.readUTF();
+          } catch (EOFException e) {
+            break;
+          }
+          final long day = in.readLong();
+          final long fetched = in.readLong();
+          final int size = in.readInt();
+          final BusyIntervals intervals = new BusyIntervals();
+          for (int i = 0; i < size; i++) {
+            intervals.add(in.readLong(), in.readLong());
+          }
+          records++;
+          if (isFresh(fetched, now)) {
+            store(user, day, slice(intervals, day), fetched);
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (EOFException e) {
+      LOGGER.log(Level.WARNING, "Cache file " + file + " is truncated " +
+          "after " + records + " records");
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Could not read cache file " + file, e);
+    } catch (IllegalArgumentException e) {
+      LOGGER.log(Level.WARNING, "Cache file " + file + " is corrupt " +
+          "after " + records + " records");
+    }
+  }
+
+  /**
+   * Drops the days that are not fresh anymore and, if there is a file,
+   * rewrites it with the remaining ones
+   */
+  void compact() {
+    writer.lock();
+    try {
+      rewrite();
+    } finally {
+      writer.unlock();
+    }
+  }
+
+  /**
+   * Drops the stale days and takes the others out of the cache, then
+   * writes them to a new file without holding the cache's lock. Days
+   * stored meanwhile are appended to the new file afterwards. Must be
+   * called with the writer lock held.
+   */
+  private void rewrite() {
+    final List<Record> snapshot = new ArrayList<Record>();
+    synchronized (this) {
+      final long now = getTime();
+      for (Iterator<Map.Entry<String, Timeline>> u =
+          users.entrySet().iterator(); u.hasNext(); ) {
+        final Map.Entry<String, Timeline> user = u.next();
+        final Timeline timeline = user.getValue();
+        dayCount -= timeline.dropStale(now);
+        if (timeline.fetched.length == 0) {
+          u.remove();
+        } else if (file != null) {
+          addRecords(user.getKey(), timeline, snapshot);
+        }
+      }
+      records = dayCount;
+      compactionDue = false;
+      pending.clear();
+    }
+    if (file == null) {
+      return;
+    }
+    closeLog(null);
+    final File temp = new File(file.getPath() + ".tmp");
+    try {
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        out.writeInt(MAGIC);
+        for (Record record : snapshot) {
+          writeRecord(out, record);
+        }
+      } finally {
+        out.close();
+      }
+      if (file.exists() && !file.delete()) {
+        throw new IOException("Could not replace " + file);
+      }
+      if (!temp.renameTo(file)) {
+        throw new IOException("Could not rename " + temp);
+      }
+      log = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(file, true)));
+    } catch (IOException e) {
+      closeLog(e);
+    }
+  }
+
+  /**
+   * Adds a record for each day of a user to a list
+   */
+  private void addRecords(String user, Timeline timeline, List<Record> target) {
+    for (int i = 0; i < timeline.fetched.length; i++) {
+      if (timeline.fetched[i] != NEVER) {
+        final long day = timeline.firstDay + i;
+        final BusyIntervals intervals = new BusyIntervals();
+        timeline.addIntervals(day * DAY, (day + 1) * DAY - 1, intervals);
+        target.add(new Record(user, day, timeline.fetched[i], intervals));
+      }
+    }
+  }
+
+  /**
+   * Appends days to the file. Must be called with the writer lock held.
+   */
+  private void append(List<Record> batch) {
+    final DataOutputStream out = log;
+    if (out == null || batch.isEmpty()) {
+      return;
+    }
+    try {
+      for (Record record : batch) {
+        writeRecord(out, record);
+      }
+      out.flush();
+    } catch (IOException e) {
+      closeLog(e);
+    }
+  }
+
+  private void writeRecord(DataOutputStream out, Record record)
+      throws IOException {
+    final BusyIntervals intervals = record.intervals;
+    out.writeUTF(record.user);
+    out.writeLong(record.day);
+    out.writeLong(record.fetched);
+    out.writeInt(intervals.size());
+    for (int i = 0; i < intervals.size(); i++) {
+      out.writeLong(intervals.getStart(i));
+      out.writeLong(intervals.getEnd(i));
+    }
+  }
+
+  /**
+   * Closes the file; after an error, the cache is kept in memory only
+   * until a compaction manages to rewrite the file. Must be called with
+   * the writer lock held.
+   */
+  private void closeLog(@Nullable IOException cause) {
+    if (cause != null) {
+      LOGGER.log(Level.WARNING, "Could not write cache file " + file +
+          ", keeping the cache in memory until the next compaction", cause);
+    }
+    final DataOutputStream out = log;
+    if (out != null) {
+      log = null;
+      try {
+        out.close();
+      } catch (IOException e) {
+        // Nothing left to do about it
+      }
+    }
+  }
+
+  /**
+   * Writes what is pending and closes the file
+   */
+  void close() {
+    writer.lock();
+    try {
+      final List<Record> batch;
+      synchronized (this) {
+        batch = pending;
+        pending = new ArrayList<Record>();
+      }
+      append(batch);
+      closeLog(null);
+    } finally {
+      writer.unlock();
+    }
+  }
+}
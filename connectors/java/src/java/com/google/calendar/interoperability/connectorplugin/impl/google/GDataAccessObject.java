@@ -15,53 +15,208 @@
 
 package com.google.calendar.interoperability.connectorplugin.impl.google;
 
+import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.bool;
+import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.integer;
 import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.string;
 
 import com.google.calendar.interoperability.connectorplugin.base.Configurable;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.gdata.client.GoogleService;
+import com.google.gdata.client.Service.GDataRequest;
 import com.google.gdata.client.appsforyourdomain.UserService;
 import com.google.gdata.client.calendar.CalendarService;
+import com.google.gdata.client.http.HttpGDataRequest;
 import com.google.gdata.data.DateTime;
 import com.google.gdata.data.Link;
 import com.google.gdata.data.appsforyourdomain.AppsForYourDomainException;
 import com.google.gdata.data.appsforyourdomain.provisioning.UserFeed;
 import com.google.gdata.data.calendar.CalendarEventFeed;
 import com.google.gdata.util.AuthenticationException;
+import com.google.gdata.util.ContentType;
+import com.google.gdata.util.ResourceNotFoundException;
 import com.google.gdata.util.ServiceException;
+import com.google.gdata.util.ServiceForbiddenException;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.xml.stream.XMLStreamException;
+
 /**
  * This object abstracts everything there is to know about gdata
  * connectivity
  */
 class GDataAccessObject extends Configurable {
   
-  private static final String APPS_FEEDS_URL_BASE =
-    "https://www.google.com/a/feeds/";  
   private static final String USER = "username";
   private static final String PASS = "password";  
   private static final String DOMAIN = "domain";
+  
+  // The base urls of the feeds (can be pointed to a stub server)
+  private static final String APPS_FEEDS_URL = "appsFeedsUrl";
+  private static final String CALENDAR_FEEDS_URL = "calendarFeedsUrl";
+  
+  // If set, this token is used instead of logging in with username/password
+  private static final String AUTH_TOKEN = "authToken";
+  
+  // Adaptive request rate: limits and the latency that counts as overload
+  private static final String ADAPTIVE_RATE = "adaptiveRate";
+  private static final String MIN_RATE = "minRequestsPerSecond";
+  private static final String MAX_RATE = "maxRequestsPerSecond";
+  private static final String TARGET_LATENCY = "targetLatencyInMillis";
+  
+  // Whether to fetch only the busy times, see retrieveBusyIntervals
+  private static final String LEAN_FETCH = "leanFetch";
+  
+  // Threads for asynchronous fetches, 0 to fetch on the caller's thread,
+  // and the fetches that may wait for them
+  private static final String FETCH_THREADS = "fetchThreads";
+  private static final String FETCH_QUEUE = "fetchQueueSize";
   private static final Logger LOGGER = 
       Logger.getLogger(GDataAccessObject.class.getName());
   
-  private CalendarService calendarService;
-  private UserService userService;
+  // Minutes after which the services log in again in the background
+  private static final String REFRESH_INTERVAL = "loginRefreshInMinutes";
+  
+  // Idle connections to keep per server, 0 for the JDK's default
+  private static final String POOL_SIZE = "connectionPoolSize";
+  
+  // Free/busy cache: how long busy times are used (0: no cache), the
+  // file it is kept in (empty: memory only) and the slot length if busy
+  // times are kept as bitmaps (0: exact intervals)
+  private static final String CACHE_TTL = "cacheTtlInMinutes";
+  private static final String CACHE_FILE = "cacheFile";
+  private static final String CACHE_GRANULARITY = "cacheGranularityInMinutes";
+  
+  // Seconds to remember users without an accessible calendar (0: never)
+  private static final String NEGATIVE_TTL = "negativeCacheTtlInSeconds";
+  
+  // Prefetching: how many of the most searched-for users to keep fresh in
+  // the cache (0: none), for how many days from today, and how often
+  private static final String PREFETCH_TARGETS = "prefetchTargets";
+  private static final String PREFETCH_DAYS = "prefetchDays";
+  private static final String PREFETCH_INTERVAL = "prefetchIntervalInSeconds";
+  
+  private final ServiceHolder<CalendarService> calendarService = 
+    new ServiceHolder<CalendarService>() {
+      @Override
+      protected CalendarService create() {
+        return auth(pooled(new CalendarService("exchangeInteropCal")));
+      }
+      
+      @Override
+      protected long getRefreshIntervalInMillis() {
+        return getLoginRefreshInMillis();
+      }
+    };
+  private final ServiceHolder<UserService> userService = 
+    new ServiceHolder<UserService>() {
+      @Override
+      protected UserService create() {
+        return auth(pooled(new UserService("exchangeInteropUser")));
+      }
+      
+      @Override
+      protected long getRefreshIntervalInMillis() {
+        return getLoginRefreshInMillis();
+      }
+    };
+  private volatile long loginRefreshInMillis = -1;
   private ConnectionThrottle throttle;
   
+  // Created on first use from the configuration, so that it can still be
+  // changed after construction
+  private final Lazy<PooledConnectionSource> connectionSource = 
+    new Lazy<PooledConnectionSource>() {
+      @Override
+      protected PooledConnectionSource create() {
+        return createConnectionSource();
+      }
+    };
+  private final Lazy<RateController> rateController = 
+    new Lazy<RateController>() {
+      @Override
+      protected RateController create() {
+        return createRateController();
+      }
+    };
+  private final Lazy<ExecutorService> fetchExecutor = 
+    new Lazy<ExecutorService>() {
+      @Override
+      protected ExecutorService create() {
+        return createFetchExecutor();
+      }
+    };
+  private final Lazy<FreeBusyCache> cache = 
+    new Lazy<FreeBusyCache>() {
+      @Override
+      protected FreeBusyCache create() {
+        return createCache();
+      }
+    };
+  private final Lazy<NegativeCache> negativeCache = 
+    new Lazy<NegativeCache>() {
+      @Override
+      protected NegativeCache create() {
+        return createNegativeCache();
+      }
+    };
+  private final Lazy<Prefetcher> prefetcher = 
+    new Lazy<Prefetcher>() {
+      @Override
+      protected Prefetcher create() {
+        return createPrefetcher();
+      }
+    };
+  
 
   public GDataAccessObject() {
     super("gdata");
     registerParameter(USER, string);
     registerParameter(PASS, string);
     registerParameter(DOMAIN, string);
+    registerParameter(
+        APPS_FEEDS_URL, string, "https://www.google.com/a/feeds/");
+    registerParameter(
+        CALENDAR_FEEDS_URL, string, "https://www.google.com/calendar/feeds/");
+    registerParameter(AUTH_TOKEN, string, "");
+    registerParameter(ADAPTIVE_RATE, bool, "true");
+    registerParameter(MIN_RATE, integer, "2");
+    registerParameter(MAX_RATE, integer, "30");
+    registerParameter(TARGET_LATENCY, integer, "3000");
+    registerParameter(FETCH_THREADS, integer, "20");
+    registerParameter(FETCH_QUEUE, integer, "20");
+    registerParameter(LEAN_FETCH, bool, "true");
+    registerParameter(REFRESH_INTERVAL, integer, "60");
+    registerParameter(POOL_SIZE, integer, "20");
+    registerParameter(CACHE_TTL, integer, "10");
+    registerParameter(CACHE_FILE, string, "");
+    registerParameter(CACHE_GRANULARITY, integer, "0");
+    registerParameter(NEGATIVE_TTL, integer, "300");
+    registerParameter(PREFETCH_TARGETS, integer, "20");
+    registerParameter(PREFETCH_DAYS, integer, "7");
+    registerParameter(PREFETCH_INTERVAL, integer, "60");
     throttle = new ConnectionThrottle();
   }
   
@@ -73,11 +228,254 @@ class GDataAccessObject extends Configurable {
     throttle.setMaxRequestsPerSecond(max);    
   }
   
+  /**
+   * Gets the rate controller, which is created on first use from the
+   * configuration with the throttle's maximum as its initial limit
+   * @return the rate controller, or null if the rate is not adaptive
+   */
+  RateController getRateController() {
+    return rateController.get();
+  }
+  
+  private RateController createRateController() {
+    if (!getBoolean(ADAPTIVE_RATE)) {
+      return null;
+    }
+    return new RateController(throttle,
+        throttle.getMaxRequestsPerSecond(),
+        getInteger(MIN_RATE).intValue(),
+        getInteger(MAX_RATE).intValue(),
+        getInteger(TARGET_LATENCY));
+  }
+  
+  /**
+   * @return the number of requests per second currently permitted
+   */
+  public int getCurrentRequestsPerSecond() {
+    return throttle.getMaxRequestsPerSecond();
+  }
+  
+  /**
+   * "Releases" the throttle after a call
+   * @param success whether the call went through
+   * @param startTime when the call started
+   * @param requests the number of http requests the call made
+   */
+  private void release(boolean success, long startTime, int requests) {
+    if (success) {
+      throttle.reportSuccess();
+    } else {
+      throttle.reportFailure();
+    }
+    final RateController controller = getRateController();
+    if (controller != null) {
+      controller.report(success, 
+          (System.currentTimeMillis() - startTime) / Math.max(requests, 1));
+    }
+    throttle.rewindTimer();
+  }
+  
+  /**
+   * Gets the free/busy cache, which is created (and loaded from its file)
+   * on first use
+   * @return the cache, or null if busy times are not cached
+   */
+  FreeBusyCache getCache() {
+    return cache.get();
+  }
+  
+  private FreeBusyCache createCache() {
+    final long ttl = getInteger(CACHE_TTL) * 60000;
+    if (ttl <= 0) {
+      return null;
+    }
+    final String fileName = getString(CACHE_FILE).trim();
+    long granularity = getInteger(CACHE_GRANULARITY);
+    if (granularity < 0 || (granularity > 0 && 1440 % granularity != 0)) {
+      LOGGER.log(Level.SEVERE, CACHE_GRANULARITY + " must divide a day " +
+          "(1440 minutes); caching exact busy times instead.");
+      granularity = 0;
+    }
+    return new FreeBusyCache(ttl, granularity * 60000,
+        (fileName.length() > 0) ? new File(fileName) : null);
+  }
+  
+  /**
+   * Gets the prefetcher, which is created and started on first use
+   * @return the prefetcher, or null if there is no prefetching (or no
+   *   cache to prefetch into)
+   */
+  Prefetcher getPrefetcher() {
+    return prefetcher.get();
+  }
+  
+  private Prefetcher createPrefetcher() {
+    final int targets = getInteger(PREFETCH_TARGETS).intValue();
+    if (targets <= 0 || getCache() == null) {
+      return null;
+    }
+    final long interval = getInteger(PREFETCH_INTERVAL) * 1000;
+    final Prefetcher result = new Prefetcher(targets) {
+      @Override
+      boolean hasCapacity() {
+        return throttle.hasSpareCapacity();
+      }
+      
+      @Override
+      boolean refresh(String user) {
+        return prefetch(user, interval);
+      }
+    };
+    result.start(interval);
+    return result;
+  }
+  
+  /**
+   * Fetches the days of a user's prefetch range that are missing in the
+   * cache or will be stale before the next round
+   * @return whether anything was fetched
+   */
+  boolean prefetch(String userEmail, long marginInMillis) {
+    final FreeBusyCache cache = getCache();
+    if (cache == null || isKnownToFail(userEmail)) {
+      return false;
+    }
+    final long fromUtc = FreeBusyCache.dayStart(System.currentTimeMillis());
+    final long untilUtc = 
+      fromUtc + getInteger(PREFETCH_DAYS) * FreeBusyCache.DAY - 1;
+    final long[] missing = 
+      cache.findMissing(userEmail, fromUtc, untilUtc, marginInMillis);
+    if (missing == null) {
+      return false;
+    }
+    final BusyIntervals fetched = 
+      fetchBusyIntervals(userEmail, missing[0], missing[1]);
+    if (fetched != null) {
+      cache.put(userEmail, missing[0], missing[1], fetched);
+    }
+    return true;
+  }
+  
+  /**
+   * Records a search for a user, so the prefetcher knows who is popular
+   */
+  private void recordSearch(String userEmail) {
+    final Prefetcher prefetcher = getPrefetcher();
+    if (prefetcher != null) {
+      prefetcher.record(userEmail);
+    }
+  }
+  
+  /**
+   * Gets the cache of users without an accessible calendar, which is 
+   * created on first use
+   * @return the cache, or null if such users are not remembered
+   */
+  NegativeCache getNegativeCache() {
+    return negativeCache.get();
+  }
+  
+  private NegativeCache createNegativeCache() {
+    final long ttl = getInteger(NEGATIVE_TTL) * 1000;
+    return (ttl > 0) ? new NegativeCache(ttl) : null;
+  }
+  
+  /**
+   * @return whether a user's calendar was found to be missing or not
+   *   accessible recently
+   */
+  private boolean isKnownToFail(String userEmail) {
+    final NegativeCache cache = getNegativeCache();
+    return cache != null && cache.contains(userEmail);
+  }
+  
+  // How Google says that a 403 is about the rate of requests or a quota
+  private static final String[] LIMIT_REASONS = {
+    "ratelimitexceeded", "quotaexceeded", "dailylimitexceeded", 
+    "limit exceeded", "limits exceeded"
+  };
+  
+  /**
+   * Checks whether an exception says that a calendar does not exist or is
+   * not accessible, rather than that something is wrong with the 
+   * connection. If so, the user is remembered in the negative cache. A 403
+   * for an exceeded rate or quota is not about the calendar. Visible for
+   * testing.
+   * @return whether the exception was about the calendar
+   */
+  boolean isCalendarProblem(ServiceException e, String userEmail) {
+    if (!(e instanceof ResourceNotFoundException) &&
+        !(e instanceof ServiceForbiddenException)) {
+      return false;
+    }
+    if (isLimitExceeded(e)) {
+      LOGGER.log(Level.WARNING, "Google limits the requests: " + 
+          e.getMessage());
+      return false;
+    }
+    LOGGER.log(Level.INFO, "No accessible calendar for " + userEmail + 
+        ": " + e.getMessage());
+    final NegativeCache cache = getNegativeCache();
+    if (cache != null) {
+      cache.add(userEmail);
+    }
+    return true;
+  }
+  
+  /**
+   * Checks whether Google refused a request because a limit was exceeded,
+   * judging by the reason code, message and body of the error
+   */
+  static boolean isLimitExceeded(ServiceException e) {
+    final String text = (e.getCodeName() + " " + e.getInternalReason() + 
+        " " + e.getResponseBody()).toLowerCase(Locale.ENGLISH);
+    for (String reason : LIMIT_REASONS) {
+      if (text.contains(reason)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Gets the connection source shared by all services, which is created
+   * on first use
+   * @return the connection source, or null if the JDK's connection
+   *   handling is used as is
+   */
+  PooledConnectionSource getConnectionSource() {
+    return connectionSource.get();
+  }
+  
+  private PooledConnectionSource createConnectionSource() {
+    final int poolSize = getInteger(POOL_SIZE).intValue();
+    return (poolSize > 0) ? new PooledConnectionSource(poolSize) : null;
+  }
+  
+  /**
+   * Makes a service open its connections through the shared connection
+   * source
+   */
+  private <T extends GoogleService> T pooled(T service) {
+    final PooledConnectionSource source = getConnectionSource();
+    if (source != null && 
+        service.getRequestFactory() instanceof HttpGDataRequest.Factory) {
+      ((HttpGDataRequest.Factory) service.getRequestFactory())
+          .setConnectionSource(source);
+    }
+    return service;
+  }
+  
   /**
    * Sets the user credentials for a given service as embedded in this
    * object's configuration
    */
   private<T extends GoogleService> T auth(T service) {
+    final String token = getString(AUTH_TOKEN).trim();
+    if (token.length() > 0) {
+      service.setUserToken(token);
+      return service;
+    }
     try {
       service.setUserCredentials(getString(USER), getString(PASS));
     } catch (AuthenticationException e) {
@@ -90,34 +488,50 @@ class GDataAccessObject extends Configurable {
   }
   
   private String getDomainBase() {
-    return APPS_FEEDS_URL_BASE + getDomain() + "/";
+    return withSlash(getString(APPS_FEEDS_URL)) + getDomain() + "/";
   }
   
-  public synchronized CalendarService getCalendarService() {
-    if (calendarService == null) {
-      calendarService = auth(new CalendarService("exchangeInteropCal"));
-    }
-    return calendarService;
+  private String getCalendarBase() {
+    return withSlash(getString(CALENDAR_FEEDS_URL));
+  }
+  
+  private static String withSlash(String url) {
+    final String trimmed = url.trim();
+    return trimmed.endsWith("/") ? trimmed : trimmed + "/";
   }
   
-  public synchronized UserService getUserService() {
-    if (userService == null) {
-      userService = auth(new UserService("exchangeInteropUser"));
+  private long getLoginRefreshInMillis() {
+    long result = loginRefreshInMillis;
+    if (result < 0) {
+      result = getInteger(REFRESH_INTERVAL) * 60000;
+      loginRefreshInMillis = result;
     }
-    return userService;
+    return result;
+  }
+  
+  public CalendarService getCalendarService() {
+    return calendarService.get();
+  }
+  
+  public UserService getUserService() {
+    return userService.get();
   }
   
   /**
    * This method is called when the use of the Gdata Api threw an Exception.
-   * The method will determine whether to abandon the current client and
-   * start a new instance instead.
+   * The method will determine whether to abandon the client that failed
+   * and log in again instead.
    * @param e the exception that was thrown
+   * @param service the service that threw it
    */
-  synchronized void onException(ServiceException e) {
+  void onException(ServiceException e, GoogleService service) {
     Preconditions.checkNotNull(e);
     if (e instanceof AuthenticationException) {
-      userService = null;
-      calendarService = null;
+      if (service instanceof CalendarService) {
+        calendarService.invalidate((CalendarService) service);
+      } else if (service instanceof UserService) {
+        userService.invalidate((UserService) service);
+      }
     }
   }
   
@@ -151,6 +565,8 @@ class GDataAccessObject extends Configurable {
     throttle.checkoutTimer();
     LOGGER.log(Level.INFO, "Retrieving all users.");
     boolean connectionProblem = true;
+    final long startTime = System.currentTimeMillis();
+    int requests = 0;
     try {
       
       final UserService service = getUserService();
@@ -169,13 +585,14 @@ class GDataAccessObject extends Configurable {
         UserFeed currentPage = null;
         try {
           LOGGER.log(Level.FINE, "Query: " + retrieveUrl);
+          requests++;
           currentPage = service.getFeed(retrieveUrl, UserFeed.class);
         } catch (AppsForYourDomainException e) {
           exception = e;
         } catch (IOException e) {
           exception = e;
         } catch (ServiceException e) {
-          onException(e);
+          onException(e, service);
           exception = e;
         }
         if (exception != null) {
@@ -203,17 +620,236 @@ class GDataAccessObject extends Configurable {
       
     // "Release" this code block after the appropriate amount of time
     } finally {
-      if (connectionProblem) {
-        throttle.reportFailure();
-      } else {
-        throttle.reportSuccess();
-      }
-      throttle.rewindTimer();
+      release(!connectionProblem, startTime, requests);
     }
   }
   
+  /**
+   * @return whether retrieveBusyIntervalsAsync runs fetches on threads of its own
+   */
+  public boolean isAsync() {
+    return getInteger(FETCH_THREADS) > 0;
+  }
+  
+  /**
+   * Gets the executor for asynchronous fetches, creating it on first use.
+   * Only a few fetches wait in its queue; once that is full, the caller
+   * runs the fetch itself. The backlog thus stays in the execution stage's
+   * sink, which decides whose searches go first and sheds the stale ones.
+   */
+  private ExecutorService getFetchExecutor() {
+    return fetchExecutor.get();
+  }
+  
+  private ExecutorService createFetchExecutor() {
+    final AtomicInteger threadCount = new AtomicInteger();
+    final int threads = Math.max(getInteger(FETCH_THREADS).intValue(), 1);
+    return new ThreadPoolExecutor(threads, threads,
+        0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(
+            Math.max(getInteger(FETCH_QUEUE).intValue(), 1)),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            final Thread thread = 
+              new Thread(r, "gdataFetch@" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+          }
+        },
+        new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+  
+  /**
+   * Retrieves the busy times like retrieveBusyIntervals, but on one of a
+   * few fetch threads, so the caller does not wait for the throttle or the
+   * server. Fetches that cannot start right away are queued, as long as
+   * the queue is not full; otherwise the fetch runs on the caller's thread.
+   * @param deadlineUtc the time after which the busy times are not needed
+   *   anymore, 0 for none. A fetch that has not started by then is skipped.
+   * @param continuation called on the fetch thread with the busy times,
+   *   or with null if they could not be retrieved (or were not needed 
+   *   anymore)
+   * @return the result of the continuation, once it is available
+   */
+  public <T> Future<T> retrieveBusyIntervalsAsync(final String userEmail,
+      final long fromUtc, final long untilUtc, final long deadlineUtc,
+      final Function<BusyIntervals, T> continuation) {
+    Preconditions.checkNotNull(continuation);
+    
+    // Cached results are passed on right away, as are users that are known
+    // to fail (which are not worth prefetching either)
+    final boolean knownToFail = isKnownToFail(userEmail);
+    if (!knownToFail) {
+      recordSearch(userEmail);
+    }
+    final FreeBusyCache cache = getCache();
+    final BusyIntervals cached = (cache == null || knownToFail) ? 
+        null : cache.get(userEmail, fromUtc, untilUtc);
+    if (cached != null || knownToFail) {
+      final FutureTask<T> done = new FutureTask<T>(new Callable<T>() {
+        public T call() {
+          return continuation.apply(cached);
+        }
+      });
+      done.run();
+      return done;
+    }
+    return getFetchExecutor().submit(new Callable<T>() {
+      public T call() {
+        BusyIntervals intervals = null;
+        if (deadlineUtc > 0 && System.currentTimeMillis() > deadlineUtc) {
+          LOGGER.log(Level.FINE, "Deadline expired, skipping lookup for " +
+              userEmail);
+          return continuation.apply(null);
+        }
+        if (isKnownToFail(userEmail)) {
+          LOGGER.log(Level.FINE, "Skipping lookup for " + userEmail);
+          return continuation.apply(null);
+        }
+        try {
+          intervals = (cache == null) ?
+              fetchBusyIntervals(userEmail, fromUtc, untilUtc) :
+              fillFromCache(cache, userEmail, fromUtc, untilUtc);
+        } catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING, 
+              "Could not retrieve f/b data for " + userEmail, e);
+        }
+        return continuation.apply(intervals);
+      }
+    });
+  }
+  
   private static final int FETCH_SIZE = 50;
   
+  // Partial response: only the times of the entries
+  private static final String LEAN_FIELDS = "entry(gd:when)";
+  
+  /**
+   * Builds the url of the first free/busy feed page, without start index
+   */
+  private String getFreeBusyUrl(
+      String userEmail, long fromUtc, long untilUtc) {
+    return String.format(
+        "%s%s/private/free-busy" +
+        "?start-min=%s&start-max=%s&max-results=%s",
+      getCalendarBase(),
+      userEmail,
+      new DateTime(fromUtc).toString(),
+      new DateTime(untilUtc).toString(),
+      FETCH_SIZE
+      );
+  }
+  
+  /**
+   * Retrieves the busy times of a particular user in a particular
+   * timeframe. They are taken from the cache where possible: only the days
+   * that are missing in it (from the first to the last of them) are 
+   * fetched and cached, the rest is assembled from the cached days.
+   * @param userEmail the google email address of the user
+   * @param fromUtc the lower bound of the search interval in Utc format
+   * @param untilUtc the upper bound of the search interval in Utc format
+   * @return the busy times, or null if they could not be retrieved
+   */
+  public BusyIntervals 
+      retrieveBusyIntervals(String userEmail, long fromUtc, long untilUtc) {
+    if (isKnownToFail(userEmail)) {
+      LOGGER.log(Level.FINE, "Skipping lookup for " + userEmail);
+      return null;
+    }
+    recordSearch(userEmail);
+    final FreeBusyCache cache = getCache();
+    if (cache == null) {
+      return fetchBusyIntervals(userEmail, fromUtc, untilUtc);
+    }
+    Preconditions.checkNotNull(userEmail);
+    if (fromUtc > untilUtc) {
+      throw new IllegalArgumentException("fromUtc > untilUtc");
+    }
+    final BusyIntervals cached = cache.get(userEmail, fromUtc, untilUtc);
+    if (cached != null) {
+      return cached;
+    }
+    return fillFromCache(cache, userEmail, fromUtc, untilUtc);
+  }
+  
+  /**
+   * Retrieves busy times that the cache could not answer on its own: the
+   * missing days are fetched and cached, then the busy times are assembled
+   * from the cache. The search was counted as a miss already, so the
+   * lookups in here do not count.
+   */
+  private BusyIntervals fillFromCache(FreeBusyCache cache,
+      String userEmail, long fromUtc, long untilUtc) {
+    final long[] missing = cache.findMissing(userEmail, fromUtc, untilUtc);
+    if (missing != null) {
+      final BusyIntervals fetched = 
+        fetchBusyIntervals(userEmail, missing[0], missing[1]);
+      if (fetched == null) {
+        return null;
+      }
+      cache.put(userEmail, missing[0], missing[1], fetched);
+    }
+    final BusyIntervals assembled = 
+      cache.get(userEmail, fromUtc, untilUtc, false);
+    if (assembled != null) {
+      return assembled;
+    }
+    
+    // Cached days went stale in the meantime: fetch everything
+    final long fetchFrom = FreeBusyCache.dayStart(fromUtc);
+    final long fetchUntil = FreeBusyCache.dayEnd(untilUtc);
+    final BusyIntervals fetched = 
+      fetchBusyIntervals(userEmail, fetchFrom, fetchUntil);
+    if (fetched != null) {
+      cache.put(userEmail, fetchFrom, fetchUntil, fetched);
+    }
+    return fetched;
+  }
+  
+  /**
+   * Fetches the busy times of a particular user in a particular timeframe
+   * from Google. With gdata.leanFetch, only the times are requested and 
+   * they are read from the compressed response with a streaming parser;
+   * otherwise the feeds of retrieveFreeBusy are converted.
+   * @return the busy times, or null if they could not be retrieved
+   */
+  private BusyIntervals 
+      fetchBusyIntervals(String userEmail, long fromUtc, long untilUtc) {
+    if (!getBoolean(LEAN_FETCH)) {
+      return SearchHandler.toIntervals(
+          retrieveFreeBusy(userEmail, fromUtc, untilUtc));
+    }
+    final String fields;
+    try {
+      fields = "&fields=" + URLEncoder.encode(LEAN_FIELDS, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError("UTF-8 is always supported");
+    }
+    final BusyIntervals result = new BusyIntervals();
+    LOGGER.log(Level.INFO, "Retrieving busy times for " + userEmail + ".");
+    final boolean complete = readFreeBusyPages(userEmail, fromUtc, untilUtc, 
+        fields, new PageReader() {
+          public int read(CalendarService service, URL url) 
+              throws IOException, ServiceException, XMLStreamException {
+            final GDataRequest request = service.createRequest(
+                GDataRequest.RequestType.QUERY, url, ContentType.ATOM);
+            try {
+              request.setHeader("Accept-Encoding", "gzip");
+              request.execute();
+              final InputStream in = request.getResponseStream();
+              try {
+                return BusyIntervalParser.parse(in, result);
+              } finally {
+                in.close();
+              }
+            } finally {
+              request.end();
+            }
+          }
+        });
+    return complete ? result : null;
+  }
+  
   /** 
    * Retrieves the free/busy information for a particular user in a
    * particular timeframe.
@@ -223,78 +859,103 @@ class GDataAccessObject extends Configurable {
    */
   public Iterable<CalendarEventFeed> 
       retrieveFreeBusy(String userEmail, long fromUtc, long untilUtc) {
+    final List<CalendarEventFeed> result = new ArrayList<CalendarEventFeed>();
+    LOGGER.log(Level.INFO, "Retrieving free/busy feed for " + userEmail + ".");
+    final boolean complete = readFreeBusyPages(userEmail, fromUtc, untilUtc, 
+        "", new PageReader() {
+          public int read(CalendarService service, URL url) 
+              throws IOException, ServiceException {
+            final CalendarEventFeed feed = 
+              service.getFeed(url, CalendarEventFeed.class);
+            result.add(feed);
+            return feed.getEntries().size();
+          }
+        });
+    return complete ? result : null;
+  }
+  
+  /**
+   * Reads one page of a free/busy feed
+   */
+  private interface PageReader {
+    
+    /**
+     * Fetches the page at a url and keeps what is on it
+     * @return the number of entries on the page
+     */
+    int read(CalendarService service, URL url) 
+        throws IOException, ServiceException, XMLStreamException;
+  }
+  
+  /**
+   * Reads all pages of a user's free/busy feed, going through the throttle
+   * and telling calendar problems from connection problems
+   * @param parameters appended to the feed url
+   * @param reader reads each page
+   * @return whether all pages could be read
+   */
+  private boolean readFreeBusyPages(String userEmail, long fromUtc, 
+      long untilUtc, String parameters, PageReader reader) {
+    
     // Check prerequisites
     Preconditions.checkNotNull(userEmail);
     if (fromUtc > untilUtc) {
       throw new IllegalArgumentException("fromUtc > untilUtc");
     }
+    final String base = getFreeBusyUrl(userEmail, fromUtc, untilUtc) + 
+      parameters + "&start-index=";
 
     // Check if we need to wait, then fetch user service
     throttle.checkoutTimer();
-    LOGGER.log(Level.INFO, "Retrieving free/busy feed for " + userEmail + ".");
     boolean connectionProblem = true;
+    final long startTime = System.currentTimeMillis();
+    int requests = 0;
     try {
       
       final CalendarService service = getCalendarService();
       if (service == null) {
         LOGGER.log(Level.SEVERE, "Could not retrieve service");
-        return null;      
+        return false;      
       }
-      URL feedUrl;
-      String base = String.format(
-          "https://www.google.com/calendar/feeds/%s/private/free-busy" +
-          "?start-min=%s&start-max=%s&max-results=%s",
-        userEmail,
-        new DateTime(fromUtc).toString(),
-        new DateTime(untilUtc).toString(),
-        FETCH_SIZE
-        );
-      try {
-        feedUrl = new URL(base);
-        LOGGER.log(Level.FINE, "Base query: " + feedUrl);
-      } catch (MalformedURLException e) {
-        LOGGER.log(Level.SEVERE, "Malformed feed url", e);
-        return null;      
-      }
-      base += "&start-index=";
       
       // Perform the queries
-      List<CalendarEventFeed> result = new ArrayList<CalendarEventFeed>();
       for (int index = 1; (index - 1) % FETCH_SIZE == 0; ) {
         try {
           LOGGER.log(Level.FINE, "Fetching for start index: " + index);
-          feedUrl = new URL(base + index);
-          CalendarEventFeed feed = 
-            service.getFeed(feedUrl, CalendarEventFeed.class);
-          result.add(feed);
-          if (feed.getEntries().size() == 0) {
+          requests++;
+          final int entries = reader.read(service, new URL(base + index));
+          if (entries == 0) {
             break;
           }
-          index += feed.getEntries().size();
+          index += entries;
+        } catch (MalformedURLException e) {
+          LOGGER.log(Level.SEVERE, "Malformed feed url", e);
+          return false;      
         } catch (IOException e) {
           LOGGER.log(Level.WARNING, "I/O communication failed", e);
-          return null;
+          return false;
+        } catch (XMLStreamException e) {
+          LOGGER.log(Level.WARNING, 
+              "Could not parse f/b data for " + userEmail, e);
+          return false;
         } catch (ServiceException e) {
-          onException(e);
+          if (isCalendarProblem(e, userEmail)) {
+            connectionProblem = false;
+            return false;
+          }
+          onException(e, service);
           LOGGER.log(Level.WARNING, 
               "Problem with accessing f/b data for " + userEmail, e);
-          return null;
+          return false;
         }
       }
       LOGGER.log(Level.FINE, "All subqueries done");
       connectionProblem = false;
-      return result;
-      
+      return true;
       
     // "Release" this code block after the appropriate amount of time
     } finally {
-      if (connectionProblem) {
-        throttle.reportFailure();
-      } else {
-        throttle.reportSuccess();
-      }
-      throttle.rewindTimer();
+      release(!connectionProblem, startTime, requests);
     }
   }
 }
- 
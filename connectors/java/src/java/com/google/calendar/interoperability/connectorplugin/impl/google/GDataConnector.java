@@ -17,8 +17,11 @@ package com.google.calendar.interoperability.connectorplugin.impl.google;
 
 import com.google.calendar.interoperability.connectorplugin.base.CommandHandler;
 import com.google.calendar.interoperability.connectorplugin.base.SelfTestable;
+import com.google.calendar.interoperability.connectorplugin.base.Sink;
 import com.google.calendar.interoperability.connectorplugin.base.messages.AdminCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
 import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
+import com.google.common.base.Nullable;
 
 /**
  * This class sets up a connection to google apps for your domain
@@ -29,11 +32,33 @@ public class GDataConnector implements SelfTestable {
   private GDataAccessObject dao;
   
   public GDataConnector(CommandHandler handler) {
+    this(handler, null);
+  }
+  
+  /**
+   * Constructor
+   * @param handler the command handler to register with
+   * @param responses if set, searches are answered asynchronously into
+   *   this sink (see gdata.fetchThreads), and the handler returns a
+   *   DeferredResponse for them
+   */
+  public GDataConnector(
+      CommandHandler handler, @Nullable Sink<GwResponse> responses) {
     dao = new GDataAccessObject();
     dao.setMaxRequestsPerSecond(10);
-    handler.registerSubhandler(AdminCommand.class, new AdminHandler(dao, null));
+    handler.registerSubhandler(AdminCommand.class, new AdminHandler(dao, null),
+        AdminCommand.DIRECTORY_FIELDS);
     handler.registerSubhandler(
-        SearchCommand.class, new SearchHandler(dao));
+        SearchCommand.class, new SearchHandler(dao, responses),
+        SearchCommand.SEARCH_FIELDS);
+  }
+  
+  /**
+   * Loads the free/busy cache file now rather than on the first search.
+   * Only the service calls this; a self-test leaves the file alone
+   */
+  public void loadCache() {
+    dao.getCache();
   }
   
   /**
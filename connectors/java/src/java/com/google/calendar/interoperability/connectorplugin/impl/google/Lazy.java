@@ -0,0 +1,49 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+/**
+ * A value that is created on first use. Only the first callers wait for
+ * it (on the holder, not on its owner); after that, getting it takes no
+ * lock, so it stays off the search path.
+ */
+abstract class Lazy<T> {
+
+  // Set once the value is created; publishes the value
+  private volatile boolean created;
+  private T value;
+
+  /**
+   * Creates the value
+   * @return the value, null if there is none
+   */
+  protected abstract T create();
+
+  /**
+   * @return the value, created by the first call
+   */
+  T get() {
+    if (!created) {
+      synchronized (this) {
+        if (!created) {
+          value = create();
+          created = true;
+        }
+      }
+    }
+    return value;
+  }
+}
@@ -0,0 +1,109 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers for a while which users Google does not know or does not
+ * share a calendar of, so that repeated searches for them are answered
+ * without asking Google again
+ */
+class NegativeCache {
+
+  // Above this size, entries that have expired are purged
+  private static final int PURGE_SIZE = 10000;
+
+  private final long ttlInMillis;
+  private final ConcurrentMap<String, Long> expiries =
+    new ConcurrentHashMap<String, Long>();
+
+  // Statistics
+  private final AtomicLong hits = new AtomicLong();
+
+  /**
+   * Constructor
+   * @param ttlInMillis how long a user is remembered
+   */
+  NegativeCache(long ttlInMillis) {
+    Preconditions.checkArgument(ttlInMillis > 0);
+    this.ttlInMillis = ttlInMillis;
+  }
+
+  /**
+   * Gets the current system time. Will be overwritten for unit tests.
+   */
+  long getTime() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Remembers a user that could not be looked up
+   */
+  void add(String user) {
+    final long now = getTime();
+    if (expiries.size() >= PURGE_SIZE) {
+      purge(now);
+    }
+    expiries.put(user, now + ttlInMillis);
+  }
+
+  /**
+   * @return whether a user could not be looked up recently
+   */
+  boolean contains(String user) {
+    final Long expiry = expiries.get(user);
+    if (expiry == null) {
+      return false;
+    }
+    if (expiry <= getTime()) {
+
+      // Leaves the user alone if add() has renewed the entry meanwhile
+      expiries.remove(user, expiry);
+      return false;
+    }
+    hits.incrementAndGet();
+    return true;
+  }
+
+  private void purge(long now) {
+    for (Iterator<Long> i = expiries.values().iterator(); i.hasNext(); ) {
+      if (i.next() <= now) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the number of users remembered (expired or not)
+   */
+  int size() {
+    return expiries.size();
+  }
+
+  /**
+   * @return the number of lookups answered from this cache
+   */
+  long getHitCount() {
+    return hits.get();
+  }
+}
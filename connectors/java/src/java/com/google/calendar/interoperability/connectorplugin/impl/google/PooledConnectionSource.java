@@ -0,0 +1,167 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import com.google.gdata.client.http.HttpUrlConnectionSource;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens the http connections for the GData services so that they are
+ * kept alive and reused. The JDK keeps idle connections in a cache, but
+ * by default only 5 per server and only for connections made with the
+ * same socket factory; with more fetch threads than that, most requests
+ * would pay for a new TCP connection and TLS handshake. This source sizes
+ * the cache to the pool size and uses one socket factory for all https
+ * connections, so idle connections are found again and new ones can
+ * resume an earlier TLS session. It also counts requests and new
+ * connections, which shows how well the pool works.
+ */
+class PooledConnectionSource implements HttpUrlConnectionSource {
+
+  private static final Logger LOGGER =
+    Logger.getLogger(PooledConnectionSource.class.getName());
+
+  // The JDK's setting for the idle connections kept per server
+  static final String MAX_CONNECTIONS_PROPERTY = "http.maxConnections";
+
+  /**
+   * A socket factory that counts the connections it creates
+   */
+  private class CountingSocketFactory extends SSLSocketFactory {
+
+    private final SSLSocketFactory wrapped;
+
+    CountingSocketFactory(SSLSocketFactory wrapped) {
+      this.wrapped = wrapped;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+      return wrapped.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+      return wrapped.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+      newConnections.incrementAndGet();
+      return wrapped.createSocket();
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port,
+        boolean autoClose) throws IOException {
+      newConnections.incrementAndGet();
+      return wrapped.createSocket(s, host, port, autoClose);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      newConnections.incrementAndGet();
+      return wrapped.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost,
+        int localPort) throws IOException {
+      newConnections.incrementAndGet();
+      return wrapped.createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port)
+        throws IOException {
+      newConnections.incrementAndGet();
+      return wrapped.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port,
+        InetAddress localAddress, int localPort) throws IOException {
+      newConnections.incrementAndGet();
+      return wrapped.createSocket(address, port, localAddress, localPort);
+    }
+  }
+
+  private final SSLSocketFactory socketFactory;
+
+  // Statistics
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong newConnections = new AtomicLong();
+
+  /**
+   * Constructor
+   * @param poolSize the number of idle connections to keep per server.
+   *   Only takes effect if the http.maxConnections system property is not
+   *   set and no http connection has been made yet.
+   */
+  PooledConnectionSource(int poolSize) {
+    if (System.getProperty(MAX_CONNECTIONS_PROPERTY) == null) {
+      System.setProperty(MAX_CONNECTIONS_PROPERTY, String.valueOf(poolSize));
+    } else {
+      LOGGER.log(Level.INFO, "Keeping " + MAX_CONNECTIONS_PROPERTY + "=" +
+          System.getProperty(MAX_CONNECTIONS_PROPERTY));
+    }
+    socketFactory = new CountingSocketFactory(
+        HttpsURLConnection.getDefaultSSLSocketFactory());
+  }
+
+  public HttpURLConnection openConnection(URL url) throws IOException {
+    final HttpURLConnection connection =
+      (HttpURLConnection) url.openConnection();
+    if (connection instanceof HttpsURLConnection) {
+      ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+    }
+    requests.incrementAndGet();
+    return connection;
+  }
+
+  /**
+   * @return the socket factory used for https connections
+   */
+  SSLSocketFactory getSocketFactory() {
+    return socketFactory;
+  }
+
+  /**
+   * @return the number of connections opened so far
+   */
+  long getRequestCount() {
+    return requests.get();
+  }
+
+  /**
+   * @return the number of https connections that could not reuse an idle
+   *   one and needed a new socket (and TLS handshake)
+   */
+  long getNewConnectionCount() {
+    return newConnections.get();
+  }
+}
@@ -0,0 +1,192 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the busy times of the most searched-for users fresh in the cache.
+ * Every search is recorded with a score that fades over time; in each
+ * round, the users with the highest scores are refreshed, for as long as
+ * there is capacity to spare. Searches for them are then answered from the
+ * cache even at peak times.
+ */
+abstract class Prefetcher {
+
+  private static final Logger LOGGER =
+    Logger.getLogger(Prefetcher.class.getName());
+
+  // Scores are multiplied by this after every round
+  static final double DECAY = 0.9;
+
+  // Users scoring less than this are forgotten
+  private static final double MIN_SCORE = 0.1;
+
+  // Only users scoring at least this are refreshed
+  static final double HOT_SCORE = 2;
+
+  private final int targets;
+  private final Map<String, Double> scores = new HashMap<String, Double>();
+
+  // Statistics
+  private final AtomicLong refreshes = new AtomicLong();
+
+  /**
+   * Constructor
+   * @param targets the number of users to keep fresh
+   */
+  Prefetcher(int targets) {
+    Preconditions.checkArgument(targets > 0);
+    this.targets = targets;
+  }
+
+  /**
+   * @return whether requests can be made without slowing down searches
+   */
+  abstract boolean hasCapacity();
+
+  /**
+   * Refreshes the cached busy times of a user, if they need it
+   * @return whether a request was made
+   */
+  abstract boolean refresh(String user);
+
+  /**
+   * Records a search for a user
+   */
+  synchronized void record(String user) {
+    final Double score = scores.get(user);
+    scores.put(user, (score == null) ? 1 : score + 1);
+  }
+
+  /**
+   * @return the users with the highest scores (and at least HOT_SCORE),
+   *   highest first
+   */
+  synchronized List<String> getHottest() {
+    final List<Map.Entry<String, Double>> hot =
+      new ArrayList<Map.Entry<String, Double>>();
+    for (Map.Entry<String, Double> entry : scores.entrySet()) {
+      if (entry.getValue() >= HOT_SCORE) {
+        hot.add(entry);
+      }
+    }
+    Collections.sort(hot, new Comparator<Map.Entry<String, Double>>() {
+      public int compare(
+          Map.Entry<String, Double> a, Map.Entry<String, Double> b) {
+        return b.getValue().compareTo(a.getValue());
+      }
+    });
+    final List<String> result = new ArrayList<String>();
+    for (Map.Entry<String, Double> entry : hot) {
+      if (result.size() == targets) {
+        break;
+      }
+      result.add(entry.getKey());
+    }
+    return result;
+  }
+
+  /**
+   * Lets all scores fade and forgets the users that were not searched for
+   * in a while
+   */
+  synchronized void decay() {
+    for (Iterator<Map.Entry<String, Double>> i =
+        scores.entrySet().iterator(); i.hasNext(); ) {
+      final Map.Entry<String, Double> entry = i.next();
+      final double score = entry.getValue() * DECAY;
+      if (score < MIN_SCORE) {
+        i.remove();
+      } else {
+        entry.setValue(score);
+      }
+    }
+  }
+
+  /**
+   * @return the number of users with a score
+   */
+  synchronized int size() {
+    return scores.size();
+  }
+
+  /**
+   * @return the number of refreshes made so far
+   */
+  long getRefreshCount() {
+    return refreshes.get();
+  }
+
+  /**
+   * Refreshes the hottest users while there is capacity, then lets the
+   * scores fade
+   * @return the number of refreshes made
+   */
+  int runRound() {
+    int count = 0;
+    for (String user : getHottest()) {
+      if (!hasCapacity()) {
+        break;
+      }
+      try {
+        if (refresh(user)) {
+          count++;
+        }
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Could not prefetch for " + user, e);
+      }
+    }
+    decay();
+    refreshes.addAndGet(count);
+    if (count > 0) {
+      LOGGER.log(Level.FINE, "Prefetched busy times for " + count + " users");
+    }
+    return count;
+  }
+
+  /**
+   * Runs a round every interval on a background thread
+   */
+  void start(final long intervalInMillis) {
+    final Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while (true) {
+            Thread.sleep(intervalInMillis);
+            runRound();
+          }
+        } catch (InterruptedException e) {
+          LOGGER.log(Level.INFO, "Prefetching stopped");
+        }
+      }
+    }, "prefetch");
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
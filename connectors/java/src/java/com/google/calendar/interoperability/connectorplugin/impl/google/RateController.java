@@ -0,0 +1,108 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import com.google.common.base.Preconditions;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the request rate Google can sustain, by additive increase and
+ * multiplicative decrease: every time a full second's worth of requests
+ * (as many as the current limit) went through fast enough, the limit is
+ * raised by one; a failed or slow request halves it. The limit stays
+ * between a floor and a ceiling and is applied to a ConnectionThrottle,
+ * which still takes care of backing off after consecutive errors.
+ */
+public class RateController {
+
+  private static final Logger LOGGER =
+    Logger.getLogger(RateController.class.getName());
+
+  private final ConnectionThrottle throttle;
+  private final int floor;
+  private final int ceiling;
+  private final long targetLatencyInMillis;
+
+  // The current limit, and the requests that succeeded since it was raised
+  private int limit;
+  private int goodRequests;
+
+  // When the limit was decreased last; several requests failing at about
+  // the same time only halve it once
+  private long lastDecrease = -1000;
+
+  /**
+   * Constructor; sets the throttle to the initial limit
+   * @param throttle the throttle to adjust
+   * @param initial the initial requests per second
+   * @param floor the minimum requests per second
+   * @param ceiling the maximum requests per second
+   * @param targetLatencyInMillis requests taking longer than this count as
+   *   a sign of overload
+   */
+  public RateController(ConnectionThrottle throttle, int initial, int floor,
+      int ceiling, long targetLatencyInMillis) {
+    Preconditions.checkArgument(floor > 0 && floor <= ceiling);
+    this.throttle = throttle;
+    this.floor = floor;
+    this.ceiling = ceiling;
+    this.targetLatencyInMillis = targetLatencyInMillis;
+    this.limit = Math.max(floor, Math.min(ceiling, initial));
+    throttle.adjustMaxRequestsPerSecond(limit);
+  }
+
+  /**
+   * Gets the current system time. Will be overwritten for unit tests.
+   */
+  long getTime() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Records the outcome of a request and adjusts the limit
+   * @param success whether the request succeeded
+   * @param latencyInMillis how long the request took
+   */
+  public synchronized void report(boolean success, long latencyInMillis) {
+    final int oldLimit = limit;
+    if (!success || latencyInMillis > targetLatencyInMillis) {
+      goodRequests = 0;
+      final long now = getTime();
+      if (now - lastDecrease < 1000) {
+        return;
+      }
+      lastDecrease = now;
+      limit = Math.max(floor, limit / 2);
+    } else if (++goodRequests >= limit) {
+      goodRequests = 0;
+      limit = Math.min(ceiling, limit + 1);
+    }
+    if (limit != oldLimit) {
+      LOGGER.log(limit < oldLimit ? Level.INFO : Level.FINE,
+          "Changing request limit to " + limit + " per second.");
+      throttle.adjustMaxRequestsPerSecond(limit);
+    }
+  }
+
+  /**
+   * @return the current limit in requests per second
+   */
+  public synchronized int getLimit() {
+    return limit;
+  }
+}
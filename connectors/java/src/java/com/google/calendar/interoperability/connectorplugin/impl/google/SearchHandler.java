@@ -16,14 +16,19 @@
 package com.google.calendar.interoperability.connectorplugin.impl.google;
 
 import com.google.calendar.interoperability.connectorplugin.base.BasicSearchHandler;
+import com.google.calendar.interoperability.connectorplugin.base.Sink;
+import com.google.calendar.interoperability.connectorplugin.base.messages.DeferredResponse;
 import com.google.calendar.interoperability.connectorplugin.base.messages.FreeBusyResponse;
 import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
 import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
 import com.google.calendar.interoperability.connectorplugin.base.messages.VoidResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
 import com.google.calendar.interoperability.connectorplugin.base.messages.util.Address;
 import com.google.gdata.data.DateTime;
 import com.google.gdata.data.calendar.CalendarEventEntry;
 import com.google.gdata.data.calendar.CalendarEventFeed;
+import com.google.common.base.Function;
+import com.google.common.base.Nullable;
 import com.google.gdata.data.extensions.When;
 
 import java.text.ParseException;
@@ -39,9 +44,22 @@ import java.util.logging.Level;
 class SearchHandler extends BasicSearchHandler {
   
   private GDataAccessObject dao;
+  private Sink<GwResponse> responses;
   
   public SearchHandler(GDataAccessObject dataAccess) {
+    this(dataAccess, null);
+  }
+  
+  /**
+   * Constructor
+   * @param dataAccess the access object for the queries
+   * @param responses if set and the access object is asynchronous, searches
+   *   are answered asynchronously into this sink
+   */
+  public SearchHandler(
+      GDataAccessObject dataAccess, @Nullable Sink<GwResponse> responses) {
     this.dao = dataAccess;
+    this.responses = responses;
   }
   
   private static long toMidnight(DateTime time, boolean addOne) {
@@ -66,7 +84,10 @@ class SearchHandler extends BasicSearchHandler {
   }
   
   static long renderFrom(When when) {
-    DateTime time = when.getStartTime();
+    return renderFrom(when.getStartTime());
+  }
+  
+  static long renderFrom(DateTime time) {
     if (time.isDateOnly()) {
       return toMidnight(time, false);
     }
@@ -74,18 +95,44 @@ class SearchHandler extends BasicSearchHandler {
   }
   
   static long renderUntil(When when) {
-    DateTime time = when.getEndTime();
+    return renderUntil(when.getStartTime(), when.getEndTime());
+  }
+  
+  static long renderUntil(DateTime startTime, @Nullable DateTime time) {
     if (time != null) {
       if (time.isDateOnly()) {
         return toMidnight(time, false) - 1;
       }
       return time.getValue();
     }
-    return toMidnight(when.getStartTime(), true) - 1;
+    return toMidnight(startTime, true) - 1;
+  }
+  
+  /**
+   * Collects the busy times of free/busy feeds
+   * @return the busy times, or null if feeds is null
+   */
+  static BusyIntervals toIntervals(
+      @Nullable Iterable<CalendarEventFeed> feeds) {
+    if (feeds == null) {
+      return null;
+    }
+    final BusyIntervals result = new BusyIntervals();
+    for (CalendarEventFeed feed : feeds) {
+      for (CalendarEventEntry event : feed.getEntries()) {
+        List<When> times = event.getTimes();
+        for (When when : times) {
+          final long from = renderFrom(when);
+          result.add(from, Math.max(from, renderUntil(when)));
+        }
+      }
+    }
+    return result;
   }
 
   @Override
-  protected GwResponse handleSearch(SearchCommand command, Address requestor,
+  protected GwResponse handleSearch(
+      final SearchCommand command, Address requestor,
       Address searchFor) {
     
     // Extract the username and times
@@ -95,28 +142,58 @@ class SearchHandler extends BasicSearchHandler {
       logger.log(Level.WARNING, "Could not decode toAddress: " + userName);
       return VoidResponse.invalid(command);      
     }
-    userName = userName.substring(delim + 2);
+    final String user = userName.substring(delim + 2);
     final long from = command.getBeginTime().getTimeInUtc();
     final long until = command.getEndTime().getTimeInUtc();
     
-    // Do the gdata query
-    final Iterable<CalendarEventFeed> feeds = 
-        dao.retrieveFreeBusy(userName, from, until);
-    if (feeds == null) {
+    // Do the gdata query, asynchronously if possible. The command stays
+    // in execution until the response is in the sink.
+    if (responses != null && dao.isAsync()) {
+      final DeferredResponse deferred = new DeferredResponse(command);
+      dao.retrieveBusyIntervalsAsync(user, from, until, command.getDeadline(),
+          new Function<BusyIntervals, GwResponse>() {
+            public GwResponse apply(BusyIntervals intervals) {
+              GwResponse response;
+              try {
+                response = createResponse(command, user, intervals);
+              } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Could not answer search", e);
+                response = VoidResponse.invalid(command);
+              }
+              try {
+                responses.accept(response);
+              } finally {
+                deferred.done();
+              }
+              return response;
+            }
+          });
+      return deferred;
+    }
+    return createResponse(
+        command, user, dao.retrieveBusyIntervals(user, from, until));
+  }
+  
+  /**
+   * Creates the response to a search from the retrieved busy times
+   * @param intervals the busy times, or null if they could not be retrieved
+   *   (or were not fetched since the deadline of the command had passed)
+   */
+  private GwResponse createResponse(SearchCommand command, String userName,
+      @Nullable BusyIntervals intervals) {
+    if (intervals == null && command.getDeadline() > 0 &&
+        System.currentTimeMillis() > command.getDeadline()) {
+      return new VoidResponse(
+          command, "deadline expired before processing", "expired");
+    }
+    if (intervals == null) {
       logger.log(Level.WARNING, "Could not load f/b feed: " + userName);
       return VoidResponse.invalid(command);     
     }
 
     // Create the response object
     final FreeBusyResponse response = new FreeBusyResponse(command);
-    for (CalendarEventFeed feed : feeds) {
-      for (CalendarEventEntry event : feed.getEntries()) {
-        List<When> times = event.getTimes();
-        for (When when : times) {
-          response.addTimeslot(renderFrom(when), renderUntil(when));
-        }
-      }
-    }
+    response.addTimeslots(intervals);
     return response;
   }
 
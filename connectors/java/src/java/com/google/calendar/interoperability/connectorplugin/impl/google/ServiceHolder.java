@@ -0,0 +1,195 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import com.google.common.base.Nullable;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds an authenticated service without locking. Callers get the current
+ * service right away; only while there is none yet (at startup or after
+ * it was invalidated) do they wait, and then all of them wait for the same
+ * login instead of logging in one after the other. Once the service is
+ * older than the refresh interval, a new one is created in the background
+ * and swapped in, so the login token never gets stale on the search path.
+ */
+public abstract class ServiceHolder<T> {
+
+  private static final Logger LOGGER =
+    Logger.getLogger(ServiceHolder.class.getName());
+
+  /**
+   * A service and when it was created
+   */
+  private static class Entry<T> {
+    final T service;
+    final long created;
+
+    Entry(T service, long created) {
+      this.service = service;
+      this.created = created;
+    }
+  }
+
+  private final AtomicReference<Entry<T>> current =
+    new AtomicReference<Entry<T>>();
+
+  // The login in progress, if any
+  private final AtomicReference<FutureTask<T>> pending =
+    new AtomicReference<FutureTask<T>>();
+
+  // Statistics
+  private final AtomicLong logins = new AtomicLong();
+
+  /**
+   * Creates and authenticates a new service
+   * @return the service, or null if authentication failed
+   */
+  protected abstract T create();
+
+  /**
+   * @return the age in milliseconds after which the service is replaced
+   *   in the background, 0 to keep it until it is invalidated
+   */
+  protected abstract long getRefreshIntervalInMillis();
+
+  /**
+   * Gets the current system time. Will be overwritten for unit tests.
+   */
+  long getTime() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Starts a thread for a background refresh. Will be overwritten for
+   * unit tests.
+   */
+  void startBackground(Runnable refresh) {
+    final Thread thread = new Thread(refresh, "serviceRefresh");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return the current service, or null if none could be created
+   */
+  public T get() {
+    final Entry<T> entry = current.get();
+    if (entry == null) {
+      return login(true);
+    }
+    if (isDue(entry)) {
+      login(false);
+    }
+    return entry.service;
+  }
+
+  private boolean isDue(Entry<T> entry) {
+    final long interval = getRefreshIntervalInMillis();
+    return interval > 0 && getTime() - entry.created >= interval;
+  }
+
+  /**
+   * Drops a service that turned out to be unusable, unless it has been
+   * replaced already. The next caller logs in again.
+   */
+  public void invalidate(@Nullable T service) {
+    final Entry<T> entry = current.get();
+    if (entry != null && entry.service == service) {
+      current.compareAndSet(entry, null);
+    }
+  }
+
+  /**
+   * @return the number of logins so far, successful or not
+   */
+  public long getLoginCount() {
+    return logins.get();
+  }
+
+  /**
+   * Logs in, unless a login is in progress already
+   * @param wait whether to log in on this thread and wait for the result,
+   *   rather than in the background
+   * @return the new service if waited for, null otherwise
+   */
+  private T login(boolean wait) {
+    FutureTask<T> task = pending.get();
+    while (task == null) {
+
+      // Somebody else may have logged in since we looked
+      final Entry<T> entry = current.get();
+      if (entry != null && (wait || !isDue(entry))) {
+        return wait ? entry.service : null;
+      }
+      final FutureTask<T> newTask = new FutureTask<T>(new Callable<T>() {
+        public T call() {
+          return replace();
+        }
+      });
+      if (pending.compareAndSet(null, newTask)) {
+        task = newTask;
+        if (wait) {
+          newTask.run();
+        } else {
+          startBackground(newTask);
+        }
+      } else {
+        task = pending.get();
+      }
+    }
+    if (!wait) {
+      return null;
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      LOGGER.log(Level.WARNING, "Could not create service", e.getCause());
+      return null;
+    }
+  }
+
+  /**
+   * Creates a new service and makes it the current one. If that fails,
+   * the old service stays and the next refresh is due after another
+   * interval.
+   */
+  private T replace() {
+    try {
+      logins.incrementAndGet();
+      final T service = create();
+      final Entry<T> old = current.get();
+      if (service != null) {
+        current.set(new Entry<T>(service, getTime()));
+      } else if (old != null) {
+        current.compareAndSet(old, new Entry<T>(old.service, getTime()));
+      }
+      return service;
+    } finally {
+      pending.set(null);
+    }
+  }
+}
@@ -0,0 +1,561 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.integer;
+import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.string;
+
+import com.google.calendar.interoperability.connectorplugin.base.Configurable;
+import com.google.calendar.interoperability.connectorplugin.base.Tuple;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Discrete-event simulation of the ConnectionThrottle. The throttle runs
+ * against a virtual clock, so hours of traffic can be simulated in
+ * seconds. The simulation models the messageExecution stage: requests
+ * arrive according to an arrival process, wait for one of the worker
+ * threads, check out a timer from the throttle (waiting as long as the
+ * real DelayQueue would block), talk to the backend for some latency and
+ * then report success or failure the same way the GDataAccessObject does.
+ *
+ * All parameters live in the "simulator" section of the configuration:
+ * <pre>
+ * durationInSeconds         length of the simulated traffic
+ * maxRequestsPerSecond      throttle setting; a comma-separated list runs
+ *                           one simulation per value
+ * escalationScale           "errors:millis,errors:millis,..." (empty for
+ *                           the built-in table)
+ * workers                   amount of threads calling the backend
+ * arrivals                  constant, poisson or burst
+ * arrivalsPerSecond         average arrival rate (may be fractional)
+ * burstSize                 requests per burst (arrivals=burst)
+ * latencyInMillis           mean backend latency
+ * latency                   fixed or exponential
+ * failurePercentage         share of randomly failing requests
+ * outageStartInSeconds      begin of a full backend outage
+ * outageLengthInSeconds     length of the outage (0 for none)
+ * seed                      random seed, runs are reproducible
+ * </pre>
+ */
+public class ThrottleSimulator extends Configurable {
+
+  private static final Logger LOGGER =
+    Logger.getLogger(ThrottleSimulator.class.getName());
+
+  /**
+   * Supported arrival processes
+   */
+  static enum Arrivals {
+    constant, poisson, burst
+  }
+
+  /**
+   * Supported latency distributions
+   */
+  static enum Latency {
+    fixed, exponential
+  }
+
+  /**
+   * Something that happens at a certain point in virtual time
+   */
+  private abstract static class Event implements Comparable<Event> {
+
+    final long time;
+    final long sequence;
+
+    Event(long time, long sequence) {
+      this.time = time;
+      this.sequence = sequence;
+    }
+
+    abstract void fire();
+
+    public int compareTo(Event o) {
+      if (time != o.time) {
+        return (time < o.time) ? -1 : 1;
+      }
+      return (sequence < o.sequence) ? -1 : (sequence == o.sequence ? 0 : 1);
+    }
+  }
+
+  /**
+   * A request on its way through the stage
+   */
+  private static class Request {
+
+    final long arrival;
+    boolean done;
+
+    Request(long arrival) {
+      this.arrival = arrival;
+    }
+  }
+
+  /**
+   * The outcome of a single simulation run
+   */
+  static class Report {
+
+    private final int maxRequestsPerSecond;
+    private final long duration;
+    private int arrived;
+    private int succeeded;
+    private int failed;
+    private int timedOut;
+    private int maxBacklog;
+    private int maxDelayInMillis;
+    private final List<Long> delays = new ArrayList<Long>();
+    private long firstSuccessAfterOutage = -1;
+    private long recoveredAfterOutage = -1;
+
+    Report(int maxRequestsPerSecond, long duration) {
+      this.maxRequestsPerSecond = maxRequestsPerSecond;
+      this.duration = duration;
+    }
+
+    public int getArrived() {
+      return arrived;
+    }
+
+    public int getSucceeded() {
+      return succeeded;
+    }
+
+    public int getFailed() {
+      return failed;
+    }
+
+    /**
+     * @return the amount of requests that gave up waiting for the throttle
+     */
+    public int getTimedOut() {
+      return timedOut;
+    }
+
+    /**
+     * @return requests still waiting or in flight at the end of the run
+     */
+    public int getUnfinished() {
+      return arrived - succeeded - failed - timedOut;
+    }
+
+    /**
+     * @return successful requests per second, averaged over the run
+     */
+    public double getThroughput() {
+      return succeeded * 1000.0 / duration;
+    }
+
+    /**
+     * @return the largest amount of requests waiting at the same time
+     */
+    public int getMaxBacklog() {
+      return maxBacklog;
+    }
+
+    /**
+     * @return the longest retry delay the throttle escalated to
+     */
+    public int getMaxDelayInMillis() {
+      return maxDelayInMillis;
+    }
+
+    /**
+     * @return the given percentile of the time requests waited between
+     *   arrival and talking to the backend, in milliseconds; -1 if no
+     *   request got that far
+     */
+    public long getQueueingDelay(double percentile) {
+      if (delays.isEmpty()) {
+        return -1;
+      }
+      Collections.sort(delays);
+      final int index = (int) Math.ceil(percentile / 100 * delays.size()) - 1;
+      return delays.get(Math.max(0, Math.min(index, delays.size() - 1)));
+    }
+
+    /**
+     * @return milliseconds between the end of the outage and the first
+     *   successful request; -1 if there was no outage or no success
+     */
+    public long getFirstSuccessAfterOutage() {
+      return firstSuccessAfterOutage;
+    }
+
+    /**
+     * @return milliseconds between the end of the outage and the point in
+     *   time when the throttle was back to normal and the backlog was no
+     *   larger than when the outage started; -1 if that never happened
+     */
+    public long getRecoveryTime() {
+      return recoveredAfterOutage;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%5d %8d %8d %7d %7d %10.2f %8d %8d %8d %8d %8d %10s %10s",
+          maxRequestsPerSecond, arrived, succeeded, failed, timedOut,
+          getThroughput(), getQueueingDelay(50), getQueueingDelay(90),
+          getQueueingDelay(99), getQueueingDelay(100), maxBacklog,
+          formatSeconds(firstSuccessAfterOutage),
+          formatSeconds(recoveredAfterOutage));
+    }
+
+    static String getHeader() {
+      return String.format(
+          "%5s %8s %8s %7s %7s %10s %8s %8s %8s %8s %8s %10s %10s",
+          "max/s", "arrived", "success", "failed", "timeout", "req/s",
+          "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)", "backlog",
+          "1st ok(s)", "recover(s)");
+    }
+
+    private static String formatSeconds(long millis) {
+      return (millis < 0) ? "-" : String.format("%.1f", millis / 1000.0);
+    }
+  }
+
+  /**
+   * A throttle running on the virtual clock of a simulation. Checkouts are
+   * done by the simulation itself, so no thread ever blocks on the queue.
+   */
+  private class SimulatedThrottle extends ConnectionThrottle {
+
+    SimulatedThrottle(List<Tuple<Integer>> escalationScale) {
+      super(escalationScale);
+    }
+
+    @Override
+    long getTime() {
+      return now;
+    }
+
+    @Override
+    double nextRandom() {
+      return random.nextDouble();
+    }
+  }
+
+  // State of the currently running simulation
+  private long now;
+  private long sequence;
+  private Random random;
+  private PriorityQueue<Event> events;
+  private SimulatedThrottle throttle;
+  private LinkedList<Request> backlog;
+  private LinkedList<Request> waiting;
+  private int idleWorkers;
+  private long wakeUpTime;
+  private Report report;
+  private int backlogAtOutageStart;
+
+  public ThrottleSimulator() {
+    super("simulator");
+    registerParameter("durationInSeconds", integer, "14400");
+    registerParameter("maxRequestsPerSecond", string, "10");
+    registerParameter("escalationScale", string, "");
+    registerParameter("workers", integer, "100");
+    registerParameter("arrivals", string, Arrivals.poisson.name());
+    registerParameter("arrivalsPerSecond", string, "5");
+    registerParameter("burstSize", integer, "100");
+    registerParameter("latencyInMillis", integer, "300");
+    registerParameter("latency", string, Latency.exponential.name());
+    registerParameter("failurePercentage", integer, "0");
+    registerParameter("outageStartInSeconds", integer, "3600");
+    registerParameter("outageLengthInSeconds", integer, "0");
+    registerParameter("seed", integer, "0");
+  }
+
+  /**
+   * Parses an escalation scale in the format "errors:millis,..."
+   * Visible for testing.
+   * @return the parsed scale, or the default one for an empty string
+   */
+  static List<Tuple<Integer>> parseEscalationScale(String scale) {
+    if (scale.trim().length() == 0) {
+      return ConnectionThrottle.DEFAULT_ESCALATION_SCALE;
+    }
+    List<Tuple<Integer>> result = new ArrayList<Tuple<Integer>>();
+    int lastErrors = 0;
+    for (String entry : scale.split(",")) {
+      final String[] pair = entry.trim().split(":");
+      if (pair.length != 2) {
+        throw new IllegalArgumentException("Invalid scale entry: " + entry);
+      }
+      final int errors = Integer.parseInt(pair[0].trim());
+      if (errors <= lastErrors) {
+        throw new IllegalArgumentException(
+            "Scale must be ordered by a positive amount of errors: " + scale);
+      }
+      lastErrors = errors;
+      result.add(Tuple.of(errors, Integer.parseInt(pair[1].trim())));
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * @return all throttle settings to simulate
+   */
+  List<Integer> getMaxRequestsPerSecond() {
+    List<Integer> result = new ArrayList<Integer>();
+    for (String value : getString("maxRequestsPerSecond").split(",")) {
+      result.add(Integer.parseInt(value.trim()));
+    }
+    return result;
+  }
+
+  private long seconds(String key) {
+    return getInteger(key) * 1000;
+  }
+
+  private boolean inOutage(long time) {
+    final long start = seconds("outageStartInSeconds");
+    return time >= start && time < start + seconds("outageLengthInSeconds");
+  }
+
+  private void schedule(Event event) {
+    events.add(event);
+  }
+
+  private long nextArrivalGap(Arrivals arrivals, double perMilli) {
+    switch (arrivals) {
+      case constant:
+        return Math.max(1, Math.round(1 / perMilli));
+      case poisson:
+        return Math.round(-Math.log(1 - random.nextDouble()) / perMilli);
+      default:
+        return Math.max(1, Math.round(getInteger("burstSize") / perMilli));
+    }
+  }
+
+  private long nextLatency() {
+    final long mean = getInteger("latencyInMillis");
+    if (Latency.valueOf(getString("latency")) == Latency.fixed) {
+      return mean;
+    }
+    return Math.round(-Math.log(1 - random.nextDouble()) * mean);
+  }
+
+  /**
+   * Schedules the next arrival (or burst of arrivals)
+   */
+  private void scheduleArrival(long time) {
+    final Arrivals arrivals = Arrivals.valueOf(getString("arrivals"));
+    final double perMilli =
+      Double.parseDouble(getString("arrivalsPerSecond")) / 1000;
+    if (perMilli <= 0) {
+      return;
+    }
+    final long next = time + nextArrivalGap(arrivals, perMilli);
+    if (next >= report.duration) {
+      return;
+    }
+    final int amount = (arrivals == Arrivals.burst) ?
+        getInteger("burstSize").intValue() : 1;
+    schedule(new Event(next, sequence++) {
+      @Override
+      void fire() {
+        for (int i = 0; i < amount; i++) {
+          backlog.add(new Request(now));
+          report.arrived++;
+        }
+        scheduleArrival(now);
+      }
+    });
+  }
+
+  /**
+   * The backend call of a request that got a timer
+   */
+  private void startCall(final Request request) {
+    report.delays.add(now - request.arrival);
+    final boolean failure = inOutage(now) ||
+        random.nextInt(100) < getInteger("failurePercentage");
+    schedule(new Event(now + nextLatency(), sequence++) {
+      @Override
+      void fire() {
+        // The same sequence as in the GDataAccessObject
+        if (failure) {
+          throttle.reportFailure();
+          report.failed++;
+        } else {
+          throttle.reportSuccess();
+          report.succeeded++;
+          onSuccess();
+        }
+        throttle.rewindTimer();
+        report.maxDelayInMillis =
+          Math.max(report.maxDelayInMillis, throttle.getDelayInMillis());
+        idleWorkers++;
+      }
+    });
+  }
+
+  private void onSuccess() {
+    final long outageEnd = seconds("outageStartInSeconds") +
+        seconds("outageLengthInSeconds");
+    if (seconds("outageLengthInSeconds") > 0 && now >= outageEnd &&
+        report.firstSuccessAfterOutage < 0) {
+      report.firstSuccessAfterOutage = now - outageEnd;
+    }
+  }
+
+  /**
+   * Moves requests along as far as the current state permits: idle
+   * workers pick up requests from the backlog and start waiting for the
+   * throttle, waiting workers get timers that are due.
+   */
+  private void dispatch() {
+    while (idleWorkers > 0 && !backlog.isEmpty()) {
+      final Request request = backlog.removeFirst();
+      waiting.add(request);
+      idleWorkers--;
+      schedule(new Event(
+          now + throttle.blockTimeInMilliSeconds, sequence++) {
+        @Override
+        void fire() {
+          if (!request.done && waiting.remove(request)) {
+            request.done = true;
+            report.timedOut++;
+            idleWorkers++;
+          }
+        }
+      });
+    }
+    while (!waiting.isEmpty() && throttle.queue.poll() != null) {
+      final Request request = waiting.removeFirst();
+      request.done = true;
+      startCall(request);
+    }
+
+    // Wake up again when the next timer becomes available
+    if (!waiting.isEmpty() && !throttle.queue.isEmpty()) {
+      final long due = now + throttle.queue.peek().getDelay(
+          TimeUnit.MILLISECONDS);
+      if (wakeUpTime <= now || due < wakeUpTime) {
+        wakeUpTime = due;
+        schedule(new Event(due, sequence++) {
+          @Override
+          void fire() {
+            // Nothing to do, dispatching happens after every event
+          }
+        });
+      }
+    }
+
+    // Bookkeeping
+    final int size = backlog.size() + waiting.size();
+    report.maxBacklog = Math.max(report.maxBacklog, size);
+    final long outageStart = seconds("outageStartInSeconds");
+    final long outageEnd = outageStart + seconds("outageLengthInSeconds");
+    if (outageEnd > outageStart) {
+      if (now < outageStart) {
+        backlogAtOutageStart = size;
+      } else if (now >= outageEnd && report.recoveredAfterOutage < 0 &&
+          throttle.numErrors == 0 && size <= backlogAtOutageStart) {
+        report.recoveredAfterOutage = now - outageEnd;
+      }
+    }
+  }
+
+  /**
+   * Runs a single simulation
+   * @param maxRequestsPerSecond the throttle setting to simulate
+   */
+  Report simulate(int maxRequestsPerSecond) {
+    now = 0;
+    sequence = 0;
+    wakeUpTime = 0;
+    backlogAtOutageStart = 0;
+    random = new Random(getInteger("seed"));
+    events = new PriorityQueue<Event>();
+    backlog = new LinkedList<Request>();
+    waiting = new LinkedList<Request>();
+    idleWorkers = getInteger("workers").intValue();
+    report = new Report(maxRequestsPerSecond, seconds("durationInSeconds"));
+    throttle = new SimulatedThrottle(
+        parseEscalationScale(getString("escalationScale")));
+    throttle.setMaxRequestsPerSecond(maxRequestsPerSecond);
+
+    scheduleArrival(0);
+    while (!events.isEmpty() && events.peek().time <= report.duration) {
+      final Event event = events.poll();
+      now = event.time;
+      event.fire();
+      dispatch();
+    }
+    now = report.duration;
+    return report;
+  }
+
+  /**
+   * Runs one simulation for each configured maxRequestsPerSecond
+   */
+  List<Report> simulateAll() {
+    List<Report> result = new ArrayList<Report>();
+    for (int max : getMaxRequestsPerSecond()) {
+      LOGGER.log(Level.FINE, "Simulating maxRequestsPerSecond=" + max);
+      result.add(simulate(max));
+    }
+    return result;
+  }
+
+  /**
+   * Usage: ThrottleSimulator [config file] [simulator.key=value ...]
+   */
+  public static void main(String[] args) throws IOException {
+    Properties properties = new Properties();
+    int first = 0;
+    if (args.length > 0 && args[0].indexOf('=') < 0) {
+      FileInputStream stream = new FileInputStream(args[0]);
+      properties.load(stream);
+      stream.close();
+      first = 1;
+    }
+    for (int i = first; i < args.length; i++) {
+      final int split = args[i].indexOf('=');
+      if (split < 0) {
+        System.out.println(
+            "Usage: ThrottleSimulator [config file] [simulator.key=value ...]");
+        System.exit(1);
+      }
+      properties.setProperty(
+          args[i].substring(0, split), args[i].substring(split + 1));
+    }
+    Configurable.setGlobalConfig(properties);
+
+    // The throttle reports every escalation, which is just noise here
+    Logger.getLogger(ConnectionThrottle.class.getName()).setLevel(
+        Level.WARNING);
+    System.out.println(Report.getHeader());
+    for (Report report : new ThrottleSimulator().simulateAll()) {
+      System.out.println(report);
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.googlev3;
+
+import com.google.calendar.interoperability.connectorplugin.base.LdapUserFilter;
+import com.google.calendar.interoperability.connectorplugin.base.messages.AdminCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GetDirectoryResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.VoidResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.DsUser;
+import com.google.common.base.Function;
+import com.google.common.base.Nullable;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handles incoming admin commands with the users of the Directory API
+ */
+class AdminHandler implements Function<AdminCommand, GwResponse> {
+
+  private static final Logger LOGGER =
+    Logger.getLogger(AdminHandler.class.getName());
+
+  private CalendarV3Client client;
+  private LdapUserFilter filter;
+
+  public AdminHandler(
+      CalendarV3Client client, @Nullable LdapUserFilter filter) {
+    Preconditions.checkNotNull(client);
+    this.client = client;
+    if (filter == null) {
+      this.filter = new LdapUserFilter();
+    } else {
+      this.filter = filter;
+    }
+  }
+
+  public GwResponse apply(AdminCommand from) {
+    // Make sure that basic data fields are set
+    if (!from.getGetDirectory()) {
+      return
+        new VoidResponse(from, "unsupported admin command", "unsupported");
+    }
+
+    // Fetch the user list from the Directory API
+    LOGGER.log(Level.INFO, "Executing Directory sync");
+    final List<Object> list;
+    try {
+      list = client.listUsers();
+    } catch (IOException e) {
+      throw new RuntimeException("Could not retrieve user list", e);
+    }
+    final String domain = client.getDomain();
+    Map<String, DsUser> users = new HashMap<String, DsUser>();
+    for (Object user : list) {
+      final Object email = Json.get(user, "primaryEmail");
+      if (!(email instanceof String)) {
+        continue;
+      }
+      users.put((String) email, new DsUser(
+          (String) email, domain, "", (String) email,
+          getName(user, "familyName"), getName(user, "givenName")));
+    }
+
+    // Now, filter out any "bad" users
+    LOGGER.log(Level.FINE, "Filtering user list");
+    if (!filter.doFilter(users.keySet().iterator())) {
+      LOGGER.log
+        (Level.WARNING, "Could not perform filter operation, aborting sync");
+      throw new RuntimeException("Ldap filtering failed");
+    }
+
+    // Return the result
+    final GetDirectoryResponse result = new GetDirectoryResponse(from);
+    for (DsUser user : users.values()) {
+      result.addUser(user);
+    }
+    return result;
+  }
+
+  private static String getName(Object user, String part) {
+    final Object name = Json.get(user, "name", part);
+    return (name instanceof String) ? (String) name : "";
+  }
+}
@@ -0,0 +1,440 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.googlev3;
+
+import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.integer;
+import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.string;
+
+import com.google.calendar.interoperability.connectorplugin.base.Configurable;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+import com.google.calendar.interoperability.connectorplugin.impl.google.ConnectionThrottle;
+import com.google.calendar.interoperability.connectorplugin.impl.google.RateController;
+import com.google.calendar.interoperability.connectorplugin.impl.google.ServiceHolder;
+import com.google.common.base.Preconditions;
+import com.google.gdata.data.DateTime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Talks to the Calendar API v3 and the Directory API: free/busy queries
+ * for several calendars at once, and the list of users in the domain.
+ * Requests are authorized with an OAuth access token, which is obtained
+ * from a refresh token and renewed in the background before it expires
+ * (or taken from the configuration as is, if there is no refresh token).
+ * Like the GData connector, requests go through a ConnectionThrottle whose
+ * rate a RateController adapts to how Google responds.
+ */
+public class CalendarV3Client extends Configurable {
+
+  private static final Logger LOGGER =
+    Logger.getLogger(CalendarV3Client.class.getName());
+
+  // The base urls of the apis (can be pointed to a stub server)
+  static final String CALENDAR_API_URL = "calendarApiUrl";
+  static final String DIRECTORY_API_URL = "directoryApiUrl";
+
+  // OAuth: a fixed access token, or what it takes to get fresh ones
+  static final String ACCESS_TOKEN = "accessToken";
+  static final String TOKEN_URL = "tokenUrl";
+  static final String CLIENT_ID = "clientId";
+  static final String CLIENT_SECRET = "clientSecret";
+  static final String REFRESH_TOKEN = "refreshToken";
+  static final String DOMAIN = "domain";
+
+  // Timeouts of each http request
+  static final String CONNECT_TIMEOUT = "connectTimeoutInMillis";
+  static final String READ_TIMEOUT = "readTimeoutInMillis";
+
+  // Request rate: limits and the latency that counts as overload
+  static final String MIN_RATE = "minRequestsPerSecond";
+  static final String MAX_RATE = "maxRequestsPerSecond";
+  static final String TARGET_LATENCY = "targetLatencyInMillis";
+
+  // Batching of free/busy lookups, see FreeBusyBatcher
+  static final String MAX_CALENDARS = "maxCalendarsPerCall";
+  static final String COLLECTION_WINDOW = "collectionWindowInMillis";
+  static final String FETCH_THREADS = "fetchThreads";
+  static final String FETCH_QUEUE = "fetchQueueSize";
+  static final String LOOKUP_QUEUE = "lookupQueueSize";
+
+  // The most calendars freeBusy.query accepts in one call
+  static final int API_CALENDAR_LIMIT = 50;
+
+  private static final int USER_PAGE_SIZE = 500;
+
+  // How long before it expires an access token is renewed
+  private static final long TOKEN_MARGIN_IN_MILLIS = 5 * 60000;
+
+  private final ServiceHolder<String> accessToken =
+    new ServiceHolder<String>() {
+      @Override
+      protected String create() {
+        return fetchAccessToken();
+      }
+
+      @Override
+      protected long getRefreshIntervalInMillis() {
+        return tokenRefreshInMillis;
+      }
+    };
+  private volatile long tokenRefreshInMillis;
+  private final ConnectionThrottle throttle = new ConnectionThrottle();
+  private volatile RateController rateController;
+
+  public CalendarV3Client() {
+    super("googlev3");
+    registerParameter(CALENDAR_API_URL, string,
+        "https://www.googleapis.com/calendar/v3/");
+    registerParameter(DIRECTORY_API_URL, string,
+        "https://www.googleapis.com/admin/directory/v1/");
+    registerParameter(ACCESS_TOKEN, string, "");
+    registerParameter(TOKEN_URL, string,
+        "https://oauth2.googleapis.com/token");
+    registerParameter(CLIENT_ID, string, "");
+    registerParameter(CLIENT_SECRET, string, "");
+    registerParameter(REFRESH_TOKEN, string, "");
+    registerParameter(DOMAIN, string, "");
+    registerParameter(CONNECT_TIMEOUT, integer, "10000");
+    registerParameter(READ_TIMEOUT, integer, "30000");
+    registerParameter(MIN_RATE, integer, "1");
+    registerParameter(MAX_RATE, integer, "10");
+    registerParameter(TARGET_LATENCY, integer, "3000");
+    registerParameter(MAX_CALENDARS, integer,
+        String.valueOf(API_CALENDAR_LIMIT));
+    registerParameter(COLLECTION_WINDOW, integer, "20");
+    registerParameter(FETCH_THREADS, integer, "10");
+    registerParameter(FETCH_QUEUE, integer, "10");
+    registerParameter(LOOKUP_QUEUE, integer, "100");
+  }
+
+  public String getDomain() {
+    return getString(DOMAIN);
+  }
+
+  /**
+   * Gets the rate controller, which is created on first use from the
+   * configuration, starting at the maximum rate
+   */
+  RateController getRateController() {
+    RateController result = rateController;
+    if (result == null) {
+      synchronized (this) {
+        if (rateController == null) {
+          final int max = getInteger(MAX_RATE).intValue();
+          throttle.setMaxRequestsPerSecond(max);
+          rateController = new RateController(throttle, max,
+              getInteger(MIN_RATE).intValue(), max,
+              getInteger(TARGET_LATENCY));
+        }
+        result = rateController;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the age after which the access token is renewed, 0 if it is
+   *   never renewed
+   */
+  public long getTokenRefreshInMillis() {
+    return tokenRefreshInMillis;
+  }
+
+  /**
+   * Gets a new access token with the refresh token, or the configured one
+   * if there is no refresh token
+   * @return the token, or null if none could be obtained
+   */
+  private String fetchAccessToken() {
+    final String refreshToken = getString(REFRESH_TOKEN).trim();
+    if (refreshToken.length() == 0) {
+      final String token = getString(ACCESS_TOKEN).trim();
+      if (token.length() == 0) {
+        LOGGER.log(Level.SEVERE, "Neither an access nor a refresh token " +
+            "is configured");
+        return null;
+      }
+      LOGGER.log(Level.WARNING, "Using the configured access token; " +
+          "configure a refresh token to renew it before it expires");
+      tokenRefreshInMillis = 0;
+      return token;
+    }
+    try {
+      final HttpURLConnection connection = open(getString(TOKEN_URL));
+      final Object response = send(connection,
+          "client_id=" + encode(getString(CLIENT_ID)) +
+          "&client_secret=" + encode(getString(CLIENT_SECRET)) +
+          "&refresh_token=" + encode(refreshToken) +
+          "&grant_type=refresh_token",
+          "application/x-www-form-urlencoded");
+      final Object token = Json.get(response, "access_token");
+      if (!(token instanceof String)) {
+        throw new IOException("No access token in response");
+      }
+      final Object expiresIn = Json.get(response, "expires_in");
+      final long lifetime = (expiresIn instanceof Number) ?
+          ((Number) expiresIn).longValue() * 1000 : 3600000;
+      tokenRefreshInMillis =
+        Math.max(lifetime / 2, lifetime - TOKEN_MARGIN_IN_MILLIS);
+      LOGGER.log(Level.INFO, "Obtained an access token valid for " +
+          (lifetime / 1000) + " seconds");
+      return (String) token;
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Could not obtain an access token", e);
+      return null;
+    }
+  }
+
+  /**
+   * Queries the busy times of several calendars in one call
+   * @param calendarIds the calendars, at most API_CALENDAR_LIMIT
+   * @return the busy times by calendar id; calendars Google reported an
+   *   error for (e.g. unknown or not shared) are missing
+   * @throws IOException if the call failed as a whole
+   */
+  public Map<String, BusyIntervals> queryFreeBusy(
+      long fromUtc, long untilUtc, Collection<String> calendarIds)
+      throws IOException {
+    Preconditions.checkArgument(calendarIds.size() <= API_CALENDAR_LIMIT);
+    final StringBuilder body = new StringBuilder();
+    body.append("{\"timeMin\":").append(Json.quote(formatTime(fromUtc)))
+        .append(",\"timeMax\":").append(Json.quote(formatTime(untilUtc)))
+        .append(",\"items\":[");
+    boolean first = true;
+    for (String id : calendarIds) {
+      body.append(first ? "" : ",").append("{\"id\":")
+          .append(Json.quote(id)).append('}');
+      first = false;
+    }
+    body.append("]}");
+    final Object response = request(
+        getString(CALENDAR_API_URL) + "freeBusy", body.toString());
+
+    final Map<String, BusyIntervals> result =
+      new HashMap<String, BusyIntervals>();
+    final Object calendars = Json.get(response, "calendars");
+    if (!(calendars instanceof Map)) {
+      throw new IOException("No calendars in free/busy response");
+    }
+    for (Map.Entry<?, ?> entry : ((Map<?, ?>) calendars).entrySet()) {
+      final String id = (String) entry.getKey();
+      final Object errors = Json.get(entry.getValue(), "errors");
+      if (errors instanceof List && !((List<?>) errors).isEmpty()) {
+        LOGGER.log(Level.FINE, "Free/busy error for " + id + ": " + errors);
+        continue;
+      }
+      final BusyIntervals intervals = new BusyIntervals();
+      final Object busy = Json.get(entry.getValue(), "busy");
+      if (busy instanceof List) {
+        for (Object period : (List<?>) busy) {
+          final long start = parseTime(Json.get(period, "start"));
+          intervals.add(start,
+              Math.max(start, parseTime(Json.get(period, "end"))));
+        }
+      }
+      result.put(id, intervals);
+    }
+    return result;
+  }
+
+  /**
+   * Lists all users of the domain, following the result pages
+   * @return the user resources as parsed JSON objects
+   * @throws IOException if a page could not be retrieved
+   */
+  public List<Object> listUsers() throws IOException {
+    final List<Object> result = new ArrayList<Object>();
+    String pageToken = null;
+    do {
+      String url = getString(DIRECTORY_API_URL) + "users?domain=" +
+          encode(getDomain()) + "&maxResults=" + USER_PAGE_SIZE;
+      if (pageToken != null) {
+        url += "&pageToken=" + encode(pageToken);
+      }
+      final Object page = request(url, null);
+      final Object users = Json.get(page, "users");
+      if (users instanceof List) {
+        result.addAll((List<?>) users);
+      }
+      pageToken = (String) Json.get(page, "nextPageToken");
+    } while (pageToken != null);
+    return result;
+  }
+
+  /**
+   * Sends an authorized request through the throttle and parses the JSON
+   * response. A rejected access token is dropped, so the next request
+   * gets a new one.
+   * @param body the body to post, or null for a GET request
+   */
+  private Object request(String url, String body) throws IOException {
+    final RateController controller = getRateController();
+    throttle.checkoutTimer();
+    boolean overload = true;
+    final long startTime = System.currentTimeMillis();
+    try {
+      final String token = accessToken.get();
+      if (token == null) {
+        overload = false;
+        throw new IOException("No access token");
+      }
+      final HttpURLConnection connection = open(url);
+      connection.setRequestProperty("Authorization", "Bearer " + token);
+      try {
+        final Object result = send(connection, body, "application/json");
+        overload = false;
+        return result;
+      } catch (StatusException e) {
+        if (e.status == HttpURLConnection.HTTP_UNAUTHORIZED) {
+          accessToken.invalidate(token);
+        }
+        overload = e.isOverload();
+        throw e;
+      }
+    } finally {
+      if (overload) {
+        throttle.reportFailure();
+      } else {
+        throttle.reportSuccess();
+      }
+      controller.report(!overload, System.currentTimeMillis() - startTime);
+      throttle.rewindTimer();
+    }
+  }
+
+  /**
+   * A request that Google answered with an error status
+   */
+  private static class StatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    StatusException(int status, String message) {
+      super("Request failed with status " + status + ": " + message);
+      this.status = status;
+    }
+
+    /**
+     * @return whether the status says that Google is overloaded or
+     *   limiting the rate (403 is how the apis report exceeded limits)
+     */
+    boolean isOverload() {
+      return status == HttpURLConnection.HTTP_FORBIDDEN || status == 429 ||
+          status >= 500;
+    }
+  }
+
+  /**
+   * Opens a connection with the configured timeouts
+   */
+  private HttpURLConnection open(String url) throws IOException {
+    final HttpURLConnection connection =
+      (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(getInteger(CONNECT_TIMEOUT).intValue());
+    connection.setReadTimeout(getInteger(READ_TIMEOUT).intValue());
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    return connection;
+  }
+
+  /**
+   * Sends a request and parses the JSON response
+   * @param body the body to post, or null for a GET request
+   * @throws StatusException if the response has an error status
+   */
+  private static Object send(HttpURLConnection connection, String body,
+      String contentType) throws IOException {
+    if (body != null) {
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", contentType);
+      final OutputStream out = connection.getOutputStream();
+      out.write(body.getBytes("UTF-8"));
+      out.close();
+    }
+    final int status = connection.getResponseCode();
+    if (status >= 300) {
+      final InputStream error = connection.getErrorStream();
+      final String message = (error == null) ? "" : read(connection, error);
+      throw new StatusException(status, message);
+    }
+    try {
+      return Json.parse(read(connection, connection.getInputStream()));
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid response from " + 
+          connection.getURL() + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Reads a response body completely (so the connection can be reused)
+   */
+  private static String read(HttpURLConnection connection, InputStream in)
+      throws IOException {
+    try {
+      if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+        in = new GZIPInputStream(in);
+      }
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+        out.write(buffer, 0, n);
+      }
+      return out.toString("UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static String formatTime(long utc) {
+    return new DateTime(utc, 0).toString();
+  }
+
+  private static long parseTime(Object time) throws IOException {
+    if (!(time instanceof String)) {
+      throw new IOException("Missing time in free/busy response");
+    }
+    try {
+      return DateTime.parseDateTime((String) time).getValue();
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid time in free/busy response: " + time);
+    }
+  }
+}
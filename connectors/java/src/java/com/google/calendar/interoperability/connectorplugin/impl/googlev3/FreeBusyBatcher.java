@@ -0,0 +1,289 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.googlev3;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+import com.google.common.base.Function;
+import com.google.common.base.Nullable;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Combines free/busy lookups into few freeBusy.query calls. A lookup waits
+ * up to the collection window for others to join it; all lookups collected
+ * by then (up to maxCalendarsPerCall different calendars) are answered by
+ * one call covering all of their time ranges, and each lookup gets the
+ * busy times clipped to its own range. Calls run on fetch threads, so the
+ * next batch is collected while the previous one is still on its way.
+ *
+ * Both queues are bounded: once the fetch threads are busy and a few
+ * batches wait for them, the collector makes the next call itself; once
+ * lookups pile up meanwhile, lookup() blocks. The backlog thus stays in
+ * the execution stage's sink, which decides whose searches go first and
+ * sheds the stale ones. Lookups whose deadline has passed by the time
+ * their batch is fetched are answered without a call.
+ */
+class FreeBusyBatcher {
+
+  private static final Logger LOGGER =
+    Logger.getLogger(FreeBusyBatcher.class.getName());
+
+  /**
+   * A queued lookup and what to do with its result
+   */
+  private static class Lookup<T> implements Callable<T> {
+    final String calendarId;
+    final long fromUtc;
+    final long untilUtc;
+    final long deadlineUtc;
+    final Function<BusyIntervals, T> continuation;
+    final FutureTask<T> future = new FutureTask<T>(this);
+    private BusyIntervals intervals;
+
+    Lookup(String calendarId, long fromUtc, long untilUtc, long deadlineUtc,
+        Function<BusyIntervals, T> continuation) {
+      this.calendarId = calendarId;
+      this.fromUtc = fromUtc;
+      this.untilUtc = untilUtc;
+      this.deadlineUtc = deadlineUtc;
+      this.continuation = continuation;
+    }
+
+    boolean isExpired(long now) {
+      return deadlineUtc > 0 && now > deadlineUtc;
+    }
+
+    public T call() {
+      return continuation.apply(intervals);
+    }
+
+    /**
+     * Answers the lookup from the busy times of its batch
+     * @param batchResult the busy times of the calendar in the batch's
+     *   time range, or null if they could not be retrieved
+     */
+    void complete(@Nullable BusyIntervals batchResult) {
+      if (batchResult != null) {
+        intervals = new BusyIntervals();
+        intervals.addAll(batchResult);
+        intervals.clip(fromUtc, untilUtc);
+      }
+      future.run();
+    }
+  }
+
+  private final CalendarV3Client client;
+  private final BlockingQueue<Lookup<?>> queue;
+  private Thread collector;
+  private ExecutorService fetchExecutor;
+
+  // A lookup that did not fit into the previous batch
+  private Lookup<?> carried;
+
+  // Statistics
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+
+  FreeBusyBatcher(CalendarV3Client client) {
+    Preconditions.checkNotNull(client);
+    this.client = client;
+    this.queue = new ArrayBlockingQueue<Lookup<?>>(Math.max(1, 
+        client.getInteger(CalendarV3Client.LOOKUP_QUEUE).intValue()));
+  }
+
+  /**
+   * Queues a lookup of a calendar's busy times. Blocks while the queue is
+   * full.
+   * @param deadlineUtc the time after which the busy times are not needed
+   *   anymore, 0 for none. A lookup whose batch is not fetched by then is
+   *   skipped.
+   * @param continuation called on a fetch thread with the busy times, or
+   *   with null if they could not be retrieved (or were not needed 
+   *   anymore)
+   * @return the result of the continuation, once it is available
+   */
+  <T> Future<T> lookup(String calendarId, long fromUtc, long untilUtc,
+      long deadlineUtc, Function<BusyIntervals, T> continuation) 
+      throws InterruptedException {
+    Preconditions.checkNotNull(calendarId);
+    Preconditions.checkNotNull(continuation);
+    final Lookup<T> lookup = new Lookup<T>(
+        calendarId, fromUtc, untilUtc, deadlineUtc, continuation);
+    startCollector();
+    lookups.incrementAndGet();
+    queue.put(lookup);
+    return lookup.future;
+  }
+
+  /**
+   * @return the number of lookups so far
+   */
+  long getLookupCount() {
+    return lookups.get();
+  }
+
+  /**
+   * @return the number of freeBusy.query calls so far
+   */
+  long getCallCount() {
+    return calls.get();
+  }
+
+  /**
+   * @return the number of lookups skipped because of their deadline
+   */
+  long getExpiredCount() {
+    return expired.get();
+  }
+
+  private synchronized void startCollector() {
+    if (collector != null) {
+      return;
+    }
+    final AtomicInteger threadCount = new AtomicInteger();
+    final int threads = Math.max(
+        client.getInteger(CalendarV3Client.FETCH_THREADS).intValue(), 1);
+    fetchExecutor = new ThreadPoolExecutor(threads, threads,
+        0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1,
+            client.getInteger(CalendarV3Client.FETCH_QUEUE).intValue())),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(
+                r, "freeBusyFetch@" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+          }
+        },
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    collector = new Thread(new Runnable() {
+      public void run() {
+        collectForever();
+      }
+    }, "freeBusyCollector");
+    collector.setDaemon(true);
+    collector.start();
+  }
+
+  private void collectForever() {
+    try {
+      while (true) {
+        final List<Lookup<?>> batch = collect();
+        fetchExecutor.execute(new Runnable() {
+          public void run() {
+            fetch(batch);
+          }
+        });
+      }
+    } catch (InterruptedException e) {
+      LOGGER.log(Level.WARNING, "Free/busy collector interrupted");
+    }
+  }
+
+  /**
+   * Waits for a lookup and collects the ones that can share its call
+   */
+  private List<Lookup<?>> collect() throws InterruptedException {
+    final int maxCalendars = Math.max(1, Math.min(
+        CalendarV3Client.API_CALENDAR_LIMIT,
+        client.getInteger(CalendarV3Client.MAX_CALENDARS).intValue()));
+    final long window =
+      client.getInteger(CalendarV3Client.COLLECTION_WINDOW);
+    final List<Lookup<?>> batch = new ArrayList<Lookup<?>>();
+    final Set<String> calendars = new LinkedHashSet<String>();
+    Lookup<?> next = carried;
+    carried = null;
+    if (next == null) {
+      next = queue.take();
+    }
+    final long deadline = System.currentTimeMillis() + window;
+    while (next != null) {
+      if (!calendars.contains(next.calendarId)) {
+        if (calendars.size() >= maxCalendars) {
+          carried = next;
+          break;
+        }
+        calendars.add(next.calendarId);
+      }
+      batch.add(next);
+      final long wait = deadline - System.currentTimeMillis();
+      next = (wait > 0) ? queue.poll(wait, TimeUnit.MILLISECONDS)
+          : queue.poll();
+    }
+    return batch;
+  }
+
+  /**
+   * Makes the call for a batch and completes its lookups
+   */
+  private void fetch(List<Lookup<?>> batch) {
+    final long now = System.currentTimeMillis();
+    for (Iterator<Lookup<?>> i = batch.iterator(); i.hasNext(); ) {
+      final Lookup<?> lookup = i.next();
+      if (lookup.isExpired(now)) {
+        LOGGER.log(Level.FINE, "Deadline expired, skipping lookup for " +
+            lookup.calendarId);
+        expired.incrementAndGet();
+        i.remove();
+        lookup.complete(null);
+      }
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    long fromUtc = Long.MAX_VALUE;
+    long untilUtc = Long.MIN_VALUE;
+    final Set<String> calendars = new LinkedHashSet<String>();
+    for (Lookup<?> lookup : batch) {
+      fromUtc = Math.min(fromUtc, lookup.fromUtc);
+      untilUtc = Math.max(untilUtc, lookup.untilUtc);
+      calendars.add(lookup.calendarId);
+    }
+    Map<String, BusyIntervals> result = null;
+    try {
+      calls.incrementAndGet();
+      result = client.queryFreeBusy(fromUtc, untilUtc, calendars);
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING, "Could not query free/busy data for " +
+          calendars.size() + " calendars", e);
+    }
+    for (Lookup<?> lookup : batch) {
+      lookup.complete(
+          (result == null) ? null : result.get(lookup.calendarId));
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.googlev3;
+
+import com.google.calendar.interoperability.connectorplugin.base.CommandHandler;
+import com.google.calendar.interoperability.connectorplugin.base.SelfTestable;
+import com.google.calendar.interoperability.connectorplugin.base.Sink;
+import com.google.calendar.interoperability.connectorplugin.base.messages.AdminCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
+import com.google.common.base.Nullable;
+
+import java.io.IOException;
+
+/**
+ * This class connects to Google Calendar through the Calendar API v3 and
+ * the Directory API, as an alternative to the GData feeds
+ */
+public class GoogleV3Connector implements SelfTestable {
+
+  private CalendarV3Client client;
+
+  /**
+   * Constructor
+   * @param handler the command handler to register with
+   * @param responses if set, searches are answered asynchronously into
+   *   this sink, and the handler returns a DeferredResponse for them
+   */
+  public GoogleV3Connector(
+      CommandHandler handler, @Nullable Sink<GwResponse> responses) {
+    client = new CalendarV3Client();
+    handler.registerSubhandler(AdminCommand.class,
+        new AdminHandler(client, null), AdminCommand.DIRECTORY_FIELDS);
+    handler.registerSubhandler(SearchCommand.class,
+        new SearchHandler(new FreeBusyBatcher(client), responses),
+        SearchCommand.SEARCH_FIELDS);
+  }
+
+  /**
+   * Performs a self-check to make sure the connector is configured
+   * correctly. Throw an exception or error if the evaluation fails
+   */
+  public void selfTest() {
+    System.out.println("Performing a test user query for domain " +
+        client.getDomain());
+    try {
+      client.listUsers();
+    } catch (IOException e) {
+      throw new RuntimeException("Could not retrieve user list", e);
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.googlev3;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the Calendar and Directory APIs: parses a document
+ * into Maps, Lists, Strings, Doubles, Booleans and nulls, and quotes
+ * strings for the requests. Malformed input is reported with an
+ * IllegalArgumentException.
+ */
+public final class Json {
+
+  private final String text;
+  private int pos;
+
+  private Json(String text) {
+    this.text = text;
+  }
+
+  /**
+   * Parses a JSON document
+   */
+  public static Object parse(String text) {
+    final Json parser = new Json(text);
+    final Object result = parser.readValue();
+    parser.skipWhitespace();
+    if (parser.pos < text.length()) {
+      throw parser.error("Unexpected trailing content");
+    }
+    return result;
+  }
+
+  /**
+   * Gets a member of an object, following a path of names
+   * @return the member, or null if the path does not lead to one
+   */
+  public static Object get(Object value, String... path) {
+    for (String name : path) {
+      if (!(value instanceof Map)) {
+        return null;
+      }
+      value = ((Map<?, ?>) value).get(name);
+    }
+    return value;
+  }
+
+  /**
+   * Quotes a string as a JSON string literal
+   */
+  public static String quote(String s) {
+    final StringBuilder result = new StringBuilder(s.length() + 2);
+    result.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+        case '"': result.append("\\\""); break;
+        case '\\': result.append("\\\\"); break;
+        case '\n': result.append("\\n"); break;
+        case '\r': result.append("\\r"); break;
+        case '\t': result.append("\\t"); break;
+        default:
+          if (c < 0x20) {
+            result.append(String.format("\\u%04x", (int) c));
+          } else {
+            result.append(c);
+          }
+      }
+    }
+    return result.append('"').toString();
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(message + " at position " + pos);
+  }
+
+  private void skipWhitespace() {
+    while (pos < text.length() &&
+        Character.isWhitespace(text.charAt(pos))) {
+      pos++;
+    }
+  }
+
+  private char next() {
+    skipWhitespace();
+    if (pos >= text.length()) {
+      throw error("Unexpected end of input");
+    }
+    return text.charAt(pos);
+  }
+
+  private void expect(char c) {
+    if (next() != c) {
+      throw error("Expected '" + c + "'");
+    }
+    pos++;
+  }
+
+  private Object readValue() {
+    final char c = next();
+    switch (c) {
+      case '{': return readObject();
+      case '[': return readArray();
+      case '"': return readString();
+      case 't': return readLiteral("true", Boolean.TRUE);
+      case 'f': return readLiteral("false", Boolean.FALSE);
+      case 'n': return readLiteral("null", null);
+      default: return readNumber();
+    }
+  }
+
+  private Map<String, Object> readObject() {
+    final Map<String, Object> result = new LinkedHashMap<String, Object>();
+    expect('{');
+    if (next() == '}') {
+      pos++;
+      return result;
+    }
+    while (true) {
+      if (next() != '"') {
+        throw error("Expected a member name");
+      }
+      final String name = readString();
+      expect(':');
+      result.put(name, readValue());
+      if (next() == ',') {
+        pos++;
+      } else {
+        expect('}');
+        return result;
+      }
+    }
+  }
+
+  private List<Object> readArray() {
+    final List<Object> result = new ArrayList<Object>();
+    expect('[');
+    if (next() == ']') {
+      pos++;
+      return result;
+    }
+    while (true) {
+      result.add(readValue());
+      if (next() == ',') {
+        pos++;
+      } else {
+        expect(']');
+        return result;
+      }
+    }
+  }
+
+  private String readString() {
+    expect('"');
+    final StringBuilder result = new StringBuilder();
+    while (pos < text.length()) {
+      final char c = text.charAt(pos++);
+      if (c == '"') {
+        return result.toString();
+      }
+      if (c != '\\') {
+        result.append(c);
+        continue;
+      }
+      if (pos >= text.length()) {
+        break;
+      }
+      final char escaped = text.charAt(pos++);
+      switch (escaped) {
+        case 'b': result.append('\b'); break;
+        case 'f': result.append('\f'); break;
+        case 'n': result.append('\n'); break;
+        case 'r': result.append('\r'); break;
+        case 't': result.append('\t'); break;
+        case 'u':
+          if (pos + 4 > text.length()) {
+            throw error("Invalid unicode escape");
+          }
+          try {
+            result.append(
+                (char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+          } catch (NumberFormatException e) {
+            throw error("Invalid unicode escape");
+          }
+          pos += 4;
+          break;
+        default: result.append(escaped);
+      }
+    }
+    throw error("Unterminated string");
+  }
+
+  private Object readLiteral(String literal, Object value) {
+    if (!text.startsWith(literal, pos)) {
+      throw error("Unexpected character");
+    }
+    pos += literal.length();
+    return value;
+  }
+
+  private Double readNumber() {
+    final int start = pos;
+    while (pos < text.length() &&
+        "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+      pos++;
+    }
+    try {
+      return Double.valueOf(text.substring(start, pos));
+    } catch (NumberFormatException e) {
+      pos = start;
+      throw error("Unexpected character");
+    }
+  }
+}
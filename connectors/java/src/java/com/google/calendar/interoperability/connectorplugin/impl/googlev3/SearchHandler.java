@@ -0,0 +1,137 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.googlev3;
+
+import com.google.calendar.interoperability.connectorplugin.base.BasicSearchHandler;
+import com.google.calendar.interoperability.connectorplugin.base.Sink;
+import com.google.calendar.interoperability.connectorplugin.base.messages.DeferredResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.FreeBusyResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.VoidResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.Address;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+import com.google.common.base.Function;
+import com.google.common.base.Nullable;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+/**
+ * Handles a free/busy search through the Calendar API v3. Concurrent
+ * searches are combined into few calls by a FreeBusyBatcher.
+ */
+class SearchHandler extends BasicSearchHandler {
+
+  private final FreeBusyBatcher batcher;
+  private final Sink<GwResponse> responses;
+
+  /**
+   * Constructor
+   * @param batcher the batcher doing the lookups
+   * @param responses if set, searches are answered asynchronously into
+   *   this sink; otherwise the handler waits for the lookup
+   */
+  public SearchHandler(
+      FreeBusyBatcher batcher, @Nullable Sink<GwResponse> responses) {
+    Preconditions.checkNotNull(batcher);
+    this.batcher = batcher;
+    this.responses = responses;
+  }
+
+  @Override
+  protected GwResponse handleSearch(
+      final SearchCommand command, Address requestor,
+      Address searchFor) {
+
+    // Extract the username and times
+    String userName = searchFor.getCDBA();
+    final int delim = userName.indexOf("..");
+    if (delim < 0 || delim + 2 == userName.length()) {
+      logger.log(Level.WARNING, "Could not decode toAddress: " + userName);
+      return VoidResponse.invalid(command);
+    }
+    final String user = userName.substring(delim + 2);
+    final long from = command.getBeginTime().getTimeInUtc();
+    final long until = command.getEndTime().getTimeInUtc();
+
+    // Queue the lookup; answer asynchronously if possible. The command
+    // stays in execution until the response is in the sink.
+    final DeferredResponse deferred = 
+      (responses != null) ? new DeferredResponse(command) : null;
+    final Future<GwResponse> response;
+    try {
+      response = batcher.lookup(user, from, until, command.getDeadline(),
+          new Function<BusyIntervals, GwResponse>() {
+            public GwResponse apply(BusyIntervals intervals) {
+              GwResponse result;
+              try {
+                result = createResponse(command, user, intervals);
+              } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Could not answer search", e);
+                result = VoidResponse.invalid(command);
+              }
+              if (deferred != null) {
+                try {
+                  responses.accept(result);
+                } finally {
+                  deferred.done();
+                }
+              }
+              return result;
+            }
+          });
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return VoidResponse.invalid(command);
+    }
+    if (deferred != null) {
+      return deferred;
+    }
+    try {
+      return response.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return VoidResponse.invalid(command);
+    } catch (ExecutionException e) {
+      logger.log(Level.WARNING, "Could not answer search", e.getCause());
+      return VoidResponse.invalid(command);
+    }
+  }
+
+  /**
+   * Creates the response to a search from the retrieved busy times
+   * @param intervals the busy times, or null if they could not be retrieved
+   */
+  private GwResponse createResponse(SearchCommand command, String userName,
+      @Nullable BusyIntervals intervals) {
+    if (intervals == null && command.getDeadline() > 0 &&
+        System.currentTimeMillis() > command.getDeadline()) {
+      return new VoidResponse(
+          command, "deadline expired before processing", "expired");
+    }
+    if (intervals == null) {
+      logger.log(Level.WARNING, "Could not load f/b data: " + userName);
+      return VoidResponse.invalid(command);
+    }
+    final FreeBusyResponse response = new FreeBusyResponse(command);
+    response.addTimeslots(intervals);
+    return response;
+  }
+}
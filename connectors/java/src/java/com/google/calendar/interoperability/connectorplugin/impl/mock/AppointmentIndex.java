@@ -0,0 +1,194 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.mock;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable interval index over a set of appointments. The appointments
+ * are kept in an array sorted by start time, which at the same time forms
+ * an implicit binary search tree: a node at index i on level k (the number
+ * of trailing 1-bits of i) has its children at i - 2^(k-1) and
+ * i + 2^(k-1). Every node is augmented with the latest end time in its
+ * subtree, so a range query only descends into subtrees that can contain
+ * a match and runs in O(log n + k) for k results.
+ *
+ * Being immutable, an index can be read by any number of threads without
+ * locking.
+ */
+class AppointmentIndex {
+
+  // Subtrees up to this level are scanned linearly, which is faster than
+  // walking them node by node
+  private static final int SCAN_LEVEL = 3;
+
+  private final MockAppointment[] appointments;
+  private final long[] starts;
+  private final long[] ends;
+  private final long[] maxEnds;
+  private final int rootLevel;
+
+  /**
+   * Constructor
+   * @param sortedAppointments the appointments, sorted by start time
+   */
+  AppointmentIndex(Collection<MockAppointment> sortedAppointments) {
+    final int n = sortedAppointments.size();
+    appointments =
+      sortedAppointments.toArray(new MockAppointment[n]);
+    starts = new long[n];
+    ends = new long[n];
+    maxEnds = new long[n];
+    for (int i = 0; i < n; i++) {
+      starts[i] = appointments[i].getStartTimeUtc();
+      ends[i] = appointments[i].getEndTimeUtc();
+      if (i > 0 && starts[i] < starts[i - 1]) {
+        throw new IllegalArgumentException("Appointments not sorted");
+      }
+    }
+    rootLevel = augment();
+  }
+
+  /**
+   * Computes the latest end time of every subtree. Nodes on the right edge
+   * may have children beyond the end of the array; those take the latest
+   * end time of the nodes that do exist in their place.
+   * @return the level of the root node, -1 for an empty index
+   */
+  private int augment() {
+    final int n = ends.length;
+    if (n == 0) {
+      return -1;
+    }
+    int lastIndex = 0;
+    long last = 0;
+    for (int i = 0; i < n; i += 2) {
+      lastIndex = i;
+      last = maxEnds[i] = ends[i];
+    }
+    int level = 1;
+    for (; (1L << level) <= n; level++) {
+      final int x = 1 << (level - 1);
+      final int first = (x << 1) - 1;
+      final int step = x << 2;
+      for (int i = first; i < n; i += step) {
+        final long left = maxEnds[i - x];
+        final long right = (i + x < n) ? maxEnds[i + x] : last;
+        maxEnds[i] = Math.max(ends[i], Math.max(left, right));
+      }
+      lastIndex = ((lastIndex >> level & 1) != 0) ?
+          lastIndex - x : lastIndex + x;
+      if (lastIndex < n && maxEnds[lastIndex] > last) {
+        last = maxEnds[lastIndex];
+      }
+    }
+    return level - 1;
+  }
+
+  public int size() {
+    return appointments.length;
+  }
+
+  /**
+   * Finds all appointments overlapping a time range (bounds inclusive,
+   * same semantics as MockAppointment.overlaps)
+   * @return the matching appointments, sorted by start time
+   */
+  public List<MockAppointment> scan(long fromUtc, long untilUtc) {
+    final List<MockAppointment> result = new ArrayList<MockAppointment>();
+    scan(fromUtc, untilUtc, result, null);
+    return result;
+  }
+
+  /**
+   * Finds the busy times of all appointments overlapping a time range
+   * (bounds inclusive), without creating any intermediate objects
+   * @return the busy times, sorted by start time
+   */
+  public BusyIntervals scanBusyTimes(long fromUtc, long untilUtc) {
+    final BusyIntervals result = new BusyIntervals();
+    scan(fromUtc, untilUtc, null, result);
+    return result;
+  }
+
+  private void add(int i, List<MockAppointment> appointmentsOut,
+      BusyIntervals intervalsOut) {
+    if (appointmentsOut != null) {
+      appointmentsOut.add(appointments[i]);
+    } else {
+      intervalsOut.add(starts[i], ends[i]);
+    }
+  }
+
+  /**
+   * Walks all appointments overlapping the range in start order and adds
+   * them to one of the given outputs
+   */
+  private void scan(long fromUtc, long untilUtc,
+      List<MockAppointment> appointmentsOut, BusyIntervals intervalsOut) {
+    if (untilUtc < fromUtc) {
+      throw new IllegalArgumentException("fromUtc > untilUtc");
+    }
+    final int n = appointments.length;
+    if (n == 0) {
+      return;
+    }
+
+    // Stack of nodes to visit: index, level and whether the left subtree
+    // has been visited already
+    final int[] nodes = new int[2 * (rootLevel + 2)];
+    final int[] levels = new int[nodes.length];
+    final boolean[] leftDone = new boolean[nodes.length];
+    int top = 0;
+    nodes[top] = (1 << rootLevel) - 1;
+    levels[top] = rootLevel;
+    leftDone[top++] = false;
+
+    while (top > 0) {
+      top--;
+      final int node = nodes[top];
+      final int level = levels[top];
+      if (level <= SCAN_LEVEL) {
+        final int first = node >> level << level;
+        final int last = Math.min(n, first + (1 << (level + 1)) - 1);
+        for (int i = first; i < last && starts[i] <= untilUtc; i++) {
+          if (ends[i] >= fromUtc) {
+            add(i, appointmentsOut, intervalsOut);
+          }
+        }
+      } else if (!leftDone[top]) {
+        final int left = node - (1 << (level - 1));
+        leftDone[top++] = true;
+        if (left >= n || maxEnds[left] >= fromUtc) {
+          nodes[top] = left;
+          levels[top] = level - 1;
+          leftDone[top++] = false;
+        }
+      } else if (node < n && starts[node] <= untilUtc) {
+        if (ends[node] >= fromUtc) {
+          add(node, appointmentsOut, intervalsOut);
+        }
+        nodes[top] = node + (1 << (level - 1));
+        levels[top] = level - 1;
+        leftDone[top++] = false;
+      }
+    }
+  }
+}
@@ -0,0 +1,628 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.mock;
+
+import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.integer;
+import static com.google.calendar.interoperability.connectorplugin.base.Configurable.Type.string;
+
+import com.google.calendar.interoperability.connectorplugin.base.Configurable;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+import com.google.calendar.interoperability.connectorplugin.impl.googlev3.Json;
+import com.google.common.base.Preconditions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An in-process http server that imitates the GData user and free/busy
+ * feeds with the data of a MockServer. Latency, error rate and page size
+ * can be configured, so the throttling, retry and paging behavior of the
+ * google connector can be exercised offline and deterministically. Point
+ * gdata.appsFeedsUrl and gdata.calendarFeedsUrl to the stub (and set
+ * gdata.authToken to any value to skip the login). The v3 connector is
+ * pointed to the stub with googlev3.calendarApiUrl and
+ * googlev3.directoryApiUrl.
+ *
+ * The stub serves
+ *   /a/feeds/<domain>/user/2.0/                 (user feed)
+ *   /calendar/feeds/<email>/private/free-busy   (free/busy feed)
+ *   /calendar/v3/freeBusy                       (v3 freeBusy.query)
+ *   /admin/directory/v1/users?domain=<domain>   (v3 users.list)
+ */
+public class GDataStubServer extends Configurable {
+
+  private static final Logger LOGGER =
+    Logger.getLogger(GDataStubServer.class.getName());
+
+  /**
+   * Supported distributions for the simulated latency
+   */
+  public static enum Latency {
+    fixed, uniform, exponential
+  }
+
+  private static final String ATOM_HEADER =
+    "<?xml version='1.0' encoding='UTF-8'?>" +
+    "<feed xmlns='http://www.w3.org/2005/Atom' " +
+    "xmlns:openSearch='http://a9.com/-/spec/opensearchrss/1.0/' " +
+    "xmlns:apps='http://schemas.google.com/apps/2006' " +
+    "xmlns:gd='http://schemas.google.com/g/2005'>" +
+    "<id>%s</id><updated>%s</updated><title type='text'>%s</title>";
+
+  private static final String USER_ENTRY =
+    "<entry><id>%s</id><updated>%s</updated>" +
+    "<category scheme='http://schemas.google.com/g/2005#kind' " +
+    "term='http://schemas.google.com/apps/2006#user'/>" +
+    "<title type='text'>%s</title>" +
+    "<apps:login userName='%s' suspended='false' admin='false'/>" +
+    "<apps:name familyName='%s' givenName='Joe'/></entry>";
+
+  private static final String EVENT_ENTRY =
+    "<entry><id>%s</id><updated>%s</updated>" +
+    "<category scheme='http://schemas.google.com/g/2005#kind' " +
+    "term='http://schemas.google.com/g/2005#event'/>" +
+    "<title type='text'>busy</title>" +
+    "<gd:when startTime='%s' endTime='%s'/></entry>";
+
+  private static final String NEXT_LINK =
+    "<link rel='next' type='application/atom+xml' href='%s'/>";
+
+  // The Calendar API v3 and Directory API endpoints
+  private static final String V3_FREE_BUSY = "/calendar/v3/freeBusy";
+  private static final String V3_USERS = "/admin/directory/v1/users";
+  private static final String TOKEN = "/oauth2/token";
+  private static final String TOKEN_PREFIX = "stub-token-";
+
+  private final MockServer data;
+  private Random random;
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong injectedErrors = new AtomicLong();
+  private final AtomicLong tokens = new AtomicLong();
+  private volatile long firstValidToken;
+  private HttpServer server;
+  private ExecutorService executor;
+
+  /**
+   * Constructor for unit tests: serves the given data
+   */
+  GDataStubServer(MockServer data) {
+    super("stub");
+    Preconditions.checkNotNull(data);
+    registerParameter("port", integer, "0");
+    registerParameter("latency", string, Latency.fixed.name());
+    registerParameter("latencyInMillis", integer, "0");
+    registerParameter("errorPercentage", integer, "0");
+    registerParameter("errorStatus", integer, "503");
+    registerParameter("pageSize", integer, "50");
+    registerParameter("seed", integer, "0");
+    registerParameter("tokenLifetimeInSeconds", integer, "3600");
+    this.data = data;
+  }
+
+  /**
+   * Constructor: serves the data of a mock infrastructure as defined in the
+   * "mock" section of the configuration
+   */
+  public GDataStubServer() {
+    this(new MockInfrastructure().getServer());
+  }
+
+  /**
+   * Starts serving requests
+   * @return the port the server is listening on
+   */
+  public synchronized int start() throws IOException {
+    if (server != null) {
+      throw new IllegalStateException("Already started");
+    }
+    server = HttpServer.create(
+        new InetSocketAddress(getInteger("port").intValue()), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+    LOGGER.log(Level.INFO, "GData stub listening on port " + getPort());
+    return getPort();
+  }
+
+  /**
+   * Stops serving requests
+   */
+  public synchronized void stop() {
+    if (server != null) {
+      server.stop(0);
+      server = null;
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  public synchronized int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * @return the amount of requests served so far
+   */
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  /**
+   * @return the amount of requests that were answered with an error on
+   *   purpose
+   */
+  public long getInjectedErrorCount() {
+    return injectedErrors.get();
+  }
+
+  /**
+   * @return the amount of access tokens issued
+   */
+  public long getTokenCount() {
+    return tokens.get();
+  }
+
+  /**
+   * Revokes all access tokens issued so far; requests with one of them are
+   * answered with 401 from now on
+   */
+  public void revokeTokens() {
+    firstValidToken = tokens.get() + 1;
+  }
+
+  /**
+   * Checks the bearer token of an api v3 request. Tokens this stub did not
+   * issue are accepted as is, so a fixed token can be configured.
+   */
+  private boolean isAuthorized(HttpExchange exchange) {
+    final String header =
+      exchange.getRequestHeaders().getFirst("Authorization");
+    final String prefix = "Bearer " + TOKEN_PREFIX;
+    if (header == null || !header.startsWith(prefix)) {
+      return header != null;
+    }
+    try {
+      return Long.parseLong(header.substring(prefix.length())) >=
+          firstValidToken;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Issues a new access token for a refresh token, like the oauth2 token
+   * endpoint
+   */
+  private String renderToken(Map<String, String> form) {
+    Preconditions.checkArgument(
+        "refresh_token".equals(form.get("grant_type")), "Unsupported grant");
+    Preconditions.checkArgument(form.get("refresh_token") != null,
+        "Missing refresh token");
+    return "{\"access_token\": \"" + TOKEN_PREFIX + tokens.incrementAndGet() +
+        "\", \"expires_in\": " + getInteger("tokenLifetimeInSeconds") +
+        ", \"token_type\": \"Bearer\"}";
+  }
+
+  /**
+   * Computes the latency for the next request. Visible for testing.
+   */
+  synchronized long nextLatency() {
+    final long mean = getInteger("latencyInMillis");
+    final Random random = getRandom();
+    switch (Latency.valueOf(getString("latency"))) {
+      case uniform:
+        return (long) (random.nextDouble() * 2 * mean);
+      case exponential:
+        return (long) (-Math.log(1 - random.nextDouble()) * mean);
+      default:
+        return mean;
+    }
+  }
+
+  /**
+   * Decides whether the next request should fail. Visible for testing.
+   */
+  synchronized boolean nextIsError() {
+    return getRandom().nextInt(100) < getInteger("errorPercentage");
+  }
+  
+  /**
+   * Lazily creates the random generator, so the seed can still be changed
+   * through setLocalConfig after construction
+   */
+  private Random getRandom() {
+    if (random == null) {
+      random = new Random(getInteger("seed"));
+    }
+    return random;
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    try {
+      requests.incrementAndGet();
+      final long latency = nextLatency();
+      if (latency > 0) {
+        Thread.sleep(latency);
+      }
+      if (nextIsError()) {
+        injectedErrors.incrementAndGet();
+        respond(exchange, getInteger("errorStatus").intValue(),
+            "text/plain", "Injected error");
+        return;
+      }
+      final String path = exchange.getRequestURI().getPath();
+      final Map<String, String> query =
+        parseQuery(exchange.getRequestURI().getRawQuery());
+      final String[] parts = path.split("/");
+      if ((path.equals(V3_FREE_BUSY) || path.equals(V3_USERS)) &&
+          !isAuthorized(exchange)) {
+        respond(exchange, 401, "application/json", "{\"error\": " +
+            "{\"code\": 401, \"message\": \"Invalid Credentials\"}}");
+        return;
+      }
+      String result = null;
+      String type = "application/atom+xml";
+      if (path.equals(TOKEN) &&
+          "POST".equals(exchange.getRequestMethod())) {
+        result = renderToken(parseQuery(readBody(exchange)));
+        type = "application/json";
+      } else if (parts.length >= 6 && "a".equals(parts[1]) &&
+          "user".equals(parts[4]) && "2.0".equals(parts[5])) {
+        result = renderUsers(exchange, parts[3], query);
+      } else if (parts.length >= 6 && "calendar".equals(parts[1]) &&
+          "free-busy".equals(parts[5])) {
+        result = renderFreeBusy(parts[3], query);
+      } else if (path.equals(V3_FREE_BUSY) &&
+          "POST".equals(exchange.getRequestMethod())) {
+        result = renderV3FreeBusy(readBody(exchange));
+        type = "application/json";
+      } else if (path.equals(V3_USERS)) {
+        result = renderV3Users(query);
+        type = "application/json";
+      }
+      if (result == null) {
+        respond(exchange, 404, "text/plain", "Not found: " + path);
+      } else {
+        respond(exchange, 200, type, result);
+      }
+    } catch (InterruptedException e) {
+      respond(exchange, 503, "text/plain", "Interrupted");
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Stub request failed", e);
+      respond(exchange, 400, "text/plain", String.valueOf(e.getMessage()));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static void respond(
+      HttpExchange exchange, int status, String type, String body)
+      throws IOException {
+    final byte[] bytes = body.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", type + "; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  /**
+   * Renders a page of the user feed. Users are sorted by name, paging
+   * works with the startUsername parameter (like the provisioning api)
+   */
+  private String renderUsers(
+      HttpExchange exchange, String domainName, Map<String, String> query) {
+    final MockDomain domain = data.getDomain(domainName);
+    if (domain == null) {
+      return null;
+    }
+    final List<String> names = new ArrayList<String>();
+    for (MockUser user : domain) {
+      names.add(user.getObjectName());
+    }
+    Collections.sort(names);
+    final String startAt = query.get("startUsername");
+    int first = 0;
+    while (startAt != null && first < names.size() &&
+        names.get(first).compareTo(startAt) < 0) {
+      first++;
+    }
+    final int last =
+      Math.min(names.size(), first + getInteger("pageSize").intValue());
+    final String now = formatTime(System.currentTimeMillis());
+    final String self = "http://" + exchange.getRequestHeaders().getFirst("Host")
+        + exchange.getRequestURI().getPath();
+    StringBuilder result = new StringBuilder();
+    result.append(String.format(ATOM_HEADER, self, now, "Users"));
+    if (last < names.size()) {
+      result.append(String.format(
+          NEXT_LINK, self + "?startUsername=" + encode(names.get(last))));
+    }
+    for (String name : names.subList(first, last)) {
+      result.append(String.format(USER_ENTRY,
+          self + escape(name), now, escape(name), escape(name), escape(name)));
+    }
+    return result.append("</feed>").toString();
+  }
+
+  /**
+   * Renders a page of the free/busy feed. Paging works with the
+   * start-index and max-results parameters (like the calendar api); the
+   * pageSize only applies without max-results, since the connector takes
+   * a page shorter than max-results for the last one
+   */
+  private String renderFreeBusy(String email, Map<String, String> query) {
+    final MockUser user = findUser(email);
+    if (user == null) {
+      return null;
+    }
+    final long from = parseTime(query.get("start-min"));
+    final long until = parseTime(query.get("start-max"));
+    final int startIndex = query.containsKey("start-index") ?
+        Integer.parseInt(query.get("start-index")) : 1;
+    final int pageSize = query.containsKey("max-results") ?
+        Integer.parseInt(query.get("max-results")) :
+        getInteger("pageSize").intValue();
+    final String now = formatTime(System.currentTimeMillis());
+    StringBuilder result = new StringBuilder();
+    result.append(String.format(ATOM_HEADER, escape(email), now, "Free/Busy"));
+    int index = 1;
+    int count = 0;
+    for (MockAppointment appointment :
+        user.getCalendar().scanForAppointments(from, until)) {
+      if (index++ < startIndex) {
+        continue;
+      }
+      if (count++ >= pageSize) {
+        break;
+      }
+      result.append(String.format(EVENT_ENTRY,
+          escape(appointment.getEventId()), now,
+          formatTime(appointment.getStartTimeUtc()),
+          formatTime(appointment.getEndTimeUtc())));
+    }
+    return result.append("</feed>").toString();
+  }
+
+  /**
+   * Answers a freeBusy.query of the Calendar API v3. Calendars that do not
+   * exist are reported with a notFound error, like the api does.
+   */
+  private String renderV3FreeBusy(String body) {
+    final Object request = Json.parse(body);
+    final Object timeMin = Json.get(request, "timeMin");
+    final Object timeMax = Json.get(request, "timeMax");
+    final long from = parseTime((String) timeMin);
+    final long until = parseTime((String) timeMax);
+    final StringBuilder result = new StringBuilder();
+    result.append("{\"kind\":\"calendar#freeBusy\",\"timeMin\":")
+        .append(Json.quote(formatTime(from)))
+        .append(",\"timeMax\":").append(Json.quote(formatTime(until)))
+        .append(",\"calendars\":{");
+    final Object items = Json.get(request, "items");
+    boolean first = true;
+    for (Object item : (List<?>) items) {
+      final String id = (String) Json.get(item, "id");
+      result.append(first ? "" : ",").append(Json.quote(id)).append(':');
+      first = false;
+      final MockUser user = findUser(id);
+      if (user == null) {
+        result.append("{\"errors\":[{\"domain\":\"global\"," +
+            "\"reason\":\"notFound\"}],\"busy\":[]}");
+        continue;
+      }
+      result.append("{\"busy\":[");
+      final BusyIntervals busy =
+        user.getCalendar().scanForBusyTimes(from, until);
+      for (int i = 0; i < busy.size(); i++) {
+        result.append(i == 0 ? "" : ",")
+            .append("{\"start\":").append(Json.quote(
+                formatTime(Math.max(from, busy.getStart(i)))))
+            .append(",\"end\":").append(Json.quote(
+                formatTime(Math.min(until, busy.getEnd(i)))))
+            .append('}');
+      }
+      result.append("]}");
+    }
+    return result.append("}}").toString();
+  }
+
+  /**
+   * Renders a page of users.list of the Directory API. Users are sorted by
+   * name; the page token is the name of the first user on the next page.
+   */
+  private String renderV3Users(Map<String, String> query) {
+    final MockDomain domain = data.getDomain(query.get("domain"));
+    if (domain == null) {
+      return null;
+    }
+    final List<String> names = new ArrayList<String>();
+    for (MockUser user : domain) {
+      names.add(user.getObjectName());
+    }
+    Collections.sort(names);
+    final String startAt = query.get("pageToken");
+    int first = 0;
+    while (startAt != null && first < names.size() &&
+        names.get(first).compareTo(startAt) < 0) {
+      first++;
+    }
+    int pageSize = getInteger("pageSize").intValue();
+    if (query.containsKey("maxResults")) {
+      pageSize = Math.min(pageSize, Integer.parseInt(query.get("maxResults")));
+    }
+    final int last = Math.min(names.size(), first + pageSize);
+    final StringBuilder result = new StringBuilder();
+    result.append("{\"kind\":\"admin#directory#users\",\"users\":[");
+    for (int i = first; i < last; i++) {
+      final String email = names.get(i) + "@" + domain.getName();
+      result.append(i == first ? "" : ",")
+          .append("{\"primaryEmail\":").append(Json.quote(email))
+          .append(",\"name\":{\"givenName\":\"Joe\",\"familyName\":")
+          .append(Json.quote(names.get(i))).append("}}");
+    }
+    result.append(']');
+    if (last < names.size()) {
+      result.append(",\"nextPageToken\":")
+          .append(Json.quote(names.get(last)));
+    }
+    return result.append('}').toString();
+  }
+
+  /**
+   * Finds a user by email address
+   * @return the user, or null if there is none
+   */
+  private MockUser findUser(String email) {
+    final int at = email.indexOf('@');
+    if (at < 0) {
+      return null;
+    }
+    final MockDomain domain = data.getDomain(email.substring(at + 1));
+    return (domain == null) ? null : domain.getUser(email.substring(0, at));
+  }
+
+  private static String readBody(HttpExchange exchange) throws IOException {
+    final InputStream in = exchange.getRequestBody();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      out.write(buffer, 0, n);
+    }
+    in.close();
+    return out.toString("UTF-8");
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) {
+    Map<String, String> result = new HashMap<String, String>();
+    if (rawQuery == null) {
+      return result;
+    }
+    for (String pair : rawQuery.split("&")) {
+      final int split = pair.indexOf('=');
+      if (split > 0) {
+        result.put(decode(pair.substring(0, split)),
+            decode(pair.substring(split + 1)));
+      }
+    }
+    return result;
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String escape(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;")
+        .replace(">", "&gt;").replace("'", "&apos;");
+  }
+
+  /**
+   * Formats a time the way GData does (RFC 3339, UTC). Visible for testing.
+   */
+  static String formatTime(long utc) {
+    SimpleDateFormat format =
+      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(utc));
+  }
+
+  /**
+   * Parses an RFC 3339 timestamp as sent by the GData client (with or
+   * without fractions of a second, "Z", a numeric offset or no offset at
+   * all, meaning UTC). Visible for testing.
+   */
+  static long parseTime(String time) {
+    if (time == null) {
+      throw new IllegalArgumentException("Missing time range");
+    }
+    String value = time.trim();
+    final int timeStart = value.indexOf('T');
+    if (value.endsWith("Z") || value.endsWith("z")) {
+      value = value.substring(0, value.length() - 1) + "+0000";
+    } else if (value.indexOf('+', timeStart) < 0
+        && value.indexOf('-', timeStart) < 0) {
+      // GData's DateTime leaves out the offset for UTC values
+      value = value + "+0000";
+    } else if (value.charAt(value.length() - 3) == ':') {
+      value = value.substring(0, value.length() - 3) +
+          value.substring(value.length() - 2);
+    }
+    final String pattern = (value.indexOf('.') >= 0) ?
+        "yyyy-MM-dd'T'HH:mm:ss.SSSZ" : "yyyy-MM-dd'T'HH:mm:ssZ";
+    try {
+      return new SimpleDateFormat(pattern).parse(value).getTime();
+    } catch (ParseException e) {
+      throw new IllegalArgumentException("Invalid time: " + time);
+    }
+  }
+
+  /**
+   * Runs the stub as a standalone program
+   * Usage: GDataStubServer <config file>
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.out.println("Usage: GDataStubServer <config file>");
+      System.exit(1);
+    }
+    Configurable.setGlobalConfig(new File(args[0]));
+    final int port = new GDataStubServer().start();
+    System.out.println("GData stub listening on port " + port);
+  }
+}
@@ -15,17 +15,19 @@
 
 package com.google.calendar.interoperability.connectorplugin.impl.mock;
 
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
 import com.google.common.base.Preconditions;
 
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
 /**
- * A mock calendar containing mock appointments
+ * A mock calendar containing mock appointments. Modifications are
+ * synchronized; range queries go against an immutable AppointmentIndex that
+ * is rebuilt on the first query after a modification, so concurrent
+ * readers do not block each other.
  */
 class MockCalendar {
   
@@ -33,6 +35,9 @@ class MockCalendar {
   private Map<String, MockAppointment> allAppointments;
   private SortedSet<MockAppointment> sortedAppointments;
   
+  // Index for range queries, null if outdated
+  private volatile AppointmentIndex index;
+  
   // Visible for unit testing
   MockCalendar() {
     allAppointments = new HashMap<String, MockAppointment>();
@@ -62,6 +67,7 @@ class MockCalendar {
     cancelAppointment(eventId);
     sortedAppointments.add(result);
     allAppointments.put(eventId, result);
+    index = null;
     return result;
   }
   
@@ -77,12 +83,30 @@ class MockCalendar {
    * Returns an iterable of appointments, sorted by start time, that overlap
    * with a given time range
    */
-  public synchronized Iterable<MockAppointment> 
+  public Iterable<MockAppointment> 
       scanForAppointments(long fromUtc, long endUtc) {
-    List<MockAppointment> result = new LinkedList<MockAppointment>();
-    for (MockAppointment appointment : sortedAppointments) {
-      if (appointment.overlaps(fromUtc, endUtc)) {
-        result.add(appointment);
+    return getIndex().scan(fromUtc, endUtc);
+  }
+  
+  /**
+   * Returns the busy times of all appointments that overlap with a given
+   * time range, sorted by start time
+   */
+  public BusyIntervals scanForBusyTimes(long fromUtc, long endUtc) {
+    return getIndex().scanBusyTimes(fromUtc, endUtc);
+  }
+  
+  /**
+   * @return an up-to-date index of the appointments
+   */
+  private AppointmentIndex getIndex() {
+    AppointmentIndex result = index;
+    if (result == null) {
+      synchronized (this) {
+        if (index == null) {
+          index = new AppointmentIndex(sortedAppointments);
+        }
+        result = index;
       }
     }
     return result;
@@ -94,6 +118,7 @@ class MockCalendar {
   public synchronized void cancelAppointment(String eventId) {
     if (allAppointments.containsKey(eventId)) {
       sortedAppointments.remove(allAppointments.remove(eventId));
+      index = null;
     }    
   }
 
@@ -50,12 +50,21 @@ public class MockInfrastructure extends Configurable{
         getString("domain"));
   }
   
+  /**
+   * @return the mock data served by this infrastructure
+   */
+  MockServer getServer() {
+    return server;
+  }
+  
   public MockInfrastructure(CommandHandler handler) {
     this();
     handler.registerSubhandler(
-        AdminCommand.class, new AdminHandler(server));
+        AdminCommand.class, new AdminHandler(server),
+        AdminCommand.DIRECTORY_FIELDS);
     handler.registerSubhandler(
-        SearchCommand.class, new SearchHandler(server));
+        SearchCommand.class, new SearchHandler(server),
+        SearchCommand.SEARCH_FIELDS);
   }
 }
  
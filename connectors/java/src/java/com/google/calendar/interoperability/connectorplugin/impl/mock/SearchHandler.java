@@ -23,7 +23,6 @@ import com.google.calendar.interoperability.connectorplugin.base.messages.VoidRe
 import com.google.calendar.interoperability.connectorplugin.base.messages.util.Address;
 
 import java.util.Date;
-import java.util.Iterator;
 import java.util.logging.Level;
 
 /**
@@ -72,14 +71,9 @@ class SearchHandler extends BasicSearchHandler {
     
     // Create the basic response object
     FreeBusyResponse response = new FreeBusyResponse(searchCommand);
-    for (Iterator<MockAppointment> it = 
-      user.getCalendar().scanForAppointments(
+    response.addTimeslots(user.getCalendar().scanForBusyTimes(
         searchCommand.getBeginTime().getTimeInUtc(), 
-        searchCommand.getEndTime().getTimeInUtc()).iterator(); 
-       it.hasNext();) {
-      MockAppointment apt = it.next();
-      response.addTimeslot(apt.getStartTimeUtc(), apt.getEndTimeUtc());
-    }
+        searchCommand.getEndTime().getTimeInUtc()));
     return response;
   }
 }
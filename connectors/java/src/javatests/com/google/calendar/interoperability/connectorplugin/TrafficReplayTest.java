@@ -0,0 +1,121 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin;
+
+import static com.google.calendar.interoperability.connectorplugin.base.GwIo.FOLDER.HEADERS_IN;
+
+import com.google.calendar.interoperability.connectorplugin.base.TrafficCapture;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Unit tests for the traffic replay
+ */
+public class TrafficReplayTest extends TestCase {
+
+  private File captureFile;
+  private File baseDirectory;
+  private File inFolder;
+
+  @Override
+  public void setUp() throws Exception {
+    captureFile = File.createTempFile("capture", ".gz");
+    captureFile.delete();
+    baseDirectory = File.createTempFile("replay", "");
+    baseDirectory.delete();
+    inFolder = new File(baseDirectory, HEADERS_IN.getNameInGroupWise());
+    assertTrue(inFolder.mkdirs());
+  }
+
+  @Override
+  public void tearDown() {
+    captureFile.delete();
+    for (File file : inFolder.listFiles()) {
+      file.delete();
+    }
+    inFolder.delete();
+    baseDirectory.delete();
+  }
+
+  private static String read(File file) throws IOException {
+    final InputStream in = new FileInputStream(file);
+    try {
+      final byte[] content = new byte[(int) file.length()];
+      assertEquals(content.length, in.read(content));
+      return new String(content);
+    } finally {
+      in.close();
+    }
+  }
+
+  public void testParseSpeed() {
+    assertEquals(0.0, TrafficReplay.parseSpeed("max"));
+    assertEquals(0.0, TrafficReplay.parseSpeed(" MAX "));
+    assertEquals(1.0, TrafficReplay.parseSpeed("1"));
+    assertEquals(2.5, TrafficReplay.parseSpeed("2.5"));
+    try {
+      TrafficReplay.parseSpeed("0");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      TrafficReplay.parseSpeed("fast");
+      fail();
+    } catch (NumberFormatException e) {
+      // expected
+    }
+  }
+
+  public void testReplay() throws Exception {
+    TrafficCapture capture = new TrafficCapture(captureFile);
+    capture.record("1.api", 1000, "first".getBytes());
+    capture.record("1.api", 1100, "again".getBytes());
+    capture.record("2.api", 1200, "second".getBytes());
+    capture.close();
+
+    // At ten times the speed, the last header is due after 20ms
+    TrafficReplay replay = new TrafficReplay(baseDirectory, 10);
+    TrafficCapture.Reader reader = TrafficCapture.open(captureFile);
+    final long start = System.currentTimeMillis();
+    assertEquals(3, replay.replay(reader));
+    assertTrue(System.currentTimeMillis() - start >= 20);
+    reader.close();
+
+    // A header whose name is taken is fed under a new name
+    final String[] names = inFolder.list();
+    Arrays.sort(names);
+    assertEquals(
+        Arrays.asList("1.api", "2.api", "r0_1.api"), Arrays.asList(names));
+    assertEquals("first", read(new File(inFolder, "1.api")));
+    assertEquals("again", read(new File(inFolder, "r0_1.api")));
+    assertEquals("second", read(new File(inFolder, "2.api")));
+
+    // The connector has not picked anything up
+    assertFalse(replay.awaitDrain(200));
+    for (String name : names) {
+      new File(inFolder, name).delete();
+    }
+    assertTrue(replay.awaitDrain(200));
+  }
+}
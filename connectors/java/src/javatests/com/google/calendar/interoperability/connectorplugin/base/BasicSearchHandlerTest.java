@@ -16,6 +16,7 @@
 package com.google.calendar.interoperability.connectorplugin.base;
 
 import com.google.calendar.interoperability.connectorplugin.base.BasicSearchHandler;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwCommand;
 import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
 import com.google.calendar.interoperability.connectorplugin.base.messages.ProbeResponse;
 import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
@@ -65,6 +66,18 @@ public class BasicSearchHandlerTest extends TestCase {
     assertEquals(ProbeResponse.class, handler.apply(input).getClass());
     assertEquals(1, counter);
   }
-
+  
+  public void testProbeFlag() {
+    input.setHeaderContent("Msg-ID= fb-probe:2007.8.23;");
+    assertTrue(input.isProbe());
+    input.setHeaderContent("Msg-ID= FB-PROBLEM; -END-");
+    assertFalse(input.isProbe());
+    
+    // A flag set by the parser wins over the header
+    input.setProbe(true);
+    assertEquals(ProbeResponse.class, handler.apply(input).getClass());
+    assertFalse(GwCommand.containsProbeMarker(null));
+    assertFalse(GwCommand.containsProbeMarker("-PROBE"));
+    assertTrue(GwCommand.containsProbeMarker("xFb-ProBe"));
+  }
 }
- 
@@ -63,5 +63,25 @@ public class CommandHandlerTest extends TestCase {
     handler.registerSubhandler(UnknownCommand.class, specialHandler);
     assertSame(testResponse, handler.apply(cmd));
   }
+  
+  public void testRequiredFields() {
+    final Function<UnknownCommand, GwResponse> specialHandler = 
+      new Function<UnknownCommand, GwResponse>() {
+        public GwResponse apply(UnknownCommand from) {
+          return null;
+        }      
+    };
+    assertFalse(handler.isHandled(UnknownCommand.class));
+    assertNull(handler.getRequiredFields(UnknownCommand.class));
+    handler.registerSubhandler(
+        UnknownCommand.class, specialHandler, "Msg-ID", "From");
+    assertTrue(handler.isHandled(UnknownCommand.class));
+    assertEquals(2, handler.getRequiredFields(UnknownCommand.class).size());
+    assertTrue(
+        handler.getRequiredFields(UnknownCommand.class).contains("MSG-ID"));
+    
+    // Registering without fields means all fields are needed
+    handler.registerSubhandler(UnknownCommand.class, specialHandler);
+    assertNull(handler.getRequiredFields(UnknownCommand.class));
+  }
 }
- 
@@ -0,0 +1,96 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.AdminCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.VoidResponse;
+
+import junit.framework.TestCase;
+
+import java.util.Properties;
+
+/**
+ * Unit tests for the deadline sink
+ */
+public class DeadlineSinkTest extends TestCase {
+  
+  private SimpleSink<GwResponse> responses;
+  private DeadlineSink sink;
+  private Properties properties;
+  private long now;
+  
+  @Override
+  public void setUp() {
+    now = 1000000;
+    responses = new SimpleSink<GwResponse>();
+    properties = new Properties();
+    properties.setProperty("deadline.searchInSeconds", "60");
+    sink = new DeadlineSink(responses) {
+      @Override
+      long now() {
+        return now;
+      }
+    };
+    sink.setLocalConfig(properties);
+  }
+  
+  private GwCommand search(String name, long arrival) {
+    final GwCommand command = new SearchCommand(name, "");
+    command.setArrivalTime(arrival);
+    return command;
+  }
+  
+  public void testShedExpired() {
+    final GwCommand old = search("old", now - 61000);
+    final GwCommand fresh = search("fresh", now - 59000);
+    sink.accept(old);
+    sink.accept(fresh);
+    assertSame(fresh, sink.checkOut());
+    assertEquals(now + 1000, fresh.getDeadline());
+    assertEquals(1, sink.getShedCount());
+    final VoidResponse response = (VoidResponse) responses.checkOut();
+    assertSame(old, response.getOriginalCommand());
+    assertEquals("expired_old", response.suggestLogFilename());
+  }
+  
+  public void testNoDeadline() {
+    final GwCommand admin = new AdminCommand("admin", "");
+    admin.setArrivalTime(0);
+    sink.accept(admin);
+    assertSame(admin, sink.checkOut());
+    assertEquals(0, admin.getDeadline());
+    assertEquals(0, sink.getShedCount());
+  }
+  
+  public void testNewestFirst() {
+    properties.setProperty("deadline.newestFirstBacklog", "2");
+    final GwCommand[] commands = new GwCommand[4];
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = search("" + i, now);
+      sink.accept(commands[i]);
+    }
+    
+    // Backlog of 4 and 3: newest first; then back to FIFO
+    assertSame(commands[3], sink.checkOut());
+    assertSame(commands[2], sink.checkOut());
+    assertSame(commands[0], sink.checkOut());
+    assertSame(commands[1], sink.checkOut());
+    assertEquals(2, sink.getNewestFirstCount());
+  }
+}
@@ -0,0 +1,146 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.Address;
+
+import junit.framework.TestCase;
+
+import java.util.Properties;
+
+/**
+ * Unit tests for the fair sink
+ */
+public class FairSinkTest extends TestCase {
+
+  private SimpleSink<GwResponse> responses;
+  private FairSink sink;
+  private Properties properties;
+  private long now;
+
+  @Override
+  public void setUp() {
+    now = 1000000;
+    responses = new SimpleSink<GwResponse>();
+    properties = new Properties();
+    properties.setProperty("deadline.searchInSeconds", "60");
+    sink = new FairSink(responses, 2) {
+      @Override
+      long now() {
+        return now;
+      }
+    };
+    sink.setLocalConfig(properties);
+  }
+
+  private GwCommand search(String user, long arrival) {
+    final GwCommand command = new SearchCommand(user, "");
+    command.setFrom(new Address("DOM", "PO", user, null, null));
+    command.setArrivalTime(arrival);
+    return command;
+  }
+
+  public void testRoundRobin() {
+    final GwCommand a1 = search("a", now);
+    final GwCommand a2 = search("a", now);
+    final GwCommand a3 = search("a", now);
+    final GwCommand b1 = search("b", now);
+    sink.accept(a1);
+    sink.accept(a2);
+    sink.accept(a3);
+    sink.accept(b1);
+    assertEquals(4, sink.size());
+    assertEquals(2, sink.getRequestorCount());
+    assertSame(a1, sink.checkOut());
+    assertSame(b1, sink.checkOut());
+    assertSame(a2, sink.checkOut());
+    sink.reportSuccess(a1);
+    assertSame(a3, sink.checkOut());
+    assertEquals(0, sink.size());
+  }
+
+  public void testCap() throws Exception {
+    final GwCommand a1 = search("a", now);
+    final GwCommand a2 = search("a", now);
+    final GwCommand a3 = search("a", now);
+    sink.accept(a1);
+    sink.accept(a2);
+    sink.accept(a3);
+    assertSame(a1, sink.checkOut());
+    assertSame(a2, sink.checkOut());
+    assertEquals(2, sink.getInExecution("DOM.PO.a"));
+
+    // The third command has to wait until one of the others is done
+    final GwCommand[] third = new GwCommand[1];
+    final Thread worker = new Thread() {
+      @Override
+      public void run() {
+        third[0] = sink.checkOut();
+      }
+    };
+    worker.start();
+    for (int i = 0; i < 100 && worker.getState() != Thread.State.WAITING;
+        i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(Thread.State.WAITING, worker.getState());
+    assertNull(third[0]);
+    sink.reportSuccess(a1);
+    worker.join(1000);
+    assertSame(a3, third[0]);
+
+    // Nobody else's command passed while the requestor was capped
+    assertEquals(0, sink.getCappedCount());
+  }
+
+  public void testOtherUserPassesCappedOne() {
+    final GwCommand a1 = search("a", now);
+    final GwCommand a2 = search("a", now);
+    final GwCommand a3 = search("a", now);
+    final GwCommand b1 = search("b", now);
+    sink.accept(a1);
+    sink.accept(a2);
+    assertSame(a1, sink.checkOut());
+    assertSame(a2, sink.checkOut());
+    sink.accept(a3);
+    sink.accept(b1);
+    assertSame(b1, sink.checkOut());
+    assertEquals(1, sink.getCappedCount());
+  }
+
+  public void testExpiredReleasesSlot() {
+    final GwCommand old = search("a", now - 61000);
+    final GwCommand fresh = search("a", now);
+    sink.accept(old);
+    sink.accept(fresh);
+    assertSame(fresh, sink.checkOut());
+    assertEquals(1, sink.getShedCount());
+    assertEquals(1, sink.getInExecution("DOM.PO.a"));
+    sink.reportSuccess(fresh);
+    assertEquals(0, sink.getRequestorCount());
+  }
+
+  public void testNoSender() {
+    final GwCommand command = new SearchCommand("x", "");
+    command.setArrivalTime(now);
+    sink.accept(command);
+    assertSame(command, sink.checkOut());
+    assertEquals(1, sink.getInExecution(""));
+  }
+}
@@ -0,0 +1,88 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.AdminCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
+import com.google.common.base.Function;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the lane router
+ */
+public class LaneRouterTest extends TestCase {
+  
+  private SimpleSink<GwCommand> defaultLane;
+  private SimpleSink<GwCommand> adminLane;
+  private LaneRouter<GwCommand> router;
+  
+  @Override
+  public void setUp() {
+    defaultLane = new SimpleSink<GwCommand>();
+    adminLane = new SimpleSink<GwCommand>();
+    router = new LaneRouter<GwCommand>(defaultLane);
+    router.addLane(AdminCommand.class, adminLane);
+  }
+  
+  public void testRouting() {
+    final GwCommand admin = new AdminCommand("A", "");
+    final GwCommand search = new SearchCommand("B", "");
+    router.accept(admin);
+    router.accept(search);
+    assertSame(admin, adminLane.checkOut());
+    assertSame(search, router.checkOut());
+    assertSame(adminLane, router.getLane(AdminCommand.class));
+    assertSame(defaultLane, router.getLane(SearchCommand.class));
+  }
+  
+  public void testSearchesPassBlockedAdminLane() throws Exception {
+    
+    // The only admin thread is stuck; searches are still processed
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch searched = new CountDownLatch(3);
+    final SimpleSink<Object> out = new SimpleSink<Object>();
+    new SimpleStage<GwCommand, Object>(adminLane, out,
+        new Function<GwCommand, Object>() {
+          public Object apply(GwCommand from) {
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              // just finish
+            }
+            return from;
+          }
+        }, 1, "testAdmin");
+    new SimpleStage<GwCommand, Object>(defaultLane, out,
+        new Function<GwCommand, Object>() {
+          public Object apply(GwCommand from) {
+            searched.countDown();
+            return from;
+          }
+        }, 1, "testSearch");
+    router.accept(new AdminCommand("A1", ""));
+    router.accept(new AdminCommand("A2", ""));
+    for (int i = 0; i < 3; i++) {
+      router.accept(new SearchCommand("S" + i, ""));
+    }
+    assertTrue(searched.await(5, TimeUnit.SECONDS));
+    release.countDown();
+  }
+}
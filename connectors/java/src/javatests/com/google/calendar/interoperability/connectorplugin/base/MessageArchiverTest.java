@@ -0,0 +1,173 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base;
+
+import static com.google.calendar.interoperability.connectorplugin.base.GwIo.FOLDER.LOG;
+
+import junit.framework.TestCase;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Unit tests for the message archiver
+ */
+public class MessageArchiverTest extends TestCase {
+
+  private Mockery context;
+  private GwIo io;
+  private Properties properties;
+  private List<String> names;
+  private List<byte[]> contents;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    context = new Mockery();
+    io = context.mock(GwIo.class);
+    properties = new Properties();
+    names = new ArrayList<String>();
+    contents = new ArrayList<byte[]>();
+  }
+
+  private void expectStores(final int count, final boolean result) {
+    context.checking(new Expectations(){{
+      exactly(count).of(io).store(
+          with(equal(LOG)),
+          with(aNonNull(String.class)),
+          with(aNonNull(byte[].class)));
+      will(new CustomAction("remember file") {
+        public Object invoke(Invocation invocation) {
+          names.add((String) invocation.getParameter(1));
+          contents.add((byte[]) invocation.getParameter(2));
+          return result;
+        }
+      });
+    }});
+  }
+
+  private static String gunzip(byte[] compressed) throws IOException {
+    final GZIPInputStream in =
+      new GZIPInputStream(new ByteArrayInputStream(compressed));
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1024];
+    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+      out.write(buffer, 0, read);
+    }
+    return out.toString("US-ASCII");
+  }
+
+  public void testSingleSegment() throws Exception {
+    expectStores(1, true);
+    MessageArchiver archiver = new MessageArchiver(io, properties);
+    archiver.start();
+    archiver.archive("processed_A", "first".getBytes());
+    archiver.archive("processed_B", "second".getBytes());
+    archiver.close();
+    context.assertIsSatisfied();
+    assertTrue(names.get(0), names.get(0).matches("archive_.*_0\\.gz"));
+    assertEquals(
+        "=== processed_A ===\r\nfirst\r\n=== processed_B ===\r\nsecond\r\n",
+        gunzip(contents.get(0)));
+    assertEquals(2, archiver.getArchivedEntries());
+    assertEquals(1, archiver.getWrittenSegments());
+  }
+
+  public void testRotateBySize() throws Exception {
+    properties.setProperty("archive.segmentSizeInKb", "1");
+    expectStores(3, true);
+    MessageArchiver archiver = new MessageArchiver(io, properties);
+    archiver.start();
+    final byte[] entry = new byte[1000];
+    for (int i = 0; i < 5; i++) {
+      archiver.archive("processed_" + i, entry);
+    }
+    archiver.close();
+    context.assertIsSatisfied();
+    assertEquals(3, archiver.getWrittenSegments());
+    assertTrue(gunzip(contents.get(2)).startsWith("=== processed_4 ==="));
+  }
+
+  public void testRotateByAge() throws Exception {
+    properties.setProperty("archive.segmentAgeInSeconds", "0");
+    expectStores(1, true);
+    MessageArchiver archiver = new MessageArchiver(io, properties);
+    archiver.start();
+    archiver.archive("processed_A", "first".getBytes());
+    for (int i = 0; i < 100 && archiver.getWrittenSegments() == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, archiver.getWrittenSegments());
+    archiver.close();
+    context.assertIsSatisfied();
+  }
+
+  public void testBufferFull() throws Exception {
+    properties.setProperty("archive.queueSize", "1");
+    expectStores(2, true);
+    MessageArchiver archiver = new MessageArchiver(io, properties);
+
+    // Not started, so the second entry does not fit into the buffer
+    archiver.archive("processed_A", "first".getBytes());
+    archiver.archive("processed_B", "second".getBytes());
+    assertEquals("processed_B", names.get(0));
+    assertEquals("second", new String(contents.get(0)));
+    assertEquals(1, archiver.getDirectEntries());
+    archiver.close();
+    context.assertIsSatisfied();
+    assertEquals("=== processed_A ===\r\nfirst\r\n", gunzip(contents.get(1)));
+  }
+
+  public void testArchiveAfterClose() throws Exception {
+    expectStores(2, true);
+    MessageArchiver archiver = new MessageArchiver(io, properties);
+    archiver.start();
+    archiver.archive("processed_A", "first".getBytes());
+    archiver.close();
+    archiver.archive("processed_B", "second".getBytes());
+    context.assertIsSatisfied();
+    assertEquals("processed_B", names.get(1));
+    assertEquals("second", new String(contents.get(1)));
+    assertEquals(1, archiver.getArchivedEntries());
+    assertEquals(1, archiver.getDirectEntries());
+  }
+
+  public void testSegmentExists() throws Exception {
+    context.checking(new Expectations(){{
+      exactly(1).of(io).store(
+          with(equal(LOG)),
+          with(aNonNull(String.class)),
+          with(aNonNull(byte[].class)));
+      will(returnValue(false));
+    }});
+    expectStores(1, true);
+    MessageArchiver archiver = new MessageArchiver(io, properties);
+    archiver.archive("processed_A", "first".getBytes());
+    archiver.close();
+    context.assertIsSatisfied();
+    assertTrue(names.get(0), names.get(0).endsWith("_1.gz"));
+  }
+}
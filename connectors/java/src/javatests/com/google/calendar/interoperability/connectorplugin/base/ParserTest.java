@@ -23,9 +23,11 @@ import com.google.calendar.interoperability.connectorplugin.base.messages.util.A
 import com.google.calendar.interoperability.connectorplugin.base.messages.util.AddressList;
 import com.google.calendar.interoperability.connectorplugin.base.messages.AdminCommand;
 import com.google.calendar.interoperability.connectorplugin.base.messages.GwCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
 import com.google.calendar.interoperability.connectorplugin.base.messages.MailCommand;
 import com.google.calendar.interoperability.connectorplugin.base.messages.util.NovellDate;
 import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
+import com.google.common.base.Function;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -55,13 +57,16 @@ public class ParserTest extends TestCase {
     "-END-"; 
 
   public void testTypeFreeBusyCommand() {
+    final byte[] header = FREE_BUSY.getBytes();
     context.checking(new Expectations(){{
       exactly(1).of(io).exists(HEADERS_IN, "1");
       will(returnValue(true));
       exactly(1).of(io).fetch(HEADERS_IN, "1");
-      will(returnValue(FREE_BUSY.getBytes()));
+      will(returnValue(header));
     }});
-    assertTrue(parser.apply("1") instanceof SearchCommand);
+    final GwCommand command = parser.apply("1");
+    assertTrue(command instanceof SearchCommand);
+    assertSame(header, command.getHeaderBytes());
     context.assertIsSatisfied();
   }
 
@@ -134,6 +139,7 @@ public class ParserTest extends TestCase {
  
     assertNotNull(command.getBeginTime());
     assertNotNull(command.getEndTime());
+    assertTrue(command.isProbe());
   }
   
   private static final String MAIL_MUL = 
@@ -323,7 +329,104 @@ public class ParserTest extends TestCase {
     // Step 2: validate some of the parsed values
     assertEquals("20070920170800", format(command.getBeginTime()));
     assertEquals("20071119160800", format(command.getEndTime()));
+    assertFalse(command.isProbe());
+  }
+  
+  private Parser createLazyParser() {
+    final Function<SearchCommand, GwResponse> search =
+      new Function<SearchCommand, GwResponse>() {
+        public GwResponse apply(SearchCommand from) {
+          return null;
+        }
+      };
+    final Function<AdminCommand, GwResponse> admin =
+      new Function<AdminCommand, GwResponse>() {
+        public GwResponse apply(AdminCommand from) {
+          return null;
+        }
+      };
+    final CommandHandler handler = new CommandHandler();
+    handler.registerSubhandler(
+        SearchCommand.class, search, SearchCommand.SEARCH_FIELDS);
+    handler.registerSubhandler(
+        AdminCommand.class, admin, AdminCommand.DIRECTORY_FIELDS);
+    return new Parser(io, null, handler);
   }
   
+  private void expectFetch(final String header) {
+    context.checking(new Expectations(){{
+      exactly(1).of(io).exists(HEADERS_IN, "1");
+      will(returnValue(true));
+      exactly(1).of(io).fetch(HEADERS_IN, "1");
+      will(returnValue(header.getBytes()));
+    }});
+  }
+  
+  public void testLazySearchCommand() {
+    expectFetch(PROBE);
+    GwCommand command = createLazyParser().apply("1");
+    assertTrue(command instanceof SearchCommand);
+    context.assertIsSatisfied();
+    
+    // Fields needed for a search are there...
+    assertEquals(
+        "FB-PROBE:2007.8.23.15.59:2007.8.23.15.59:2007.8.23.15.59.9",
+        command.getMsgId());
+    assertEquals("FAKE.Exchange Gateway.FB-PROBE", command.getFrom().getCDBA());
+    assertEquals(1, command.getTo().getAddresses().size());
+    assertEquals("FAKE.Exchange Gateway.FB-PROBE to",
+        command.getTo().getAddresses().iterator().next().getCDBA());
+    assertNotNull(command.getBeginTime());
+    assertNotNull(command.getEndTime());
+    
+    // ... the rest is skipped
+    assertNull(command.getWpcApi());
+    assertNull(command.getMsgType());
+  }
+  
+  public void testLazyGetDirCommand() {
+    expectFetch(GET_DIR);
+    GwCommand command = createLazyParser().apply("1");
+    assertTrue(command instanceof AdminCommand);
+    context.assertIsSatisfied();
+    assertTrue(command.getGetDirectory());
+    assertNull(command.getWpcApi());
+  }
+  
+  public void testLazyUnsupportedCommand() {
+    expectFetch(MAIL_MUL);
+    GwCommand command = createLazyParser().apply("1");
+    assertTrue(command instanceof MailCommand);
+    context.assertIsSatisfied();
+    assertNull(command.getFrom());
+    assertNull(command.getSubject());
+    assertNull(command.getMsgId());
+  }
+  
+  public void testHeaderCharset() {
+    // The euro sign is where windows-1252 and ISO-8859-1 differ
+    final String header = PROBE.replace("FAKE.", "F\u20acKE.");
+    context.checking(new Expectations(){{
+      exactly(1).of(io).exists(HEADERS_IN, "1");
+      will(returnValue(true));
+      exactly(1).of(io).fetch(HEADERS_IN, "1");
+      will(returnValue(header.getBytes(GwResponse.CHARSET)));
+    }});
+    GwCommand command = parser.apply("1");
+    context.assertIsSatisfied();
+    assertEquals("F\u20acKE.Exchange Gateway.FB-PROBE",
+        command.getFrom().getCDBA());
+    assertEquals(header, command.getHeaderContent());
+  }
+  
+  public void testReleaseHeaders() {
+    expectFetch(PROBE);
+    parser.setRetainHeaders(false);
+    GwCommand command = parser.apply("1");
+    context.assertIsSatisfied();
+    assertNull(command.getHeaderBytes());
+    assertNull(command.getHeaderContent());
+    assertTrue(command.isProbe());
+    assertNotNull(command.getFrom());
+  }
 }
-
@@ -0,0 +1,98 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.MailCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.ProbeResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.Address;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.AddressList;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.NovellDate;
+import com.google.common.base.Function;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the probe router
+ */
+public class ProbeRouterTest extends TestCase {
+  
+  private CommandHandler handler;
+  private SimpleSink<GwCommand> commands;
+  private SimpleSink<GwResponse> responses;
+  private ProbeRouter router;
+  private SearchCommand probe;
+  
+  @Override
+  public void setUp() {
+    handler = new CommandHandler();
+    commands = new SimpleSink<GwCommand>();
+    responses = new SimpleSink<GwResponse>();
+    router = new ProbeRouter(handler, commands, responses);
+    probe = new SearchCommand("A", "Msg-ID= FB-PROBE;");
+    probe.setBeginTime(new NovellDate());
+    probe.setEndTime(new NovellDate());
+    probe.setFrom(new Address());
+    probe.setMsgId("FB-PROBE");
+    AddressList to = new AddressList();
+    to.add(new Address());
+    probe.setTo(to);
+  }
+  
+  private void registerSearch() {
+    handler.registerSubhandler(SearchCommand.class,
+        new Function<SearchCommand, GwResponse>() {
+          public GwResponse apply(SearchCommand from) {
+            return null;
+          }
+        });
+  }
+  
+  public void testProbe() {
+    registerSearch();
+    router.accept(probe);
+    GwResponse response = responses.checkOut();
+    assertEquals(ProbeResponse.class, response.getClass());
+    assertSame(probe, response.getOriginalCommand());
+    assertEquals(1, router.getProbeCount());
+  }
+  
+  public void testOtherCommands() {
+    registerSearch();
+    final GwCommand mail = new MailCommand("B", "FB-PROBE");
+    final SearchCommand search = new SearchCommand("C", "Msg-ID= 1;");
+    router.accept(mail);
+    router.accept(search);
+    assertSame(mail, router.checkOut());
+    assertSame(search, router.checkOut());
+    assertEquals(0, router.getProbeCount());
+  }
+  
+  public void testIncompleteProbe() {
+    registerSearch();
+    probe.setFrom(null);
+    router.accept(probe);
+    assertSame(probe, commands.checkOut());
+  }
+  
+  public void testSearchNotHandled() {
+    router.accept(probe);
+    assertSame(probe, commands.checkOut());
+    assertEquals(0, router.getProbeCount());
+  }
+}
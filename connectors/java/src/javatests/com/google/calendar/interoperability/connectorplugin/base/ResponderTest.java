@@ -28,6 +28,10 @@ import junit.framework.TestCase;
 
 import org.jmock.Expectations;
 import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+
+import java.util.Properties;
 
 /**
  * Unit tests for the "responder" function
@@ -38,6 +42,7 @@ public class ResponderTest extends TestCase {
   private GwIo io;
   private Mockery context;
   private GwResponse response;
+  private int renderCount;
   
   @Override
   public void setUp() throws Exception {
@@ -45,9 +50,11 @@ public class ResponderTest extends TestCase {
     context = new Mockery();
     io = context.mock(GwIo.class);
     responder = new Responder(io, false);
+    renderCount = 0;
     response = new GwResponse(new UnknownCommand("A", "B")) {
       @Override
       public String renderResponse() {
+        renderCount++;
         return "response";
       }
     };
@@ -107,5 +114,61 @@ public class ResponderTest extends TestCase {
     context.assertIsSatisfied();    
   }
   
+  public void testLogReusesResponse() {
+    responder = new Responder(io, true);
+    final byte[][] written = new byte[2][];
+    context.checking(new Expectations(){{
+      exactly(1).of(io).store(
+          with(equal(HEADERS_OUT)),
+          with(equal("A")),
+          with(aNonNull(byte[].class)));
+      will(new CustomAction("remember response") {
+        public Object invoke(Invocation invocation) {
+          written[0] = (byte[]) invocation.getParameter(2);
+          return true;
+        }
+      });
+      exactly(1).of(io).store(
+          with(equal(LOG)),
+          with(equal("processed_A")),
+          with(aNonNull(byte[].class)));
+      will(new CustomAction("remember log") {
+        public Object invoke(Invocation invocation) {
+          written[1] = (byte[]) invocation.getParameter(2);
+          return true;
+        }
+      });
+    }});
+    responder.apply(response);
+    context.assertIsSatisfied();
+    assertEquals(1, renderCount);
+    assertEquals("response", new String(written[0]));
+    assertEquals(response.renderLog(), new String(written[1]));
+    assertEquals(1, renderCount);
+  }
+
+  public void testArchive() throws Exception {
+    final MessageArchiver archiver =
+      new MessageArchiver(io, new Properties());
+    responder = new Responder(io, archiver);
+    context.checking(new Expectations(){{
+      exactly(1).of(io).store(
+          with(equal(HEADERS_OUT)),
+          with(equal("A")),
+          with(aNonNull(byte[].class)));
+      will(returnValue(true));
+    }});
+    responder.apply(response);
+    context.assertIsSatisfied();
+    context.checking(new Expectations(){{
+      exactly(1).of(io).store(
+          with(equal(LOG)),
+          with(any(String.class)),
+          with(aNonNull(byte[].class)));
+      will(returnValue(true));
+    }});
+    archiver.close();
+    context.assertIsSatisfied();
+    assertEquals(1, archiver.getArchivedEntries());
+  }
 }
- 
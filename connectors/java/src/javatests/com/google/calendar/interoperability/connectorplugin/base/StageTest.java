@@ -60,6 +60,42 @@ public class StageTest extends TestCase {
     context.assertIsSatisfied();
   }
   
+  /**
+   * A result whose work is completed later on
+   */
+  private static class DeferredResult implements Deferred {
+    Runnable callback;
+    
+    public void whenDone(Runnable callback) {
+      this.callback = callback;
+    }
+  }
+  
+  @SuppressWarnings("unchecked")
+  public void testDeferredResult() {
+    final Function<String, Object> deferring = context.mock(Function.class,
+        "deferring");
+    final Sink<Object> deferredOut = context.mock(Sink.class, "deferredOut");
+    final DeferredResult result = new DeferredResult();
+    context.checking(new Expectations(){{
+      exactly(1).of(in).checkOut();
+      will(returnValue("A"));
+      exactly(1).of(deferring).apply("A");
+      will(returnValue(result));
+      exactly(1).of(deferredOut).accept(result);
+    }});
+    new Stage<String, Object>(in, deferredOut, deferring){}
+        .processSingleElement();
+    context.assertIsSatisfied();
+    
+    // Success is reported once the work is done
+    context.checking(new Expectations(){{
+      exactly(1).of(in).reportSuccess("A");
+    }});
+    result.callback.run();
+    context.assertIsSatisfied();
+  }
+  
   public void testNullInput() {
     context.checking(new Expectations(){{
       exactly(1).of(in).checkOut();
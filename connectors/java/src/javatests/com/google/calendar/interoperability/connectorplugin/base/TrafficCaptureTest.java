@@ -0,0 +1,90 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base;
+
+import com.google.calendar.interoperability.connectorplugin.base.TrafficCapture.CapturedHeader;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Unit tests for the traffic capture
+ */
+public class TrafficCaptureTest extends TestCase {
+
+  private File file;
+
+  @Override
+  public void setUp() throws Exception {
+    file = File.createTempFile("capture", ".gz");
+    file.delete();
+  }
+
+  @Override
+  public void tearDown() {
+    file.delete();
+  }
+
+  private void assertHeader(
+      CapturedHeader header, String name, long arrival, String content) {
+    assertNotNull(header);
+    assertEquals(name, header.getName());
+    assertEquals(arrival, header.getArrivalUtc());
+    assertEquals(content, new String(header.getContent()));
+  }
+
+  public void testRoundTrip() throws Exception {
+    TrafficCapture capture = new TrafficCapture(file, 2);
+    capture.record("1.api", 100, "first".getBytes());
+    capture.record("2.api", 200, "second".getBytes());
+    capture.record("3.api", 300, "".getBytes());
+    capture.close();
+
+    TrafficCapture.Reader reader = TrafficCapture.open(file);
+    assertHeader(reader.next(), "1.api", 100, "first");
+    assertHeader(reader.next(), "2.api", 200, "second");
+    assertHeader(reader.next(), "3.api", 300, "");
+    assertNull(reader.next());
+    reader.close();
+  }
+
+  public void testAppend() throws Exception {
+    TrafficCapture capture = new TrafficCapture(file);
+    capture.record("1.api", 100, "first".getBytes());
+    capture.close();
+    capture = new TrafficCapture(file);
+    capture.record("2.api", 200, "second".getBytes());
+    capture.close();
+
+    TrafficCapture.Reader reader = TrafficCapture.open(file);
+    assertHeader(reader.next(), "1.api", 100, "first");
+    assertHeader(reader.next(), "2.api", 200, "second");
+    assertNull(reader.next());
+    reader.close();
+  }
+
+  public void testEmpty() throws Exception {
+    new TrafficCapture(file).close();
+    assertTrue(file.exists());
+    assertEquals(0, file.length());
+
+    // ...which reads as a capture without headers
+    TrafficCapture.Reader reader = TrafficCapture.open(file);
+    assertNull(reader.next());
+    reader.close();
+  }
+}
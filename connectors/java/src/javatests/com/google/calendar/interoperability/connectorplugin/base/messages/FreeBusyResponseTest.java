@@ -19,6 +19,7 @@ import com.google.calendar.interoperability.connectorplugin.base.messages.AdminC
 import com.google.calendar.interoperability.connectorplugin.base.messages.FreeBusyResponse;
 import com.google.calendar.interoperability.connectorplugin.base.messages.util.Address;
 import com.google.calendar.interoperability.connectorplugin.base.messages.util.AddressList;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.NovellDate;
 
 import junit.framework.TestCase;
 
@@ -77,6 +78,31 @@ public class FreeBusyResponseTest extends TestCase {
         , response.renderTimes());
   }
   
+  public void testMergeAndClip() {
+    NovellDate begin = new NovellDate();
+    begin.setTimeInUtc(100 * 60000L);
+    NovellDate end = new NovellDate();
+    end.setTimeInUtc(200 * 60000L);
+    cmd.setBeginTime(begin);
+    cmd.setEndTime(end);
+    response.addTimeslot(150 * 60000L, 170 * 60000L);
+    response.addTimeslot(0, 110 * 60000L);
+    response.addTimeslot(160 * 60000L, 180 * 60000L);
+    response.addTimeslot(300 * 60000L, 310 * 60000L);
+    assertEquals(
+        String.format(
+          "    Start-Time= %s; \r\n" +
+            "    End-Time= %s; , \r\n" +
+            "    Start-Time= %s; \r\n" +
+            "    End-Time= %s; \r\n",
+          format.format(new Date(100 * 60000L)),
+          format.format(new Date(110 * 60000L)),
+          format.format(new Date(150 * 60000L)),
+          format.format(new Date(180 * 60000L))
+        )
+        , response.renderTimes());
+  }
+  
   public void testSmoketest() {
     testRenderFor();
     testRenderTo();
@@ -0,0 +1,84 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base.messages;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.Address;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.NovellDate;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the fields and header handling of commands
+ */
+public class GwCommandTest extends TestCase {
+  
+  private GwCommand command;
+  
+  @Override
+  public void setUp() {
+    command = new SearchCommand("A", "Msg-ID= FB-PROBE;");
+  }
+  
+  public void testFields() {
+    assertNull(command.getMsgId());
+    assertEquals("T50", command.getHeaderChar());
+    
+    // Enough fields to grow the storage
+    final Address from = new Address();
+    final NovellDate begin = new NovellDate();
+    command.setMsgId("1");
+    command.setFrom(from);
+    command.setBeginTime(begin);
+    command.setSubject("subject");
+    command.setLocation("location");
+    command.setMsgId("2");
+    assertEquals("2", command.getMsgId());
+    assertSame(from, command.getFrom());
+    assertSame(begin, command.getBeginTime());
+    assertEquals("subject", command.getSubject());
+    assertEquals("location", command.getLocation());
+    
+    // Removing a field keeps the others
+    command.setFrom(null);
+    assertNull(command.getFrom());
+    assertEquals("2", command.getMsgId());
+    assertEquals("location", command.getLocation());
+    command.setFrom(from);
+    assertSame(from, command.getFrom());
+    
+    // Fields with a default can be set to null
+    command.setHeaderChar("T60");
+    assertEquals("T60", command.getHeaderChar());
+    command.setHeaderChar(null);
+    assertNull(command.getHeaderChar());
+  }
+  
+  public void testReleaseHeaderText() {
+    command.releaseHeaderText();
+    assertEquals("Msg-ID= FB-PROBE;", command.getHeaderContent());
+    command.setHeaderBytes("Msg-ID= 1;".getBytes());
+    command.releaseHeaderText();
+    assertEquals("Msg-ID= 1;", command.getHeaderContent());
+  }
+  
+  public void testReleaseHeader() {
+    command.releaseHeader();
+    assertNull(command.getHeaderContent());
+    assertNull(command.getHeaderBytes());
+    assertTrue(command.isProbe());
+    assertEquals("A", command.getHeaderName());
+  }
+}
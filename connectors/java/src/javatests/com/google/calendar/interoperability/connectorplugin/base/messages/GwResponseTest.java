@@ -88,7 +88,38 @@ public class GwResponseTest extends TestCase {
       String escaped = response.escape(c + "A" + c + "B" + c);
       assertEquals("\\" + c + "A\\" + c + "B\\" + c, escaped);
     }
+    assertEquals("a\\\\\\;b\\,", response.escape("a\\;b,"));
+    final String plain = "nothing to escape";
+    assertSame(plain, response.escape(plain));
   }
   
+  public void testRenderBytes() {
+    assertNull(response.renderResponseBytes());
+    rendered = "C\u00e9";
+    final byte[] bytes = response.renderResponseBytes();
+    assertEquals(2, bytes.length);
+    assertEquals((byte) 0xe9, bytes[1]);
+    assertEquals(response.renderLog(), 
+        new String(response.renderLogBytes(), GwResponse.CHARSET));
+  }
+  
+  public void testResponseIsRenderedOnce() {
+    rendered = "first";
+    final byte[] first = response.getResponseBytes();
+    rendered = "second";
+    assertSame(first, response.getResponseBytes());
+    assertTrue(new String(response.renderLogBytes()).indexOf("first") > 0);
+    assertEquals(-1, new String(response.renderLogBytes()).indexOf("second"));
+  }
+  
+  public void testRenderLogBytesUsesOriginalHeader() {
+    command.setHeaderBytes(new byte[] {'X', (byte) 0x81, 'Y'});
+    rendered = "C";
+    final byte[] log = response.renderLogBytes();
+    final String expectedStart = String.format(
+        "INCOMING COMMAND:%n=================%n");
+    assertEquals('X', log[expectedStart.length()]);
+    assertEquals((byte) 0x81, log[expectedStart.length() + 1]);
+    assertEquals('Y', log[expectedStart.length() + 2]);
+  }
 }
- 
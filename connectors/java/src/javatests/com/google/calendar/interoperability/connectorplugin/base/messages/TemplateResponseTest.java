@@ -72,5 +72,49 @@ public class TemplateResponseTest extends TestCase {
         String.format("DEXTRAE", cmd.toString()),
         response.renderResponse());
   }
+
+  public void testRenderBytes() {
+    TemplateResponse response = 
+      new TemplateResponse(command, "\u00e9${extraMethod}$(getHeaderName)") {
+      @SuppressWarnings("unused")
+      public String extraMethod() {
+        return "x\u00fc";
+      }
+    };
+    assertEquals("\u00e9x\u00fcA", response.renderResponse());
+    final byte[] bytes = response.renderResponseBytes();
+    assertEquals(4, bytes.length);
+    assertEquals((byte) 0xe9, bytes[0]);
+    assertEquals('x', bytes[1]);
+    assertEquals((byte) 0xfc, bytes[2]);
+    assertEquals('A', bytes[3]);
+  }
+
+  public void testInsertedValuesAreNotExpanded() {
+    TemplateResponse response = 
+      new TemplateResponse(command, "${extraMethod}") {
+      @SuppressWarnings("unused")
+      public String extraMethod() {
+        return "${extraMethod}$(getHeaderName)";
+      }
+    };
+    assertEquals("${extraMethod}$(getHeaderName)", response.renderResponse());
+    assertEquals("${extraMethod}$(getHeaderName)", 
+        new String(response.renderResponseBytes(), GwResponse.CHARSET));
+  }
+
+  public void testNestedRendering() {
+    final TemplateResponse inner = new TemplateResponse(command, "in") {};
+    TemplateResponse outer = 
+      new TemplateResponse(command, "<${renderInner}>") {
+      @SuppressWarnings("unused")
+      public String renderInner() {
+        return new String(inner.renderResponseBytes(), GwResponse.CHARSET);
+      }
+    };
+    assertEquals("<in>", 
+        new String(outer.renderResponseBytes(), GwResponse.CHARSET));
+    assertEquals("<in>", 
+        new String(outer.renderResponseBytes(), GwResponse.CHARSET));
+  }
 }
- 
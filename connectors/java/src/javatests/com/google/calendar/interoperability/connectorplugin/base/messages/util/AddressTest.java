@@ -37,4 +37,16 @@ public class AddressTest extends TestCase {
         "    WPU = c;\n" +
         "    CDBA = d;", address.toString());
   }
+  
+  public void testSharedNames() {
+    Address first = new Address();
+    first.addPair("WPD", new String("domain"));
+    first.addPair("WPPO", new String("postoffice"));
+    Address second = new Address();
+    second.addPair("wpd", new String("domain"));
+    second.addPair("wppo", new String("postoffice"));
+    assertSame(first.getWPD(), second.getWPD());
+    assertSame(first.getWPPO(), second.getWPPO());
+    assertNull(StringPool.share(null));
+  }
 }
@@ -0,0 +1,132 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base.messages.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the busy bitmap
+ */
+public class BusyBitmapTest extends TestCase {
+
+  private static final long SLOT = 15 * 60000L;
+  private static final long DAY = 24 * 3600000L;
+  private static final long START = 100 * DAY;
+
+  private BusyBitmap bitmap;
+
+  @Override
+  public void setUp() {
+    bitmap = new BusyBitmap(START, DAY, SLOT);
+  }
+
+  private static void assertIntervals(BusyIntervals actual, long... times) {
+    assertEquals(times.length / 2, actual.size());
+    for (int i = 0; i < times.length; i += 2) {
+      assertEquals("start " + i / 2, times[i], actual.getStart(i / 2));
+      assertEquals("end " + i / 2, times[i + 1], actual.getEnd(i / 2));
+    }
+  }
+
+  public void testLayout() {
+    assertEquals(96, bitmap.getSlotCount());
+    assertEquals(2, bitmap.getWords().length);
+    assertTrue(bitmap.isEmpty());
+    try {
+      new BusyBitmap(START, DAY, 7 * 60000L);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      bitmap.isBusy(96);
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+  }
+
+  public void testSet() {
+
+    // The end is the first free moment
+    bitmap.set(START, START + SLOT);
+    assertTrue(bitmap.isBusy(0));
+    assertFalse(bitmap.isBusy(1));
+
+    // Partly busy slots are busy, also across the word boundary
+    bitmap.set(START + 63 * SLOT + 1, START + 64 * SLOT + 1);
+    assertTrue(bitmap.isBusy(63));
+    assertTrue(bitmap.isBusy(64));
+    assertFalse(bitmap.isBusy(65));
+
+    // An empty interval marks its slot; times outside are ignored
+    bitmap.set(START + 10 * SLOT, START + 10 * SLOT);
+    assertTrue(bitmap.isBusy(10));
+    bitmap.set(START - DAY, START - 1);
+    bitmap.set(START + DAY, START + 2 * DAY);
+    bitmap.set(START + DAY - 1, START + 2 * DAY);
+    assertTrue(bitmap.isBusy(95));
+    try {
+      bitmap.set(2, 1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testToIntervals() {
+    final BusyIntervals intervals = new BusyIntervals();
+    intervals.add(START + 5 * 60000, START + 20 * 60000);
+    intervals.add(START + 25 * 60000, START + 35 * 60000);
+    intervals.add(START + 63 * SLOT, START + 65 * SLOT);
+    intervals.add(START + DAY - 1, START + DAY + 5);
+    bitmap.setAll(intervals);
+    assertIntervals(bitmap.toIntervals(),
+        START, START + 3 * SLOT,
+        START + 63 * SLOT, START + 65 * SLOT,
+        START + 95 * SLOT, START + DAY);
+    assertIntervals(new BusyBitmap(START, DAY, SLOT).toIntervals());
+
+    // Within a range, runs are cut at the slots it touches
+    BusyIntervals range = new BusyIntervals();
+    bitmap.addTo(range, START + 2 * SLOT + 1, START + 64 * SLOT);
+    assertIntervals(range,
+        START + 2 * SLOT, START + 3 * SLOT,
+        START + 63 * SLOT, START + 64 * SLOT);
+    range = new BusyIntervals();
+    bitmap.addTo(range, START - DAY, START + 1);
+    assertIntervals(range, START, START + SLOT);
+  }
+
+  public void testIsFreeAndOr() {
+    bitmap.set(START + 4 * SLOT, START + 6 * SLOT);
+    assertTrue(bitmap.isFree(START, START + 4 * SLOT));
+    assertFalse(bitmap.isFree(START, START + 4 * SLOT + 1));
+    assertTrue(bitmap.isFree(START + 6 * SLOT, START + DAY));
+
+    final BusyBitmap other = new BusyBitmap(START, SLOT, 96,
+        new long[] {1L});
+    bitmap.or(other);
+    assertTrue(bitmap.isBusy(0));
+    assertFalse(bitmap.isFree(START, START + SLOT));
+    try {
+      bitmap.or(new BusyBitmap(START + SLOT, DAY, SLOT));
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
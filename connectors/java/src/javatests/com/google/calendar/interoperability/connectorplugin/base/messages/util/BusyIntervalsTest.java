@@ -0,0 +1,110 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.base.messages.util;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Unit tests for the busy interval list
+ */
+public class BusyIntervalsTest extends TestCase {
+
+  private BusyIntervals intervals;
+
+  @Override
+  public void setUp() {
+    intervals = new BusyIntervals();
+  }
+
+  private void assertIntervals(long... expected) {
+    assertEquals(expected.length / 2, intervals.size());
+    for (int i = 0; i < intervals.size(); i++) {
+      assertEquals("start " + i, expected[2 * i], intervals.getStart(i));
+      assertEquals("end " + i, expected[2 * i + 1], intervals.getEnd(i));
+    }
+  }
+
+  public void testAddAndGrow() {
+    for (int i = 0; i < 100; i++) {
+      intervals.add(i * 10, i * 10 + 5);
+    }
+    assertEquals(100, intervals.size());
+    assertEquals(990, intervals.getStart(99));
+    assertEquals(995, intervals.getEnd(99));
+    try {
+      intervals.getStart(100);
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+    try {
+      intervals.add(2, 1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testNormalize() {
+    intervals.add(50, 60);
+    intervals.add(10, 20);
+    intervals.add(15, 30);
+    intervals.add(31, 40);
+    intervals.add(42, 45);
+    intervals.add(55, 58);
+    intervals.normalize();
+    assertIntervals(10, 40, 42, 45, 50, 60);
+  }
+
+  public void testNormalizeRandom() {
+    Random random = new Random(7);
+    boolean[] busy = new boolean[1000];
+    for (int i = 0; i < 200; i++) {
+      final int start = random.nextInt(990);
+      final int end = start + random.nextInt(10);
+      intervals.add(start, end);
+      for (int t = start; t <= end; t++) {
+        busy[t] = true;
+      }
+    }
+    intervals.normalize();
+    for (int i = 0; i < intervals.size(); i++) {
+      if (i > 0) {
+        assertTrue(intervals.getStart(i) > intervals.getEnd(i - 1) + 1);
+      }
+      for (long t = intervals.getStart(i); t <= intervals.getEnd(i); t++) {
+        assertTrue(busy[(int) t]);
+        busy[(int) t] = false;
+      }
+    }
+    for (boolean left : busy) {
+      assertFalse(left);
+    }
+  }
+
+  public void testClip() {
+    intervals.add(0, 10);
+    intervals.add(20, 30);
+    intervals.add(40, 50);
+    intervals.add(60, 70);
+    intervals.clip(25, 45);
+    assertIntervals(25, 30, 40, 45);
+    intervals.clip(46, 100);
+    assertTrue(intervals.isEmpty());
+  }
+}
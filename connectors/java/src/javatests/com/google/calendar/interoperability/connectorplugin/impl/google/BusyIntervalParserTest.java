@@ -0,0 +1,90 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import static com.google.gdata.data.DateTime.parseDateTimeChoice;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Unit tests for the BusyIntervalParser
+ */
+public class BusyIntervalParserTest extends TestCase {
+
+  private static final String FEED =
+    "<?xml version='1.0' encoding='UTF-8'?>" +
+    "<feed xmlns='http://www.w3.org/2005/Atom' " +
+    "xmlns:gd='http://schemas.google.com/g/2005'>" +
+    "<id>feed</id><title type='text'>free/busy</title>%s</feed>";
+
+  private static InputStream feed(String entries) {
+    return new ByteArrayInputStream(String.format(FEED, entries).getBytes());
+  }
+
+  public void testEntries() throws Exception {
+    final BusyIntervals intervals = new BusyIntervals();
+    assertEquals(2, BusyIntervalParser.parse(feed(
+        "<entry><id>1</id><title>busy</title>" +
+        "<gd:when startTime='2005-06-06T17:00:00.000-08:00' " +
+        "endTime='2005-06-06T18:00:00.000-08:00'/></entry>" +
+        "<entry><gd:when startTime='2005-06-06'/></entry>"), intervals));
+    assertEquals(2, intervals.size());
+    assertEquals(
+        parseDateTimeChoice("2005-06-06T17:00:00-08:00").getValue(),
+        intervals.getStart(0));
+    assertEquals(
+        parseDateTimeChoice("2005-06-06T18:00:00-08:00").getValue(),
+        intervals.getEnd(0));
+
+    // All-day events last until just before the next midnight
+    assertEquals(SearchHandler.renderFrom(parseDateTimeChoice("2005-06-06")),
+        intervals.getStart(1));
+    assertEquals(intervals.getStart(1) + 24 * 3600 * 1000 - 1,
+        intervals.getEnd(1));
+  }
+
+  public void testEmptyPage() throws Exception {
+    final BusyIntervals intervals = new BusyIntervals();
+    assertEquals(0, BusyIntervalParser.parse(feed(""), intervals));
+    assertEquals(0, intervals.size());
+  }
+
+  public void testIgnoresOtherNamespaces() throws Exception {
+    final BusyIntervals intervals = new BusyIntervals();
+    assertEquals(1, BusyIntervalParser.parse(feed(
+        "<entry><when xmlns='urn:other' startTime='x'/></entry>"),
+        intervals));
+    assertEquals(0, intervals.size());
+  }
+
+  public void testInvalidTime() {
+    try {
+      BusyIntervalParser.parse(feed(
+          "<entry><gd:when startTime='yesterday'/></entry>"),
+          new BusyIntervals());
+      fail();
+    } catch (XMLStreamException e) {
+      // expected
+    }
+  }
+}
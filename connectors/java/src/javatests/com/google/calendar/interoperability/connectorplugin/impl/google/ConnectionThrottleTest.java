@@ -224,5 +224,46 @@ public class ConnectionThrottleTest extends TestCase {
     }
   }
 
+  /**
+   * Tests that changing the maximum keeps the timers in use
+   */
+  public void testHasSpareCapacity() {
+    assertTrue(testObject.hasSpareCapacity());
+    testObject.setMaxRequestsPerSecond(4);
+    assertTrue(testObject.hasSpareCapacity());
+    testObject.checkoutTimer();
+    assertTrue(testObject.hasSpareCapacity());
+    testObject.checkoutTimer();
+    assertFalse(testObject.hasSpareCapacity());
+    
+    // Timers that are not due yet do not count
+    testObject.rewindTimer();
+    assertFalse(testObject.hasSpareCapacity());
+    time = 1000;
+    assertTrue(testObject.hasSpareCapacity());
+    
+    // No spare capacity while errors occur
+    testObject.reportFailure();
+    assertFalse(testObject.hasSpareCapacity());
+  }
+  
+  public void testAdjustMaxRequestsPerSecond() {
+    testObject.adjustMaxRequestsPerSecond(2);
+    assertEquals(2, testObject.queue.size());
+    testObject.checkoutTimer();
+    testObject.adjustMaxRequestsPerSecond(4);
+    assertEquals(4, testObject.getMaxRequestsPerSecond());
+    assertEquals(3, testObject.queue.size());
+    
+    // Lowering the maximum does not replace the timers that are used up
+    testObject.adjustMaxRequestsPerSecond(1);
+    assertEquals(3, testObject.queue.size());
+    testObject.checkoutTimer();
+    testObject.checkoutTimer();
+    testObject.checkoutTimer();
+    testObject.rewindTimer();
+    testObject.rewindTimer();
+    assertEquals(1, testObject.queue.size());
+  }
+
 }
- 
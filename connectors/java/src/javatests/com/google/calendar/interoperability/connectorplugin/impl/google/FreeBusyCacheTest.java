@@ -0,0 +1,321 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import static com.google.calendar.interoperability.connectorplugin.impl.google.FreeBusyCache.DAY;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ * Unit tests for the FreeBusyCache
+ */
+public class FreeBusyCacheTest extends TestCase {
+
+  private static final long HOUR = 3600000L;
+  private static final long TTL = 10 * 60000L;
+
+  private File file;
+  private long time;
+
+  @Override
+  public void setUp() throws Exception {
+    time = 100 * DAY;
+    file = File.createTempFile("freebusy", ".cache");
+    file.delete();
+  }
+
+  @Override
+  public void tearDown() {
+    file.delete();
+    new File(file.getPath() + ".tmp").delete();
+  }
+
+  private FreeBusyCache createCache(File file) {
+    return createCache(file, 0);
+  }
+
+  private FreeBusyCache createCache(File file, long granularity) {
+    return new FreeBusyCache(TTL, granularity, file) {
+      @Override
+      long getTime() {
+        return time;
+      }
+    };
+  }
+
+  private static BusyIntervals intervals(long... times) {
+    final BusyIntervals result = new BusyIntervals();
+    for (int i = 0; i < times.length; i += 2) {
+      result.add(times[i], times[i + 1]);
+    }
+    return result;
+  }
+
+  private static void assertIntervals(BusyIntervals actual, long... times) {
+    assertNotNull(actual);
+    assertEquals(times.length / 2, actual.size());
+    for (int i = 0; i < times.length; i += 2) {
+      assertEquals(times[i], actual.getStart(i / 2));
+      assertEquals(times[i + 1], actual.getEnd(i / 2));
+    }
+  }
+
+  public void testDays() {
+    assertEquals(0, FreeBusyCache.dayOf(0));
+    assertEquals(0, FreeBusyCache.dayOf(DAY - 1));
+    assertEquals(1, FreeBusyCache.dayOf(DAY));
+    assertEquals(-1, FreeBusyCache.dayOf(-1));
+    assertEquals(-1, FreeBusyCache.dayOf(-DAY));
+    assertEquals(DAY, FreeBusyCache.dayStart(DAY + 5));
+    assertEquals(2 * DAY - 1, FreeBusyCache.dayEnd(DAY + 5));
+  }
+
+  public void testGetAndPut() {
+    final FreeBusyCache cache = createCache(null);
+    assertNull(cache.get("a", DAY, 2 * DAY));
+
+    // An interval over midnight, and one ending exactly at midnight
+    cache.put("a", DAY, 3 * DAY - 1, intervals(
+        DAY + 22 * HOUR, 2 * DAY + HOUR,
+        2 * DAY + 20 * HOUR, 3 * DAY));
+    assertEquals(2, cache.getDayCount());
+    assertIntervals(cache.get("a", DAY, 3 * DAY - 1),
+        DAY + 22 * HOUR, 2 * DAY + HOUR,
+        2 * DAY + 20 * HOUR, 3 * DAY - 1);
+    assertIntervals(cache.get("a", 2 * DAY + 12 * HOUR, 2 * DAY + 13 * HOUR));
+    assertIntervals(cache.get("a", DAY + 23 * HOUR, 2 * DAY),
+        DAY + 23 * HOUR, 2 * DAY);
+
+    // Other users, days outside the range and stale days are misses
+    assertNull(cache.get("b", DAY, 2 * DAY));
+    assertNull(cache.get("a", DAY, 3 * DAY));
+    time += TTL;
+    assertNull(cache.get("a", DAY, DAY + 1));
+    assertEquals(3, cache.getHitCount());
+    assertEquals(4, cache.getMissCount());
+  }
+
+  public void testFindMissing() {
+    final FreeBusyCache cache = createCache(null);
+    long[] missing = cache.findMissing("a", DAY + HOUR, 3 * DAY + HOUR);
+    assertEquals(DAY, missing[0]);
+    assertEquals(4 * DAY - 1, missing[1]);
+    assertEquals(0, cache.getPartialHitCount());
+
+    cache.put("a", DAY, 2 * DAY - 1, intervals());
+    cache.put("a", 3 * DAY, 4 * DAY - 1, intervals());
+    missing = cache.findMissing("a", DAY + HOUR, 3 * DAY + HOUR);
+    assertEquals(2 * DAY, missing[0]);
+    assertEquals(3 * DAY - 1, missing[1]);
+    assertEquals(1, cache.getPartialHitCount());
+
+    // Missing days in between are fetched with the ones around them
+    missing = cache.findMissing("a", 0, 5 * DAY);
+    assertEquals(0, missing[0]);
+    assertEquals(6 * DAY - 1, missing[1]);
+
+    cache.put("a", 2 * DAY, 3 * DAY - 1, intervals());
+    assertNull(cache.findMissing("a", DAY + HOUR, 3 * DAY + HOUR));
+    time += TTL;
+    missing = cache.findMissing("a", DAY + HOUR, 3 * DAY + HOUR);
+    assertEquals(DAY, missing[0]);
+    assertEquals(4 * DAY - 1, missing[1]);
+  }
+
+  public void testPartialDaysAreNotStored() {
+    final FreeBusyCache cache = createCache(null);
+    cache.put("a", DAY + 1, 3 * DAY - 2, intervals(DAY + HOUR, DAY + 2 * HOUR));
+    assertEquals(0, cache.getDayCount());
+    cache.put("a", DAY + 1, 4 * DAY - 2, intervals());
+    assertEquals(1, cache.getDayCount());
+    assertIntervals(cache.get("a", 2 * DAY, 3 * DAY - 1));
+  }
+
+  public void testPersistence() throws Exception {
+    FreeBusyCache cache = createCache(file);
+    assertTrue(cache.isPersistent());
+    cache.put("a", DAY, 2 * DAY - 1, intervals(DAY + HOUR, DAY + 2 * HOUR));
+    time += TTL / 2;
+    cache.put("b", DAY, 2 * DAY - 1, intervals(DAY + HOUR, DAY + 3 * HOUR));
+    cache.close();
+
+    // A restart finds both days
+    cache = createCache(file);
+    assertEquals(2, cache.getDayCount());
+    assertIntervals(cache.get("a", DAY, 2 * DAY - 1),
+        DAY + HOUR, DAY + 2 * HOUR);
+    cache.close();
+
+    // ...unless they are stale by then
+    time += TTL / 2;
+    cache = createCache(file);
+    assertEquals(1, cache.getDayCount());
+    assertNull(cache.get("a", DAY, 2 * DAY - 1));
+    assertIntervals(cache.get("b", DAY, 2 * DAY - 1),
+        DAY + HOUR, DAY + 3 * HOUR);
+    cache.close();
+  }
+
+  public void testGranularity() throws Exception {
+    FreeBusyCache cache = createCache(file, 15 * 60000L);
+
+    // Busy times grow to the slot boundaries, over midnight too
+    cache.put("a", DAY, 3 * DAY - 1, intervals(
+        DAY + HOUR + 60000, DAY + 2 * HOUR - 60000,
+        DAY + 23 * HOUR + 50 * 60000, 2 * DAY + HOUR));
+    cache.put("b", DAY, 2 * DAY - 1, intervals());
+    assertEquals(3, cache.getDayCount());
+    assertIntervals(cache.get("a", DAY, 3 * DAY - 1),
+        DAY + HOUR, DAY + 2 * HOUR,
+        DAY + 23 * HOUR + 45 * 60000, 2 * DAY + HOUR);
+    assertIntervals(cache.get("a", DAY + 90 * 60000, 2 * DAY - 1),
+        DAY + 90 * 60000, DAY + 2 * HOUR,
+        DAY + 23 * HOUR + 45 * 60000, 2 * DAY - 1);
+    assertIntervals(cache.get("b", DAY, 2 * DAY - 1));
+    cache.close();
+
+    // The file holds intervals, which are read back into bits
+    cache = createCache(file, 15 * 60000L);
+    assertEquals(3, cache.getDayCount());
+    assertIntervals(cache.get("a", DAY, 2 * DAY - 1),
+        DAY + HOUR, DAY + 2 * HOUR,
+        DAY + 23 * HOUR + 45 * 60000, 2 * DAY - 1);
+    assertIntervals(cache.get("b", DAY, 2 * DAY - 1));
+    cache.close();
+
+    // A granularity must divide a day
+    try {
+      new FreeBusyCache(TTL, 7 * 60000L, null);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testGrowAndShrink() {
+    for (long granularity : new long[] {0, 15 * 60000L, HOUR, DAY}) {
+      final FreeBusyCache cache = createCache(null, granularity);
+      cache.put("a", 10 * DAY, 11 * DAY - 1, 
+          intervals(10 * DAY + HOUR, 10 * DAY + 2 * HOUR));
+
+      // Days before and after the cached ones, far away and over midnight
+      cache.put("a", 3 * DAY, 4 * DAY - 1, 
+          intervals(3 * DAY + HOUR, 3 * DAY + 2 * HOUR));
+      cache.put("a", -2 * DAY, -DAY - 1, intervals());
+      cache.put("a", 30 * DAY, 32 * DAY - 1, 
+          intervals(31 * DAY - HOUR, 31 * DAY + HOUR));
+      assertEquals(5, cache.getDayCount());
+      assertNull(cache.get("a", 4 * DAY, 4 * DAY + 1));
+      assertIntervals(cache.get("a", -2 * DAY, -DAY - 1));
+      if (granularity < DAY) {
+        assertIntervals(cache.get("a", 3 * DAY, 4 * DAY - 1),
+            3 * DAY + HOUR, 3 * DAY + 2 * HOUR);
+        assertIntervals(cache.get("a", 10 * DAY, 11 * DAY - 1),
+            10 * DAY + HOUR, 10 * DAY + 2 * HOUR);
+        assertIntervals(cache.get("a", 30 * DAY, 32 * DAY - 1),
+            31 * DAY - HOUR, 31 * DAY + HOUR);
+      } else {
+        assertIntervals(cache.get("a", 30 * DAY, 32 * DAY - 1),
+            30 * DAY, 32 * DAY - 1);
+      }
+
+      // Compaction drops the stale days, the others stay
+      time += TTL / 2;
+      cache.put("a", 10 * DAY, 11 * DAY - 1, intervals());
+      time += TTL / 2;
+      cache.compact();
+      assertEquals(1, cache.getDayCount());
+      assertIntervals(cache.get("a", 10 * DAY, 11 * DAY - 1));
+      assertNull(cache.get("a", 3 * DAY, 4 * DAY - 1));
+      cache.put("a", 31 * DAY, 32 * DAY - 1, intervals());
+      assertIntervals(cache.get("a", 10 * DAY + HOUR, 10 * DAY + HOUR));
+      assertEquals(2, cache.getDayCount());
+      time = 100 * DAY;
+    }
+  }
+
+  public void testTruncatedFile() throws Exception {
+    FreeBusyCache cache = createCache(file);
+    cache.put("a", DAY, 2 * DAY - 1, intervals(DAY + HOUR, DAY + 2 * HOUR));
+    cache.put("b", DAY, 2 * DAY - 1, intervals(DAY + HOUR, DAY + 2 * HOUR));
+    cache.close();
+    final RandomAccessFile raw = new RandomAccessFile(file, "rw");
+    raw.setLength(raw.length() - 3);
+    raw.close();
+
+    cache = createCache(file);
+    assertEquals(1, cache.getDayCount());
+    assertNotNull(cache.get("a", DAY, 2 * DAY - 1));
+    cache.put("c", DAY, 2 * DAY - 1, intervals());
+    cache.close();
+    assertEquals(2, createCache(file).getDayCount());
+  }
+
+  public void testConcurrentWrites() throws Exception {
+    final FreeBusyCache cache = createCache(file);
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final String user = "user" + t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (long day = 1; day <= 600; day++) {
+            cache.put(user, day * DAY, (day + 1) * DAY - 1,
+                intervals(day * DAY + HOUR, day * DAY + 2 * HOUR));
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(2400, cache.getDayCount());
+    cache.close();
+
+    // Every day made it into the file, across compactions
+    final FreeBusyCache reloaded = createCache(file);
+    assertEquals(2400, reloaded.getDayCount());
+    assertIntervals(reloaded.get("user3", 600 * DAY, 601 * DAY - 1),
+        600 * DAY + HOUR, 600 * DAY + 2 * HOUR);
+    reloaded.close();
+  }
+
+  public void testCompaction() throws Exception {
+    final FreeBusyCache cache = createCache(file);
+    for (int i = 0; i < 1000; i++) {
+      cache.put("a", DAY, 2 * DAY - 1, intervals(DAY + i, DAY + i + 1));
+    }
+    final long grown = file.length();
+    cache.put("a", DAY, 2 * DAY - 1, intervals(DAY, DAY + 1));
+    assertTrue(file.length() < grown / 100);
+    assertEquals(1, cache.getDayCount());
+
+    // Stale days are dropped from memory as well
+    time += TTL;
+    cache.put("b", DAY, 2 * DAY - 1, intervals());
+    cache.compact();
+    assertEquals(1, cache.getDayCount());
+    assertNull(cache.get("a", DAY, 2 * DAY - 1));
+    cache.close();
+  }
+}
@@ -0,0 +1,196 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import static com.google.calendar.interoperability.connectorplugin.impl.google.FreeBusyCache.DAY;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+import com.google.common.base.Function;
+import com.google.gdata.data.DateTime;
+import com.google.gdata.data.calendar.CalendarEventEntry;
+import com.google.gdata.data.calendar.CalendarEventFeed;
+import com.google.gdata.data.extensions.When;
+import com.google.gdata.util.ResourceNotFoundException;
+import com.google.gdata.util.ServiceException;
+import com.google.gdata.util.ServiceForbiddenException;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Unit tests for the GDataAccessObject's use of the free/busy caches
+ */
+public class GDataAccessObjectTest extends TestCase {
+
+  private static final long HOUR = 3600000L;
+
+  // The ranges fetched from "Google"
+  private List<long[]> fetched;
+  private GDataAccessObject dao;
+
+  @Override
+  public void setUp() {
+    fetched = new ArrayList<long[]>();
+    dao = new GDataAccessObject() {
+      @Override
+      public Iterable<CalendarEventFeed> retrieveFreeBusy(
+          String userEmail, long fromUtc, long untilUtc) {
+        fetched.add(new long[] {fromUtc, untilUtc});
+
+        // Busy from 9 to 10 every day
+        final CalendarEventFeed feed = new CalendarEventFeed();
+        for (long day = fromUtc / DAY; day <= untilUtc / DAY; day++) {
+          final When when = new When();
+          when.setStartTime(new DateTime(day * DAY + 9 * HOUR, 0));
+          when.setEndTime(new DateTime(day * DAY + 10 * HOUR, 0));
+          final CalendarEventEntry entry = new CalendarEventEntry();
+          entry.addTime(when);
+          feed.getEntries().add(entry);
+        }
+        return Collections.singletonList(feed);
+      }
+    };
+    final Properties properties = new Properties();
+    properties.setProperty("gdata.leanFetch", "false");
+    dao.setLocalConfig(properties);
+  }
+
+  private void assertFetched(int index, long fromUtc, long untilUtc) {
+    assertEquals(fromUtc, fetched.get(index)[0]);
+    assertEquals(untilUtc, fetched.get(index)[1]);
+  }
+
+  public void testPartialFill() {
+    BusyIntervals result =
+      dao.retrieveBusyIntervals("a@b", 10 * DAY + HOUR, 12 * DAY + HOUR);
+    assertEquals(2, result.size());
+    assertFetched(0, 10 * DAY, 13 * DAY - 1);
+
+    // Only the days after the cached ones are fetched
+    result = dao.retrieveBusyIntervals("a@b", 11 * DAY, 15 * DAY - 1);
+    assertEquals(4, result.size());
+    assertEquals(14 * DAY + 9 * HOUR, result.getStart(3));
+    assertEquals(2, fetched.size());
+    assertFetched(1, 13 * DAY, 15 * DAY - 1);
+
+    // All cached now
+    result = dao.retrieveBusyIntervals("a@b", 10 * DAY, 15 * DAY - 1);
+    assertEquals(5, result.size());
+    assertEquals(2, fetched.size());
+    assertEquals(1, dao.getCache().getPartialHitCount());
+  }
+
+  public void testStatistics() throws Exception {
+    final Function<BusyIntervals, BusyIntervals> identity =
+      new Function<BusyIntervals, BusyIntervals>() {
+        public BusyIntervals apply(BusyIntervals intervals) {
+          return intervals;
+        }
+      };
+
+    // A miss is counted once, however often the cache is consulted
+    assertEquals(1, dao.retrieveBusyIntervalsAsync(
+        "a@b", 10 * DAY, 11 * DAY - 1, 0, identity).get().size());
+    assertEquals(0, dao.getCache().getHitCount());
+    assertEquals(1, dao.getCache().getMissCount());
+    dao.retrieveBusyIntervals("a@b", 12 * DAY, 13 * DAY - 1);
+    assertEquals(0, dao.getCache().getHitCount());
+    assertEquals(2, dao.getCache().getMissCount());
+
+    // ...and so is a hit
+    assertEquals(1, dao.retrieveBusyIntervalsAsync(
+        "a@b", 10 * DAY, 11 * DAY - 1, 0, identity).get().size());
+    dao.retrieveBusyIntervals("a@b", 12 * DAY, 13 * DAY - 1);
+    assertEquals(2, dao.getCache().getHitCount());
+    assertEquals(2, dao.getCache().getMissCount());
+    assertEquals(2, fetched.size());
+  }
+
+  public void testKnownToFail() throws Exception {
+    dao.getNegativeCache().add("a@b");
+    assertNull(dao.retrieveBusyIntervals("a@b", 10 * DAY, 11 * DAY));
+    assertNull(dao.retrieveBusyIntervalsAsync("a@b", 10 * DAY, 11 * DAY, 0,
+        new Function<BusyIntervals, BusyIntervals>() {
+          public BusyIntervals apply(BusyIntervals intervals) {
+            return intervals;
+          }
+        }).get());
+    assertEquals(0, fetched.size());
+    assertNotNull(dao.retrieveBusyIntervals("c@d", 10 * DAY, 11 * DAY));
+    assertEquals(1, fetched.size());
+
+    // Only the user that can be looked up is a candidate for prefetching
+    assertEquals(1, dao.getPrefetcher().size());
+  }
+
+  private static ServiceException forbidden(String body) {
+    final ServiceException result = new ServiceForbiddenException("Forbidden");
+    result.setResponseBody(body);
+    return result;
+  }
+
+  public void testCalendarProblems() {
+    assertTrue(dao.isCalendarProblem(
+        new ResourceNotFoundException("Not Found"), "a@b"));
+    assertTrue(dao.isCalendarProblem(forbidden(
+        "Sorry, you do not have permission to access this calendar"), "c@d"));
+    assertTrue(dao.getNegativeCache().contains("a@b"));
+    assertTrue(dao.getNegativeCache().contains("c@d"));
+
+    // Exceeded limits are no reason to give up on the calendar
+    assertFalse(dao.isCalendarProblem(forbidden("<errors><error>" +
+        "<domain>GData</domain><code>userRateLimitExceeded</code>" +
+        "</error></errors>"), "e@f"));
+    assertFalse(dao.isCalendarProblem(
+        forbidden("Calendar usage limits exceeded."), "e@f"));
+    assertFalse(dao.isCalendarProblem(
+        new ServiceForbiddenException("quotaExceeded"), "e@f"));
+    assertFalse(dao.getNegativeCache().contains("e@f"));
+  }
+
+  public void testPrefetch() {
+    final long today = FreeBusyCache.dayStart(System.currentTimeMillis());
+    assertTrue(dao.prefetch("a@b", 0));
+    assertFetched(0, today, today + 7 * DAY - 1);
+    assertFalse(dao.prefetch("a@b", 0));
+
+    // Days about to become stale are refreshed ahead of time
+    assertTrue(dao.prefetch("a@b", 10 * 60000L));
+    assertEquals(2, fetched.size());
+
+    // Searches within the range are answered from the cache
+    dao.retrieveBusyIntervals("a@b", today + HOUR, today + 3 * DAY);
+    assertEquals(2, fetched.size());
+    assertNotNull(dao.getPrefetcher());
+  }
+
+  public void testNoCache() {
+    final Properties properties = new Properties();
+    properties.setProperty("gdata.leanFetch", "false");
+    properties.setProperty("gdata.cacheTtlInMinutes", "0");
+    dao.setLocalConfig(properties);
+    dao.retrieveBusyIntervals("a@b", 10 * DAY + HOUR, 10 * DAY + 2 * HOUR);
+    dao.retrieveBusyIntervals("a@b", 10 * DAY + HOUR, 10 * DAY + 2 * HOUR);
+    assertEquals(2, fetched.size());
+    assertFetched(1, 10 * DAY + HOUR, 10 * DAY + 2 * HOUR);
+    assertNull(dao.getCache());
+  }
+}
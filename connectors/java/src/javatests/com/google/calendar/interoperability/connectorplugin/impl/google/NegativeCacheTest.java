@@ -0,0 +1,82 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the NegativeCache
+ */
+public class NegativeCacheTest extends TestCase {
+
+  private long time;
+  private NegativeCache cache;
+
+  @Override
+  public void setUp() {
+    time = 1000;
+    cache = new NegativeCache(100) {
+      @Override
+      long getTime() {
+        return time;
+      }
+    };
+  }
+
+  public void testExpiry() {
+    assertFalse(cache.contains("a"));
+    cache.add("a");
+    assertTrue(cache.contains("a"));
+    assertFalse(cache.contains("b"));
+    time += 99;
+    assertTrue(cache.contains("a"));
+    assertEquals(2, cache.getHitCount());
+    time += 1;
+    assertFalse(cache.contains("a"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testRenewedWhileExpiring() {
+    cache = new NegativeCache(100) {
+      @Override
+      long getTime() {
+
+        // Another thread adds the user again right after contains() has
+        // read the expired entry
+        if (time == 1100) {
+          time++;
+          add("a");
+        }
+        return time;
+      }
+    };
+    cache.add("a");
+    time += 100;
+    assertFalse(cache.contains("a"));
+    assertTrue(cache.contains("a"));
+  }
+
+  public void testPurge() {
+    for (int i = 0; i < 10000; i++) {
+      cache.add("user" + i);
+    }
+    time += 100;
+    cache.add("last");
+    assertEquals(1, cache.size());
+    assertTrue(cache.contains("last"));
+  }
+}
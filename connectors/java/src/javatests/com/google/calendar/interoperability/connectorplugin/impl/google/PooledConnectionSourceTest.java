@@ -0,0 +1,88 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import static com.google.calendar.interoperability.connectorplugin.impl.google.PooledConnectionSource.MAX_CONNECTIONS_PROPERTY;
+
+import junit.framework.TestCase;
+
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Unit tests for the PooledConnectionSource
+ */
+public class PooledConnectionSourceTest extends TestCase {
+
+  private String oldMaxConnections;
+
+  @Override
+  public void setUp() {
+    oldMaxConnections = System.getProperty(MAX_CONNECTIONS_PROPERTY);
+    System.clearProperty(MAX_CONNECTIONS_PROPERTY);
+  }
+
+  @Override
+  public void tearDown() {
+    if (oldMaxConnections == null) {
+      System.clearProperty(MAX_CONNECTIONS_PROPERTY);
+    } else {
+      System.setProperty(MAX_CONNECTIONS_PROPERTY, oldMaxConnections);
+    }
+  }
+
+  public void testPoolSize() {
+    new PooledConnectionSource(20);
+    assertEquals("20", System.getProperty(MAX_CONNECTIONS_PROPERTY));
+
+    // An explicit setting wins
+    System.setProperty(MAX_CONNECTIONS_PROPERTY, "7");
+    new PooledConnectionSource(20);
+    assertEquals("7", System.getProperty(MAX_CONNECTIONS_PROPERTY));
+  }
+
+  public void testSharedSocketFactory() throws Exception {
+    final PooledConnectionSource source = new PooledConnectionSource(20);
+    final HttpURLConnection first =
+      source.openConnection(new URL("https://www.google.com/a/feeds/"));
+    final HttpURLConnection second = source.openConnection(
+        new URL("https://www.google.com/calendar/feeds/"));
+    assertSame(source.getSocketFactory(),
+        ((HttpsURLConnection) first).getSSLSocketFactory());
+    assertSame(source.getSocketFactory(),
+        ((HttpsURLConnection) second).getSSLSocketFactory());
+    assertEquals(2, source.getRequestCount());
+    assertEquals(0, source.getNewConnectionCount());
+  }
+
+  public void testPlainHttp() throws Exception {
+    final PooledConnectionSource source = new PooledConnectionSource(20);
+    final HttpURLConnection connection =
+      source.openConnection(new URL("http://localhost:8099/a/feeds/"));
+    assertFalse(connection instanceof HttpsURLConnection);
+    assertEquals(1, source.getRequestCount());
+  }
+
+  public void testCountsNewConnections() throws Exception {
+    final PooledConnectionSource source = new PooledConnectionSource(20);
+    final Socket socket = source.getSocketFactory().createSocket();
+    socket.close();
+    assertEquals(1, source.getNewConnectionCount());
+  }
+}
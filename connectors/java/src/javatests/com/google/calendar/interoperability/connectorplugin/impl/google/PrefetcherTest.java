@@ -0,0 +1,113 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for the Prefetcher
+ */
+public class PrefetcherTest extends TestCase {
+
+  private int capacity;
+  private List<String> refreshed;
+  private Prefetcher prefetcher;
+
+  @Override
+  public void setUp() {
+    capacity = 100;
+    refreshed = new ArrayList<String>();
+    prefetcher = new Prefetcher(2) {
+      @Override
+      boolean hasCapacity() {
+        return capacity-- > 0;
+      }
+
+      @Override
+      boolean refresh(String user) {
+        if (user.startsWith("fail")) {
+          throw new RuntimeException("Could not get connection in time");
+        }
+        refreshed.add(user);
+        return true;
+      }
+    };
+  }
+
+  private void record(String user, int times) {
+    for (int i = 0; i < times; i++) {
+      prefetcher.record(user);
+    }
+  }
+
+  public void testHottest() {
+    record("a", 3);
+    record("b", 5);
+    record("c", 4);
+    record("d", 1);
+    assertEquals(Arrays.asList("b", "c"), prefetcher.getHottest());
+
+    // Users searched for once are not hot
+    record("e", 1);
+    record("c", 2);
+    assertEquals(Arrays.asList("c", "b"), prefetcher.getHottest());
+  }
+
+  public void testDecay() {
+    record("a", 2);
+    record("b", 1);
+    prefetcher.decay();
+    assertTrue(prefetcher.getHottest().isEmpty());
+    assertEquals(2, prefetcher.size());
+    for (int i = 0; i < 30; i++) {
+      prefetcher.decay();
+    }
+    assertEquals(0, prefetcher.size());
+  }
+
+  public void testRunRound() {
+    record("a", 3);
+    record("b", 2);
+    assertEquals(2, prefetcher.runRound());
+    assertEquals(Arrays.asList("a", "b"), refreshed);
+    assertEquals(2, prefetcher.getRefreshCount());
+
+    // Scores have faded: b is not hot anymore
+    refreshed.clear();
+    assertEquals(1, prefetcher.runRound());
+    assertEquals(Arrays.asList("a"), refreshed);
+  }
+
+  public void testNoCapacity() {
+    record("a", 3);
+    record("b", 2);
+    capacity = 1;
+    assertEquals(1, prefetcher.runRound());
+    assertEquals(Arrays.asList("a"), refreshed);
+  }
+
+  public void testFailure() {
+    record("fail", 3);
+    record("b", 2);
+    assertEquals(1, prefetcher.runRound());
+    assertEquals(Arrays.asList("b"), refreshed);
+  }
+}
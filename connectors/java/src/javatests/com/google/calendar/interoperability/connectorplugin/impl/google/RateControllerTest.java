@@ -0,0 +1,86 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the RateController
+ */
+public class RateControllerTest extends TestCase {
+
+  private ConnectionThrottle throttle;
+  private RateController controller;
+  private long time;
+
+  @Override
+  public void setUp() {
+    time = 10000;
+    throttle = new ConnectionThrottle();
+    controller = new RateController(throttle, 4, 2, 6, 1000) {
+      @Override
+      long getTime() {
+        return time;
+      }
+    };
+  }
+
+  public void testAdditiveIncrease() {
+    assertEquals(4, throttle.getMaxRequestsPerSecond());
+    for (int i = 0; i < 3; i++) {
+      controller.report(true, 100);
+    }
+    assertEquals(4, controller.getLimit());
+    controller.report(true, 100);
+    assertEquals(5, controller.getLimit());
+    assertEquals(5, throttle.getMaxRequestsPerSecond());
+
+    // Never above the ceiling
+    for (int i = 0; i < 100; i++) {
+      controller.report(true, 100);
+    }
+    assertEquals(6, controller.getLimit());
+  }
+
+  public void testMultiplicativeDecrease() {
+    controller.report(false, 100);
+    assertEquals(2, controller.getLimit());
+    assertEquals(2, throttle.getMaxRequestsPerSecond());
+
+    // Never below the floor
+    time += 1000;
+    controller.report(false, 100);
+    assertEquals(2, controller.getLimit());
+  }
+
+  public void testSlowRequest() {
+    controller.report(true, 1001);
+    assertEquals(2, controller.getLimit());
+  }
+
+  public void testOneDecreasePerSecond() {
+    for (int i = 0; i < 9; i++) {
+      controller.report(true, 100);
+    }
+    assertEquals(6, controller.getLimit());
+    controller.report(false, 100);
+    controller.report(false, 100);
+    assertEquals(3, controller.getLimit());
+    time += 1000;
+    controller.report(false, 100);
+    assertEquals(2, controller.getLimit());
+  }
+}
@@ -15,8 +15,18 @@
 
 package com.google.calendar.interoperability.connectorplugin.impl.google;
 
+import com.google.calendar.interoperability.connectorplugin.base.SimpleSink;
+import com.google.calendar.interoperability.connectorplugin.base.messages.DeferredResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.FreeBusyResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.GwResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.SearchCommand;
+import com.google.calendar.interoperability.connectorplugin.base.messages.VoidResponse;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.Address;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.AddressList;
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.NovellDate;
 import com.google.gdata.data.DateTime;
 import static com.google.gdata.data.DateTime.parseDateTimeChoice;
+import com.google.gdata.data.calendar.CalendarEventFeed;
 import com.google.gdata.data.extensions.When;
 
 import static com.google.calendar.interoperability.connectorplugin.impl.google.SearchHandler.renderFrom;
@@ -24,9 +34,14 @@ import static com.google.calendar.interoperability.connectorplugin.impl.google.S
 
 import junit.framework.TestCase;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for certain aspects of the SearchHandler
@@ -103,5 +118,141 @@ public class SearchHandlerTest extends TestCase {
     assertTimesMatch(getMidnight(2005, 6, 8) - 1, renderUntil(when));    
   }
   
+  private static SearchCommand createSearch(String cdba) {
+    final SearchCommand command = new SearchCommand("A", "B");
+    command.setBeginTime(new NovellDate());
+    command.setEndTime(new NovellDate());
+    command.setFrom(new Address());
+    command.setMsgId("123ABC");
+    final AddressList to = new AddressList();
+    to.add(new Address("WPD", "WPPO", "WPU", cdba, null));
+    command.setTo(to);
+    return command;
+  }
+  
+  private static GDataAccessObject createDao(
+      String fetchThreads, final boolean fail) {
+    final GDataAccessObject dao = new GDataAccessObject() {
+      @Override
+      public Iterable<CalendarEventFeed> retrieveFreeBusy(
+          String userEmail, long fromUtc, long untilUtc) {
+        assertEquals("user@domain", userEmail);
+        if (fail) {
+          throw new RuntimeException("Could not get connection in time");
+        }
+        final List<CalendarEventFeed> feeds = 
+          new ArrayList<CalendarEventFeed>();
+        feeds.add(new CalendarEventFeed());
+        return feeds;
+      }
+    };
+    final Properties properties = new Properties();
+    properties.setProperty("gdata.fetchThreads", fetchThreads);
+    properties.setProperty("gdata.leanFetch", "false");
+    dao.setLocalConfig(properties);
+    return dao;
+  }
+  
+  public void testSynchronous() {
+    final SimpleSink<GwResponse> responses = new SimpleSink<GwResponse>();
+    final SearchHandler handler = 
+      new SearchHandler(createDao("0", false), responses);
+    assertEquals(FreeBusyResponse.class, 
+        handler.apply(createSearch("CN..user@domain")).getClass());
+  }
+  
+  public void testAsynchronous() throws Exception {
+    final SimpleSink<GwResponse> responses = new SimpleSink<GwResponse>();
+    final SearchHandler handler = 
+      new SearchHandler(createDao("2", false), responses);
+    final SearchCommand command = createSearch("CN..user@domain");
+    final GwResponse deferred = handler.apply(command);
+    assertEquals(DeferredResponse.class, deferred.getClass());
+    final GwResponse response = responses.checkOut();
+    assertEquals(FreeBusyResponse.class, response.getClass());
+    assertSame(command, response.getOriginalCommand());
+    
+    // The work is done once the response is in the sink
+    final CountDownLatch done = new CountDownLatch(1);
+    ((DeferredResponse) deferred).whenDone(new Runnable() {
+      public void run() {
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+  }
+  
+  public void testExpiredIsNotFetched() {
+    final SimpleSink<GwResponse> responses = new SimpleSink<GwResponse>();
+    final GDataAccessObject dao = new GDataAccessObject() {
+      @Override
+      public Iterable<CalendarEventFeed> retrieveFreeBusy(
+          String userEmail, long fromUtc, long untilUtc) {
+        fail("Fetched after the deadline");
+        return null;
+      }
+    };
+    final Properties properties = new Properties();
+    properties.setProperty("gdata.leanFetch", "false");
+    dao.setLocalConfig(properties);
+    final SearchHandler handler = new SearchHandler(dao, responses);
+    final SearchCommand command = createSearch("CN..user@domain");
+    command.setDeadline(System.currentTimeMillis() - 1);
+    assertEquals(DeferredResponse.class, handler.apply(command).getClass());
+    final GwResponse response = responses.checkOut();
+    assertEquals(VoidResponse.class, response.getClass());
+    assertTrue(response.suggestLogFilename().startsWith("expired"));
+  }
+  
+  public void testFullQueueRunsOnCaller() throws Exception {
+    final SimpleSink<GwResponse> responses = new SimpleSink<GwResponse>();
+    final CountDownLatch release = new CountDownLatch(1);
+    final GDataAccessObject dao = new GDataAccessObject() {
+      @Override
+      public Iterable<CalendarEventFeed> retrieveFreeBusy(
+          String userEmail, long fromUtc, long untilUtc) {
+        if (userEmail.startsWith("slow")) {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return new ArrayList<CalendarEventFeed>();
+      }
+    };
+    final Properties properties = new Properties();
+    properties.setProperty("gdata.fetchThreads", "1");
+    properties.setProperty("gdata.fetchQueueSize", "1");
+    properties.setProperty("gdata.leanFetch", "false");
+    properties.setProperty("gdata.cacheTtlInMinutes", "0");
+    dao.setLocalConfig(properties);
+    final SearchHandler handler = new SearchHandler(dao, responses);
+    
+    // One slow fetch runs, one waits; the next one runs right here
+    handler.apply(createSearch("CN..slow1@domain"));
+    handler.apply(createSearch("CN..slow2@domain"));
+    final SearchCommand fast = createSearch("CN..fast@domain");
+    handler.apply(fast);
+    assertSame(fast, responses.checkOut().getOriginalCommand());
+    release.countDown();
+  }
+  
+  public void testAsynchronousFailure() {
+    final SimpleSink<GwResponse> responses = new SimpleSink<GwResponse>();
+    final SearchHandler handler = 
+      new SearchHandler(createDao("2", true), responses);
+    assertEquals(DeferredResponse.class, 
+        handler.apply(createSearch("CN..user@domain")).getClass());
+    assertEquals(VoidResponse.class, responses.checkOut().getClass());
+  }
+  
+  public void testInvalidAddressIsNotDeferred() {
+    final SimpleSink<GwResponse> responses = new SimpleSink<GwResponse>();
+    final SearchHandler handler = 
+      new SearchHandler(createDao("2", false), responses);
+    assertEquals(VoidResponse.class, 
+        handler.apply(createSearch("CN")).getClass());
+  }
+  
 }
- 
@@ -0,0 +1,149 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the ServiceHolder
+ */
+public class ServiceHolderTest extends TestCase {
+
+  private long time;
+  private boolean fail;
+  private int created;
+  private CountDownLatch loginDone;
+  private List<Runnable> background;
+  private ServiceHolder<String> holder;
+
+  @Override
+  public void setUp() {
+    time = 0;
+    loginDone = null;
+    background = new ArrayList<Runnable>();
+    holder = new ServiceHolder<String>() {
+      @Override
+      protected String create() {
+        if (loginDone != null) {
+          try {
+            loginDone.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            fail();
+          }
+        }
+        return fail ? null : "service" + created++;
+      }
+
+      @Override
+      protected long getRefreshIntervalInMillis() {
+        return 1000;
+      }
+
+      @Override
+      long getTime() {
+        return time;
+      }
+
+      @Override
+      void startBackground(Runnable refresh) {
+        background.add(refresh);
+      }
+    };
+  }
+
+  public void testLoginOnce() {
+    assertEquals("service0", holder.get());
+    assertEquals("service0", holder.get());
+    assertEquals(1, holder.getLoginCount());
+  }
+
+  public void testConcurrentCallersShareLogin() throws Exception {
+    loginDone = new CountDownLatch(1);
+    final String[] results = new String[5];
+    final Thread[] threads = new Thread[results.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          results[index] = holder.get();
+        }
+      };
+      threads[i].start();
+    }
+    Thread.sleep(50);
+    loginDone.countDown();
+    for (Thread thread : threads) {
+      thread.join(5000);
+    }
+    for (String result : results) {
+      assertEquals("service0", result);
+    }
+    assertEquals(1, holder.getLoginCount());
+  }
+
+  public void testBackgroundRefresh() {
+    assertEquals("service0", holder.get());
+    time = 1000;
+
+    // The old service is used until the new one is there
+    assertEquals("service0", holder.get());
+    assertEquals(1, background.size());
+    assertEquals("service0", holder.get());
+    assertEquals(1, background.size());
+    background.get(0).run();
+    assertEquals("service1", holder.get());
+    assertEquals(1, background.size());
+  }
+
+  public void testFailedRefreshKeepsService() {
+    holder.get();
+    time = 1000;
+    fail = true;
+    holder.get();
+    background.get(0).run();
+    assertEquals("service0", holder.get());
+
+    // Next attempt after another interval
+    time = 1999;
+    holder.get();
+    assertEquals(1, background.size());
+    time = 2000;
+    holder.get();
+    assertEquals(2, background.size());
+  }
+
+  public void testInvalidate() {
+    final String service = holder.get();
+    holder.invalidate("other");
+    assertSame(service, holder.get());
+    holder.invalidate(service);
+    assertEquals("service1", holder.get());
+    assertEquals(2, holder.getLoginCount());
+  }
+
+  public void testLoginFails() {
+    fail = true;
+    assertNull(holder.get());
+    fail = false;
+    assertEquals("service0", holder.get());
+  }
+}
@@ -0,0 +1,112 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.google;
+
+import com.google.calendar.interoperability.connectorplugin.base.Tuple;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Unit tests for the throttle simulator
+ */
+public class ThrottleSimulatorTest extends TestCase {
+
+  private ThrottleSimulator simulator;
+  private Properties properties;
+
+  @Override
+  public void setUp() {
+    properties = new Properties();
+    properties.setProperty("simulator.durationInSeconds", "600");
+    properties.setProperty("simulator.latency", "fixed");
+    properties.setProperty("simulator.latencyInMillis", "0");
+    properties.setProperty("simulator.arrivals", "constant");
+    simulator = new ThrottleSimulator();
+    simulator.setLocalConfig(properties);
+  }
+
+  public void testUnderload() {
+    properties.setProperty("simulator.arrivalsPerSecond", "5");
+    ThrottleSimulator.Report report = simulator.simulate(10);
+    assertEquals(report.getArrived(), report.getSucceeded());
+    assertEquals(0, report.getFailed());
+    assertEquals(0, report.getQueueingDelay(100));
+    assertEquals(5.0, report.getThroughput(), 0.1);
+  }
+
+  public void testOverload() {
+    // Every timer comes back a second after the request completed
+    properties.setProperty("simulator.arrivalsPerSecond", "20");
+    ThrottleSimulator.Report report = simulator.simulate(10);
+    assertEquals(10.0, report.getThroughput(), 0.1);
+    assertTrue(report.getMaxBacklog() > 1000);
+    assertTrue(report.getQueueingDelay(90) > 100000);
+
+    // With latency, each request holds its timer even longer
+    properties.setProperty("simulator.latencyInMillis", "1000");
+    report = simulator.simulate(10);
+    assertEquals(5.0, report.getThroughput(), 0.1);
+  }
+
+  public void testOutage() {
+    properties.setProperty("simulator.arrivalsPerSecond", "2");
+    properties.setProperty("simulator.outageStartInSeconds", "60");
+    properties.setProperty("simulator.outageLengthInSeconds", "120");
+    properties.setProperty("simulator.escalationScale", "1:100,2:5000");
+    ThrottleSimulator.Report report = simulator.simulate(10);
+    assertTrue(report.getFailed() > 0);
+    assertEquals(5000, report.getMaxDelayInMillis());
+    assertTrue(report.getFirstSuccessAfterOutage() >= 0);
+    assertTrue(report.getFirstSuccessAfterOutage() <= 5000);
+    assertTrue(report.getRecoveryTime() >= report.getFirstSuccessAfterOutage());
+    assertTrue(report.getRecoveryTime() < 120000);
+    assertTrue(report.getUnfinished() <= 1);
+  }
+
+  public void testReproducible() {
+    properties.setProperty("simulator.arrivals", "poisson");
+    properties.setProperty("simulator.latency", "exponential");
+    properties.setProperty("simulator.latencyInMillis", "200");
+    properties.setProperty("simulator.failurePercentage", "10");
+    properties.setProperty("simulator.maxRequestsPerSecond", "3, 6");
+    List<ThrottleSimulator.Report> first = simulator.simulateAll();
+    List<ThrottleSimulator.Report> second = simulator.simulateAll();
+    assertEquals(2, first.size());
+    for (int i = 0; i < first.size(); i++) {
+      assertEquals(first.get(i).toString(), second.get(i).toString());
+    }
+    assertTrue(first.get(1).getSucceeded() > first.get(0).getSucceeded());
+  }
+
+  public void testParseEscalationScale() {
+    assertSame(ConnectionThrottle.DEFAULT_ESCALATION_SCALE,
+        ThrottleSimulator.parseEscalationScale(" "));
+    List<Tuple<Integer>> scale =
+      ThrottleSimulator.parseEscalationScale("1:100, 3:2000");
+    assertEquals(2, scale.size());
+    assertEquals(3, scale.get(1).first.intValue());
+    assertEquals(2000, scale.get(1).second.intValue());
+    try {
+      ThrottleSimulator.parseEscalationScale("2:100,1:200");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
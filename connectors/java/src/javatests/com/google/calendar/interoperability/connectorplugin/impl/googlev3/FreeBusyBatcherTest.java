@@ -0,0 +1,174 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.googlev3;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+import com.google.common.base.Function;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+
+/**
+ * Unit tests for the FreeBusyBatcher
+ */
+public class FreeBusyBatcherTest extends TestCase {
+
+  /**
+   * Answers every known calendar with a busy time from 100 to 200 and
+   * records the calls
+   */
+  private static class FakeClient extends CalendarV3Client {
+    final List<Collection<String>> calls = new ArrayList<Collection<String>>();
+    final List<long[]> ranges = new ArrayList<long[]>();
+    boolean fail;
+
+    @Override
+    public synchronized Map<String, BusyIntervals> queryFreeBusy(
+        long fromUtc, long untilUtc, Collection<String> calendarIds)
+        throws IOException {
+      calls.add(new ArrayList<String>(calendarIds));
+      ranges.add(new long[] {fromUtc, untilUtc});
+      if (fail) {
+        throw new IOException("Injected");
+      }
+      final Map<String, BusyIntervals> result =
+        new HashMap<String, BusyIntervals>();
+      for (String id : calendarIds) {
+        if (!id.startsWith("unknown")) {
+          final BusyIntervals intervals = new BusyIntervals();
+          intervals.add(100, 200);
+          result.put(id, intervals);
+        }
+      }
+      return result;
+    }
+  }
+
+  private static final Function<BusyIntervals, BusyIntervals> IDENTITY =
+    new Function<BusyIntervals, BusyIntervals>() {
+      public BusyIntervals apply(BusyIntervals intervals) {
+        return intervals;
+      }
+    };
+
+  private FakeClient client;
+  private Properties properties;
+  private FreeBusyBatcher batcher;
+
+  @Override
+  public void setUp() {
+    client = new FakeClient();
+    properties = new Properties();
+    properties.setProperty("googlev3.collectionWindowInMillis", "200");
+    client.setLocalConfig(properties);
+    batcher = new FreeBusyBatcher(client);
+  }
+
+  public void testBatching() throws Exception {
+    final Future<BusyIntervals> a =
+      batcher.lookup("a", 0, 1000, 0, IDENTITY);
+    final Future<BusyIntervals> b =
+      batcher.lookup("b", 150, 2000, 0, IDENTITY);
+    final Future<BusyIntervals> a2 =
+      batcher.lookup("a", 0, 120, 0, IDENTITY);
+    final Future<BusyIntervals> unknown =
+      batcher.lookup("unknown", 0, 1000, 0, IDENTITY);
+
+    assertEquals(1, a.get().size());
+    assertEquals(100, a.get().getStart(0));
+    assertEquals(200, a.get().getEnd(0));
+    assertEquals(150, b.get().getStart(0));
+    assertEquals(200, b.get().getEnd(0));
+    assertEquals(120, a2.get().getEnd(0));
+    assertNull(unknown.get());
+
+    assertEquals(4, batcher.getLookupCount());
+    assertEquals(1, batcher.getCallCount());
+    assertEquals(3, client.calls.get(0).size());
+    assertEquals(0, client.ranges.get(0)[0]);
+    assertEquals(2000, client.ranges.get(0)[1]);
+  }
+
+  public void testMaxCalendarsPerCall() throws Exception {
+    properties.setProperty("googlev3.maxCalendarsPerCall", "2");
+    final List<Future<BusyIntervals>> results =
+      new ArrayList<Future<BusyIntervals>>();
+    for (int i = 0; i < 5; i++) {
+      results.add(batcher.lookup("user" + i, 0, 1000, 0, IDENTITY));
+    }
+    for (Future<BusyIntervals> result : results) {
+      assertEquals(1, result.get().size());
+    }
+    assertEquals(3, batcher.getCallCount());
+    for (Collection<String> call : client.calls) {
+      assertTrue(call.size() <= 2);
+    }
+  }
+
+  public void testExpired() throws Exception {
+    final long now = System.currentTimeMillis();
+    final Future<BusyIntervals> expired =
+      batcher.lookup("a", 0, 1000, now - 1, IDENTITY);
+    final Future<BusyIntervals> live =
+      batcher.lookup("b", 0, 1000, now + 60000, IDENTITY);
+    assertNull(expired.get());
+    assertEquals(1, live.get().size());
+    assertEquals(1, batcher.getExpiredCount());
+    assertEquals(1, client.calls.size());
+    assertEquals(1, client.calls.get(0).size());
+    assertEquals("b", client.calls.get(0).iterator().next());
+  }
+
+  public void testBoundedQueues() throws Exception {
+    properties.setProperty("googlev3.collectionWindowInMillis", "0");
+    properties.setProperty("googlev3.maxCalendarsPerCall", "1");
+    properties.setProperty("googlev3.fetchThreads", "1");
+    properties.setProperty("googlev3.fetchQueueSize", "1");
+    properties.setProperty("googlev3.lookupQueueSize", "1");
+    batcher = new FreeBusyBatcher(client);
+
+    // Lookups wait for room instead of being rejected or piling up
+    final List<Future<BusyIntervals>> results =
+      new ArrayList<Future<BusyIntervals>>();
+    for (int i = 0; i < 20; i++) {
+      results.add(batcher.lookup("user" + i, 0, 1000, 0, IDENTITY));
+    }
+    for (Future<BusyIntervals> result : results) {
+      assertEquals(1, result.get().size());
+    }
+    assertEquals(20, batcher.getCallCount());
+  }
+
+  public void testFailure() throws Exception {
+    client.fail = true;
+    final Future<BusyIntervals> a =
+      batcher.lookup("a", 0, 1000, 0, IDENTITY);
+    final Future<BusyIntervals> b =
+      batcher.lookup("b", 0, 1000, 0, IDENTITY);
+    assertNull(a.get());
+    assertNull(b.get());
+    assertEquals(1, batcher.getCallCount());
+  }
+}
@@ -0,0 +1,62 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.calendar.interoperability.connectorplugin.impl.googlev3;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for the JSON reader
+ */
+public class JsonTest extends TestCase {
+
+  public void testParse() {
+    final Object value = Json.parse(
+        " {\"a\": [1, -2.5e1, true, false, null], \"b\": {\"c\": \"d\"}," +
+        " \"e\": {} , \"f\": []}");
+    assertTrue(value instanceof Map);
+    assertEquals(Arrays.asList(1.0, -25.0, true, false, null),
+        Json.get(value, "a"));
+    assertEquals("d", Json.get(value, "b", "c"));
+    assertTrue(((Map<?, ?>) Json.get(value, "e")).isEmpty());
+    assertTrue(((List<?>) Json.get(value, "f")).isEmpty());
+    assertNull(Json.get(value, "b", "x"));
+    assertNull(Json.get(value, "a", "x"));
+  }
+
+  public void testStrings() {
+    assertEquals("a\"b\\c\nd\u00e9/",
+        Json.parse("\"a\\\"b\\\\c\\nd\\u00e9\\/\""));
+    final String s = "quote \" backslash \\ tab \t control \u0001";
+    assertEquals(s, Json.parse(Json.quote(s)));
+  }
+
+  public void testMalformed() {
+    for (String text : new String[] {
+        "", "{", "{\"a\" 1}", "[1,]", "\"abc", "tru", "{} x", "{1: 2}"}) {
+      try {
+        Json.parse(text);
+        fail("Parsed " + text);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+}
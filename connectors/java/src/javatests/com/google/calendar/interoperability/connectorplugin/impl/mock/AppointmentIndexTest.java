@@ -0,0 +1,112 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.mock;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Unit tests for the appointment interval index
+ */
+public class AppointmentIndexTest extends TestCase {
+
+  private final Random random = new Random(42);
+
+  private TreeSet<MockAppointment> createAppointments(int amount, int range) {
+    TreeSet<MockAppointment> result = new TreeSet<MockAppointment>();
+    for (int i = 0; i < amount; i++) {
+      final long start = random.nextInt(range);
+      final long length = random.nextInt(10) == 0 ?
+          random.nextInt(range) : random.nextInt(range / 50 + 1);
+      result.add(new MockAppointment("" + i, start, start + length));
+    }
+    return result;
+  }
+
+  private List<MockAppointment> bruteForce(
+      TreeSet<MockAppointment> appointments, long from, long until) {
+    List<MockAppointment> result = new ArrayList<MockAppointment>();
+    for (MockAppointment appointment : appointments) {
+      if (appointment.overlaps(from, until)) {
+        result.add(appointment);
+      }
+    }
+    return result;
+  }
+
+  public void testEmpty() {
+    AppointmentIndex index =
+      new AppointmentIndex(new TreeSet<MockAppointment>());
+    assertEquals(0, index.size());
+    assertTrue(index.scan(0, 100).isEmpty());
+  }
+
+  public void testAgainstBruteForce() {
+    for (int size = 1; size < 300; size += 7) {
+      TreeSet<MockAppointment> appointments = createAppointments(size, 1000);
+      AppointmentIndex index = new AppointmentIndex(appointments);
+      assertEquals(size, index.size());
+      for (int i = 0; i < 50; i++) {
+        final long from = random.nextInt(1100) - 50;
+        final long until = from + random.nextInt(200);
+        assertEquals("Size " + size + ", range " + from + "-" + until,
+            bruteForce(appointments, from, until), index.scan(from, until));
+      }
+    }
+  }
+
+  public void testScanBusyTimes() {
+    TreeSet<MockAppointment> appointments = createAppointments(100, 1000);
+    AppointmentIndex index = new AppointmentIndex(appointments);
+    List<MockAppointment> expected = index.scan(300, 600);
+    BusyIntervals busy = index.scanBusyTimes(300, 600);
+    assertEquals(expected.size(), busy.size());
+    for (int i = 0; i < busy.size(); i++) {
+      assertEquals(expected.get(i).getStartTimeUtc(), busy.getStart(i));
+      assertEquals(expected.get(i).getEndTimeUtc(), busy.getEnd(i));
+    }
+  }
+
+  public void testLongAppointment() {
+    // A long appointment far to the left must be found from the right
+    TreeSet<MockAppointment> appointments = new TreeSet<MockAppointment>();
+    appointments.add(new MockAppointment("long", 0, 100000));
+    for (int i = 1; i < 1000; i++) {
+      appointments.add(new MockAppointment("" + i, i * 10, i * 10 + 5));
+    }
+    AppointmentIndex index = new AppointmentIndex(appointments);
+    List<MockAppointment> result = index.scan(9990, 99999);
+    assertEquals(2, result.size());
+    assertEquals("long", result.get(0).getEventId());
+    assertEquals("999", result.get(1).getEventId());
+  }
+
+  public void testInvalidRange() {
+    try {
+      new AppointmentIndex(Collections.<MockAppointment>emptyList()).scan(2, 1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,233 @@
+/* Copyright (c) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.calendar.interoperability.connectorplugin.impl.mock;
+
+import com.google.calendar.interoperability.connectorplugin.base.messages.util.BusyIntervals;
+import com.google.calendar.interoperability.connectorplugin.impl.googlev3.CalendarV3Client;
+import com.google.calendar.interoperability.connectorplugin.impl.googlev3.Json;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Unit tests for the GData stub server
+ */
+public class GDataStubServerTest extends TestCase {
+
+  private GDataStubServer stub;
+  private Properties properties;
+  private int port;
+
+  @Override
+  public void setUp() throws Exception {
+    MockServer data = new MockServer();
+    MockDomain domain = data.createDomain("somewhere.org");
+    domain.prefillDomain("user", 3);
+    domain.getUser("user0").getCalendar().prefillCalendar(
+        "e", 0, 4 * 3600000L, 1800000, 3600000);
+    properties = new Properties();
+    properties.setProperty("stub.pageSize", "2");
+    stub = new GDataStubServer(data);
+    stub.setLocalConfig(properties);
+    port = stub.start();
+  }
+
+  @Override
+  public void tearDown() {
+    stub.stop();
+  }
+
+  private String fetch(String path, int expectedStatus) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection)
+        new URL("http://localhost:" + port + path).openConnection();
+    assertEquals(expectedStatus, connection.getResponseCode());
+    InputStream in = (expectedStatus < 400) ?
+        connection.getInputStream() : connection.getErrorStream();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int b = in.read(); b >= 0; b = in.read()) {
+      out.write(b);
+    }
+    in.close();
+    return out.toString("UTF-8");
+  }
+
+  public void testUserFeedPaging() throws Exception {
+    String page = fetch("/a/feeds/somewhere.org/user/2.0/", 200);
+    assertTrue(page.contains("userName='user0'"));
+    assertTrue(page.contains("userName='user1'"));
+    assertFalse(page.contains("userName='user2'"));
+    assertTrue(page.contains("rel='next'"));
+    assertTrue(page.contains("?startUsername=user2"));
+
+    page = fetch("/a/feeds/somewhere.org/user/2.0/?startUsername=user2", 200);
+    assertTrue(page.contains("userName='user2'"));
+    assertFalse(page.contains("rel='next'"));
+  }
+
+  public void testFreeBusyFeedPaging() throws Exception {
+    final String base = "/calendar/feeds/user0@somewhere.org/private/free-busy"
+        + "?start-min=1970-01-01T00:00:00.000Z"
+        + "&start-max=1970-01-01T05:00:00.000Z";
+
+    // max-results overrides the page size (2)
+    String page = fetch(base + "&max-results=50", 200);
+    assertTrue(page.contains("startTime='1970-01-01T04:00:00.000Z'"));
+    page = fetch(base, 200);
+    assertFalse(page.contains("startTime='1970-01-01T02:00:00.000Z'"));
+
+    page = fetch(base + "&max-results=2", 200);
+    assertTrue(page.contains(
+        "startTime='1970-01-01T00:00:00.000Z' " +
+        "endTime='1970-01-01T00:30:00.000Z'"));
+    assertTrue(page.contains("startTime='1970-01-01T01:00:00.000Z'"));
+    assertFalse(page.contains("startTime='1970-01-01T02:00:00.000Z'"));
+
+    page = fetch(base + "&max-results=2&start-index=3", 200);
+    assertTrue(page.contains("startTime='1970-01-01T02:00:00.000Z'"));
+    assertTrue(page.contains("startTime='1970-01-01T03:00:00.000Z'"));
+
+    page = fetch(base + "&max-results=2&start-index=5", 200);
+    assertTrue(page.contains("startTime='1970-01-01T04:00:00.000Z'"));
+    assertFalse(page.contains("startTime='1970-01-01T03:00:00.000Z'"));
+  }
+
+  private CalendarV3Client createV3Client() {
+    final Properties config = new Properties();
+    config.setProperty("googlev3.calendarApiUrl",
+        "http://localhost:" + port + "/calendar/v3/");
+    config.setProperty("googlev3.directoryApiUrl",
+        "http://localhost:" + port + "/admin/directory/v1/");
+    config.setProperty("googlev3.domain", "somewhere.org");
+    config.setProperty("googlev3.accessToken", "fixed");
+    final CalendarV3Client client = new CalendarV3Client();
+    client.setLocalConfig(config);
+    return client;
+  }
+
+  public void testV3FreeBusy() throws Exception {
+    final Map<String, BusyIntervals> result = createV3Client().queryFreeBusy(
+        2700000L, 3 * 3600000L + 900000L, Arrays.asList(
+            "user0@somewhere.org", "user1@somewhere.org",
+            "nobody@somewhere.org"));
+    assertFalse(result.containsKey("nobody@somewhere.org"));
+    assertTrue(result.get("user1@somewhere.org").isEmpty());
+    final BusyIntervals busy = result.get("user0@somewhere.org");
+    assertEquals(3, busy.size());
+    assertEquals(3600000L, busy.getStart(0));
+    assertEquals(3 * 3600000L, busy.getStart(2));
+    assertEquals(3 * 3600000L + 900000L, busy.getEnd(2));
+  }
+
+  public void testV3UserPaging() throws Exception {
+    final List<Object> users = createV3Client().listUsers();
+    assertEquals(3, users.size());
+    assertEquals("user0@somewhere.org", Json.get(users.get(0), "primaryEmail"));
+    assertEquals("user2", Json.get(users.get(2), "name", "familyName"));
+    assertEquals(2, stub.getRequestCount());
+  }
+
+  public void testV3TokenRefresh() throws Exception {
+    properties.setProperty("stub.tokenLifetimeInSeconds", "600");
+    final Properties config = new Properties();
+    config.setProperty("googlev3.directoryApiUrl",
+        "http://localhost:" + port + "/admin/directory/v1/");
+    config.setProperty("googlev3.tokenUrl",
+        "http://localhost:" + port + "/oauth2/token");
+    config.setProperty("googlev3.refreshToken", "refresh");
+    config.setProperty("googlev3.domain", "somewhere.org");
+    final CalendarV3Client client = new CalendarV3Client();
+    client.setLocalConfig(config);
+    assertEquals(3, client.listUsers().size());
+    assertEquals(1, stub.getTokenCount());
+    assertEquals(300000, client.getTokenRefreshInMillis());
+
+    // A revoked token is dropped, the next request gets a new one
+    stub.revokeTokens();
+    try {
+      client.listUsers();
+      fail("Revoked token accepted");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(3, client.listUsers().size());
+    assertEquals(2, stub.getTokenCount());
+  }
+
+  public void testV3Unauthorized() throws Exception {
+    final Properties config = new Properties();
+    config.setProperty("googlev3.directoryApiUrl",
+        "http://localhost:" + port + "/admin/directory/v1/");
+    config.setProperty("googlev3.domain", "somewhere.org");
+    final CalendarV3Client client = new CalendarV3Client();
+    client.setLocalConfig(config);
+    try {
+      client.listUsers();
+      fail("Request without token");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(0, stub.getRequestCount());
+  }
+
+  public void testUnknownUser() throws Exception {
+    fetch("/calendar/feeds/nobody@somewhere.org/private/free-busy" +
+        "?start-min=1970-01-01T00:00:00Z&start-max=1970-01-02T00:00:00Z", 404);
+    fetch("/a/feeds/elsewhere.org/user/2.0/", 404);
+  }
+
+  public void testErrorInjection() throws Exception {
+    properties.setProperty("stub.errorPercentage", "100");
+    properties.setProperty("stub.errorStatus", "500");
+    fetch("/a/feeds/somewhere.org/user/2.0/", 500);
+    assertEquals(1, stub.getRequestCount());
+    assertEquals(1, stub.getInjectedErrorCount());
+  }
+
+  public void testLatency() {
+    properties.setProperty("stub.latencyInMillis", "100");
+    assertEquals(100, stub.nextLatency());
+    properties.setProperty("stub.latency", "uniform");
+    for (int i = 0; i < 100; i++) {
+      final long latency = stub.nextLatency();
+      assertTrue(latency >= 0 && latency <= 200);
+    }
+    properties.setProperty("stub.latency", "exponential");
+    long sum = 0;
+    for (int i = 0; i < 1000; i++) {
+      sum += stub.nextLatency();
+    }
+    assertTrue(sum > 50000 && sum < 150000);
+  }
+
+  public void testTimes() {
+    assertEquals(0, GDataStubServer.parseTime("1970-01-01T00:00:00.000Z"));
+    assertEquals(0, GDataStubServer.parseTime("1970-01-01T01:00:00+01:00"));
+    assertEquals(1000, GDataStubServer.parseTime("1970-01-01T00:00:01Z"));
+    assertEquals(1000, GDataStubServer.parseTime("1970-01-01T00:00:01.000"));
+    assertEquals(1000, GDataStubServer.parseTime("1970-01-01T00:00:01"));
+    assertEquals(1000, GDataStubServer.parseTime("1969-12-31T23:00:01-01:00"));
+    assertEquals("1970-01-01T00:00:01.000Z", GDataStubServer.formatTime(1000));
+  }
+}
@@ -77,6 +77,17 @@ public class MockCalendarTest extends TestCase {
     scan(4, 5, 0);
   }
   
+  public void testScanAfterModification() {
+    calendar.createAppointment("0", 1, 2);
+    scan(0, 10, 1);
+    calendar.createAppointment("1", 3, 4);
+    scan(0, 10, 2);
+    calendar.createAppointment("0", 5, 6);
+    assertEquals("0", scan(5, 5, 1).get(0).getEventId());
+    calendar.cancelAppointment("1");
+    scan(0, 10, 1);
+  }
+  
   public void testPrefill() {
     calendar.prefillCalendar("e", 1, 4, 5, 2);
     scan(1, 3, 2);